@@ -3,6 +3,7 @@
  */
 package net.sf.jabb.cjtsd;
 
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
@@ -15,6 +16,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * This is the class for handling (primarily generating) Compact JSON Time Series Data (CJTSD) data.
@@ -26,6 +28,11 @@ import java.util.List;
  * <code>
  * 	objectMapper.readValue(jsonString, CJTSD.class).toList()
  * </code>
+ * <p>or, without creating any object per data point:</p>
+ * <code>
+ * 	objectMapper.readValue(jsonString, CJTSD.class).forEach(cursor -&gt; ...)
+ * </code>
+ * <p>To exchange in a compact binary form instead of JSON, see {@link CJTSDBinaryCodec}.</p>
  * @see <a href="https://github.com/james-hu/cjtsd-js/wiki/Compact-JSON-Time-Series-Data">https://github.com/james-hu/cjtsd-js/wiki/Compact-JSON-Time-Series-Data</a>
  * @author James Hu (Zhengmao Hu)
  *
@@ -99,6 +106,27 @@ public class CJTSD extends PlainCJTSD{
 		return result;
 	}
 	
+	/**
+	 * Create a cursor for iterating through the data points. 
+	 * The cursor is a flyweight: it exposes the data point it is positioned at as primitive values without creating any object.
+	 * @return	the cursor positioned before the first data point
+	 */
+	public CJTSDCursor cursor(){
+		return new CJTSDCursor(this);
+	}
+	
+	/**
+	 * Iterate through the data points. The same cursor instance is passed to the action for every data point,
+	 * so it must not be kept by the action.
+	 * @param action	the action to be performed for each data point
+	 */
+	public void forEach(Consumer<? super CJTSDCursor> action){
+		CJTSDCursor cursor = new CJTSDCursor(this);
+		while(cursor.next()){
+			action.accept(cursor);
+		}
+	}
+	
 	/**
 	 * Create a builder for generating CJTSD object.
 	 * The expected number of data points is 50.
@@ -120,9 +148,95 @@ public class CJTSD extends PlainCJTSD{
 		return new Builder(expectedSize);
 	}
 	
+	/**
+	 * Column of numbers in a builder. Numbers are kept in a primitive list as long as they are all integers or all doubles,
+	 * and only when both kinds or other kinds of numbers (or nulls) are added, they are moved to a list of Number objects.
+	 * Integers and doubles are not kept in the same primitive list because they are different in JSON, for example, 5 and 5.0.
+	 */
+	static class NumberColumn{
+		private final int expectedSize;
+		private LongArrayList longs;
+		private DoubleArrayList doubles;
+		private List<Number> mixed;
+		
+		NumberColumn(int expectedSize){
+			this.expectedSize = expectedSize;
+		}
+		
+		void add(long v){
+			if (mixed != null){
+				mixed.add(v);
+			}else if (doubles != null){
+				toMixed().add(v);
+			}else{
+				if (longs == null){
+					longs = new LongArrayList(expectedSize);
+				}
+				longs.add(v);
+			}
+		}
+		
+		void add(double v){
+			if (mixed != null){
+				mixed.add(v);
+			}else if (longs != null){
+				toMixed().add(v);
+			}else{
+				if (doubles == null){
+					doubles = new DoubleArrayList(expectedSize);
+				}
+				doubles.add(v);
+			}
+		}
+		
+		void add(Number v){
+			if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte){
+				add(v.longValue());
+			}else if (v instanceof Double){
+				add(v.doubleValue());
+			}else{
+				toMixed().add(v);
+			}
+		}
+		
+		private List<Number> toMixed(){
+			if (mixed == null){
+				mixed = new ArrayList<>(Math.max(expectedSize, longs == null ? (doubles == null ? 0 : doubles.size()) : longs.size()) + 1);
+				if (longs != null){
+					mixed.addAll(longs);
+					longs = null;
+				}
+				if (doubles != null){
+					mixed.addAll(doubles);
+					doubles = null;
+				}
+			}
+			return mixed;
+		}
+		
+		/**
+		 * Get the list. If the list is backed by a primitive array, adding a number of another type to it would cause ClassCastException.
+		 * @return	the list
+		 * @param <T>	type of the elements
+		 */
+		@SuppressWarnings("unchecked")
+		<T> List<T> toList(){
+			if (mixed != null){
+				return (List<T>) mixed;
+			}else if (longs != null){
+				return (List<T>) longs;
+			}else if (doubles != null){
+				return (List<T>) doubles;
+			}else{
+				return new ArrayList<>(0);
+			}
+		}
+	}
+	
 	/**
 	 * Builder that keeps intermediate data structure for creating
 	 * CJTSD object.
+	 * Numbers are kept in primitive lists as long as possible, see the overloaded methods taking primitive arguments.
 	 * @author James Hu (Zhengmao Hu)
 	 *
 	 */
@@ -131,12 +245,14 @@ public class CJTSD extends PlainCJTSD{
 		private ChronoUnit unit = ChronoUnit.MINUTES;
 		private LongList timestamps;
 		private IntList durations;
-		private List<Long> counts;
-		private List<Number> sums;
-		private List<Number> avgs;
-		private List<Number> mins;
-		private List<Number> maxs;
-		private List<Number> numbers;
+		private int lastSpecifiedDurationIndex = -1;
+		private int lastSpecifiedDuration;
+		private NumberColumn counts;
+		private NumberColumn sums;
+		private NumberColumn avgs;
+		private NumberColumn mins;
+		private NumberColumn maxs;
+		private NumberColumn numbers;
 		private List<Object> objs;
 
 		Builder(){
@@ -185,17 +301,20 @@ public class CJTSD extends PlainCJTSD{
 			}
 
 			timestamps.add(timestamp);
-			int d = duration;
-			if (durations.size() > 0){
-				int n = indexOfLastSpecifiedDuration();
-				if (n >= 0 && duration == durations.getInt(n)){
-					d = -1;
-				}
-			}
-			durations.add(d);
+			addDuration(duration);
 			return this;
 		}
 		
+		private void addDuration(int duration){
+			if (duration != -1 && (lastSpecifiedDurationIndex < 0 || duration != lastSpecifiedDuration)){
+				lastSpecifiedDurationIndex = durations.size();
+				lastSpecifiedDuration = duration;
+				durations.add(duration);
+			}else{
+				durations.add(-1);
+			}
+		}
+		
 		/**
 		 * Add a data point
 		 * @param timestamp	the timestamp of the data point
@@ -232,8 +351,9 @@ public class CJTSD extends PlainCJTSD{
 		 * @return	the builder itself
 		 */
 		public Builder add(long timestamp){
+			int duration = timestamps.size() == 0 ? 0 : -1;
 			timestamps.add(timestamp);
-			durations.add(timestamps.size() == 0 ? 0 : -1);
+			addDuration(duration);
 			return this;
 		}
 		
@@ -254,7 +374,20 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addCount(Long count){
 			if (counts == null){
-				counts = new ArrayList<>(expectedSize);
+				counts = new NumberColumn(expectedSize);
+			}
+			counts.add(count);
+			return this;
+		}
+
+		/**
+		 * Add a count number ('c') to the current data point
+		 * @param count	the count number
+		 * @return	the builder itself
+		 */
+		public Builder addCount(long count){
+			if (counts == null){
+				counts = new NumberColumn(expectedSize);
 			}
 			counts.add(count);
 			return this;
@@ -267,7 +400,33 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addSum(Number sum){
 			if (sums == null){
-				sums = new ArrayList<>(expectedSize);
+				sums = new NumberColumn(expectedSize);
+			}
+			sums.add(sum);
+			return this;
+		}
+
+		/**
+		 * Add a sum number ('s') to the current data point
+		 * @param sum	the number
+		 * @return	the builder itself
+		 */
+		public Builder addSum(long sum){
+			if (sums == null){
+				sums = new NumberColumn(expectedSize);
+			}
+			sums.add(sum);
+			return this;
+		}
+
+		/**
+		 * Add a sum number ('s') to the current data point
+		 * @param sum	the number
+		 * @return	the builder itself
+		 */
+		public Builder addSum(double sum){
+			if (sums == null){
+				sums = new NumberColumn(expectedSize);
 			}
 			sums.add(sum);
 			return this;
@@ -280,7 +439,33 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addAvg(Number avg){
 			if (avgs == null){
-				avgs = new ArrayList<>(expectedSize);
+				avgs = new NumberColumn(expectedSize);
+			}
+			avgs.add(avg);
+			return this;
+		}
+
+		/**
+		 * Add a average number ('a') to the current data point
+		 * @param avg	the number
+		 * @return	the builder itself
+		 */
+		public Builder addAvg(long avg){
+			if (avgs == null){
+				avgs = new NumberColumn(expectedSize);
+			}
+			avgs.add(avg);
+			return this;
+		}
+
+		/**
+		 * Add a average number ('a') to the current data point
+		 * @param avg	the number
+		 * @return	the builder itself
+		 */
+		public Builder addAvg(double avg){
+			if (avgs == null){
+				avgs = new NumberColumn(expectedSize);
 			}
 			avgs.add(avg);
 			return this;
@@ -293,7 +478,33 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addMin(Number min){
 			if (mins == null){
-				mins = new ArrayList<>(expectedSize);
+				mins = new NumberColumn(expectedSize);
+			}
+			mins.add(min);
+			return this;
+		}
+
+		/**
+		 * Add a minimal number ('m') to the current data point
+		 * @param min	the number
+		 * @return	the builder itself
+		 */
+		public Builder addMin(long min){
+			if (mins == null){
+				mins = new NumberColumn(expectedSize);
+			}
+			mins.add(min);
+			return this;
+		}
+
+		/**
+		 * Add a minimal number ('m') to the current data point
+		 * @param min	the number
+		 * @return	the builder itself
+		 */
+		public Builder addMin(double min){
+			if (mins == null){
+				mins = new NumberColumn(expectedSize);
 			}
 			mins.add(min);
 			return this;
@@ -306,7 +517,33 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addMax(Number max){
 			if (maxs == null){
-				maxs = new ArrayList<>(expectedSize);
+				maxs = new NumberColumn(expectedSize);
+			}
+			maxs.add(max);
+			return this;
+		}
+
+		/**
+		 * Add a maximal number ('x') to the current data point
+		 * @param max	the number
+		 * @return	the builder itself
+		 */
+		public Builder addMax(long max){
+			if (maxs == null){
+				maxs = new NumberColumn(expectedSize);
+			}
+			maxs.add(max);
+			return this;
+		}
+
+		/**
+		 * Add a maximal number ('x') to the current data point
+		 * @param max	the number
+		 * @return	the builder itself
+		 */
+		public Builder addMax(double max){
+			if (maxs == null){
+				maxs = new NumberColumn(expectedSize);
 			}
 			maxs.add(max);
 			return this;
@@ -319,7 +556,33 @@ public class CJTSD extends PlainCJTSD{
 		 */
 		public Builder addNumber(Number n){
 			if (numbers == null){
-				numbers = new ArrayList<>(expectedSize);
+				numbers = new NumberColumn(expectedSize);
+			}
+			numbers.add(n);
+			return this;
+		}
+
+		/**
+		 * Add a generic number ('n') to the current data point
+		 * @param n	the number
+		 * @return	the builder itself
+		 */
+		public Builder addNumber(long n){
+			if (numbers == null){
+				numbers = new NumberColumn(expectedSize);
+			}
+			numbers.add(n);
+			return this;
+		}
+
+		/**
+		 * Add a generic number ('n') to the current data point
+		 * @param n	the number
+		 * @return	the builder itself
+		 */
+		public Builder addNumber(double n){
+			if (numbers == null){
+				numbers = new NumberColumn(expectedSize);
 			}
 			numbers.add(n);
 			return this;
@@ -338,20 +601,6 @@ public class CJTSD extends PlainCJTSD{
 			return this;
 		}
 		
-		/**
-		 * Find the index of last explicitly specified duration element
-		 * @return	the index of the last explicitly specified duration element, or -1 if not found.
-		 */
-		private int indexOfLastSpecifiedDuration(){
-			int result = -1;
-			for (int i = durations.size() - 1; i >=0; i --){
-				if (durations.getInt(i) != -1){
-					result = i;
-					break;
-				}
-			}
-			return result;
-		}
 		
 		/**
 		 * Build the CJTSD object
@@ -379,7 +628,7 @@ public class CJTSD extends PlainCJTSD{
 			result.t = this.timestamps;
 			
 			// d
-			int n = indexOfLastSpecifiedDuration();
+			int n = lastSpecifiedDurationIndex;
 			if (n >= 0 && n < durations.size() - 1){
 				durations.size(n + 1);
 			}
@@ -392,12 +641,12 @@ public class CJTSD extends PlainCJTSD{
 			result.d = this.durations;
 			
 			// c, s, a, m, x, n, o
-			result.c = this.counts;
-			result.s = this.sums;
-			result.a = this.avgs;
-			result.m = this.mins;
-			result.x = this.maxs;
-			result.n = this.numbers;
+			result.c = this.counts == null ? null : this.counts.toList();
+			result.s = this.sums == null ? null : this.sums.toList();
+			result.a = this.avgs == null ? null : this.avgs.toList();
+			result.m = this.mins == null ? null : this.mins.toList();
+			result.x = this.maxs == null ? null : this.maxs.toList();
+			result.n = this.numbers == null ? null : this.numbers.toList();
 			result.o = this.objs;
 			
 			return result;
@@ -416,7 +665,19 @@ public class CJTSD extends PlainCJTSD{
 		Number number;
 		Object obj;
 
-		Entry(LocalDateTime timestamp, Duration duration, Long count, Number sum, Number avg, Number min, Number max, Number number, Object obj) {
+		/**
+		 * Constructor
+		 * @param timestamp	the timestamp
+		 * @param duration	the duration, can be null if it is the same as the previous data point
+		 * @param count		the count, can be null
+		 * @param sum		the sum, can be null
+		 * @param avg		the average, can be null
+		 * @param min		the minimum, can be null
+		 * @param max		the maximum, can be null
+		 * @param number	the generic number, can be null
+		 * @param obj		the object, can be null
+		 */
+		public Entry(LocalDateTime timestamp, Duration duration, Long count, Number sum, Number avg, Number min, Number max, Number number, Object obj) {
 			super();
 			this.timestamp = timestamp;
 			this.duration = duration;
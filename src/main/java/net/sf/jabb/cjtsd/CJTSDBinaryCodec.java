@@ -0,0 +1,653 @@
+/**
+ *
+ */
+package net.sf.jabb.cjtsd;
+
+import static net.sf.jabb.util.codec.VarIntUtility.unzigzag;
+import static net.sf.jabb.util.codec.VarIntUtility.zigzag;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.jabb.util.codec.VarIntUtility;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compact binary encoding of CJTSD data, as an alternative to JSON for exchanging large series between Java applications.
+ * <ul>
+ * 	<li>Timestamps ('t') are encoded as delta-of-delta in zigzag varint, so that regular intervals take one byte per data point.</li>
+ * 	<li>Durations ('d') are run-length encoded.</li>
+ * 	<li>Numbers ('c', 's', 'a', 'm', 'x', 'n') are encoded column by column, as zigzag varints if all of them are integers,
+ * 		as 8-byte doubles if all of them are doubles, otherwise each number is prefixed by its type.</li>
+ * 	<li>Objects ('o') can be of any type, so they are embedded as JSON.</li>
+ * </ul>
+ * <p>Encoding reads the lists in the CJTSD object directly and writes to the byte array or {@link ByteBuffer} as it goes,
+ * and decoding fills primitive array based lists (like the ones created by {@link CJTSD.Builder}) when a column has no null,
+ * so that no intermediate object is created for data points.
+ * Lengths and sizes in the binary form are validated against the number of bytes available before anything is allocated for them.</p>
+ * <p>On streams, the binary form is prefixed by its length as a varint,
+ * so that exactly one CJTSD object is read at a time and streams can contain other data afterwards.</p>
+ * <p>The decoded object is equivalent to the original one in JSON form:
+ * numbers are converted in the same way as a JSON round trip would do, for example, floats become doubles,
+ * and BigIntegers that fit in long become integers.</p>
+ * @author James Hu (Zhengmao Hu)
+ *
+ */
+public class CJTSDBinaryCodec {
+	static public final byte VERSION = 1;
+	
+	/**
+	 * Default maximum length of the binary form when decoding from an InputStream
+	 */
+	static public final int DEFAULT_MAX_STREAM_LENGTH = 64 * 1024 * 1024;
+
+	static protected final int U = 1;
+	static protected final int T = 1 << 1;
+	static protected final int D = 1 << 2;
+	static protected final int C = 1 << 3;
+	static protected final int S = 1 << 4;
+	static protected final int A = 1 << 5;
+	static protected final int M = 1 << 6;
+	static protected final int X = 1 << 7;
+	static protected final int N = 1 << 8;
+	static protected final int O = 1 << 9;
+
+	static protected final byte COLUMN_INTEGERS = 1;
+	static protected final byte COLUMN_DOUBLES = 2;
+	static protected final byte COLUMN_MIXED = 3;
+
+	static protected final byte TYPE_NULL = 0;
+	static protected final byte TYPE_INTEGER = 1;
+	static protected final byte TYPE_DOUBLE = 2;
+	static protected final byte TYPE_BIG_INTEGER = 3;
+
+	static protected final ObjectMapper objectMapper = new ObjectMapper();
+
+	/**
+	 * Encode to a byte array
+	 * @param cjtsd	the CJTSD object
+	 * @return	the binary form
+	 */
+	static public byte[] encode(PlainCJTSD cjtsd){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + (cjtsd.t == null ? 0 : cjtsd.t.size() * 8));
+		try {
+			StreamOutput output = new StreamOutput(out);
+			encode(cjtsd, output);
+			output.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);		// should never happen
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode to an OutputStream, the binary form is prefixed by its length. The stream is neither flushed nor closed.
+	 * @param cjtsd	the CJTSD object
+	 * @param out	the output stream
+	 * @throws IOException	if failed to write to the stream
+	 */
+	static public void encode(PlainCJTSD cjtsd, OutputStream out) throws IOException{
+		byte[] bytes = encode(cjtsd);
+		StreamOutput output = new StreamOutput(out);
+		output.writeVarLong(bytes.length);
+		output.flush();
+		out.write(bytes);
+	}
+
+	/**
+	 * Encode to a ByteBuffer, starting from its current position
+	 * @param cjtsd	the CJTSD object
+	 * @param buffer	the buffer
+	 * @throws java.nio.BufferOverflowException	if there is not enough space in the buffer
+	 */
+	static public void encode(PlainCJTSD cjtsd, ByteBuffer buffer){
+		try {
+			encode(cjtsd, new BufferOutput(buffer));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);		// should never happen
+		}
+	}
+
+	/**
+	 * Decode from a byte array
+	 * @param bytes	the binary form
+	 * @return	the CJTSD object
+	 */
+	static public CJTSD decode(byte[] bytes){
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Decode from a ByteBuffer, starting from its current position
+	 * @param buffer	the buffer
+	 * @return	the CJTSD object
+	 * @throws java.nio.BufferUnderflowException	if the data in the buffer is incomplete
+	 */
+	static public CJTSD decode(ByteBuffer buffer){
+		try {
+			return decode(new BufferInput(buffer));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);		// should never happen
+		}
+	}
+
+	/**
+	 * Decode from an InputStream containing the length prefixed binary form written by {@link #encode(PlainCJTSD, OutputStream)}.
+	 * The stream is read up to the end of the CJTSD object and no further.
+	 * @param in	the input stream
+	 * @return	the CJTSD object
+	 * @throws IOException	if failed to read from the stream or the data is incomplete
+	 * @throws IllegalArgumentException	if the length is longer than {@link #DEFAULT_MAX_STREAM_LENGTH} or the data is malformed
+	 */
+	static public CJTSD decode(InputStream in) throws IOException{
+		return decode(in, DEFAULT_MAX_STREAM_LENGTH);
+	}
+
+	/**
+	 * Decode from an InputStream containing the length prefixed binary form written by {@link #encode(PlainCJTSD, OutputStream)}.
+	 * The stream is read up to the end of the CJTSD object and no further.
+	 * @param in	the input stream
+	 * @param maxLength	maximum length of the binary form that is acceptable
+	 * @return	the CJTSD object
+	 * @throws IOException	if failed to read from the stream or the data is incomplete
+	 * @throws IllegalArgumentException	if the length is longer than maxLength or the data is malformed
+	 */
+	static public CJTSD decode(InputStream in, int maxLength) throws IOException{
+		long length = new StreamInput(in).readVarLong();
+		if (length < 0 || length > maxLength){
+			throw new IllegalArgumentException("Invalid length of binary CJTSD: " + length);
+		}
+		byte[] bytes = new byte[(int) Math.min(length, 8192)];	// grows as data arrives, so that a bogus length does not cause a huge allocation
+		int position = 0;
+		while (position < length){
+			if (position == bytes.length){
+				bytes = Arrays.copyOf(bytes, (int) Math.min(length, (long) bytes.length * 2));
+			}
+			int n = in.read(bytes, position, bytes.length - position);
+			if (n < 0){
+				throw new EOFException("Incomplete binary CJTSD");
+			}
+			position += n;
+		}
+		return decode(bytes);
+	}
+
+	static protected void encode(PlainCJTSD cjtsd, Output out) throws IOException{
+		int columns = (cjtsd.u == null ? 0 : U) | (cjtsd.t == null ? 0 : T) | (cjtsd.d == null ? 0 : D)
+				| (cjtsd.c == null ? 0 : C) | (cjtsd.s == null ? 0 : S) | (cjtsd.a == null ? 0 : A)
+				| (cjtsd.m == null ? 0 : M) | (cjtsd.x == null ? 0 : X) | (cjtsd.n == null ? 0 : N) | (cjtsd.o == null ? 0 : O);
+		out.writeByte(VERSION);
+		out.writeVarLong(columns);
+		if (cjtsd.u != null){
+			writeBytes(out, cjtsd.u.getBytes(StandardCharsets.UTF_8));
+		}
+		if (cjtsd.t != null){
+			writeTimestamps(out, cjtsd.t);
+		}
+		if (cjtsd.d != null){
+			writeDurations(out, cjtsd.d);
+		}
+		if (cjtsd.c != null){
+			writeNumbers(out, cjtsd.c);
+		}
+		if (cjtsd.s != null){
+			writeNumbers(out, cjtsd.s);
+		}
+		if (cjtsd.a != null){
+			writeNumbers(out, cjtsd.a);
+		}
+		if (cjtsd.m != null){
+			writeNumbers(out, cjtsd.m);
+		}
+		if (cjtsd.x != null){
+			writeNumbers(out, cjtsd.x);
+		}
+		if (cjtsd.n != null){
+			writeNumbers(out, cjtsd.n);
+		}
+		if (cjtsd.o != null){
+			writeBytes(out, objectMapper.writeValueAsBytes(cjtsd.o));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static protected CJTSD decode(Input in) throws IOException{
+		byte version = in.readByte();
+		if (version != VERSION){
+			throw new IllegalArgumentException("Unsupported version of binary CJTSD: " + version);
+		}
+		int columns = (int) in.readVarLong();
+		CJTSD cjtsd = new CJTSD();
+		if ((columns & U) != 0){
+			cjtsd.u = new String(readBytes(in), StandardCharsets.UTF_8);
+		}
+		if ((columns & T) != 0){
+			cjtsd.t = readTimestamps(in);
+		}
+		if ((columns & D) != 0){
+			cjtsd.d = readDurations(in, cjtsd.t == null ? in.remaining() : cjtsd.t.size());
+		}
+		if ((columns & C) != 0){
+			cjtsd.c = (List<Long>)(List<?>) readNumbers(in, true);
+		}
+		if ((columns & S) != 0){
+			cjtsd.s = readNumbers(in, false);
+		}
+		if ((columns & A) != 0){
+			cjtsd.a = readNumbers(in, false);
+		}
+		if ((columns & M) != 0){
+			cjtsd.m = readNumbers(in, false);
+		}
+		if ((columns & X) != 0){
+			cjtsd.x = readNumbers(in, false);
+		}
+		if ((columns & N) != 0){
+			cjtsd.n = readNumbers(in, false);
+		}
+		if ((columns & O) != 0){
+			cjtsd.o = objectMapper.readValue(readBytes(in), List.class);
+		}
+		return cjtsd;
+	}
+
+	static protected void writeBytes(Output out, byte[] bytes) throws IOException{
+		out.writeVarLong(bytes.length);
+		for (byte b: bytes){
+			out.writeByte(b);
+		}
+	}
+
+	static protected byte[] readBytes(Input in) throws IOException{
+		byte[] bytes = new byte[readSize(in, in.remaining(), "bytes")];
+		for (int i = 0; i < bytes.length; i ++){
+			bytes[i] = in.readByte();
+		}
+		return bytes;
+	}
+
+	static protected void writeTimestamps(Output out, List<Long> t) throws IOException{
+		int size = t.size();
+		out.writeVarLong(size);
+		LongList longList = t instanceof LongList ? (LongList) t : null;
+		long previous = 0;
+		long previousDelta = 0;
+		for (int i = 0; i < size; i ++){
+			long v = longList == null ? t.get(i) : longList.getLong(i);
+			long delta = v - previous;
+			out.writeVarLong(zigzag(delta - previousDelta));
+			previous = v;
+			previousDelta = i == 0 ? 0 : delta;		// the first one is written as is, the second one as delta
+		}
+	}
+
+	/**
+	 * Read a length or size and validate it
+	 * @param in	the input
+	 * @param max	maximum valid value
+	 * @param what	what the length or size is of, for the error message
+	 * @return	the length or size
+	 * @throws IOException	if failed to read
+	 * @throws IllegalArgumentException	if the value is negative or larger than the maximum
+	 */
+	static protected int readSize(Input in, int max, String what) throws IOException{
+		long size = in.readVarLong();
+		if (size < 0 || size > max){
+			throw new IllegalArgumentException("Invalid number of " + what + " in binary CJTSD: " + size);
+		}
+		return (int) size;
+	}
+
+	static protected LongList readTimestamps(Input in) throws IOException{
+		long[] t = new long[readSize(in, in.remaining(), "timestamps")];		// each of them takes at least one byte
+		long previous = 0;
+		long previousDelta = 0;
+		for (int i = 0; i < t.length; i ++){
+			long delta = unzigzag(in.readVarLong()) + previousDelta;
+			previous += delta;
+			t[i] = previous;
+			previousDelta = i == 0 ? 0 : delta;
+		}
+		return LongArrayList.wrap(t);
+	}
+
+	static protected void writeDurations(Output out, List<Integer> d) throws IOException{
+		int size = d.size();
+		out.writeVarLong(size);
+		IntList intList = d instanceof IntList ? (IntList) d : null;
+		int i = 0;
+		while (i < size){
+			int v = intList == null ? d.get(i) : intList.getInt(i);
+			int run = 1;
+			while (i + run < size && (intList == null ? d.get(i + run) : intList.getInt(i + run)) == v){
+				run ++;
+			}
+			out.writeVarLong(zigzag(v));
+			out.writeVarLong(run);
+			i += run;
+		}
+	}
+
+	static protected IntList readDurations(Input in, int max) throws IOException{
+		int[] d = new int[readSize(in, max, "durations")];
+		int i = 0;
+		while (i < d.length){
+			int v = (int) unzigzag(in.readVarLong());
+			int end = i + (int) in.readVarLong();
+			if (end > d.length){
+				throw new IllegalArgumentException("Invalid run length of durations in binary CJTSD");
+			}
+			while (i < end){
+				d[i ++] = v;
+			}
+		}
+		return IntArrayList.wrap(d);
+	}
+
+	static protected void writeNumbers(Output out, List<? extends Number> list) throws IOException{
+		int size = list.size();
+		out.writeVarLong(size);
+		if (size == 0){
+			return;
+		}
+		if (list instanceof LongList){
+			LongList longList = (LongList) list;
+			out.writeByte(COLUMN_INTEGERS);
+			for (int i = 0; i < size; i ++){
+				out.writeVarLong(zigzag(longList.getLong(i)));
+			}
+			return;
+		}
+		if (list instanceof IntList){
+			IntList intList = (IntList) list;
+			out.writeByte(COLUMN_INTEGERS);
+			for (int i = 0; i < size; i ++){
+				out.writeVarLong(zigzag(intList.getInt(i)));
+			}
+			return;
+		}
+		if (list instanceof DoubleList){
+			DoubleList doubleList = (DoubleList) list;
+			out.writeByte(COLUMN_DOUBLES);
+			for (int i = 0; i < size; i ++){
+				out.writeLong(Double.doubleToRawLongBits(doubleList.getDouble(i)));
+			}
+			return;
+		}
+
+		boolean allIntegers = true;
+		boolean allDoubles = true;
+		for (int i = 0; i < size && (allIntegers || allDoubles); i ++){
+			Number v = list.get(i);
+			allIntegers = allIntegers && (v instanceof Long || v instanceof Integer);
+			allDoubles = allDoubles && v instanceof Double;
+		}
+		if (allIntegers){
+			out.writeByte(COLUMN_INTEGERS);
+			for (int i = 0; i < size; i ++){
+				out.writeVarLong(zigzag(list.get(i).longValue()));
+			}
+		}else if (allDoubles){
+			out.writeByte(COLUMN_DOUBLES);
+			for (int i = 0; i < size; i ++){
+				out.writeLong(Double.doubleToRawLongBits(list.get(i).doubleValue()));
+			}
+		}else{
+			out.writeByte(COLUMN_MIXED);
+			for (int i = 0; i < size; i ++){
+				writeNumber(out, list.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Write a number prefixed by its type. Numbers are converted in the same way as if they were serialized to JSON and then deserialized.
+	 * @param out	the output
+	 * @param v		the number
+	 * @throws IOException	if failed to write
+	 */
+	static protected void writeNumber(Output out, Number v) throws IOException{
+		if (v == null){
+			out.writeByte(TYPE_NULL);
+		}else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte){
+			out.writeByte(TYPE_INTEGER);
+			out.writeVarLong(zigzag(v.longValue()));
+		}else if (v instanceof Double){
+			out.writeByte(TYPE_DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits(v.doubleValue()));
+		}else if (v instanceof Float || v instanceof BigDecimal){
+			out.writeByte(TYPE_DOUBLE);		// the decimal string form is what JSON has
+			out.writeLong(Double.doubleToRawLongBits(Double.parseDouble(v.toString())));
+		}else{
+			BigInteger bi;
+			if (v instanceof BigInteger){
+				bi = (BigInteger) v;
+			}else{
+				String s = v.toString();
+				try{
+					bi = new BigInteger(s);
+				}catch(NumberFormatException e){
+					out.writeByte(TYPE_DOUBLE);
+					out.writeLong(Double.doubleToRawLongBits(Double.parseDouble(s)));
+					return;
+				}
+			}
+			if (bi.bitLength() < 64){
+				out.writeByte(TYPE_INTEGER);
+				out.writeVarLong(zigzag(bi.longValue()));
+			}else{
+				out.writeByte(TYPE_BIG_INTEGER);
+				writeBytes(out, bi.toByteArray());
+			}
+		}
+	}
+
+	static protected List<Number> readNumbers(Input in, boolean alwaysLong) throws IOException{
+		int size = readSize(in, in.remaining(), "numbers");		// each of them takes at least one byte
+		if (size == 0){
+			return new ArrayList<>(0);
+		}
+		byte columnType = in.readByte();
+		switch(columnType){
+			case COLUMN_INTEGERS:
+				long[] longs = new long[size];
+				boolean allInts = !alwaysLong;
+				for (int i = 0; i < size; i ++){
+					long v = unzigzag(in.readVarLong());
+					longs[i] = v;
+					allInts = allInts && v == (int) v;
+				}
+				if (allInts){
+					int[] ints = new int[size];
+					for (int i = 0; i < size; i ++){
+						ints[i] = (int) longs[i];
+					}
+					return asNumberList(IntArrayList.wrap(ints));
+				}
+				return asNumberList(LongArrayList.wrap(longs));
+			case COLUMN_DOUBLES:
+				double[] doubles = new double[size];
+				for (int i = 0; i < size; i ++){
+					doubles[i] = Double.longBitsToDouble(in.readLong());
+				}
+				return asNumberList(DoubleArrayList.wrap(doubles));
+			case COLUMN_MIXED:
+				List<Number> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i ++){
+					list.add(readNumber(in, alwaysLong));
+				}
+				return list;
+			default:
+				throw new IllegalArgumentException("Unknown column type in binary CJTSD: " + columnType);
+		}
+	}
+
+	static protected Number readNumber(Input in, boolean alwaysLong) throws IOException{
+		byte type = in.readByte();
+		switch(type){
+			case TYPE_NULL:
+				return null;
+			case TYPE_INTEGER:
+				long v = unzigzag(in.readVarLong());
+				if (!alwaysLong && v == (int) v){
+					return Integer.valueOf((int) v);
+				}
+				return Long.valueOf(v);
+			case TYPE_DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(in.readLong()));
+			case TYPE_BIG_INTEGER:
+				return new BigInteger(readBytes(in));
+			default:
+				throw new IllegalArgumentException("Unknown number type in binary CJTSD: " + type);
+		}
+	}
+
+	/**
+	 * Primitive array based lists of numbers are only for reading,
+	 * adding a number of another type to them would cause ClassCastException.
+	 * @param list	the primitive array based list
+	 * @return	the same list
+	 */
+	@SuppressWarnings("unchecked")
+	static protected List<Number> asNumberList(List<? extends Number> list){
+		return (List<Number>) list;
+	}
+
+	/**
+	 * Destination of encoding
+	 */
+	static abstract protected class Output implements VarIntUtility.ByteWriter{
+		void writeVarLong(long x) throws IOException{
+			VarIntUtility.writeVarLong(this, x);
+		}
+
+		void writeLong(long x) throws IOException{
+			for (int i = 0; i < 8; i ++){
+				writeByte((int) x);
+				x >>>= 8;
+			}
+		}
+	}
+
+	/**
+	 * Source of decoding
+	 */
+	static abstract protected class Input implements VarIntUtility.ByteReader{
+
+		/**
+		 * Get the number of bytes remaining
+		 * @return	number of bytes remaining, or Integer.MAX_VALUE if unknown
+		 */
+		abstract int remaining();
+
+		long readVarLong() throws IOException{
+			return VarIntUtility.readVarLong(this);
+		}
+
+		long readLong() throws IOException{
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 8){
+				result |= (readByte() & 0xFFL) << shift;
+			}
+			return result;
+		}
+	}
+
+	static protected class BufferOutput extends Output{
+		final ByteBuffer buffer;
+
+		BufferOutput(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void writeByte(int b) {
+			buffer.put((byte) b);
+		}
+	}
+
+	static protected class StreamOutput extends Output{
+		final OutputStream out;
+		final byte[] buffer = new byte[8192];
+		int position;
+
+		StreamOutput(OutputStream out){
+			this.out = out;
+		}
+
+		@Override
+		public void writeByte(int b) throws IOException {
+			if (position == buffer.length){
+				flush();
+			}
+			buffer[position ++] = (byte) b;
+		}
+
+		void flush() throws IOException{
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	static protected class BufferInput extends Input{
+		final ByteBuffer buffer;
+
+		BufferInput(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte readByte() {
+			return buffer.get();
+		}
+
+		@Override
+		int remaining() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * Input that reads one byte at a time from the stream, so that nothing beyond what is needed is read
+	 */
+	static protected class StreamInput extends Input{
+		final InputStream in;
+
+		StreamInput(InputStream in){
+			this.in = in;
+		}
+
+		@Override
+		public byte readByte() throws IOException {
+			int b = in.read();
+			if (b < 0){
+				throw new EOFException("Incomplete binary CJTSD");
+			}
+			return (byte) b;
+		}
+
+		@Override
+		int remaining() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+/**
+ *
+ */
+package net.sf.jabb.cjtsd;
+
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.util.List;
+
+/**
+ * Flyweight cursor over the data points of a CJTSD object.
+ * It is positioned at one data point at a time and exposes the timestamp, the duration and the numbers of that data point
+ * as primitive values, so that iterating through a long series does not create any object per data point.
+ * Columns backed by primitive lists (as those built by {@link CJTSD.Builder} or decoded by {@link CJTSDBinaryCodec})
+ * are read without boxing.
+ * @author James Hu (Zhengmao Hu)
+ *
+ */
+public class CJTSDCursor {
+	protected final int size;
+	protected final long unitMillis;
+	protected final LongList longTimestamps;
+	protected final List<Long> timestamps;
+	protected final IntList intDurations;
+	protected final List<Integer> durations;
+	protected final int durationsSize;
+	protected final Column c;
+	protected final Column s;
+	protected final Column a;
+	protected final Column m;
+	protected final Column x;
+	protected final Column n;
+	protected final List<Object> o;
+
+	protected int index = -1;
+	protected long timestamp;
+	protected long duration;
+
+	/**
+	 * Read-only view of a column of numbers
+	 */
+	static protected class Column{
+		final List<? extends Number> list;
+		final LongList longs;
+		final IntList ints;
+		final DoubleList doubles;
+		final int size;
+
+		Column(List<? extends Number> list){
+			this.list = list;
+			this.longs = list instanceof LongList ? (LongList) list : null;
+			this.ints = list instanceof IntList ? (IntList) list : null;
+			this.doubles = list instanceof DoubleList ? (DoubleList) list : null;
+			this.size = list == null ? 0 : list.size();
+		}
+
+		boolean has(int i){
+			return i < size && (longs != null || ints != null || doubles != null || list.get(i) != null);
+		}
+
+		long getLong(int i){
+			if (i >= size){
+				return 0;
+			}else if (longs != null){
+				return longs.getLong(i);
+			}else if (ints != null){
+				return ints.getInt(i);
+			}else if (doubles != null){
+				return (long) doubles.getDouble(i);
+			}else{
+				Number v = list.get(i);
+				return v == null ? 0 : v.longValue();
+			}
+		}
+
+		double getDouble(int i){
+			if (i >= size){
+				return Double.NaN;
+			}else if (doubles != null){
+				return doubles.getDouble(i);
+			}else if (longs != null){
+				return longs.getLong(i);
+			}else if (ints != null){
+				return ints.getInt(i);
+			}else{
+				Number v = list.get(i);
+				return v == null ? Double.NaN : v.doubleValue();
+			}
+		}
+
+		Number get(int i){
+			return i < size ? list.get(i) : null;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param cjtsd	the CJTSD object to be iterated through
+	 */
+	public CJTSDCursor(PlainCJTSD cjtsd){
+		String u = cjtsd.getU();
+		if (u == null || u.equals("m")){
+			unitMillis = 60_000L;
+		}else if (u.equals("s")){
+			unitMillis = 1000L;
+		}else if (u.equals("S")){
+			unitMillis = 1L;
+		}else{
+			throw new IllegalArgumentException("Unit not supported: " + u);
+		}
+
+		timestamps = cjtsd.getT();
+		longTimestamps = timestamps instanceof LongList ? (LongList) timestamps : null;
+		size = timestamps == null ? 0 : timestamps.size();
+		durations = cjtsd.getD();
+		intDurations = durations instanceof IntList ? (IntList) durations : null;
+		durationsSize = durations == null ? 0 : durations.size();
+
+		c = new Column(cjtsd.getC());
+		s = new Column(cjtsd.getS());
+		a = new Column(cjtsd.getA());
+		m = new Column(cjtsd.getM());
+		x = new Column(cjtsd.getX());
+		n = new Column(cjtsd.getN());
+		o = cjtsd.getO();
+	}
+
+	/**
+	 * Move to the next data point
+	 * @return	true if the cursor is positioned at a data point, false if there is no more data point
+	 */
+	public boolean next(){
+		if (index + 1 >= size){
+			index = size;
+			return false;
+		}
+		index ++;
+		timestamp = longTimestamps != null ? longTimestamps.getLong(index) : timestamps.get(index);
+		if (index < durationsSize){
+			int d = intDurations != null ? intDurations.getInt(index) : durations.get(index);
+			if (d != -1){
+				duration = d;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of data points
+	 * @return	the number of data points
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Get the index of current data point
+	 * @return	the index, starting from 0
+	 */
+	public int getIndex(){
+		return index;
+	}
+
+	/**
+	 * Get the timestamp in the unit of the CJTSD object
+	 * @return	the timestamp as it is in the CJTSD object
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+
+	/**
+	 * Get the duration in the unit of the CJTSD object, with omitted durations already resolved
+	 * @return	the duration
+	 */
+	public long getDuration(){
+		return duration;
+	}
+
+	/**
+	 * Get the timestamp in milliseconds since the epoch
+	 * @return	the timestamp as epoch milliseconds
+	 */
+	public long getEpochMillis(){
+		return timestamp * unitMillis;
+	}
+
+	/**
+	 * Get the duration in milliseconds
+	 * @return	the duration in milliseconds
+	 */
+	public long getDurationMillis(){
+		return duration * unitMillis;
+	}
+
+	public boolean hasCount(){
+		return c.has(index);
+	}
+
+	/**
+	 * Get the count
+	 * @return	the count, or 0 if not available
+	 */
+	public long getCount(){
+		return c.getLong(index);
+	}
+
+	public boolean hasSum(){
+		return s.has(index);
+	}
+
+	/**
+	 * Get the sum
+	 * @return	the sum, or NaN if not available
+	 */
+	public double getSum(){
+		return s.getDouble(index);
+	}
+
+	/**
+	 * Get the sum as a long
+	 * @return	the sum, or 0 if not available
+	 */
+	public long getSumAsLong(){
+		return s.getLong(index);
+	}
+
+	/**
+	 * Get the sum as it is in the CJTSD object. Boxing may happen if it is backed by a primitive list.
+	 * @return	the sum, or null if not available
+	 */
+	public Number getSumObject(){
+		return s.get(index);
+	}
+
+	public boolean hasAvg(){
+		return a.has(index);
+	}
+
+	/**
+	 * Get the average
+	 * @return	the average, or NaN if not available
+	 */
+	public double getAvg(){
+		return a.getDouble(index);
+	}
+
+	/**
+	 * Get the average as a long
+	 * @return	the average, or 0 if not available
+	 */
+	public long getAvgAsLong(){
+		return a.getLong(index);
+	}
+
+	/**
+	 * Get the average as it is in the CJTSD object. Boxing may happen if it is backed by a primitive list.
+	 * @return	the average, or null if not available
+	 */
+	public Number getAvgObject(){
+		return a.get(index);
+	}
+
+	public boolean hasMin(){
+		return m.has(index);
+	}
+
+	/**
+	 * Get the minimum
+	 * @return	the minimum, or NaN if not available
+	 */
+	public double getMin(){
+		return m.getDouble(index);
+	}
+
+	/**
+	 * Get the minimum as a long
+	 * @return	the minimum, or 0 if not available
+	 */
+	public long getMinAsLong(){
+		return m.getLong(index);
+	}
+
+	/**
+	 * Get the minimum as it is in the CJTSD object. Boxing may happen if it is backed by a primitive list.
+	 * @return	the minimum, or null if not available
+	 */
+	public Number getMinObject(){
+		return m.get(index);
+	}
+
+	public boolean hasMax(){
+		return x.has(index);
+	}
+
+	/**
+	 * Get the maximum
+	 * @return	the maximum, or NaN if not available
+	 */
+	public double getMax(){
+		return x.getDouble(index);
+	}
+
+	/**
+	 * Get the maximum as a long
+	 * @return	the maximum, or 0 if not available
+	 */
+	public long getMaxAsLong(){
+		return x.getLong(index);
+	}
+
+	/**
+	 * Get the maximum as it is in the CJTSD object. Boxing may happen if it is backed by a primitive list.
+	 * @return	the maximum, or null if not available
+	 */
+	public Number getMaxObject(){
+		return x.get(index);
+	}
+
+	public boolean hasNumber(){
+		return n.has(index);
+	}
+
+	/**
+	 * Get the generic number
+	 * @return	the number, or NaN if not available
+	 */
+	public double getNumber(){
+		return n.getDouble(index);
+	}
+
+	/**
+	 * Get the generic number as a long
+	 * @return	the number, or 0 if not available
+	 */
+	public long getNumberAsLong(){
+		return n.getLong(index);
+	}
+
+	/**
+	 * Get the generic number as it is in the CJTSD object. Boxing may happen if it is backed by a primitive list.
+	 * @return	the number, or null if not available
+	 */
+	public Number getNumberObject(){
+		return n.get(index);
+	}
+
+	/**
+	 * Get the object
+	 * @return	the object, or null if not available
+	 */
+	public Object getObj(){
+		return o == null || index >= o.size() ? null : o.get(index);
+	}
+
+}
@@ -0,0 +1,516 @@
+/**
+ *
+ */
+package net.sf.jabb.cjtsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reader that yields data points of CJTSD JSON one at a time through Jackson's streaming parser, without materializing a {@link CJTSD} object.
+ * <p>Because CJTSD is columnar, the JSON is opened once for each column present, and all the parsers advance together,
+ * so the memory used does not depend on the length of the series. That is why the reader needs a source
+ * that can provide the same JSON again and again, like a file.</p>
+ * <p>Similar to {@link CJTSDCursor}, the reader is positioned at one data point at a time by {@link #next()},
+ * and exposes the data point as primitive values.</p>
+ * @author James Hu (Zhengmao Hu)
+ *
+ */
+public class CJTSDReader implements Closeable {
+	protected final Callable<? extends InputStream> source;
+	protected final List<JsonParser> parsers = new ArrayList<>();
+	protected final long unitMillis;
+	protected final Column t;
+	protected final Column d;
+	protected final Column c;
+	protected final Column s;
+	protected final Column a;
+	protected final Column m;
+	protected final Column x;
+	protected final Column n;
+	protected final JsonParser o;
+
+	protected int index = -1;
+	protected boolean ended;
+	protected long timestamp;
+	protected long duration;
+	protected Object obj;
+
+	/**
+	 * Numbers in a column, read by a parser positioned inside the array of the column
+	 */
+	static protected class Column{
+		final JsonParser parser;
+		JsonToken token;
+		boolean ended;
+
+		Column(JsonParser parser){
+			this.parser = parser;
+			this.ended = parser == null;
+		}
+
+		void advance() throws IOException{
+			if (!ended){
+				token = parser.nextToken();
+				if (token == JsonToken.END_ARRAY || token == null){
+					ended = true;
+				}else if (token != JsonToken.VALUE_NULL && !token.isNumeric()){
+					throw new JsonParseException("Number expected but found: " + token, parser.getCurrentLocation());
+				}
+			}
+		}
+
+		boolean has(){
+			return !ended && token != JsonToken.VALUE_NULL;
+		}
+
+		long getLong() throws IOException{
+			if (!has()){
+				return 0;
+			}else if (token == JsonToken.VALUE_NUMBER_INT){
+				return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ? parser.getBigIntegerValue().longValue() : parser.getLongValue();
+			}else{
+				return (long) parser.getDoubleValue();
+			}
+		}
+
+		double getDouble() throws IOException{
+			return has() ? parser.getDoubleValue() : Double.NaN;
+		}
+
+		Number get() throws IOException{
+			if (!has()){
+				return null;
+			}else if (token == JsonToken.VALUE_NUMBER_INT){
+				return parser.getNumberValue();
+			}else{
+				return parser.getDoubleValue();		// the same as Jackson data binding does by default
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param source	provider of the same JSON every time it is called, the streams provided will be closed by this reader
+	 * @throws IOException	if the JSON cannot be read or is not a valid CJTSD
+	 */
+	public CJTSDReader(Callable<? extends InputStream> source) throws IOException{
+		this.source = source;
+		try{
+			String u = null;
+			List<String> columns = new ArrayList<>();
+			try(JsonParser parser = open()){
+				while(parser.nextToken() == JsonToken.FIELD_NAME){
+					String name = parser.getCurrentName();
+					JsonToken token = parser.nextToken();
+					if (name.equals("u") && token == JsonToken.VALUE_STRING){
+						u = parser.getText();
+					}else if (token == JsonToken.START_ARRAY){
+						columns.add(name);
+					}
+					parser.skipChildren();
+				}
+			}
+			if (u == null || u.equals("m")){
+				unitMillis = 60_000L;
+			}else if (u.equals("s")){
+				unitMillis = 1000L;
+			}else if (u.equals("S")){
+				unitMillis = 1L;
+			}else{
+				throw new IllegalArgumentException("Unit not supported: " + u);
+			}
+
+			t = new Column(columns.contains("t") ? openColumn("t") : null);
+			d = new Column(columns.contains("d") ? openColumn("d") : null);
+			c = new Column(columns.contains("c") ? openColumn("c") : null);
+			s = new Column(columns.contains("s") ? openColumn("s") : null);
+			a = new Column(columns.contains("a") ? openColumn("a") : null);
+			m = new Column(columns.contains("m") ? openColumn("m") : null);
+			x = new Column(columns.contains("x") ? openColumn("x") : null);
+			n = new Column(columns.contains("n") ? openColumn("n") : null);
+			o = columns.contains("o") ? openColumn("o") : null;
+		}catch(IOException | RuntimeException e){
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param file	the file containing CJTSD JSON
+	 * @throws IOException	if the JSON cannot be read or is not a valid CJTSD
+	 */
+	public CJTSDReader(File file) throws IOException{
+		this(() -> new FileInputStream(file));
+	}
+
+	/**
+	 * Constructor
+	 * @param json	CJTSD JSON in UTF-8
+	 * @throws IOException	if the JSON is not a valid CJTSD
+	 */
+	public CJTSDReader(byte[] json) throws IOException{
+		this(() -> new ByteArrayInputStream(json));
+	}
+
+	/**
+	 * Constructor
+	 * @param json	CJTSD JSON
+	 * @throws IOException	if the JSON is not a valid CJTSD
+	 */
+	public CJTSDReader(String json) throws IOException{
+		this(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	protected JsonParser open() throws IOException{
+		InputStream in;
+		try{
+			in = source.call();
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException("Failed to open the source", e);
+		}
+		JsonParser parser = CJTSDWriter.jsonFactory.createParser(in);
+		if (parser.nextToken() != JsonToken.START_OBJECT){
+			parser.close();
+			throw new JsonParseException("CJTSD object expected", parser.getCurrentLocation());
+		}
+		return parser;
+	}
+
+	/**
+	 * Open the JSON and position the parser inside the array of a column
+	 * @param name	name of the column
+	 * @return	the parser
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	protected JsonParser openColumn(String name) throws IOException{
+		JsonParser parser = open();
+		parsers.add(parser);
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (field.equals(name) && token == JsonToken.START_ARRAY){
+				return parser;
+			}
+			parser.skipChildren();
+		}
+		throw new JsonParseException("Column not found: " + name, parser.getCurrentLocation());
+	}
+
+	/**
+	 * Move to the next data point
+	 * @return	true if the reader is positioned at a data point, false if there is no more data point
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public boolean next() throws IOException{
+		if (ended){
+			return false;
+		}
+		t.advance();
+		if (!t.has()){
+			ended = true;
+			return false;
+		}
+		index ++;
+		timestamp = t.getLong();
+		d.advance();
+		if (d.has()){
+			long v = d.getLong();
+			if (v != -1){
+				duration = v;
+			}
+		}
+		c.advance();
+		s.advance();
+		a.advance();
+		m.advance();
+		x.advance();
+		n.advance();
+		if (o != null){
+			JsonToken token = o.nextToken();
+			obj = token == null || token == JsonToken.END_ARRAY || token == JsonToken.VALUE_NULL ? null : o.readValueAs(Object.class);
+		}
+		return true;
+	}
+
+	/**
+	 * Go through all the remaining data points. The reader itself is passed to the action for every data point,
+	 * so it must not be kept by the action.
+	 * @param action	the action to be performed for each data point
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public void forEach(Consumer<? super CJTSDReader> action) throws IOException{
+		while(next()){
+			action.accept(this);
+		}
+	}
+
+	/**
+	 * Get an iterator of entries of the remaining data points.
+	 * The iterator is {@link Closeable}, and the reader is closed automatically when the iterator reaches the end,
+	 * so that <code>() -&gt; new CJTSDReader(file).entries()</code> can be used as the source of {@link CJTSDWriter}.
+	 * @return	the iterator, it throws {@link UncheckedIOException} if the JSON cannot be read
+	 */
+	public Iterator<CJTSD.Entry> entries(){
+		return new EntryIterator();
+	}
+
+	protected class EntryIterator implements Iterator<CJTSD.Entry>, Closeable{
+		CJTSD.Entry nextEntry;
+
+		@Override
+		public boolean hasNext() {
+			if (nextEntry == null){
+				try{
+					if (CJTSDReader.this.next()){
+						nextEntry = getEntry();
+					}else{
+						close();
+					}
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			}
+			return nextEntry != null;
+		}
+
+		@Override
+		public CJTSD.Entry next() {
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+			CJTSD.Entry result = nextEntry;
+			nextEntry = null;
+			return result;
+		}
+
+		@Override
+		public void close() throws IOException {
+			CJTSDReader.this.close();
+		}
+	}
+
+	/**
+	 * Create an entry of current data point
+	 * @return	the entry
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public CJTSD.Entry getEntry() throws IOException{
+		long epochMillis = getEpochMillis();
+		return new CJTSD.Entry(LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000), (int) Math.floorMod(epochMillis, 1000) * 1_000_000, ZoneOffset.UTC),
+				Duration.ofMillis(getDurationMillis()),
+				hasCount() ? getCount() : null,
+				s.get(), a.get(), m.get(), x.get(), n.get(), obj);
+	}
+
+	/**
+	 * Get the index of current data point
+	 * @return	the index, starting from 0
+	 */
+	public int getIndex(){
+		return index;
+	}
+
+	/**
+	 * Get the timestamp in the unit of the CJTSD JSON
+	 * @return	the timestamp as it is in the JSON
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+
+	/**
+	 * Get the duration in the unit of the CJTSD JSON, with omitted durations already resolved
+	 * @return	the duration
+	 */
+	public long getDuration(){
+		return duration;
+	}
+
+	/**
+	 * Get the timestamp in milliseconds since the epoch
+	 * @return	the timestamp as epoch milliseconds
+	 */
+	public long getEpochMillis(){
+		return timestamp * unitMillis;
+	}
+
+	/**
+	 * Get the duration in milliseconds
+	 * @return	the duration in milliseconds
+	 */
+	public long getDurationMillis(){
+		return duration * unitMillis;
+	}
+
+	public boolean hasCount(){
+		return c.has();
+	}
+
+	/**
+	 * Get the count
+	 * @return	the count, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getCount() throws IOException{
+		return c.getLong();
+	}
+
+	public boolean hasSum(){
+		return s.has();
+	}
+
+	/**
+	 * Get the sum
+	 * @return	the sum, or NaN if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public double getSum() throws IOException{
+		return s.getDouble();
+	}
+
+	/**
+	 * Get the sum as a long
+	 * @return	the sum, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getSumAsLong() throws IOException{
+		return s.getLong();
+	}
+
+	public boolean hasAvg(){
+		return a.has();
+	}
+
+	/**
+	 * Get the average
+	 * @return	the average, or NaN if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public double getAvg() throws IOException{
+		return a.getDouble();
+	}
+
+	/**
+	 * Get the average as a long
+	 * @return	the average, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getAvgAsLong() throws IOException{
+		return a.getLong();
+	}
+
+	public boolean hasMin(){
+		return m.has();
+	}
+
+	/**
+	 * Get the minimum
+	 * @return	the minimum, or NaN if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public double getMin() throws IOException{
+		return m.getDouble();
+	}
+
+	/**
+	 * Get the minimum as a long
+	 * @return	the minimum, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getMinAsLong() throws IOException{
+		return m.getLong();
+	}
+
+	public boolean hasMax(){
+		return x.has();
+	}
+
+	/**
+	 * Get the maximum
+	 * @return	the maximum, or NaN if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public double getMax() throws IOException{
+		return x.getDouble();
+	}
+
+	/**
+	 * Get the maximum as a long
+	 * @return	the maximum, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getMaxAsLong() throws IOException{
+		return x.getLong();
+	}
+
+	public boolean hasNumber(){
+		return n.has();
+	}
+
+	/**
+	 * Get the generic number
+	 * @return	the number, or NaN if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public double getNumber() throws IOException{
+		return n.getDouble();
+	}
+
+	/**
+	 * Get the generic number as a long
+	 * @return	the number, or 0 if not available
+	 * @throws IOException	if the JSON cannot be read
+	 */
+	public long getNumberAsLong() throws IOException{
+		return n.getLong();
+	}
+
+	/**
+	 * Get the object
+	 * @return	the object, or null if not available
+	 */
+	public Object getObj(){
+		return obj;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+		for (JsonParser parser: parsers){
+			try{
+				parser.close();
+			}catch(IOException e){
+				exception = e;
+			}
+		}
+		parsers.clear();
+		ended = true;
+		if (exception != null){
+			throw exception;
+		}
+	}
+
+}
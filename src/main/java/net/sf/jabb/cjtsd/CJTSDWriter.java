@@ -0,0 +1,359 @@
+/**
+ *
+ */
+package net.sf.jabb.cjtsd;
+
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writer that emits CJTSD JSON through Jackson's streaming API without materializing a {@link CJTSD} object.
+ * <p>Because CJTSD is columnar, data points are read from the source once for each column:
+ * first for 't' (when it is also found out which of the other columns have any value), then for 'd',
+ * and then for each of the other columns that have values. So the memory used does not depend on the length of the series,
+ * as long as the source can produce the data points again and again, for example by re-running a query or re-reading a file.</p>
+ * <p>The JSON written is the same as Jackson would write for the CJTSD object built by {@link CJTSD.Builder} with the same data points,
+ * except that columns without any value are omitted.</p>
+ * <p>Multiple CJTSD objects can be written by the same writer, for example as elements of an array started through {@link #getGenerator()}.</p>
+ * @author James Hu (Zhengmao Hu)
+ *
+ */
+public class CJTSDWriter implements Closeable, Flushable {
+	static protected final JsonFactory jsonFactory = new ObjectMapper().getFactory();
+
+	protected final JsonGenerator generator;
+
+	/**
+	 * Constructor
+	 * @param generator	the generator to write to, it should have an ObjectCodec if there are objects in the 'o' column
+	 */
+	public CJTSDWriter(JsonGenerator generator){
+		this.generator = generator;
+	}
+
+	/**
+	 * Constructor
+	 * @param out	the stream to write to in UTF-8, it will be closed when this writer is closed
+	 * @throws IOException	if the generator cannot be created
+	 */
+	public CJTSDWriter(OutputStream out) throws IOException{
+		this(jsonFactory.createGenerator(out));
+	}
+
+	/**
+	 * Constructor
+	 * @param writer	the writer to write to, it will be closed when this writer is closed
+	 * @throws IOException	if the generator cannot be created
+	 */
+	public CJTSDWriter(Writer writer) throws IOException{
+		this(jsonFactory.createGenerator(writer));
+	}
+
+	/**
+	 * Write a CJTSD object column by column, without going through Jackson data binding.
+	 * Columns backed by primitive lists are written without boxing.
+	 * @param cjtsd	the CJTSD object
+	 * @throws IOException	if failed to write
+	 */
+	public void write(PlainCJTSD cjtsd) throws IOException{
+		generator.writeStartObject();
+		if (cjtsd.getU() != null){
+			generator.writeStringField("u", cjtsd.getU());
+		}
+		writeNumbers("t", cjtsd.getT());
+		writeNumbers("d", cjtsd.getD());
+		writeNumbers("c", cjtsd.getC());
+		writeNumbers("s", cjtsd.getS());
+		writeNumbers("a", cjtsd.getA());
+		writeNumbers("m", cjtsd.getM());
+		writeNumbers("x", cjtsd.getX());
+		writeNumbers("n", cjtsd.getN());
+		List<Object> o = cjtsd.getO();
+		if (o != null){
+			generator.writeArrayFieldStart("o");
+			for (Object obj: o){
+				generator.writeObject(obj);
+			}
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Write data points as a CJTSD object. The source is iterated through once for each column,
+	 * so that no more than one data point needs to be in memory at any time.
+	 * @param unit		unit of timestamps and durations, can be {@link ChronoUnit#MINUTES}, {@link ChronoUnit#SECONDS} or {@link ChronoUnit#MILLIS}
+	 * @param source	supplier of iterators that all go through the same data points in the same order.
+	 * 					If an iterator implements {@link Closeable}, it will be closed after being used.
+	 * 					The duration of an entry can be null if it is the same as the previous one.
+	 * @throws IOException	if failed to write
+	 * @throws IllegalStateException	if an iterator does not go through the same number of data points as the first one,
+	 * 					in which case the output is incomplete
+	 */
+	public void write(ChronoUnit unit, Supplier<? extends Iterator<? extends CJTSD.Entry>> source) throws IOException{
+		String u;
+		switch(unit){
+			case MINUTES:
+				u = null;
+				break;
+			case SECONDS:
+				u = "s";
+				break;
+			case MILLIS:
+				u = "S";
+				break;
+			default:
+				throw new IllegalArgumentException("Unit not supported: " + unit);
+		}
+
+		generator.writeStartObject();
+		if (u != null){
+			generator.writeStringField("u", u);
+		}
+
+		// t, and find out which columns have values
+		boolean hasC = false, hasS = false, hasA = false, hasM = false, hasX = false, hasN = false, hasO = false;
+		generator.writeArrayFieldStart("t");
+		long size = 0;
+		Iterator<? extends CJTSD.Entry> it = source.get();
+		try{
+			while(it.hasNext()){
+				CJTSD.Entry entry = it.next();
+				size ++;
+				generator.writeNumber(toTimestamp(unit, entry.getTimestamp()));
+				hasC |= entry.getCount() != null;
+				hasS |= entry.getSum() != null;
+				hasA |= entry.getAvg() != null;
+				hasM |= entry.getMin() != null;
+				hasX |= entry.getMax() != null;
+				hasN |= entry.getNumber() != null;
+				hasO |= entry.getObj() != null;
+			}
+		}finally{
+			close(it);
+		}
+		generator.writeEndArray();
+
+		// d, in the same way as CJTSD.Builder does
+		generator.writeArrayFieldStart("d");
+		it = source.get();
+		try{
+			boolean first = true;
+			int lastSpecified = 0;
+			int repeats = 0;
+			long count = 0;
+			while(it.hasNext()){
+				if (++ count > size){
+					throw sizeMismatch("d", size, count);
+				}
+				Duration duration = it.next().getDuration();
+				int d = duration == null ? (first ? 0 : -1) : toDuration(unit, duration);
+				if (d != -1 && (first || d != lastSpecified)){
+					for (int i = 0; i < repeats; i ++){
+						generator.writeNumber(lastSpecified < 100 ? lastSpecified : -1);	// no need to replace with -1 if there are only or less than two digits
+					}
+					repeats = 0;
+					generator.writeNumber(d);
+					lastSpecified = d;
+				}else{
+					repeats ++;		// trailing ones are omitted
+				}
+				first = false;
+			}
+			if (count != size){
+				throw sizeMismatch("d", size, count);
+			}
+		}finally{
+			close(it);
+		}
+		generator.writeEndArray();
+
+		// c, s, a, m, x, n, o
+		if (hasC){
+			writeColumn("c", size, source, CJTSD.Entry::getCount);
+		}
+		if (hasS){
+			writeColumn("s", size, source, CJTSD.Entry::getSum);
+		}
+		if (hasA){
+			writeColumn("a", size, source, CJTSD.Entry::getAvg);
+		}
+		if (hasM){
+			writeColumn("m", size, source, CJTSD.Entry::getMin);
+		}
+		if (hasX){
+			writeColumn("x", size, source, CJTSD.Entry::getMax);
+		}
+		if (hasN){
+			writeColumn("n", size, source, CJTSD.Entry::getNumber);
+		}
+		if (hasO){
+			generator.writeArrayFieldStart("o");
+			it = source.get();
+			try{
+				long count = 0;
+				while(it.hasNext()){
+					if (++ count > size){
+						throw sizeMismatch("o", size, count);
+					}
+					generator.writeObject(it.next().getObj());
+				}
+				if (count != size){
+					throw sizeMismatch("o", size, count);
+				}
+			}finally{
+				close(it);
+			}
+			generator.writeEndArray();
+		}
+
+		generator.writeEndObject();
+	}
+
+	protected void writeColumn(String name, long size, Supplier<? extends Iterator<? extends CJTSD.Entry>> source, Function<CJTSD.Entry, Number> getter) throws IOException{
+		generator.writeArrayFieldStart(name);
+		Iterator<? extends CJTSD.Entry> it = source.get();
+		try{
+			long count = 0;
+			while(it.hasNext()){
+				if (++ count > size){
+					throw sizeMismatch(name, size, count);
+				}
+				writeNumber(getter.apply(it.next()));
+			}
+			if (count != size){
+				throw sizeMismatch(name, size, count);
+			}
+		}finally{
+			close(it);
+		}
+		generator.writeEndArray();
+	}
+
+	/**
+	 * Create the exception for a pass through the source that does not go through the same number of data points as the first pass
+	 * @param column	the column being written in the pass
+	 * @param expected	number of data points in the first pass
+	 * @param actual	number of data points in this pass, so far if the pass has not finished
+	 * @return	the exception to be thrown
+	 */
+	protected IllegalStateException sizeMismatch(String column, long expected, long actual){
+		return new IllegalStateException("The source went through " + expected + " data points when writing 't', but "
+				+ (actual > expected ? "more" : String.valueOf(actual)) + " when writing '" + column + "'");
+	}
+
+	protected void writeNumbers(String name, List<? extends Number> list) throws IOException{
+		if (list == null){
+			return;
+		}
+		generator.writeArrayFieldStart(name);
+		int size = list.size();
+		if (list instanceof LongList){
+			LongList longs = (LongList) list;
+			for (int i = 0; i < size; i ++){
+				generator.writeNumber(longs.getLong(i));
+			}
+		}else if (list instanceof IntList){
+			IntList ints = (IntList) list;
+			for (int i = 0; i < size; i ++){
+				generator.writeNumber(ints.getInt(i));
+			}
+		}else if (list instanceof DoubleList){
+			DoubleList doubles = (DoubleList) list;
+			for (int i = 0; i < size; i ++){
+				generator.writeNumber(doubles.getDouble(i));
+			}
+		}else{
+			for (Number v: list){
+				writeNumber(v);
+			}
+		}
+		generator.writeEndArray();
+	}
+
+	protected void writeNumber(Number v) throws IOException{
+		if (v == null){
+			generator.writeNull();
+		}else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte){
+			generator.writeNumber(v.longValue());
+		}else if (v instanceof Double){
+			generator.writeNumber(v.doubleValue());
+		}else if (v instanceof Float){
+			generator.writeNumber(v.floatValue());
+		}else if (v instanceof BigDecimal){
+			generator.writeNumber((BigDecimal) v);
+		}else if (v instanceof BigInteger){
+			generator.writeNumber((BigInteger) v);
+		}else{
+			generator.writeObject(v);
+		}
+	}
+
+	static protected long toTimestamp(ChronoUnit unit, LocalDateTime timestamp){
+		switch(unit){
+			case MINUTES:
+				return timestamp.toEpochSecond(ZoneOffset.UTC) / 60;
+			case SECONDS:
+				return timestamp.toEpochSecond(ZoneOffset.UTC);
+			default:
+				return timestamp.toInstant(ZoneOffset.UTC).toEpochMilli();
+		}
+	}
+
+	static protected int toDuration(ChronoUnit unit, Duration duration){
+		switch(unit){
+			case MINUTES:
+				return (int) duration.toMinutes();
+			case SECONDS:
+				return (int)(duration.toMillis() / 1000);
+			default:
+				return (int) duration.toMillis();
+		}
+	}
+
+	static protected void close(Iterator<?> it) throws IOException{
+		if (it instanceof Closeable){
+			((Closeable) it).close();
+		}
+	}
+
+	/**
+	 * Get the underlying generator, for example for writing multiple CJTSD objects into a JSON array
+	 * @return	the generator
+	 */
+	public JsonGenerator getGenerator(){
+		return generator;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		generator.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		generator.close();
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Utility for encoding integers in variable length, 7 bits per byte with the highest bit of a byte indicating whether more bytes follow.
+ * Signed values should be mapped by {@link #zigzag(long)} before being encoded so that small negative values also take few bytes.
+ * @author James Hu
+ *
+ */
+public abstract class VarIntUtility {
+	/**
+	 * Maximum number of bytes of a variable length encoded long value
+	 */
+	static public final int MAX_VAR_LONG_BYTES = 10;
+
+	@FunctionalInterface
+	public interface ByteWriter {
+		void writeByte(int b) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface ByteReader {
+		byte readByte() throws IOException;
+	}
+
+	/**
+	 * Map a signed value to an unsigned one: 0, -1, 1, -2, 2 ... become 0, 1, 2, 3, 4 ...
+	 * @param value	the signed value
+	 * @return	the unsigned value
+	 */
+	static public long zigzag(long value){
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Reverse of {@link #zigzag(long)}
+	 * @param value	the unsigned value
+	 * @return	the signed value
+	 */
+	static public long unzigzag(long value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Write a value in variable length. Negative values always take {@link #MAX_VAR_LONG_BYTES} bytes.
+	 * @param out	the output
+	 * @param value	the value
+	 * @throws IOException	if failed to write
+	 */
+	static public void writeVarLong(ByteWriter out, long value) throws IOException{
+		while ((value & ~0x7FL) != 0){
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	/**
+	 * Read a value written by {@link #writeVarLong(ByteWriter, long)}
+	 * @param in	the input
+	 * @return	the value
+	 * @throws IOException	if failed to read
+	 * @throws IllegalArgumentException	if the value takes more than {@link #MAX_VAR_LONG_BYTES} bytes
+	 */
+	static public long readVarLong(ByteReader in) throws IOException{
+		long value = 0;
+		for (int shift = 0; shift < 7 * MAX_VAR_LONG_BYTES; shift += 7){
+			byte b = in.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed variable length integer: longer than " + MAX_VAR_LONG_BYTES + " bytes");
+	}
+
+	/**
+	 * Write a value in variable length
+	 * @param out	the output
+	 * @param value	the value
+	 * @throws IOException	if failed to write
+	 */
+	static public void writeVarLong(DataOutput out, long value) throws IOException{
+		writeVarLong((ByteWriter)out::writeByte, value);
+	}
+
+	/**
+	 * Read a value written by {@link #writeVarLong(DataOutput, long)}
+	 * @param in	the input
+	 * @return	the value
+	 * @throws IOException	if failed to read
+	 * @throws IllegalArgumentException	if the value takes more than {@link #MAX_VAR_LONG_BYTES} bytes
+	 */
+	static public long readVarLong(DataInput in) throws IOException{
+		return readVarLong((ByteReader)in::readByte);
+	}
+
+}
@@ -0,0 +1,317 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A bounded map that always automatically do computeIfAbsent(...) within get(...).
+ * Entries can be evicted when the maximum size is reached (least recently used ones first),
+ * or when they have not been accessed or written for a specified duration.
+ * An optional removal listener can be notified with evicted or expired entries, for example to flush them to downstream.
+ *
+ * <p>Backed by a Guava LoadingCache, the compute function is applied at most once per key at any time.
+ * The compute function must never return null, so get(...) never returns null.
+ * Expired entries are removed during normal reads and writes, call {@link #cleanUp()} periodically
+ * if the map is not accessed frequently but the removal listener needs to be notified in time.</p>
+ *
+ * <p>The map is serializable if the compute function and the removal listener are.
+ * Its entries and settings are serialized, but a custom ticker set through {@link Builder#ticker(Ticker)} is not,
+ * the system ticker will be used after deserialization.</p>
+ *
+ * <p>To create an instance:</p>
+ * <code>
+ * 	BoundedComputeIfAbsentMap.&lt;String, LongAdder&gt;builder().maximumSize(10000).expireAfterAccess(Duration.ofMinutes(5)).build(k-&gt;new LongAdder())
+ * </code>
+ *
+ * @author James Hu
+ *
+ */
+public class BoundedComputeIfAbsentMap<K, V> extends ComputeIfAbsentMap<ConcurrentMap<K, V>, K, V>{
+	private static final long serialVersionUID = -3316823036484580262L;
+
+	protected transient LoadingCache<K, V> cache;
+	protected Settings settings;
+
+	protected BoundedComputeIfAbsentMap(Settings settings, Function<? super K,? extends V> computeFunction){
+		this(settings, settings.<K, V>newCache(computeFunction), computeFunction);
+	}
+
+	private BoundedComputeIfAbsentMap(Settings settings, LoadingCache<K, V> cache, Function<? super K,? extends V> computeFunction){
+		super(cache.asMap(), computeFunction);
+		this.cache = cache;
+		this.settings = settings;
+	}
+
+	/**
+	 * Create a builder
+	 * @param <K>	type of the keys
+	 * @param <V>	type of the values
+	 * @return	the builder
+	 */
+	static public <K, V> Builder<K, V> builder(){
+		return new Builder<K, V>();
+	}
+
+    /**
+     * Returns the value to which the specified key is mapped.
+     * A new value will be computed and put into the map if there is no value for that key.
+     * @param key	the key
+     * @return	the value, never null
+     * @throws NullPointerException if the specified key is null
+     * @throws com.google.common.cache.CacheLoader.InvalidCacheLoadException if the compute function returned null
+     */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		try{
+			return cache.getUnchecked((K)key);
+		}catch(UncheckedExecutionException e){
+			Throwables.propagateIfPossible(e.getCause());
+			throw e;
+		}
+	}
+
+	/**
+	 * Perform any pending maintenance operations, such as removing expired entries and notifying the removal listener.
+	 */
+	public void cleanUp(){
+		cache.cleanUp();
+	}
+
+	/**
+	 * Get the statistics of the map, including hit/miss/eviction counts.
+	 * @return	the statistics snapshot
+	 */
+	public CacheStats getStats(){
+		return cache.stats();
+	}
+
+	/**
+	 * Get the number of times get(...) returned an existing value
+	 * @return	the hit count
+	 */
+	public long getHitCount(){
+		return cache.stats().hitCount();
+	}
+
+	/**
+	 * Get the number of times get(...) had to compute a new value
+	 * @return	the miss count
+	 */
+	public long getMissCount(){
+		return cache.stats().missCount();
+	}
+
+	/**
+	 * Get the number of entries evicted because of size limit or expiration. Explicit removals are not counted.
+	 * @return	the eviction count
+	 */
+	public long getEvictionCount(){
+		return cache.stats().evictionCount();
+	}
+
+	@Override
+	public String toString(){
+		return map.toString();
+	}
+
+	/**
+	 * The map view of the Guava cache is not serializable, so a proxy containing the settings and the entries is serialized instead,
+	 * and a new cache is built when deserializing.
+	 * @return	the proxy
+	 * @throws ObjectStreamException	never
+	 */
+	private Object writeReplace() throws ObjectStreamException{
+		return new SerializationProxy<K, V>(this);
+	}
+
+	static private class SerializationProxy<K, V> implements Serializable{
+		private static final long serialVersionUID = 2512350468359478254L;
+
+		private final Settings settings;
+		private final Function<? super K,? extends V> computeFunction;
+		private final HashMap<K, V> entries;
+
+		SerializationProxy(BoundedComputeIfAbsentMap<K, V> map){
+			this.settings = map.settings;
+			this.computeFunction = map.computeFunction;
+			this.entries = new HashMap<>(map.map);
+		}
+
+		private Object readResolve() throws ObjectStreamException{
+			BoundedComputeIfAbsentMap<K, V> map = new BoundedComputeIfAbsentMap<>(settings, computeFunction);
+			map.map.putAll(entries);
+			return map;
+		}
+	}
+
+	/**
+	 * Settings for building the Guava cache, kept so that the cache can be built again after deserialization
+	 */
+	static protected class Settings implements Serializable{
+		private static final long serialVersionUID = -3969745113862384925L;
+
+		long maximumSize = -1;
+		long expireAfterAccessNanos = -1;
+		long expireAfterWriteNanos = -1;
+		int concurrencyLevel = -1;
+		RemovalListener<?, ?> removalListener;
+		transient Ticker ticker;
+
+		Settings copy(){
+			Settings copy = new Settings();
+			copy.maximumSize = maximumSize;
+			copy.expireAfterAccessNanos = expireAfterAccessNanos;
+			copy.expireAfterWriteNanos = expireAfterWriteNanos;
+			copy.concurrencyLevel = concurrencyLevel;
+			copy.removalListener = removalListener;
+			copy.ticker = ticker;
+			return copy;
+		}
+
+		@SuppressWarnings("unchecked")
+		<K, V> LoadingCache<K, V> newCache(Function<? super K,? extends V> computeFunction){
+			CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+			if (maximumSize >= 0){
+				cacheBuilder.maximumSize(maximumSize);
+			}
+			if (expireAfterAccessNanos >= 0){
+				cacheBuilder.expireAfterAccess(expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+			}
+			if (expireAfterWriteNanos >= 0){
+				cacheBuilder.expireAfterWrite(expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+			}
+			if (concurrencyLevel > 0){
+				cacheBuilder.concurrencyLevel(concurrencyLevel);
+			}
+			if (ticker != null){
+				cacheBuilder.ticker(ticker);
+			}
+			CacheLoader<K, V> loader = new CacheLoader<K, V>(){
+				@Override
+				public V load(K key) {
+					return computeFunction.apply(key);
+				}
+			};
+			if (removalListener == null){
+				return cacheBuilder.build(loader);
+			}else{
+				return cacheBuilder.removalListener((RemovalListener<Object, Object>) removalListener).build(loader);
+			}
+		}
+	}
+
+	/**
+	 * Builder of BoundedComputeIfAbsentMap
+	 * @author James Hu
+	 *
+	 * @param <K>	type of the keys
+	 * @param <V>	type of the values
+	 */
+	static public class Builder<K, V>{
+		private Settings settings = new Settings();
+
+		Builder(){
+		}
+
+		/**
+		 * Set the maximum number of entries. When the limit is reached, least recently used entries will be evicted.
+		 * @param maximumSize	the maximum number of entries
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> maximumSize(long maximumSize){
+			if (maximumSize < 0){
+				throw new IllegalArgumentException("maximum size must not be negative");
+			}
+			settings.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Specify that an entry should be removed if it has not been read or written for the duration.
+		 * @param duration	the duration
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> expireAfterAccess(Duration duration){
+			if (duration.isNegative()){
+				throw new IllegalArgumentException("duration must not be negative: " + duration);
+			}
+			settings.expireAfterAccessNanos = duration.toNanos();
+			return this;
+		}
+
+		/**
+		 * Specify that an entry should be removed if the duration has elapsed since it was created or last replaced.
+		 * @param duration	the duration
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> expireAfterWrite(Duration duration){
+			if (duration.isNegative()){
+				throw new IllegalArgumentException("duration must not be negative: " + duration);
+			}
+			settings.expireAfterWriteNanos = duration.toNanos();
+			return this;
+		}
+
+		/**
+		 * Set the estimated number of concurrently updating threads
+		 * @param concurrencyLevel	the concurrency level
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> concurrencyLevel(int concurrencyLevel){
+			if (concurrencyLevel <= 0){
+				throw new IllegalArgumentException("concurrency level must be positive");
+			}
+			settings.concurrencyLevel = concurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * Set the listener to be notified when entries are removed for any reason.
+		 * {@link com.google.common.cache.RemovalNotification#wasEvicted()} tells whether the removal was caused by eviction or expiration.
+		 * @param removalListener	the listener, it can be null if not necessary. It needs to be serializable if the map is to be serialized.
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> removalListener(RemovalListener<? super K, ? super V> removalListener){
+			settings.removalListener = removalListener;
+			return this;
+		}
+
+		/**
+		 * Set the time source, normally only needed for testing. It is not kept when the map is serialized.
+		 * @param ticker	the time source
+		 * @return	the builder itself
+		 */
+		public Builder<K, V> ticker(Ticker ticker){
+			settings.ticker = ticker;
+			return this;
+		}
+
+		/**
+		 * Build the map
+		 * @param computeFunction the function to compute a value when there is no value currently associated with the key, it must not return null
+		 * @return	the map
+		 */
+		public BoundedComputeIfAbsentMap<K, V> build(Function<? super K,? extends V> computeFunction){
+			return new BoundedComputeIfAbsentMap<K, V>(settings.copy(), computeFunction);
+		}
+	}
+
+}
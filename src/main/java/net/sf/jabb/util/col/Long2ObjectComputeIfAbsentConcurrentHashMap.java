@@ -0,0 +1,338 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * A concurrent hash map with primitive long keys that always automatically do computeIfAbsent(...) within get(...).
+ *
+ * <p>The map is split into segments, each of them is an open addressing hash table.
+ * Reads are lock-free and do not allocate any object. Writes and the computing of absent values are
+ * guarded by the lock of the segment, so a slow compute function only blocks those keys falling into the same segment.</p>
+ *
+ * @author James Hu
+ *
+ * @param <V>	type of the values
+ */
+public class Long2ObjectComputeIfAbsentConcurrentHashMap<V> implements Long2ObjectComputeIfAbsentMap<V> {
+	protected static final int DEFAULT_INITIAL_SEGMENT_CAPACITY = 16;
+	protected static final Object REMOVED = new Object();
+
+	protected LongFunction<? extends V> computeFunction;
+	protected Segment[] segments;
+	protected int segmentMask;
+	protected int initialSegmentCapacity;
+
+	/**
+	 * Constructor. The number of segments will be based on the number of CPU cores.
+	 * @param computeFunction the function to compute a value when there is no value currently associated with the key
+	 */
+	public Long2ObjectComputeIfAbsentConcurrentHashMap(LongFunction<? extends V> computeFunction){
+		this(Runtime.getRuntime().availableProcessors() * 4, DEFAULT_INITIAL_SEGMENT_CAPACITY, computeFunction);
+	}
+
+	/**
+	 * Constructor
+	 * @param concurrencyLevel	the estimated number of concurrently updating threads. It will be rounded up to the power of two as the number of segments.
+	 * @param initialCapacity	the initial capacity of the whole map
+	 * @param computeFunction the function to compute a value when there is no value currently associated with the key
+	 */
+	public Long2ObjectComputeIfAbsentConcurrentHashMap(int concurrencyLevel, int initialCapacity, LongFunction<? extends V> computeFunction){
+		if (concurrencyLevel < 1){
+			throw new IllegalArgumentException("Concurrency level must not be less than 1.");
+		}
+		if (initialCapacity < 0){
+			throw new IllegalArgumentException("Initial capacity must not be negative.");
+		}
+		int numSegments = tableSizeFor(concurrencyLevel);
+		this.computeFunction = computeFunction;
+		this.segments = new Segment[numSegments];
+		this.segmentMask = numSegments - 1;
+		this.initialSegmentCapacity = tableSizeFor(Math.max(DEFAULT_INITIAL_SEGMENT_CAPACITY, initialCapacity / numSegments * 2));
+		for (int i = 0; i < numSegments; i ++){
+			segments[i] = new Segment(initialSegmentCapacity);
+		}
+	}
+
+	@Override
+	public V get(long key){
+		int h = hash(key);
+		Segment segment = segmentFor(h);
+		Object result = segment.table.find(key, h);
+		return result != null ? cast(result) : computeOnMiss(segment, key, h);
+	}
+
+	protected V computeOnMiss(Segment segment, long key, int h){
+		synchronized(segment){
+			Object existing = segment.table.find(key, h);
+			if (existing != null){
+				return cast(existing);
+			}
+			V result = computeFunction.apply(key);
+			if (result != null){
+				segment.insert(key, h, result);
+				afterInsert(key, result);
+			}
+			return result;
+		}
+	}
+
+	@Override
+	public V getIfPresent(long key){
+		int h = hash(key);
+		return cast(segmentFor(h).table.find(key, h));
+	}
+
+	@Override
+	public V put(long key, V value){
+		if (value == null){
+			throw new NullPointerException("Null value is not supported");
+		}
+		int h = hash(key);
+		Segment segment = segmentFor(h);
+		synchronized(segment){
+			Table table = segment.table;
+			int i = table.indexOf(key, h);
+			if (i >= 0){
+				Object previous = table.values.get(i);
+				table.values.set(i, value);
+				afterInsert(key, value);
+				return cast(previous);
+			}else{
+				segment.insert(key, h, value);
+				afterInsert(key, value);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public V remove(long key){
+		int h = hash(key);
+		Segment segment = segmentFor(h);
+		synchronized(segment){
+			Table table = segment.table;
+			int i = table.indexOf(key, h);
+			if (i >= 0){
+				Object previous = table.values.get(i);
+				table.values.set(i, REMOVED);
+				segment.size --;
+				afterRemove(key);
+				return cast(previous);
+			}else{
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public int size(){
+		long sum = 0;
+		for (Segment segment: segments){
+			sum += segment.size;
+		}
+		return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)sum;
+	}
+
+	@Override
+	public void clear(){
+		for (Segment segment: segments){
+			synchronized(segment){
+				Table cleared = segment.table;
+				segment.table = new Table(initialSegmentCapacity);
+				segment.size = 0;
+				segment.used = 0;
+				afterClear(cleared);
+			}
+		}
+	}
+
+	@Override
+	public void forEach(EntryConsumer<? super V> action){
+		for (Segment segment: segments){
+			Table table = segment.table;
+			for (int i = 0; i < table.keys.length; i ++){
+				Object v = table.values.get(i);
+				if (v != null && v != REMOVED){
+					action.accept(table.keys[i], cast(v));
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append('{');
+		forEach((k, v) -> sb.append(k).append('=').append(v).append(", "));
+		if (sb.length() > 1){
+			sb.setLength(sb.length() - 2);
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+	/**
+	 * Called while holding the segment lock after a value has been associated with a key.
+	 * Subclasses can override it to maintain additional structures.
+	 * @param key	the key
+	 * @param value	the value
+	 */
+	protected void afterInsert(long key, V value){
+		// do nothing
+	}
+
+	/**
+	 * Called while holding the segment lock after the value associated with a key has been removed.
+	 * Subclasses can override it to maintain additional structures.
+	 * @param key	the key
+	 */
+	protected void afterRemove(long key){
+		// do nothing
+	}
+
+	/**
+	 * Called while holding the segment lock after all the mappings in a segment have been removed.
+	 * Subclasses can override it to maintain additional structures.
+	 * @param cleared	the table that held the removed mappings, it is no longer used by the segment
+	 */
+	protected void afterClear(Table cleared){
+		// do nothing
+	}
+
+	protected Segment segmentFor(int h){
+		return segments[(h >>> 16) & segmentMask];
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V cast(Object v){
+		return v == REMOVED ? null : (V) v;
+	}
+
+	/**
+	 * Spread the bits of a long key into an int hash, the finalization step of MurmurHash3.
+	 * @param key	the key
+	 * @return	the hash
+	 */
+	protected static int hash(long key){
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	protected static int tableSizeFor(int c){
+		int n = Integer.highestOneBit(Math.max(1, c));
+		return n < c ? n << 1 : n;
+	}
+
+	/**
+	 * An open addressing table with linear probing. Slots are never reused within the same table:
+	 * a removed slot is marked and only reclaimed when the table is rebuilt,
+	 * so that a reader that has seen a value in a slot can rely on the key in that slot.
+	 */
+	protected static class Table{
+		final long[] keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Table(int capacity){
+			keys = new long[capacity];
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+		}
+
+		/**
+		 * Find the value associated with a key, without locking
+		 * @return the value, or null if not found
+		 */
+		Object find(long key, int h){
+			for (int i = h & mask; ; i = (i + 1) & mask){
+				Object v = values.get(i);		// the volatile read makes the key written before it visible
+				if (v == null){
+					return null;
+				}
+				if (v != REMOVED && keys[i] == key){
+					return v;
+				}
+			}
+		}
+
+		/**
+		 * Find the index of the slot holding a key, must be called while holding the segment lock
+		 * @return the index, or -1 if not found
+		 */
+		int indexOf(long key, int h){
+			for (int i = h & mask; ; i = (i + 1) & mask){
+				Object v = values.get(i);
+				if (v == null){
+					return -1;
+				}
+				if (v != REMOVED && keys[i] == key){
+					return i;
+				}
+			}
+		}
+	}
+
+	protected static class Segment{
+		volatile Table table;
+		volatile int size;		// number of live entries
+		int used;		// number of occupied slots including the removed ones
+
+		Segment(int capacity){
+			table = new Table(capacity);
+		}
+
+		/**
+		 * Insert a key that is known to be absent, must be called while holding the segment lock
+		 */
+		void insert(long key, int h, Object value){
+			Table t = table;
+			if ((used + 1) * 4 > t.keys.length * 3){
+				t = rebuild(t);
+			}
+			int mask = t.mask;
+			int i = h & mask;
+			while (t.values.get(i) != null){
+				i = (i + 1) & mask;
+			}
+			t.keys[i] = key;
+			t.values.set(i, value);		// publishes the key as well
+			used ++;
+			size ++;
+		}
+
+		private Table rebuild(Table old){
+			int live = size;
+			int capacity = tableSizeFor(Math.max(DEFAULT_INITIAL_SEGMENT_CAPACITY, (live + 1) * 2));
+			if (capacity < old.keys.length && live * 4 > old.keys.length){	// do not shrink too aggressively
+				capacity = old.keys.length;
+			}
+			Table t = new Table(capacity);
+			int mask = t.mask;
+			for (int j = 0; j < old.keys.length; j ++){
+				Object v = old.values.get(j);
+				if (v != null && v != REMOVED){
+					long k = old.keys[j];
+					int i = hash(k) & mask;
+					while (t.values.get(i) != null){
+						i = (i + 1) & mask;
+					}
+					t.keys[i] = k;
+					t.values.lazySet(i, v);
+				}
+			}
+			used = live;
+			table = t;		// volatile write publishes the whole new table
+			return t;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongFunction;
+
+/**
+ * A concurrent map with primitive long keys that always automatically do computeIfAbsent(...) within get(...),
+ * and also keeps the keys sorted so that range views are supported.
+ *
+ * <p>Lookups go through the lock-free hash table inherited from {@link Long2ObjectComputeIfAbsentConcurrentHashMap}
+ * so they do not allocate any object. The sorted index is only updated when keys are added or removed,
+ * and it is used for range views such as flushing all values in a time window.</p>
+ *
+ * @author James Hu
+ *
+ * @param <V>	type of the values
+ */
+public class Long2ObjectComputeIfAbsentConcurrentSortedMap<V> extends Long2ObjectComputeIfAbsentConcurrentHashMap<V> {
+	protected ConcurrentSkipListMap<Long, V> index = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Constructor. The number of segments will be based on the number of CPU cores.
+	 * @param computeFunction the function to compute a value when there is no value currently associated with the key
+	 */
+	public Long2ObjectComputeIfAbsentConcurrentSortedMap(LongFunction<? extends V> computeFunction){
+		super(computeFunction);
+	}
+
+	/**
+	 * Constructor
+	 * @param concurrencyLevel	the estimated number of concurrently updating threads. It will be rounded up to the power of two as the number of segments.
+	 * @param initialCapacity	the initial capacity of the whole map
+	 * @param computeFunction the function to compute a value when there is no value currently associated with the key
+	 */
+	public Long2ObjectComputeIfAbsentConcurrentSortedMap(int concurrencyLevel, int initialCapacity, LongFunction<? extends V> computeFunction){
+		super(concurrencyLevel, initialCapacity, computeFunction);
+	}
+
+	@Override
+	protected void afterInsert(long key, V value){
+		index.put(key, value);
+	}
+
+	@Override
+	protected void afterRemove(long key){
+		index.remove(key);
+	}
+
+	@Override
+	protected void afterClear(Table cleared){
+		for (int i = 0; i < cleared.keys.length; i ++){
+			Object v = cleared.values.get(i);
+			if (v != null && v != REMOVED){
+				index.remove(cleared.keys[i]);
+			}
+		}
+	}
+
+	/**
+	 * Get the smallest key
+	 * @return	the smallest key
+	 * @throws java.util.NoSuchElementException if the map is empty
+	 */
+	public long firstKey(){
+		return index.firstKey();
+	}
+
+	/**
+	 * Get the largest key
+	 * @return	the largest key
+	 * @throws java.util.NoSuchElementException if the map is empty
+	 */
+	public long lastKey(){
+		return index.lastKey();
+	}
+
+	/**
+	 * Get a read-only view of the portion of this map whose keys range from fromKey to toKey
+	 * @param fromKey	low endpoint (inclusive) of the keys in the returned map
+	 * @param toKey		high endpoint (exclusive) of the keys in the returned map
+	 * @return	a read-only view backed by this map, sorted by keys
+	 */
+	public NavigableMap<Long, V> subMap(long fromKey, long toKey){
+		return Collections.unmodifiableNavigableMap(index.subMap(fromKey, true, toKey, false));
+	}
+
+	/**
+	 * Get a read-only view of the portion of this map whose keys are less than toKey
+	 * @param toKey		high endpoint (exclusive) of the keys in the returned map
+	 * @return	a read-only view backed by this map, sorted by keys
+	 */
+	public NavigableMap<Long, V> headMap(long toKey){
+		return Collections.unmodifiableNavigableMap(index.headMap(toKey, false));
+	}
+
+	/**
+	 * Get a read-only view of the portion of this map whose keys are greater than or equal to fromKey
+	 * @param fromKey	low endpoint (inclusive) of the keys in the returned map
+	 * @return	a read-only view backed by this map, sorted by keys
+	 */
+	public NavigableMap<Long, V> tailMap(long fromKey){
+		return Collections.unmodifiableNavigableMap(index.tailMap(fromKey, true));
+	}
+
+	/**
+	 * Perform an action for each of the key-value mappings whose keys range from fromKey to toKey, in ascending order of the keys.
+	 * @param fromKey	low endpoint (inclusive)
+	 * @param toKey		high endpoint (exclusive)
+	 * @param action	the action
+	 */
+	public void forEach(long fromKey, long toKey, EntryConsumer<? super V> action){
+		for (Map.Entry<Long, V> entry: index.subMap(fromKey, true, toKey, false).entrySet()){
+			action.accept(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Remove all the key-value mappings whose keys range from fromKey to toKey, in ascending order of the keys.
+	 * This is typically used for flushing a time window.
+	 * @param fromKey	low endpoint (inclusive)
+	 * @param toKey		high endpoint (exclusive)
+	 * @param postRemoveFunction	the function to be applied to each of the removed mappings. It can be null if not necessary.
+	 * @return	number of mappings removed
+	 */
+	public int removeRange(long fromKey, long toKey, EntryConsumer<? super V> postRemoveFunction){
+		int count = 0;
+		for (Long key: index.subMap(fromKey, true, toKey, false).keySet()){
+			V removed = remove(key);
+			if (removed != null){
+				count ++;
+				if (postRemoveFunction != null){
+					postRemoveFunction.accept(key, removed);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Perform an action for each of the key-value mappings, in ascending order of the keys.
+	 * @param action	the action
+	 */
+	@Override
+	public void forEach(EntryConsumer<? super V> action){
+		for (Map.Entry<Long, V> entry: index.entrySet()){
+			action.accept(entry.getKey(), entry.getValue());
+		}
+	}
+
+}
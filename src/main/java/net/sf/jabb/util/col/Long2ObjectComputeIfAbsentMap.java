@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+/**
+ * A map with primitive long keys that always automatically do computeIfAbsent(...) within get(...).
+ * Keys are never boxed, so that lookups with keys like epoch minutes or key numbers do not create any object.
+ * @author James Hu
+ *
+ * @param <V>	type of the values
+ */
+public interface Long2ObjectComputeIfAbsentMap<V> {
+
+	/**
+	 * Returns the value to which the specified key is mapped.
+	 * A new value will be computed and put into the map if there is no value for that key.
+	 * @param key	the key
+	 * @return	the value associated with the key, it can be null only if the compute function returned null
+	 */
+	V get(long key);
+
+	/**
+	 * Returns the value to which the specified key is mapped, without computing a new one.
+	 * @param key	the key
+	 * @return	the value associated with the key, or null if there is no value for that key
+	 */
+	V getIfPresent(long key);
+
+	/**
+	 * Check whether there is a value associated with the key
+	 * @param key	the key
+	 * @return	true if there is a value for the key, false otherwise
+	 */
+	default boolean containsKey(long key){
+		return getIfPresent(key) != null;
+	}
+
+	/**
+	 * Associate a value with the key
+	 * @param key	the key
+	 * @param value	the value, must not be null
+	 * @return	the previous value associated with the key, or null if there was none
+	 */
+	V put(long key, V value);
+
+	/**
+	 * Remove the value associated with the key
+	 * @param key	the key
+	 * @return	the value previously associated with the key, or null if there was none
+	 */
+	V remove(long key);
+
+	/**
+	 * Get the number of key-value mappings
+	 * @return	the number of key-value mappings in this map
+	 */
+	int size();
+
+	/**
+	 * Check whether the map is empty
+	 * @return	true if there is no key-value mapping in this map
+	 */
+	default boolean isEmpty(){
+		return size() == 0;
+	}
+
+	/**
+	 * Remove all the key-value mappings
+	 */
+	void clear();
+
+	/**
+	 * Perform an action for each of the key-value mappings.
+	 * The iteration is weakly consistent if there are concurrent modifications.
+	 * @param action	the action
+	 */
+	void forEach(EntryConsumer<? super V> action);
+
+	/**
+	 * Operation that accepts a primitive long key and a value.
+	 * @param <V>	type of the value
+	 */
+	@FunctionalInterface
+	public static interface EntryConsumer<V>{
+		/**
+		 * Performs this operation on the given key and value
+		 * @param key	the key
+		 * @param value	the value
+		 */
+		void accept(long key, V value);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A ConcurrentHashMap that automatically computes absent values within get(...),
+ * optimized for the case that most of the calls to get(...) are hits.
+ *
+ * <p>get(...) first does a plain lock-free read. Only if there is no value associated with the key,
+ * the compute function will be applied, guarded by a per-key in-flight marker so that the function is applied
+ * at most once per key at any time and a slow compute function only blocks the callers asking for the same key.
+ * Unlike {@link ComputeIfAbsentConcurrentHashMap}, the compute function is applied outside of the bin lock of the underlying map.</p>
+ *
+ * @author James Hu
+ *
+ */
+public class OptimisticComputeIfAbsentConcurrentHashMap<K, V> extends ConcurrentHashMap<K, V>{
+	private static final long serialVersionUID = -2470315187213264917L;
+
+	protected Function<? super K,? extends V> computeFunction;
+	protected transient ConcurrentHashMap<Object, CompletableFuture<V>> inFlight;
+
+    /**
+     * Creates a new, empty map with the default initial table size (16).
+     *
+     * @param computeFunction the function to compute a value when there is no value currently associated with the key
+     */
+    public OptimisticComputeIfAbsentConcurrentHashMap(Function<? super K,? extends V> computeFunction) {
+    	super();
+    	this.computeFunction = computeFunction;
+    	this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a new, empty map with an initial table size
+     * accommodating the specified number of elements without the need
+     * to dynamically resize.
+     *
+     * @param initialCapacity The implementation performs internal
+     * sizing to accommodate this many elements.
+     * @throws IllegalArgumentException if the initial capacity of
+     * elements is negative
+     * @param computeFunction the function to compute a value when there is no value currently associated with the key
+     */
+    public OptimisticComputeIfAbsentConcurrentHashMap(int initialCapacity, Function<? super K,? extends V> computeFunction) {
+    	super(initialCapacity);
+    	this.computeFunction = computeFunction;
+    	this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a new, empty map with an initial table size based on
+     * the given number of elements ({@code initialCapacity}) and
+     * initial table density ({@code loadFactor}).
+     *
+     * @param initialCapacity the initial capacity. The implementation
+     * performs internal sizing to accommodate this many elements,
+     * given the specified load factor.
+     * @param loadFactor the load factor (table density) for
+     * establishing the initial table size
+     * @throws IllegalArgumentException if the initial capacity of
+     * elements is negative or the load factor is nonpositive
+     * @param computeFunction the function to compute a value when there is no value currently associated with the key
+     */
+    public OptimisticComputeIfAbsentConcurrentHashMap(int initialCapacity, float loadFactor, Function<? super K,? extends V> computeFunction) {
+    	this(initialCapacity, loadFactor, 1, computeFunction);
+    }
+
+    /**
+     * Creates a new map with the same mappings as the given map.
+     *
+     * @param m the map
+     * @param computeFunction the function to compute a value when there is no value currently associated with the key
+     */
+    public OptimisticComputeIfAbsentConcurrentHashMap(Map<? extends K, ? extends V> m, Function<? super K,? extends V> computeFunction) {
+    	super(m);
+    	this.computeFunction = computeFunction;
+    	this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a new, empty map with an initial table size based on
+     * the given number of elements ({@code initialCapacity}), table
+     * density ({@code loadFactor}), and number of concurrently
+     * updating threads ({@code concurrencyLevel}).
+     *
+     * @param initialCapacity the initial capacity. The implementation
+     * performs internal sizing to accommodate this many elements,
+     * given the specified load factor.
+     * @param loadFactor the load factor (table density) for
+     * establishing the initial table size
+     * @param concurrencyLevel the estimated number of concurrently
+     * updating threads. The implementation may use this value as
+     * a sizing hint.
+     * @throws IllegalArgumentException if the initial capacity is
+     * negative or the load factor or concurrencyLevel are
+     * nonpositive
+     * @param computeFunction the function to compute a value when there is no value currently associated with the key
+     */
+    public OptimisticComputeIfAbsentConcurrentHashMap(int initialCapacity,
+                             float loadFactor, int concurrencyLevel, Function<? super K,? extends V> computeFunction) {
+    	super(initialCapacity, loadFactor, concurrencyLevel);
+    	this.computeFunction = computeFunction;
+    	this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped.
+     * A new value will be computed and put into the map if there is no value for that key.
+     *
+     * <p>If there is already a value for the key, this method does not lock anything and does not allocate any object.</p>
+     *
+     * @throws ClassCastException if the specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified key is null
+     */
+	@Override
+    public V get(Object key){
+		V result = super.get(key);
+		return result != null ? result : computeOnMiss(key);
+    }
+
+	/**
+	 * Compute the value for a key that was not found in the map.
+	 * Only one thread computes for a specific key at any time, other threads asking for the same key wait for its result.
+	 * @param key	the key
+	 * @return	the value associated with the key, either newly computed or put by another thread
+	 */
+    @SuppressWarnings("unchecked")
+	protected V computeOnMiss(Object key){
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null){
+			try{
+				return existing.join();
+			}catch(CompletionException e){
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException){
+					throw (RuntimeException) cause;
+				}else if (cause instanceof Error){
+					throw (Error) cause;
+				}
+				throw e;
+			}
+		}
+
+		try{
+			V result = super.get(key);	// it may have been put while we were waiting for the guard
+			if (result == null){
+				result = computeFunction.apply((K)key);
+				if (result != null){
+					V previous = putIfAbsent((K)key, result);
+					if (previous != null){
+						result = previous;
+					}
+				}
+			}
+			mine.complete(result);
+			return result;
+		}catch(RuntimeException | Error e){
+			mine.completeExceptionally(e);
+			throw e;
+		}finally{
+			inFlight.remove(key, mine);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		this.inFlight = new ConcurrentHashMap<>();
+	}
+
+}
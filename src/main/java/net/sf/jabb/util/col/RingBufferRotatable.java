@@ -0,0 +1,340 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * A series of objects containing a current one and a bounded number of rotated ones, backed by a ring buffer.
+ * It provides the same functions as {@link Rotatable}, but:
+ * <ul>
+ * 	<li>rotate() does not lock or wait for other threads, it is based on CAS of the current one</li>
+ * 	<li>the maximum number of generations (current + rotated) is fixed, the oldest one is purged automatically when the limit is reached</li>
+ * 	<li>lookup by rotation time is done through binary search over the ring buffer rather than linear scan</li>
+ * 	<li>getAll() and getRotated(...) return views rather than copies</li>
+ * </ul>
+ * @author James Hu
+ *
+ */
+public class RingBufferRotatable<T> {
+	protected static class Generation<E>{
+		@SuppressWarnings("rawtypes")
+		static final AtomicLongFieldUpdater<Generation> ROTATED = AtomicLongFieldUpdater.newUpdater(Generation.class, "rotated");
+
+		final long sequence;
+		final long started;		// milliseconds since epoch UTC, the same as the rotated time of the previous generation
+		volatile long rotated; 	// rotated time - milliseconds since epoch UTC, or 0 if never rotated
+		volatile E obj;
+		volatile Generation<E> previous;	// not null until the rotation to this generation has been completed
+
+		Generation(long sequence, E obj, long started, Generation<E> previous){
+			this.sequence = sequence;
+			this.obj = obj;
+			this.started = started;
+			this.previous = previous;
+		}
+
+		boolean markRotated(long time){
+			return ROTATED.compareAndSet(this, 0, time);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	static final AtomicReferenceFieldUpdater<RingBufferRotatable, Generation> CURRENT = AtomicReferenceFieldUpdater.newUpdater(RingBufferRotatable.class, Generation.class, "current");
+
+	protected final AtomicReferenceArray<Generation<T>> ring;
+	protected final int capacity;
+	protected volatile Generation<T> current;
+	protected final AtomicLong oldest;		// sequence of the oldest generation that may still be in the ring
+
+	protected Supplier<T> objFactory;
+	protected Consumer<T> autoPurgeFunction;
+
+	/**
+	 * Constructor
+	 * @param objFactory	factory function of the object
+	 * @param maxGenerations	maximum number of generations including the current one, must be at least 2
+	 * @param autoPurgeFunction		the function to be applied to the oldest object when it is purged automatically
+	 * 								because the maximum number of generations has been reached. It can be null if not necessary.
+	 */
+	public RingBufferRotatable(Supplier<T> objFactory, int maxGenerations, Consumer<T> autoPurgeFunction){
+		if (maxGenerations < 2){
+			throw new IllegalArgumentException("Maximum number of generations must not be less than 2.");
+		}
+		this.objFactory = objFactory;
+		this.autoPurgeFunction = autoPurgeFunction;
+		this.capacity = maxGenerations;
+		this.ring = new AtomicReferenceArray<>(maxGenerations);
+		this.oldest = new AtomicLong(0);
+
+		Generation<T> first = new Generation<>(0, objFactory.get(), System.currentTimeMillis(), null);
+		ring.set(0, first);
+		current = first;
+	}
+
+	/**
+	 * Constructor. Nothing will be notified when the oldest object is purged automatically.
+	 * @param objFactory	factory function of the object
+	 * @param maxGenerations	maximum number of generations including the current one, must be at least 2
+	 */
+	public RingBufferRotatable(Supplier<T> objFactory, int maxGenerations){
+		this(objFactory, maxGenerations, null);
+	}
+
+	protected int slot(long sequence){
+		return (int)(sequence % capacity);
+	}
+
+	/**
+	 * Get the generation with the specified sequence if it is still in the ring
+	 * @param sequence	the sequence
+	 * @return	the generation or null if it has been purged
+	 */
+	protected Generation<T> generation(long sequence){
+		Generation<T> g = ring.get(slot(sequence));
+		return g != null && g.sequence == sequence ? g : null;
+	}
+
+	/**
+	 * Start using a new current one. If the maximum number of generations has been exceeded, the oldest will be purged.
+	 */
+	public void rotate(){
+		T newObj = objFactory.get();
+		while(true){
+			Generation<T> g = current();
+			long now = Math.max(System.currentTimeMillis(), g.started);	// keep rotated times in order for binary search
+			if (now == 0){
+				now = 1;
+			}
+			Generation<T> newOne = new Generation<>(g.sequence + 1, newObj, now, g);
+			if (CURRENT.compareAndSet(this, g, newOne)){		// only one thread can win, the others just retry
+				complete(newOne);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the current generation, after making sure that the rotation to it has been completed
+	 * @return	the current generation
+	 */
+	protected Generation<T> current(){
+		Generation<T> c = current;
+		if (c.previous != null){
+			complete(c);
+		}
+		return c;
+	}
+
+	/**
+	 * Complete the rotation to a generation that has become the current one: mark the previous one as rotated,
+	 * put the new one into the ring and purge the one evicted from the ring.
+	 * It can be called by any thread for the same generation, including those that find it incomplete,
+	 * so that no thread needs to wait for the one that won the rotation.
+	 * @param g	the generation that has become the current one
+	 */
+	protected void complete(Generation<T> g){
+		Generation<T> previous = g.previous;
+		if (previous == null){
+			return;
+		}
+		previous.markRotated(g.started);
+		int i = slot(g.sequence);
+		while(true){
+			Generation<T> evicted = ring.get(i);
+			if (evicted == g || (evicted != null ? evicted.sequence > g.sequence : g.sequence + capacity <= current.sequence)){
+				break;		// done by another thread, which may have been long ago
+			}
+			if (ring.compareAndSet(i, evicted, g)){		// only one thread can evict it, and purge() can no longer get it
+				if (evicted != null && autoPurgeFunction != null){
+					autoPurgeFunction.accept(evicted.obj);
+				}
+				break;
+			}
+		}
+		oldest.accumulateAndGet(g.sequence - capacity + 1, Math::max);
+		g.previous = null;
+	}
+
+	/**
+	 * Get the current one
+	 * @return	the current one
+	 */
+	public T getCurrent() {
+		return current.obj;
+	}
+
+	/**
+	 * Get the maximum number of generations including the current one
+	 * @return	the maximum number of generations
+	 */
+	public int getMaxGenerations(){
+		return capacity;
+	}
+
+	/**
+	 * Get the rotated and the current, from the earliest to the latest.
+	 * The returned list is a view, objects purged after the view was created are presented as null.
+	 * @return	all
+	 */
+	public List<T> getAll(){
+		Generation<T> c = current();
+		return new View(firstSequence(c), c.sequence + 1);
+	}
+
+	/**
+	 * Get number of rotated, exclude current.
+	 * @return	number of rotated, always greater than or equals to 0
+	 */
+	public int getRotatedSize(){
+		Generation<T> c = current();
+		return (int)(c.sequence - firstSequence(c));
+	}
+
+	/**
+	 * Get the one that was current at the specified time
+	 * @param time	milliseconds since 1970-01-01 UTC
+	 * @return	the one that was current at that time, or null if it has been purged or the time is before the first one was created
+	 */
+	public T getCurrentAt(long time){
+		Generation<T> c = current();
+		long seq = lowerBound(firstSequence(c), c.sequence, time + 1);	// the first one rotated after the time
+		Generation<T> g = generation(seq);
+		if (g == null || g.started > time){
+			return null;
+		}
+		return g.obj;
+	}
+
+	/**
+	 * Swap those rotated between a specific time period. The current one will never be swapped.
+	 * Since purged are no longer accessible for swapping, swapping should happen before purging for any object.
+	 * @param swapFunction		the function to do the swap, for example, the function can transform the original map
+	 * 							to a immutable one, or a disk-based semi-persistent one. The swap function should not change the value the original one represents.
+	 * @param rotatedNoEarlierThan	milliseconds since 1970-01-01 UTC, inclusive.
+	 * 								rotatedBegin should be less than roatedEnd and should not be zero
+	 * @param rotatedBefore	milliseconds since 1970-01-01 UTC, exclusive.
+	 * 								This time should not be very close to current time, so that we can be sure there is no access to the object to be swapped.
+	 */
+	public void swap(UnaryOperator<T> swapFunction, long rotatedNoEarlierThan, long rotatedBefore){
+		Generation<T> c = current();
+		long first = firstSequence(c);
+		long from = lowerBound(first, c.sequence, rotatedNoEarlierThan);
+		long to = lowerBound(from, c.sequence, rotatedBefore);
+		for (long s = from; s < to; s ++){
+			Generation<T> g = generation(s);
+			if (g != null){
+				g.obj = swapFunction.apply(g.obj);
+			}
+		}
+	}
+
+	/**
+	 * Return a list with those rotated between a specific time period. The current one will never be included in the list.
+	 * The returned list is a view, objects purged after the view was created are presented as null.
+	 * @param rotatedNoEarlierThan	milliseconds since 1970-01-01 UTC, inclusive.
+	 * 								rotatedBegin should be less than roatedEnd and should not be zero
+	 * @param rotatedBefore	milliseconds since 1970-01-01 UTC, exclusive.
+	 * @return	all those rotated between the time period. The objects are in the order they were rotated, from earliest to latest.
+	 */
+	public List<T> getRotated(long rotatedNoEarlierThan, long rotatedBefore){
+		Generation<T> c = current();
+		long first = firstSequence(c);
+		long from = lowerBound(first, c.sequence, rotatedNoEarlierThan);
+		long to = lowerBound(from, c.sequence, rotatedBefore);
+		return new View(from, to);
+	}
+
+	/**
+	 * Purge those rotated before a specific time.
+	 * @param postPurgeFunction		the function to be applied to the object after it has been purged. The function can be null if not necessary.
+	 * @param rotatedBefore	milliseconds since 1970-01-01 UTC, exclusive
+	 * 								This time should not be very close to current time, so that we can be sure there is no access to the object to be purged.
+	 */
+	public void purge(Consumer<T> postPurgeFunction, long rotatedBefore){
+		while (true){
+			long s = oldest.get();
+			if (s >= current().sequence){
+				break;
+			}
+			int i = slot(s);
+			Generation<T> g = ring.get(i);
+			if (g == null || g.sequence != s){		// already purged
+				oldest.compareAndSet(s, s + 1);
+			}else if (g.rotated > 0 && g.rotated < rotatedBefore){
+				if (ring.compareAndSet(i, g, null)){
+					oldest.compareAndSet(s, s + 1);
+					if (postPurgeFunction != null){
+						postPurgeFunction.accept(g.obj);
+					}
+				}
+			}else{		// if reached the current one, or one rotated after the specified time
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the sequence of the oldest generation
+	 */
+	protected long firstSequence(Generation<T> c){
+		return Math.max(oldest.get(), c.sequence - capacity + 1);
+	}
+
+	/**
+	 * Find the first sequence in [from, to) that was rotated at or after the specified time.
+	 * @return the sequence found, or to if there is none
+	 */
+	protected long lowerBound(long from, long to, long time){
+		long low = from;
+		long high = to;
+		while (low < high){
+			long mid = (low + high) >>> 1;
+			Generation<T> g = generation(mid);
+			if (g == null || g.rotated < time){	// purged ones are always older
+				low = mid + 1;
+			}else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Read-only view of a range of generations
+	 */
+	protected class View extends AbstractList<T>{
+		final long from;
+		final long to;
+
+		View(long from, long to){
+			this.from = from;
+			this.to = Math.max(from, to);
+		}
+
+		@Override
+		public T get(int index) {
+			if (index < 0 || index >= size()){
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			}
+			Generation<T> g = generation(from + index);
+			return g == null ? null : g.obj;
+		}
+
+		@Override
+		public int size() {
+			return (int)(to - from);
+		}
+	}
+
+}
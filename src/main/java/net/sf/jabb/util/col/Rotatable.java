@@ -52,10 +52,18 @@ public class Rotatable<T> {
 	synchronized public void rotate(){
 		Wrapper<T> newOne = new Wrapper<>(objFactory.get());
 		all.add(newOne);
-		current.rotated = System.currentTimeMillis();  // previous current
+		current.rotated = currentTimeMillis();  // previous current
 		current = newOne;	// new current
 		
 	}
+	
+	/**
+	 * Get current time for recording the time of rotation. Subclasses can override it to use a different clock.
+	 * @return	milliseconds since 1970-01-01 UTC
+	 */
+	protected long currentTimeMillis(){
+		return System.currentTimeMillis();
+	}
 
 	/**
 	 * Get the current one
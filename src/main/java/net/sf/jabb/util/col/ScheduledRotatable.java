@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+
+import net.sf.jabb.util.parallel.SharedSchedulers;
+import net.sf.jabb.util.stat.AggregationPeriod;
+import net.sf.jabb.util.stat.DefaultAggregationPeriodKeyScheme;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * A {@link Rotatable} that rotates and purges by itself.
+ * Rotations happen at boundaries of wall-clock time periods, for example at the start of every minute.
+ * After each rotation, those rotated before (now - retention) are purged and handed to the post-purge function
+ * which is called asynchronously so that it will never delay rotations.
+ *
+ * <p>By default all instances share one single-threaded scheduler, there is no per-instance timer thread.
+ * The scheduler holds a reference to the instance until {@link #close()} is called,
+ * so always close an instance when it is no longer needed.
+ * No rotation will be scheduled after {@link #close()} has returned.</p>
+ *
+ * @author James Hu
+ *
+ */
+public class ScheduledRotatable<T> extends Rotatable<T> implements AutoCloseable{
+	static private volatile ThreadPoolExecutor defaultPostPurgeExecutor;
+
+	protected LongUnaryOperator nextRotationTimeFunction;
+	protected long retentionMillis;
+	protected Consumer<T> postPurgeFunction;
+	protected Executor postPurgeExecutor;
+	protected ScheduledExecutorService scheduler;
+	protected LongSupplier clock;
+
+	protected final Object scheduleLock = new Object();
+	protected volatile long nextRotationTime;
+	protected volatile ScheduledFuture<?> scheduledFuture;		// guarded by scheduleLock
+	protected volatile boolean closed;							// guarded by scheduleLock
+
+	/**
+	 * Constructor
+	 * @param objFactory	factory function of the object
+	 * @param nextRotationTimeFunction	the function that takes current time and returns the time of next rotation which must be after current time.
+	 * 									Both times are milliseconds since 1970-01-01 UTC.
+	 * @param retention			how long the rotated ones should be kept before being purged
+	 * @param postPurgeFunction		the function to be applied to the object after it has been purged. It can be null if not necessary.
+	 * @param postPurgeExecutor		the executor in which the post purge function will be called. It can be null, in which case a shared thread pool will be used.
+	 */
+	public ScheduledRotatable(Supplier<T> objFactory, LongUnaryOperator nextRotationTimeFunction, Duration retention,
+			Consumer<T> postPurgeFunction, Executor postPurgeExecutor){
+		this(objFactory, nextRotationTimeFunction, retention, postPurgeFunction, postPurgeExecutor, null, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param objFactory	factory function of the object
+	 * @param nextRotationTimeFunction	the function that takes current time and returns the time of next rotation which must be after current time.
+	 * 									Both times are milliseconds since 1970-01-01 UTC.
+	 * @param retention			how long the rotated ones should be kept before being purged
+	 * @param postPurgeFunction		the function to be applied to the object after it has been purged. It can be null if not necessary.
+	 * @param postPurgeExecutor		the executor in which the post purge function will be called. It can be null, in which case a shared thread pool will be used.
+	 * @param scheduler			the scheduler for rotations. It can be null, in which case a shared single-threaded scheduler will be used.
+	 * @param clock				the source of current time in milliseconds since 1970-01-01 UTC. It can be null, in which case the system clock will be used.
+	 */
+	public ScheduledRotatable(Supplier<T> objFactory, LongUnaryOperator nextRotationTimeFunction, Duration retention,
+			Consumer<T> postPurgeFunction, Executor postPurgeExecutor, ScheduledExecutorService scheduler, LongSupplier clock){
+		super(objFactory);
+		this.nextRotationTimeFunction = nextRotationTimeFunction;
+		this.retentionMillis = retention.toMillis();
+		this.postPurgeFunction = postPurgeFunction;
+		this.postPurgeExecutor = postPurgeExecutor == null ? getDefaultPostPurgeExecutor() : postPurgeExecutor;
+		this.scheduler = scheduler == null ? SharedSchedulers.get(ScheduledRotatable.class.getSimpleName() + "-scheduler") : scheduler;
+		this.clock = clock == null ? System::currentTimeMillis : clock;
+		scheduleNext(this.clock.getAsLong());
+	}
+
+	/**
+	 * Constructor. Rotations happen at boundaries of the aggregation period in its time zone, for example at the start of every hour.
+	 * @param objFactory	factory function of the object
+	 * @param aggregationPeriod	the aggregation period
+	 * @param retention			how long the rotated ones should be kept before being purged
+	 * @param postPurgeFunction		the function to be applied to the object after it has been purged. It can be null if not necessary.
+	 * 								It will be called in a shared thread pool.
+	 */
+	public ScheduledRotatable(Supplier<T> objFactory, AggregationPeriod aggregationPeriod, Duration retention, Consumer<T> postPurgeFunction){
+		this(objFactory, alignedTo(aggregationPeriod), retention, postPurgeFunction, null);
+	}
+
+	/**
+	 * Constructor. Rotations happen at multiples of the period since 1970-01-01 00:00 UTC, for example at every 10 seconds of the wall clock.
+	 * @param objFactory	factory function of the object
+	 * @param period	the period between rotations
+	 * @param retention			how long the rotated ones should be kept before being purged
+	 * @param postPurgeFunction		the function to be applied to the object after it has been purged. It can be null if not necessary.
+	 * 								It will be called in a shared thread pool.
+	 */
+	public ScheduledRotatable(Supplier<T> objFactory, Duration period, Duration retention, Consumer<T> postPurgeFunction){
+		this(objFactory, alignedTo(period), retention, postPurgeFunction, null);
+	}
+
+	/**
+	 * Create a function that returns the end time of the aggregation period which current time falls into
+	 * @param aggregationPeriod	the aggregation period
+	 * @return	the function that can be used as the next rotation time function
+	 */
+	static public LongUnaryOperator alignedTo(AggregationPeriod aggregationPeriod){
+		return now -> DefaultAggregationPeriodKeyScheme.staticGetEndTime(aggregationPeriod,
+				Instant.ofEpochMilli(now).atZone(aggregationPeriod.getZone())).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Create a function that returns the next multiple of the period since 1970-01-01 00:00 UTC
+	 * @param period	the period, must be at least 1 millisecond
+	 * @return	the function that can be used as the next rotation time function
+	 */
+	static public LongUnaryOperator alignedTo(Duration period){
+		long periodMillis = period.toMillis();
+		if (periodMillis <= 0){
+			throw new IllegalArgumentException("Period must not be shorter than 1 millisecond: " + period);
+		}
+		return now -> (Math.floorDiv(now, periodMillis) + 1) * periodMillis;
+	}
+
+	static protected ThreadPoolExecutor getDefaultPostPurgeExecutor(){
+		if (defaultPostPurgeExecutor == null){
+			synchronized(ScheduledRotatable.class){
+				if (defaultPostPurgeExecutor == null){
+					ThreadPoolExecutor newThreadPool = new ThreadPoolExecutor(2, 2, 2, TimeUnit.MINUTES,
+							new LinkedBlockingQueue<>(),
+							new BasicThreadFactory.Builder()
+									.namingPattern(ScheduledRotatable.class.getSimpleName() + "-purge-%d")
+									.daemon(true)
+									.build());
+					newThreadPool.allowCoreThreadTimeOut(true);
+					defaultPostPurgeExecutor = newThreadPool;
+				}
+			}
+		}
+		return defaultPostPurgeExecutor;
+	}
+
+	protected void scheduleNext(long now){
+		synchronized(scheduleLock){
+			if (closed){
+				return;
+			}
+			nextRotationTime = nextRotationTimeFunction.applyAsLong(now);
+			scheduledFuture = scheduler.schedule(this::onSchedule, Math.max(0, nextRotationTime - now), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected void onSchedule(){
+		if (closed){
+			return;
+		}
+		long now = clock.getAsLong();
+		long scheduledTime = nextRotationTime;
+		if (now < scheduledTime){		// the scheduler is driven by nanoTime which may drift from wall clock
+			synchronized(scheduleLock){
+				if (!closed){
+					scheduledFuture = scheduler.schedule(this::onSchedule, scheduledTime - now, TimeUnit.MILLISECONDS);
+				}
+			}
+			return;
+		}
+		try{
+			rotate();
+			purge(now - retentionMillis);
+		}finally{
+			scheduleNext(Math.max(now, scheduledTime));
+		}
+	}
+
+	/**
+	 * Purge those rotated before a specific time, and apply the post-purge function asynchronously.
+	 * @param rotatedBefore	milliseconds since 1970-01-01 UTC, exclusive
+	 */
+	protected void purge(long rotatedBefore){
+		purge(postPurgeFunction == null ? null : obj -> postPurgeExecutor.execute(() -> postPurgeFunction.accept(obj)), rotatedBefore);
+	}
+
+	@Override
+	protected long currentTimeMillis(){
+		return clock.getAsLong();
+	}
+
+	/**
+	 * Get the time of next scheduled rotation
+	 * @return	milliseconds since 1970-01-01 UTC
+	 */
+	public long getNextRotationTime(){
+		return nextRotationTime;
+	}
+
+	/**
+	 * Stop automatic rotation and purging. Those already rotated but not yet purged will be kept,
+	 * and they can still be accessed or purged manually.
+	 */
+	@Override
+	public void close(){
+		synchronized(scheduleLock){
+			closed = true;
+			ScheduledFuture<?> f = scheduledFuture;
+			if (f != null){
+				f.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Check if automatic rotation and purging has been stopped
+	 * @return	true if {@link #close()} has been called
+	 */
+	public boolean isClosed(){
+		return closed;
+	}
+
+}
@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of holdable pools. It provides:
+ * <ul>
+ * 	<li>waiting by parking the thread, and waking up a waiting thread when an object is released</li>
+ * 	<li>leak detection which reports objects that have been held longer than a threshold together with the IDs of their holders,
+ * 		it runs when objects are acquired or released, as well as when a thread has been waiting</li>
+ * </ul>
+ * Sub-classes only need to implement {@link #tryHold(long)} which should try to hold an object without waiting,
+ * and {@link #holdables()} which lists all the objects in the pool.
+ * @author James Hu
+ *
+ */
+public abstract class AbstractHoldablePool<T> implements HoldablePool<T> {
+	static private final Logger logger = LoggerFactory.getLogger(AbstractHoldablePool.class);
+	static private final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	protected Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+	protected volatile long leakDetectionThresholdNanos = 0;	// 0 means disabled
+	protected volatile Consumer<Holdable<T>> leakListener;
+	protected AtomicLong lastLeakDetection = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Try to get and hold an object from the pool without waiting. New objects can be created and added into the pool if allowed.
+	 * @param holdId the unique non-negative value to identify the caller
+	 * @return the object that is held by the caller, or null if all the objects are currently held and no more can be added
+	 */
+	abstract protected Holdable<T> tryHold(long holdId);
+
+	/**
+	 * Get all the objects in the pool, including those currently held.
+	 * @return	all the holdable objects
+	 */
+	abstract protected Iterable<Holdable<T>> holdables();
+
+	@Override
+	public Holdable<T> tryGetHold(long holdId){
+		Holdable<T> holdable = tryHold(holdId);
+		if (leakDetectionThresholdNanos > 0){
+			long now = System.nanoTime();
+			if (holdable != null){
+				holdable.heldSince = now == 0 ? 1 : now;
+				holdable.leakReported = false;
+			}
+			detectLeaksIfDue(now);
+		}
+		return holdable;
+	}
+
+	/**
+	 * Get and hold an object from the pool. If all the objects are currently held and no more can be added,
+	 * the calling thread will be parked until an object is released.
+	 * @param holdId the unique non-negative value to identify the caller
+	 * @return the object that is held by the caller, never null
+	 */
+	@Override
+	public Holdable<T> getHold(long holdId){
+		Holdable<T> holdable = tryGetHold(holdId);
+		if (holdable != null){
+			return holdable;
+		}
+		boolean interrupted = false;
+		while(true){
+			try{
+				holdable = tryGetHold(holdId, Duration.ofNanos(Long.MAX_VALUE));
+				if (holdable != null){
+					break;
+				}
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+		return holdable;
+	}
+
+	@Override
+	public Holdable<T> tryGetHold(long holdId, Duration timeout) throws InterruptedException{
+		Holdable<T> holdable = tryGetHold(holdId);
+		if (holdable != null){
+			return holdable;
+		}
+
+		long start = System.nanoTime();
+		long timeoutNanos = timeout.toNanos();
+		boolean leaksChecked = false;
+		Thread thread = Thread.currentThread();
+		waiters.add(thread);
+		try{
+			while(true){
+				holdable = tryGetHold(holdId);		// try again after being added to waiters so that no release could be missed
+				if (holdable != null){
+					return holdable;
+				}
+				long waited = System.nanoTime() - start;
+				if (waited >= timeoutNanos){
+					return null;
+				}
+				long threshold = leakDetectionThresholdNanos;
+				if (!leaksChecked && threshold > 0 && waited >= threshold){
+					detectLeaks();
+					leaksChecked = true;
+				}
+				LockSupport.parkNanos(this, Math.min(timeoutNanos - waited, MAX_PARK_NANOS));
+				if (Thread.interrupted()){
+					throw new InterruptedException();
+				}
+			}
+		}finally{
+			waiters.remove(thread);
+			if (holdable != null){
+				signalWaiter();		// in case the signal of another release was consumed by this thread
+			}
+		}
+	}
+
+	@Override
+	public boolean release(Holdable<T> holdable, long holdId){
+		if (!holdable.free(holdId)){
+			return false;
+		}
+		signalWaiter();
+		if (leakDetectionThresholdNanos > 0){
+			detectLeaksIfDue(System.nanoTime());
+		}
+		return true;
+	}
+
+	protected void signalWaiter(){
+		Thread waiter = waiters.peek();
+		if (waiter != null){
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Enable leak detection. When it is enabled, the time of each hold is tracked,
+	 * and objects held longer than the threshold will be reported to the listener
+	 * when {@link #detectLeaks()} is called, when a thread has been waiting for an object longer than the threshold,
+	 * or when an object is acquired or released and the detection has not been run within the threshold.
+	 * @param threshold		holds longer than this are considered as leaks. Null or zero disables leak detection.
+	 * @param leakListener	the listener to receive the leaked objects, it can call {@link Holdable#getHoldId()} and {@link Holdable#getHeldDuration()}
+	 * 						to find out who is holding it and for how long. If it is null, leaks will be logged as warnings.
+	 */
+	public void setLeakDetection(Duration threshold, Consumer<Holdable<T>> leakListener){
+		this.leakListener = leakListener;
+		this.leakDetectionThresholdNanos = threshold == null ? 0 : threshold.toNanos();
+	}
+
+	/**
+	 * Run leak detection if it has not been run within the leak detection threshold.
+	 * @param now	current System.nanoTime()
+	 */
+	protected void detectLeaksIfDue(long now){
+		long last = lastLeakDetection.get();
+		if (now - last >= leakDetectionThresholdNanos && lastLeakDetection.compareAndSet(last, now)){
+			detectLeaks();
+		}
+	}
+
+	/**
+	 * Find the objects that have been held longer than the leak detection threshold.
+	 * Each leaked hold will only be reported to the listener once, but all of them are always included in the returned list.
+	 * @return	those held longer than the threshold, or an empty list if leak detection is not enabled.
+	 */
+	public List<Holdable<T>> detectLeaks(){
+		List<Holdable<T>> result = new ArrayList<>();
+		long threshold = leakDetectionThresholdNanos;
+		if (threshold <= 0){
+			return result;
+		}
+		Consumer<Holdable<T>> listener = leakListener;
+		long now = System.nanoTime();
+		for (Holdable<T> holdable: holdables()){
+			if (holdable == null){
+				continue;
+			}
+			long since = holdable.heldSince;
+			if (since != 0 && holdable.isHeld() && now - since >= threshold){
+				result.add(holdable);
+				if (!holdable.leakReported){
+					holdable.leakReported = true;
+					if (listener == null){
+						logger.warn("Possible leak: {} has been held by {} for {}", holdable.get(), holdable.getHoldId(), Duration.ofNanos(now - since));
+					}else{
+						listener.accept(holdable);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Base class of load balancers. It does the dispatching with fallback, statistics and monitor hooks,
+ * sub-classes decide which processor a work load should be dispatched to.
+ * @author James Hu
+ *
+ * @param <L>	type of the load
+ * @param <R>	type of the result
+ * @param <P>	type of the processor
+ */
+public abstract class AbstractLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
+	protected BiFunction<P, L, R> dispatcher;
+	protected ToIntFunction<L> hashFunction;
+	protected Consumer<L> fallback;
+	protected Consumer<DispatchingStatistics<L, P>> statistics;
+	protected Consumer<L> monitor;
+
+	/**
+	 * Choose the processor for the work load
+	 * @param load	the work load
+	 * @return	the processor
+	 */
+	abstract protected P chooseProcessor(L load);
+
+	/**
+	 * Spread the bits of a hash code, so that similar hash codes end up far away from each other,
+	 * and the result is not correlated with the original hash code
+	 * @param h	the hash code
+	 * @return	another hash code
+	 */
+	static protected int spread(int h){
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.sf.jabb.util.parallel.Dispatcher#dispatch(L)
+	 */
+	@Override
+	public R dispatch(L load){
+		Consumer<DispatchingStatistics<L, P>> statistics = this.statistics;
+		long startTime = statistics == null ? 0 : System.currentTimeMillis();		// no timing when there is no statistics collector
+		boolean successful = false;
+		Integer exceptionType = null;
+		P processor = null;
+		try{
+			processor = chooseProcessor(load);
+			R result = dispatcher.apply(processor, load);
+			successful = true;
+			return result;
+		}catch(DispatchingException e){
+			exceptionType = e.getType();
+			if (fallback != null){
+				try{
+					fallback.accept(load);
+				}catch(Exception fe){
+					// ignore
+					fe.printStackTrace();
+				}
+			}
+			throw e;
+		}finally{
+			if (statistics != null){
+				try{
+					statistics.accept(new DispatchingStatistics<L, P>(load, processor, System.currentTimeMillis() - startTime, successful, exceptionType));
+				}catch(Exception se){
+					// ignore
+					se.printStackTrace();
+				}
+			}
+			if (monitor != null){
+				try{
+					monitor.accept(load);
+				}catch(Exception me){
+					// ignore
+					me.printStackTrace();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,400 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load balancer that adapts to the health of the processors.
+ * For each processor it tracks the exponentially weighted moving average (EWMA) of latency and error rate,
+ * and the number of outstanding requests.
+ *
+ * <p>Work loads are dispatched with power-of-two-choices: besides the processor of the bucket that the work load hashes to,
+ * the processor of another bucket is also considered, and the work load goes to the second one only if the first one
+ * looks obviously worse (slower, more errors, or more outstanding requests). So healthy processors keep their buckets and
+ * the cache locality, while slow or failing processors shed load to others automatically.</p>
+ *
+ * <p>After a number of consecutive {@link DispatchingException#SERVER_UNREACHABLE} or {@link DispatchingException#SERVER_TIMEOUT} errors
+ * a processor is demoted to backup automatically. Automatically demoted processors are probed periodically
+ * and promoted back after a number of consecutive successful probes.
+ * Call {@link #close()} to stop probing when the load balancer is no longer needed.</p>
+ * @author James Hu
+ *
+ * @param <L>	type of the load
+ * @param <R>	type of the result
+ * @param <P>	type of the processor
+ */
+public class AdaptiveLoadBalancer<L, R, P> extends BasicLoadBalancer<L, R, P> implements AutoCloseable{
+	private static final Logger logger = LoggerFactory.getLogger(AdaptiveLoadBalancer.class);
+
+	protected ConcurrentHashMap<P, ProcessorHealth> healthMap = new ConcurrentHashMap<>();
+	protected Set<P> autoDemoted = ConcurrentHashMap.newKeySet();
+	protected Predicate<P> probe;
+	protected volatile ScheduledFuture<?> probingFuture;
+
+	protected volatile double ewmaAlpha = 0.1;
+	protected volatile double imbalanceTolerance = 1.5;
+	protected volatile int failuresToDemote = 3;
+	protected volatile int successfulProbesToPromote = 2;
+
+	/**
+	 * Health of a processor. The EWMA values are updated without locking, concurrent updates may occasionally be lost, which does not matter.
+	 * @author James Hu
+	 *
+	 */
+	static public class ProcessorHealth{
+		protected volatile double latencyEwma;		// in nanoseconds
+		protected volatile double errorRateEwma;
+		protected AtomicInteger outstanding = new AtomicInteger();
+		protected AtomicInteger consecutiveFailures = new AtomicInteger();
+		protected AtomicInteger consecutiveSuccessfulProbes = new AtomicInteger();
+		protected AtomicBoolean demoting = new AtomicBoolean();
+
+		void update(double alpha, long latencyNanos, boolean failed){
+			double l = latencyEwma;
+			latencyEwma = l == 0 ? latencyNanos : l + alpha * (latencyNanos - l);
+			errorRateEwma = errorRateEwma + alpha * ((failed ? 1.0 : 0.0) - errorRateEwma);
+		}
+
+		/**
+		 * Get the score, lower is better
+		 * @return	the score
+		 */
+		public double getScore(){
+			return (latencyEwma + 1) * (outstanding.get() + 1) / Math.max(0.01, 1 - errorRateEwma);
+		}
+
+		/**
+		 * Get EWMA of latency
+		 * @return	the latency in nanoseconds
+		 */
+		public double getLatencyEwma() {
+			return latencyEwma;
+		}
+
+		/**
+		 * Get EWMA of error rate
+		 * @return	the error rate between 0 and 1
+		 */
+		public double getErrorRateEwma() {
+			return errorRateEwma;
+		}
+
+		/**
+		 * Get number of outstanding requests
+		 * @return	number of work loads that are being dispatched
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * Get number of consecutive SERVER_UNREACHABLE or SERVER_TIMEOUT errors
+		 * @return	number of consecutive failures
+		 */
+		public int getConsecutiveFailures() {
+			return consecutiveFailures.get();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param buckets	number of buckets for distributing the load evenly, normally it should be at least 10 times bigger than the number of processors. Numbers larger than 100000 suggested.
+	 * @param activeProcessors  processors, there must not be duplicated elements
+	 * @param backupProcessors	backup processors which will not be used at the beginning, there must not be duplicated elements. It can be null.
+	 * @param fallback	the fall back processor that handles all the failed-to-dispatch work loads. It can be null.
+	 * @param hashFunction	the function to create hash code for the work load dispatching
+	 * @param dispatcher	actual dispatcher
+	 * @param statistics	statistics collector. It can be null.
+	 * @param monitor		monitor that receives copies of all of the work load. It can be null.
+	 * @param probe			the function to check whether an automatically demoted processor has recovered. It can be null,
+	 * 						in which case automatically demoted processors will never be promoted back automatically.
+	 * @param probeInterval	interval between probes. It can be null if probe is null or if {@link #probe()} will be called explicitly.
+	 */
+	public AdaptiveLoadBalancer(int buckets, Collection<P> activeProcessors, Collection<P> backupProcessors, Consumer<L> fallback,
+			ToIntFunction<L> hashFunction, BiFunction<P, L, R> dispatcher, Consumer<DispatchingStatistics<L, P>> statistics, Consumer<L> monitor,
+			Predicate<P> probe, Duration probeInterval){
+		super(buckets, activeProcessors, backupProcessors, fallback, hashFunction, dispatcher, statistics, monitor);
+		this.dispatcher = trackingDispatcher(dispatcher);
+		this.probe = probe;
+		if (probe != null && probeInterval != null){
+			long millis = probeInterval.toMillis();
+			probingFuture = SharedSchedulers.get(AdaptiveLoadBalancer.class.getSimpleName() + "-probe").scheduleWithFixedDelay(this::probe, millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Constructor. Automatically demoted processors will never be promoted back automatically.
+	 * @param buckets	number of buckets for distributing the load evenly, normally it should be at least 10 times bigger than the number of processors. Numbers larger than 100000 suggested.
+	 * @param activeProcessors  processors, there must not be duplicated elements
+	 * @param hashFunction	the function to create hash code for the work load dispatching
+	 * @param dispatcher	actual dispatcher
+	 */
+	public AdaptiveLoadBalancer(int buckets, Collection<P> activeProcessors, ToIntFunction<L> hashFunction, BiFunction<P, L, R> dispatcher){
+		this(buckets, activeProcessors, null, null, hashFunction, dispatcher, null, null, null, null);
+	}
+
+	/**
+	 * Wrap the actual dispatcher to track latency, errors and outstanding requests
+	 */
+	protected BiFunction<P, L, R> trackingDispatcher(BiFunction<P, L, R> actualDispatcher){
+		return (processor, load) -> {
+			ProcessorHealth health = getHealth(processor);
+			health.outstanding.incrementAndGet();
+			long start = System.nanoTime();
+			boolean failed = true;
+			try{
+				R result = actualDispatcher.apply(processor, load);
+				failed = false;
+				health.consecutiveFailures.set(0);
+				return result;
+			}catch(DispatchingException e){
+				if (e.getType() == DispatchingException.SERVER_UNREACHABLE || e.getType() == DispatchingException.SERVER_TIMEOUT){
+					if (health.consecutiveFailures.incrementAndGet() >= failuresToDemote){
+						autoDemote(processor, health);
+					}
+				}
+				throw e;
+			}finally{
+				health.outstanding.decrementAndGet();
+				health.update(ewmaAlpha, System.nanoTime() - start, failed);
+			}
+		};
+	}
+
+	/**
+	 * Get the health of a processor
+	 * @param processor	the processor
+	 * @return	the health, never null
+	 */
+	public ProcessorHealth getHealth(P processor){
+		ProcessorHealth health = healthMap.get(processor);
+		if (health == null){
+			health = healthMap.computeIfAbsent(processor, p -> new ProcessorHealth());
+		}
+		return health;
+	}
+
+	@Override
+	protected P chooseProcessor(L load){
+		int hash = hashFunction.applyAsInt(load);
+		Object[] processors = routing.processorMap;
+		P first = processorOf(processors, hash);
+		P second = processorOf(processors, spread(hash));		// the alternative bucket is not correlated with the original one
+		if (second == first || second.equals(first)){
+			return first;
+		}
+		ProcessorHealth firstHealth = healthMap.get(first);
+		ProcessorHealth secondHealth = healthMap.get(second);
+		if (firstHealth == null || secondHealth == null){
+			return first;
+		}
+		return firstHealth.getScore() > secondHealth.getScore() * imbalanceTolerance ? second : first;
+	}
+
+	protected void autoDemote(P processor, ProcessorHealth health){
+		if (!health.demoting.compareAndSet(false, true)){
+			return;		// already being demoted by another thread
+		}
+		synchronized(this){
+			if (routing.activeProcessors.contains(processor) && routing.activeProcessors.size() > 1){
+				logger.warn("Demoting processor {} after {} consecutive failures", processor, health.consecutiveFailures.get());
+				health.consecutiveSuccessfulProbes.set(0);
+				autoDemoted.add(processor);
+				demote(processor);
+			}else{
+				health.demoting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Promote a backup processor. If it had been demoted automatically, it will no longer be probed,
+	 * and it can be demoted automatically again.
+	 * @param processor	the processor
+	 */
+	@Override
+	synchronized public void promote(P processor){
+		super.promote(processor);
+		resetDemotion(processor);
+	}
+
+	/**
+	 * Add an active processor. If it had been demoted automatically, it will no longer be probed,
+	 * and it can be demoted automatically again.
+	 * @param processor	the processor
+	 */
+	@Override
+	synchronized public void add(P processor){
+		super.add(processor);
+		resetDemotion(processor);
+	}
+
+	/**
+	 * Remove an active processor. Its health will be forgotten.
+	 * @param processor	the processor
+	 */
+	@Override
+	synchronized public void remove(P processor){
+		super.remove(processor);
+		forget(processor);
+	}
+
+	/**
+	 * Remove a backup processor. If it had been demoted automatically, it will no longer be probed.
+	 * Its health will be forgotten.
+	 * @param processor	the processor
+	 */
+	@Override
+	synchronized public void removeBackup(P processor){
+		super.removeBackup(processor);
+		forget(processor);
+	}
+
+	/**
+	 * Replace an active processor with a new one. The health of both of them will be forgotten,
+	 * so that the new processor starts fresh.
+	 * @param processor		the processor to be replaced
+	 * @param newProcessor	the new processor
+	 */
+	@Override
+	synchronized public void replace(P processor, P newProcessor){
+		super.replace(processor, newProcessor);
+		forget(processor);
+		forget(newProcessor);
+	}
+
+	/**
+	 * Replace a backup processor with a new one. If the replaced one had been demoted automatically, it will no longer be probed.
+	 * The health of both of them will be forgotten, so that the new processor starts fresh.
+	 * @param processor		the processor to be replaced
+	 * @param newProcessor	the new processor
+	 */
+	@Override
+	synchronized public void replaceBackup(P processor, P newProcessor){
+		super.replaceBackup(processor, newProcessor);
+		forget(processor);
+		forget(newProcessor);
+	}
+
+	/**
+	 * Stop probing the processor and drop its health, so that it will start fresh if it is added again
+	 * @param processor	the processor
+	 */
+	protected void forget(P processor){
+		autoDemoted.remove(processor);
+		healthMap.remove(processor);
+	}
+
+	protected void resetDemotion(P processor){
+		autoDemoted.remove(processor);
+		ProcessorHealth health = healthMap.get(processor);
+		if (health != null){
+			health.consecutiveFailures.set(0);
+			health.demoting.set(false);
+		}
+	}
+
+	/**
+	 * Probe all the automatically demoted processors, and promote those with enough consecutive successful probes.
+	 * This method is called periodically if probe interval had been specified when constructing this instance.
+	 */
+	public void probe(){
+		if (probe == null){
+			return;
+		}
+		for (P processor: autoDemoted){
+			ProcessorHealth health = healthMap.get(processor);
+			if (health == null){
+				continue;		// removed concurrently
+			}
+			boolean ok;
+			try{
+				ok = probe.test(processor);
+			}catch(Exception e){
+				ok = false;
+			}
+			if (!ok){
+				health.consecutiveSuccessfulProbes.set(0);
+			}else if (health.consecutiveSuccessfulProbes.incrementAndGet() >= successfulProbesToPromote){
+				synchronized(this){
+					if (autoDemoted.remove(processor) && routing.backupProcessors.contains(processor)){
+						logger.info("Promoting processor {} after {} successful probes", processor, health.consecutiveSuccessfulProbes.get());
+						health.errorRateEwma = 0;
+						health.latencyEwma = 0;
+						promote(processor);
+					}else{
+						health.demoting.set(false);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the processors that have been demoted automatically and have not been promoted back
+	 * @return	the processors being probed
+	 */
+	public Set<P> getAutoDemotedProcessors(){
+		return autoDemoted;
+	}
+
+	/**
+	 * Stop probing
+	 */
+	@Override
+	public void close(){
+		ScheduledFuture<?> f = probingFuture;
+		if (f != null){
+			f.cancel(false);
+		}
+	}
+
+	/**
+	 * Set the smoothing factor of EWMA, default is 0.1
+	 * @param ewmaAlpha	between 0 and 1, larger value discounts older observations faster
+	 */
+	public void setEwmaAlpha(double ewmaAlpha) {
+		this.ewmaAlpha = ewmaAlpha;
+	}
+
+	/**
+	 * Set how much worse the processor of the bucket needs to be before the alternative processor is used, default is 1.5
+	 * @param imbalanceTolerance	ratio of the scores, not less than 1
+	 */
+	public void setImbalanceTolerance(double imbalanceTolerance) {
+		this.imbalanceTolerance = imbalanceTolerance;
+	}
+
+	/**
+	 * Set the number of consecutive SERVER_UNREACHABLE or SERVER_TIMEOUT errors after which the processor will be demoted, default is 3
+	 * @param failuresToDemote	number of consecutive failures
+	 */
+	public void setFailuresToDemote(int failuresToDemote) {
+		this.failuresToDemote = failuresToDemote;
+	}
+
+	/**
+	 * Set the number of consecutive successful probes after which an automatically demoted processor will be promoted, default is 2
+	 * @param successfulProbesToPromote	number of consecutive successful probes
+	 */
+	public void setSuccessfulProbesToPromote(int successfulProbesToPromote) {
+		this.successfulProbesToPromote = successfulProbesToPromote;
+	}
+
+}
@@ -13,12 +13,12 @@ import java.util.function.Supplier;
  * An array backed auto-scalable holdable pool. 
  * The pool will be empty until the first time getHold(...) is called.
  * When all of the objects in the pool are currently held, call to getHold(...) will result either a new object being created if the size limit has not been reached,
- * or an infinite loop until an object is released and can be held.
+ * or the calling thread being parked until an object is released and can be held.
  * getHold(...) method of this class will never return null. 
  * @author James Hu
  *
  */
-public class ArrayScalableHoldablePool<T> implements HoldablePool<T> {
+public class ArrayScalableHoldablePool<T> extends AbstractHoldablePool<T> {
 	protected Supplier<T> factory;
 	protected AtomicReferenceArray<Holdable<T>> pool;
 	
@@ -41,17 +41,30 @@ public class ArrayScalableHoldablePool<T> implements HoldablePool<T> {
 	}
 
 	@Override
-	public Holdable<T> getHold(long holdId) {
-		for (int i = 0; ; i = (i+1) % pool.length()){
+	protected Holdable<T> tryHold(long holdId) {
+		for (int i = 0; i < pool.length(); i ++){
 			Holdable<T> holdable = pool.get(i);
 			if (holdable == null){
-				Holdable<T> newHoldable = new Holdable<>(factory.get());
+				Holdable<T> newHoldable = new Holdable<>(factory.get(), Holdable.FREE, this);
 				holdable = pool.updateAndGet(i, v -> v == null ? newHoldable : v);
 			}
 			if (holdable.hold(holdId)){
 				return holdable;
 			}
 		}
+		return null;
+	}
+
+	@Override
+	protected Iterable<Holdable<T>> holdables() {
+		List<Holdable<T>> result = new ArrayList<>();
+		for (int i = 0; i < pool.length(); i ++){
+			Holdable<T> holdable = pool.get(i);
+			if (holdable != null){
+				result.add(holdable);
+			}
+		}
+		return result;
 	}
 
 	@Override
@@ -73,7 +86,7 @@ public class ArrayScalableHoldablePool<T> implements HoldablePool<T> {
 		}
 		
 		if (object != null){
-			pool.set(0, new Holdable<>(object));
+			pool.set(0, new Holdable<>(object, Holdable.FREE, this));
 		}
 		
 	}
@@ -6,7 +6,6 @@ package net.sf.jabb.util.parallel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.function.BiFunction;
@@ -15,25 +14,67 @@ import java.util.function.ToIntFunction;
 	
 /**
  * Dispatcher to be used in non-clustered load balancing. This class is thread safe.
+ * Changes are synchronized, each of them publishes a new immutable routing snapshot through a volatile reference,
+ * so that dispatching never locks and always sees a consistent processor map.
  * @author James Hu
  *
  * @param <L>	type of the load
  * @param <R>	type of the result
  * @param <P>	type of the processor
  */
-public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
-	protected BiFunction<P, L, R> dispatcher;
-	protected ToIntFunction<L> hashFunction;
-	protected Consumer<L> fallback;
-	protected Consumer<DispatchingStatistics<L, P>> statistics;
-	protected Consumer<L> monitor;
-	
-	protected Object[] processorMap;
-	protected List<P> activeProcessors;
-	protected List<P> backupProcessors;
+public class BasicLoadBalancer<L, R, P> extends AbstractLoadBalancer<L, R, P> {
+	protected volatile Routing<P> routing;
 	
 	protected Random random = new Random(System.currentTimeMillis());
 
+	/**
+	 * Immutable snapshot of the processor map, the active processors, and the backup processors
+	 * @author James Hu
+	 *
+	 * @param <P>	type of the processor
+	 */
+	static public class Routing<P>{
+		protected final Object[] processorMap;
+		protected final List<P> activeProcessors;
+		protected final List<P> backupProcessors;
+		
+		/**
+		 * Constructor. The arguments must not be modified afterwards.
+		 * @param processorMap		the processor map, the index is the bucket
+		 * @param activeProcessors	the active processors
+		 * @param backupProcessors	the backup processors
+		 */
+		public Routing(Object[] processorMap, List<P> activeProcessors, List<P> backupProcessors){
+			this.processorMap = processorMap;
+			this.activeProcessors = Collections.unmodifiableList(activeProcessors);
+			this.backupProcessors = Collections.unmodifiableList(backupProcessors);
+		}
+
+		/**
+		 * Get the processor map. The returned array must not be modified.
+		 * @return	the processor map
+		 */
+		public Object[] getProcessorMap() {
+			return processorMap;
+		}
+
+		/**
+		 * Get the active processors
+		 * @return	an unmodifiable list
+		 */
+		public List<P> getActiveProcessors() {
+			return activeProcessors;
+		}
+
+		/**
+		 * Get the backup processors
+		 * @return	an unmodifiable list
+		 */
+		public List<P> getBackupProcessors() {
+			return backupProcessors;
+		}
+	}
+
 	
 	/**
 	 * Constructor
@@ -71,19 +112,44 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 			throw new IllegalArgumentException("Number of buckets should be greater than at least ten times the number of active processors");
 		}
 
-		this.activeProcessors = new LinkedList<>(activeProcessors);
-		this.backupProcessors = new LinkedList<>(backupProcessors == null? Collections.emptyList() : backupProcessors);
+		List<P> active = new ArrayList<>(activeProcessors);
+		List<P> backup = new ArrayList<>(backupProcessors == null? Collections.emptyList() : backupProcessors);
+		Object[] processorMap = new Object[buckets];
 		this.fallback = fallback;
-		this.processorMap = new Object[buckets];
 		this.hashFunction = hashFunction;
 		this.dispatcher = dispatcher;
 		this.statistics = statistics;
 		this.monitor = monitor;
 		
-		int numActiveProcessors = activeProcessors.size();
+		int numActiveProcessors = active.size();
 		for (int i = 0; i < processorMap.length; i ++){
-			processorMap[i] = this.activeProcessors.get(i % numActiveProcessors);
+			processorMap[i] = active.get(i % numActiveProcessors);
 		}
+		this.routing = new Routing<>(processorMap, active, backup);
+	}
+	
+	/**
+	 * Get current routing snapshot
+	 * @return	the routing snapshot which is immutable
+	 */
+	public Routing<P> getRouting(){
+		return routing;
+	}
+	
+	/**
+	 * Get the active processors
+	 * @return	an unmodifiable list
+	 */
+	public List<P> getActiveProcessors(){
+		return routing.activeProcessors;
+	}
+	
+	/**
+	 * Get the backup processors
+	 * @return	an unmodifiable list
+	 */
+	public List<P> getBackupProcessors(){
+		return routing.backupProcessors;
 	}
 	
 	/* (non-Javadoc)
@@ -91,9 +157,16 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void increaseLoad(P processor, float percentageDelta){
-		if (activeProcessors.size() < 2){
+		Routing<P> r = routing;
+		if (r.activeProcessors.size() < 2){
 			return;
 		}
+		Object[] processorMap = r.processorMap.clone();
+		increaseLoad(processorMap, processor, percentageDelta);
+		routing = new Routing<>(processorMap, r.activeProcessors, r.backupProcessors);
+	}
+	
+	protected void increaseLoad(Object[] processorMap, P processor, float percentageDelta){
 		int buckets = (int)(percentageDelta * processorMap.length);
 		if (buckets < 1){
 			return;
@@ -116,27 +189,31 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void decreaseLoad(P processor, float percentageDelta){
-		if (activeProcessors.size() < 2){
+		Routing<P> r = routing;
+		if (r.activeProcessors.size() < 2){
 			return;
 		}
-		int buckets = (int)(percentageDelta * processorMap.length);
+		int buckets = (int)(percentageDelta * r.processorMap.length);
 		if (buckets < 1){
 			return;
 		}
 		
-		List<P> otherProcessors = new ArrayList<>(activeProcessors);
+		Object[] processorMap = r.processorMap.clone();
+		List<P> otherProcessors = new ArrayList<>(r.activeProcessors);
 		otherProcessors.remove(processor);
 		for (int i = 0; i < buckets; i ++){	
 			int j = random.nextInt(processorMap.length);
 			for (int k = 0; processorMap[j] != processor; k ++){
 				j = (j+1) % processorMap.length;
 				if (k > processorMap.length){
+					routing = new Routing<>(processorMap, r.activeProcessors, r.backupProcessors);
 					return;		// no more
 				}
 			}
 			P anotherProcessor = otherProcessors.get(i % otherProcessors.size());
 			processorMap[j] = anotherProcessor;
 		}
+		routing = new Routing<>(processorMap, r.activeProcessors, r.backupProcessors);
 	}
 	
 	/* (non-Javadoc)
@@ -144,18 +221,16 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void add(P processor){
+		Routing<P> r = routing;
+		Object[] processorMap = r.processorMap.clone();
+		List<P> activeProcessors = new ArrayList<>(r.activeProcessors);
+		add(processorMap, activeProcessors, processor);
+		routing = new Routing<>(processorMap, activeProcessors, r.backupProcessors);
+	}
+	
+	protected void add(Object[] processorMap, List<P> activeProcessors, P processor){
 		activeProcessors.add(processor);
-		Random random = new Random(System.currentTimeMillis());
-		for (int i = 0; i < processorMap.length/activeProcessors.size(); i ++){
-			int j = random.nextInt(processorMap.length);
-			for (int k = 0; processorMap[j] == processor; k ++){
-				j = (j+1) % processorMap.length;
-				if (k > processorMap.length){
-					return;		// no more
-				}
-			}
-			processorMap[j] = processor;
-		}
+		increaseLoad(processorMap, processor, 1.0f/activeProcessors.size());
 	}
 	
 	/* (non-Javadoc)
@@ -163,6 +238,14 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void remove(P processor){
+		Routing<P> r = routing;
+		Object[] processorMap = r.processorMap.clone();
+		List<P> activeProcessors = new ArrayList<>(r.activeProcessors);
+		remove(processorMap, activeProcessors, processor);
+		routing = new Routing<>(processorMap, activeProcessors, r.backupProcessors);
+	}
+	
+	protected void remove(Object[] processorMap, List<P> activeProcessors, P processor){
 		activeProcessors.remove(processor);
 		int numActiveProcessors = activeProcessors.size();
 		for (int i = 0, j = 0; i < processorMap.length; i ++){
@@ -177,7 +260,10 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void addBackup(P processor){
+		Routing<P> r = routing;
+		List<P> backupProcessors = new ArrayList<>(r.backupProcessors);
 		backupProcessors.add(processor);
+		routing = new Routing<>(r.processorMap, r.activeProcessors, backupProcessors);
 	}
 	
 	/* (non-Javadoc)
@@ -185,7 +271,10 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void removeBackup(P processor){
+		Routing<P> r = routing;
+		List<P> backupProcessors = new ArrayList<>(r.backupProcessors);
 		backupProcessors.remove(processor);
+		routing = new Routing<>(r.processorMap, r.activeProcessors, backupProcessors);
 	}
 
 	/* (non-Javadoc)
@@ -193,8 +282,13 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void promote(P processor){
-		removeBackup(processor);
-		add(processor);
+		Routing<P> r = routing;
+		Object[] processorMap = r.processorMap.clone();
+		List<P> activeProcessors = new ArrayList<>(r.activeProcessors);
+		List<P> backupProcessors = new ArrayList<>(r.backupProcessors);
+		backupProcessors.remove(processor);
+		add(processorMap, activeProcessors, processor);
+		routing = new Routing<>(processorMap, activeProcessors, backupProcessors);
 	}
 	
 	/* (non-Javadoc)
@@ -202,23 +296,37 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void demote(P processor){
-		remove(processor);
-		addBackup(processor);
+		Routing<P> r = routing;
+		Object[] processorMap = r.processorMap.clone();
+		List<P> activeProcessors = new ArrayList<>(r.activeProcessors);
+		List<P> backupProcessors = new ArrayList<>(r.backupProcessors);
+		remove(processorMap, activeProcessors, processor);
+		backupProcessors.add(processor);
+		routing = new Routing<>(processorMap, activeProcessors, backupProcessors);
 	}
 	
-	/* (non-Javadoc)
-	 * @see net.sf.jabb.util.parallel.LoadBalancer#replace(P, P)
+	/**
+	 * Replace an active processor with a new one. The new processor takes over all the load of the replaced one,
+	 * and it will be in the list of active processors in place of the replaced one,
+	 * so that it can be demoted, replaced again, or have its load adjusted later.
+	 * @param processor		the processor to be replaced
+	 * @param newProcessor	the new processor
 	 */
 	@Override
 	synchronized public void replace(P processor, P newProcessor){
+		Routing<P> r = routing;
+		List<P> activeProcessors = new ArrayList<>(r.activeProcessors);
 		if (!activeProcessors.remove(processor)){
 			throw new IllegalArgumentException("The processor to be replaced cannot be found: " + processor);
 		}
+		activeProcessors.add(newProcessor);
+		Object[] processorMap = r.processorMap.clone();
 		for (int i = 0; i < processorMap.length; i ++){
 			if (processor.equals(processorMap[i])){
 				processorMap[i] = newProcessor;
 			}
 		}
+		routing = new Routing<>(processorMap, activeProcessors, r.backupProcessors);
 	}
 	
 	/* (non-Javadoc)
@@ -226,61 +334,29 @@ public class BasicLoadBalancer<L, R, P> implements LoadBalancer<L, R, P> {
 	 */
 	@Override
 	synchronized public void replaceBackup(P processor, P newProcessor){
+		Routing<P> r = routing;
+		List<P> backupProcessors = new ArrayList<>(r.backupProcessors);
 		if (!backupProcessors.remove(processor)){
 			throw new IllegalArgumentException("The processor to be replaced cannot be found: " + processor);
 		}
 		backupProcessors.add(newProcessor);
+		routing = new Routing<>(r.processorMap, r.activeProcessors, backupProcessors);
 	}
 	
-	@SuppressWarnings("unchecked")
+	@Override
 	protected P chooseProcessor(L load){
-		int hash = 0x7fffffff & hashFunction.applyAsInt(load);
-		P[] processors = (P[])processorMap;
-		return processors[hash % processors.length];
+		return processorOf(routing.processorMap, hashFunction.applyAsInt(load));		// the only volatile read
 	}
 	
-	/* (non-Javadoc)
-	 * @see net.sf.jabb.util.parallel.Dispatcher#dispatch(L)
+	/**
+	 * Find the processor of the bucket that a hash code falls in
+	 * @param processorMap	the processor map
+	 * @param hash	the hash code, it can be negative
+	 * @return	the processor
 	 */
-	@Override
-	public R dispatch(L load){
-		long startTime = System.currentTimeMillis();
-		boolean successful = false;
-		Integer exceptionType = null;
-		P processor = null;
-		try{
-			processor = chooseProcessor(load);
-			R result = dispatcher.apply(processor, load);
-			successful = true;
-			return result;
-		}catch(DispatchingException e){
-			exceptionType = e.getType();
-			if (fallback != null){
-				try{
-					fallback.accept(load);
-				}catch(Exception fe){
-					// ignore
-					fe.printStackTrace();
-				}
-			}
-			throw e;
-		}finally{
-			if (statistics != null){
-				try{
-					statistics.accept(new DispatchingStatistics<L, P>(load, processor, System.currentTimeMillis() - startTime, successful, exceptionType));
-				}catch(Exception se){
-					// ignore
-					se.printStackTrace();
-				}
-			}
-			if (monitor != null){
-				try{
-					monitor.accept(load);
-				}catch(Exception me){
-					// ignore
-					me.printStackTrace();
-				}
-			}
-		}
+	@SuppressWarnings("unchecked")
+	static protected <P> P processorOf(Object[] processorMap, int hash){
+		return (P)processorMap[(0x7fffffff & hash) % processorMap.length];
 	}
+	
 }
@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A pipeline stage that groups inputs into micro batches.
+ * A batch is processed when it reaches the maximum size, or when the maximum delay has passed since its first input was taken from the queue.
+ * The function of the stage receives a batch of inputs and must return a list of outputs of the same size and in the same order,
+ * each output is then fed to the downstream pipeline individually.
+ * @author James Hu
+ *
+ * @param <I>	type of the input
+ * @param <OI>	type of the output of this stage which is also the input of the downstream
+ * @param <O>	type of the final output
+ */
+class BatchingStage<I, OI, O> {
+	protected BlockingQueue<Entry<I, O>> queue;
+	protected Pipeline.Backpressure backpressure;
+	protected int maxBatchSize;
+	protected long maxDelayNanos;
+	protected Function<List<I>, List<OI>> function;
+	protected Pipeline<OI, O> downstream;
+	protected PipelineStageMetrics metrics;
+	protected AtomicInteger runningWorkers = new AtomicInteger();
+	protected volatile boolean stopped;
+
+	static class Entry<I, O>{
+		final I input;
+		final long fedTime;
+		final CompletableFuture<Future<O>> future = new CompletableFuture<>();
+
+		Entry(I input, long fedTime){
+			this.input = input;
+			this.fedTime = fedTime;
+		}
+	}
+
+	/**
+	 * Constructor. The worker threads are started immediately and they keep running until they are interrupted.
+	 * Once all of them have stopped, the stage rejects inputs still in the queue and inputs fed later.
+	 * @param threads			number of threads processing batches concurrently
+	 * @param workers			the executor to run the worker threads, it must be able to run the specified number of threads concurrently
+	 * @param queueCapacity		capacity of the queue
+	 * @param backpressure		what to do when the queue is full
+	 * @param maxBatchSize		maximum number of inputs in a batch
+	 * @param maxDelayMillis	maximum time in milliseconds to wait for a batch to be filled up
+	 * @param function			the function to process a batch
+	 * @param downstream		the downstream pipeline
+	 */
+	BatchingStage(int threads, Executor workers, int queueCapacity, Pipeline.Backpressure backpressure, int maxBatchSize, long maxDelayMillis,
+			Function<List<I>, List<OI>> function, Pipeline<OI, O> downstream){
+		if (maxBatchSize < 1){
+			throw new IllegalArgumentException("Maximum batch size must be positive: " + maxBatchSize);
+		}
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.backpressure = backpressure;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		this.function = function;
+		this.downstream = downstream;
+		this.metrics = new PipelineStageMetrics(queue::size);
+		runningWorkers.set(threads);
+		for (int i = 0; i < threads; i ++){
+			try{
+				workers.execute(this::run);
+			}catch(RuntimeException e){
+				stopWorker();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Put an input into the queue. 
+	 * If the backpressure option is BLOCK and the queue is full, the calling thread waits until there is room in the queue
+	 * or the worker threads have all stopped.
+	 * @param input	the input
+	 * @return	future of the final result
+	 * @throws RejectedExecutionException if the input was dropped because the queue was full, or the worker threads have all stopped
+	 */
+	Future<O> feed(I input){
+		Entry<I, O> entry = new Entry<>(input, System.nanoTime());
+		if (backpressure == Pipeline.Backpressure.BLOCK){
+			boolean interrupted = false;
+			try{
+				while(true){
+					if (stopped){
+						metrics.recordRejected();
+						throw new RejectedExecutionException("Worker threads of the batching stage have stopped, input rejected: " + input);
+					}
+					try{
+						if (queue.offer(entry, RecursivePipelineImpl.BLOCKING_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)){
+							break;
+						}
+					}catch(InterruptedException e){
+						interrupted = true;
+					}
+				}
+			}finally{
+				if (interrupted){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}else if (stopped){
+			metrics.recordRejected();
+			throw new RejectedExecutionException("Worker threads of the batching stage have stopped, input rejected: " + input);
+		}else if (!queue.offer(entry)){
+			metrics.recordRejected();
+			throw new RejectedExecutionException("Queue of the batching stage is full, input dropped: " + input);
+		}
+		metrics.recordSubmitted();
+		if (stopped){		// the workers stopped after the input was put into the queue
+			rejectQueued();
+		}
+		return RecursivePipelineImpl.flatten(entry.future);
+	}
+
+	protected void run(){
+		try{
+			runBatches();
+		}finally{
+			stopWorker();
+		}
+	}
+	
+	protected void stopWorker(){
+		if (runningWorkers.decrementAndGet() <= 0){
+			stopped = true;
+			rejectQueued();
+		}
+	}
+	
+	protected void rejectQueued(){
+		Entry<I, O> entry;
+		while((entry = queue.poll()) != null){
+			metrics.recordFailed(System.nanoTime() - entry.fedTime);
+			entry.future.completeExceptionally(new RejectedExecutionException("Worker threads of the batching stage have stopped, input rejected: " + entry.input));
+		}
+	}
+
+	protected void runBatches(){
+		List<Entry<I, O>> batch = new ArrayList<>(maxBatchSize);
+		while(!Thread.currentThread().isInterrupted()){
+			try{
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while(batch.size() < maxBatchSize){
+					queue.drainTo(batch, maxBatchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= maxBatchSize || remaining <= 0){
+						break;
+					}
+					Entry<I, O> entry = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (entry == null){
+						break;
+					}
+					batch.add(entry);
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();		// process what has been taken and then exit
+			}
+			if (batch.size() > 0){
+				process(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	protected void process(List<Entry<I, O>> batch){
+		batch.removeIf(entry -> entry.future.isCancelled());
+		if (batch.isEmpty()){
+			return;
+		}
+		List<I> inputs = new ArrayList<>(batch.size());
+		for (Entry<I, O> entry: batch){
+			inputs.add(entry.input);
+		}
+		long start = System.nanoTime();
+		List<OI> outputs;
+		try{
+			outputs = function.apply(inputs);
+			if (outputs == null || outputs.size() != inputs.size()){
+				throw new IllegalStateException("Number of outputs (" + (outputs == null ? null : outputs.size()) + ") does not match the number of inputs (" + inputs.size() + ")");
+			}
+		}catch(Throwable t){
+			long now = System.nanoTime();
+			metrics.recordProcessing(now - start);
+			for (Entry<I, O> entry: batch){
+				metrics.recordFailed(now - entry.fedTime);
+				entry.future.completeExceptionally(t);
+			}
+			return;
+		}
+		long now = System.nanoTime();
+		metrics.recordProcessing(now - start);
+		for (int i = 0; i < batch.size(); i ++){
+			Entry<I, O> entry = batch.get(i);
+			Future<O> future;
+			try{
+				future = downstream.feed(outputs.get(i));
+			}catch(Throwable t){
+				metrics.recordFailed(now - entry.fedTime);
+				entry.future.completeExceptionally(t);
+				continue;
+			}
+			metrics.recordCompleted(now - entry.fedTime);
+			entry.future.complete(future);
+		}
+	}
+
+}
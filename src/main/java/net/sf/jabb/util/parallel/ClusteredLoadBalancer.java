@@ -3,17 +3,31 @@
  */
 package net.sf.jabb.util.parallel;
 
+import static net.sf.jabb.util.codec.VarIntUtility.readVarLong;
+import static net.sf.jabb.util.codec.VarIntUtility.writeVarLong;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.ToIntFunction;
 
+import org.jgroups.Address;
 import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.ReceiverAdapter;
@@ -27,12 +41,33 @@ import com.google.common.base.Throwables;
 /**
  * Load balancer clustered using jgroups for dispatching work loads to networked processing nodes.
  * Changes made to one instance will be propagated to all the member instances in the cluster.
+ *
+ * <p>Each change is propagated as a compact binary delta which contains only the changed buckets
+ * (as gap encoded bucket indexes) and the changed processor lists, with processors referenced through
+ * a small per-message dictionary so that every processor is serialized at most once.
+ * Every change increases the version of the state. A member applies a delta only when it is based on
+ * the version it currently has, otherwise it asks the sender for the full state, which is also what
+ * a newly joined member does with the coordinator.</p>
+ *
+ * <p>Versions are not coordinated across members, so changes should be made through one member at a time.
+ * If changes need to be made concurrently through different members, a total order protocol such as SEQUENCER
+ * should be included in the protocol stack of the channel.</p>
  * @author James Hu
  *
  */
 public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLoadBalancer<L, R, P> {
 	private static final Logger logger = LoggerFactory.getLogger(ClusteredLoadBalancer.class);
+	static protected final byte MAGIC = (byte)0xCB;		// never used as the type marker by Util.objectToByteBuffer(...)
+	static protected final byte TYPE_DELTA = 1;
+	static protected final byte TYPE_FULL = 2;
+	static protected final byte TYPE_STATE_REQUEST = 3;
+	static protected final int FLAG_ACTIVE_PROCESSORS = 1;
+	static protected final int FLAG_BACKUP_PROCESSORS = 2;
+	
 	protected JChannel channel;
+	protected long version;
+	protected Queue<byte[]> outgoingDeltas = new ConcurrentLinkedQueue<>();
+	protected Object sendLock = new Object();
 	
 	
 	/**
@@ -73,6 +108,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 			logger.error("Unable to connect to cluster '{}' through channel: {}", clusterName, channel, e);
 			Throwables.propagate(e);
 		}
+		View view = channel.getView();
+		if (view != null && view.size() > 1){
+			Address coordinator = view.getMembers().get(0);
+			if (!coordinator.equals(channel.getAddress())){
+				requestState(coordinator);
+			}
+		}
 	}
 	
 	public View getClusterView(){
@@ -84,22 +126,24 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 		channel.close();
 	}
 	
+	/**
+	 * Apply the state received from other members. Parts that are null in the state data are kept unchanged.
+	 * The new state is published as a whole so that dispatching always sees a consistent snapshot.
+	 * @param stateData	the state data
+	 */
 	synchronized protected void setState(StateData<P> stateData){
-		if (stateData.getProcessorMap() != null){
-			this.processorMap = stateData.getProcessorMap();
-		}
-		if (stateData.getActiveProcessors() != null){
-			this.activeProcessors = stateData.getActiveProcessors();
-		}
-		if (stateData.getBackupProcessors() != null){
-			this.backupProcessors = stateData.getBackupProcessors();
-		}
+		Routing<P> r = routing;
+		Object[] processorMap = stateData.getProcessorMap() == null ? r.getProcessorMap() : stateData.getProcessorMap();
+		List<P> activeProcessors = stateData.getActiveProcessors() == null ? r.getActiveProcessors() : new ArrayList<>(stateData.getActiveProcessors());
+		List<P> backupProcessors = stateData.getBackupProcessors() == null ? r.getBackupProcessors() : new ArrayList<>(stateData.getBackupProcessors());
+		routing = new Routing<>(processorMap, activeProcessors, backupProcessors);
 	}
 	
 	synchronized protected StateData<P> getState(boolean withProcessorMap, boolean withActiveProcessors, boolean withBackupProcessors){
-		return new StateData<P>(withProcessorMap ? null : processorMap, 
-				withActiveProcessors ? null : activeProcessors, 
-				withBackupProcessors ? null : backupProcessors);
+		Routing<P> r = routing;
+		return new StateData<P>(withProcessorMap ? r.getProcessorMap() : null, 
+				withActiveProcessors ? new ArrayList<>(r.getActiveProcessors()) : null, 
+				withBackupProcessors ? new ArrayList<>(r.getBackupProcessors()) : null);
 	}
 	
 	synchronized protected StateData<P> getState(){
@@ -107,31 +151,252 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	}
 	
 	/**
-	 * Propagate state to other members in the cluster
-	 * @param withProcessorMap		whether to propagate processorMap
-	 * @param withActiveProcessors	whether to propagate activeProcessors
-	 * @param withBackupProcessors	whether to propagate backupProcessors
+	 * Get the version of the state. It is increased by one for each change.
+	 * @return	the version
 	 */
-	protected void propagateState(boolean withProcessorMap, boolean withActiveProcessors, boolean withBackupProcessors){
+	synchronized public long getVersion(){
+		return version;
+	}
+	
+	/**
+	 * Increase the version and queue the changes between two snapshots as a delta to be sent by {@link #sendChanges()}.
+	 * Nothing will be queued if there is no change.
+	 * It must be called while holding the lock of this instance, so that deltas are queued in the order of versions.
+	 * @param before	the snapshot before the change
+	 */
+	protected void queueChanges(Routing<P> before){
+		Routing<P> after = routing;
+		if (after == before){
+			return;
+		}
+		long baseVersion = version ++;
 		try {
-			channel.send(null, getState(withProcessorMap, withActiveProcessors, withBackupProcessors));
+			outgoingDeltas.add(encodeState(TYPE_DELTA, baseVersion, version, before, after));
 		} catch (Exception e) {
-			logger.error("Unable to propagate state through channel: {}", channel, e);
+			logger.error("Unable to encode changes between version {} and {}", baseVersion, version, e);		// other members will request full state
 		}
 	}
 	
 	/**
-	 * Propagate full state to other members in the cluster
+	 * Send the queued deltas to other members in the cluster in the order they were queued.
+	 * It should be called without holding the lock of this instance, so that a slow channel does not block changes and dispatching.
 	 */
-	protected void propagateState(){
-		propagateState(true, true, true);
+	protected void sendChanges(){
+		synchronized(sendLock){
+			byte[] delta;
+			while((delta = outgoingDeltas.poll()) != null){
+				try {
+					channel.send(null, delta);
+				} catch (Exception e) {
+					logger.error("Unable to propagate changes through channel: {}", channel, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Ask a member to send its full state in compact form
+	 * @param member	the member
+	 */
+	protected void requestState(Address member){
+		try {
+			channel.send(member, new byte[]{MAGIC, TYPE_STATE_REQUEST});
+		} catch (Exception e) {
+			logger.error("Unable to request state from {} through channel: {}", member, channel, e);
+		}
+	}
+	
+	/**
+	 * Get the full state in compact form
+	 * @return	the encoded full state
+	 * @throws Exception	if any processor cannot be serialized
+	 */
+	synchronized protected byte[] getCompactState() throws Exception{
+		return encodeState(TYPE_FULL, version, version, null, routing);
+	}
+	
+	/**
+	 * Encode the state or the changes of the state
+	 * @param type			TYPE_DELTA or TYPE_FULL
+	 * @param baseVersion	the version that the delta is based on
+	 * @param newVersion	the version after the changes
+	 * @param before		the snapshot before the changes, null for full state
+	 * @param after			the snapshot after the changes
+	 * @return	the encoded message
+	 * @throws Exception	if any processor cannot be serialized
+	 */
+	protected byte[] encodeState(byte type, long baseVersion, long newVersion, Routing<P> before, Routing<P> after) throws Exception{
+		Map<Object, Integer> dictionary = new LinkedHashMap<>();
+		int flags = 0;
+		if (before == null || !before.activeProcessors.equals(after.activeProcessors)){
+			flags |= FLAG_ACTIVE_PROCESSORS;
+			addToDictionary(dictionary, after.activeProcessors);
+		}
+		if (before == null || !before.backupProcessors.equals(after.backupProcessors)){
+			flags |= FLAG_BACKUP_PROCESSORS;
+			addToDictionary(dictionary, after.backupProcessors);
+		}
+		Object[] processorMap = after.processorMap;
+		int changedBuckets = 0;
+		if (before == null){
+			changedBuckets = processorMap.length;
+			for (Object p: processorMap){
+				dictionary.putIfAbsent(p, dictionary.size());
+			}
+		}else if (before.processorMap != processorMap){
+			for (int i = 0; i < processorMap.length; i ++){
+				if (!processorMap[i].equals(before.processorMap[i])){
+					changedBuckets ++;
+					dictionary.putIfAbsent(processorMap[i], dictionary.size());
+				}
+			}
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC);
+		out.writeByte(type);
+		writeVarLong(out, baseVersion);
+		writeVarLong(out, newVersion);
+		writeVarLong(out, dictionary.size());
+		for (Object p: dictionary.keySet()){
+			byte[] serialized = Util.objectToByteBuffer(p);
+			writeVarLong(out, serialized.length);
+			out.write(serialized);
+		}
+		out.writeByte(flags);
+		if ((flags & FLAG_ACTIVE_PROCESSORS) != 0){
+			writeProcessors(out, dictionary, after.activeProcessors);
+		}
+		if ((flags & FLAG_BACKUP_PROCESSORS) != 0){
+			writeProcessors(out, dictionary, after.backupProcessors);
+		}
+		writeVarLong(out, changedBuckets);
+		if (before == null){
+			for (Object p: processorMap){
+				writeVarLong(out, dictionary.get(p));
+			}
+		}else if (changedBuckets > 0){
+			int previous = -1;
+			for (int i = 0; i < processorMap.length; i ++){
+				if (!processorMap[i].equals(before.processorMap[i])){
+					writeVarLong(out, i - previous - 1);
+					writeVarLong(out, dictionary.get(processorMap[i]));
+					previous = i;
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Process a message in compact form received from another member
+	 * @param sender	the member sent the message
+	 * @param buffer	the message
+	 * @throws Exception	if the message cannot be decoded
+	 */
+	protected void receiveCompact(Address sender, byte[] buffer) throws Exception{
+		byte type = buffer[1];
+		if (type == TYPE_STATE_REQUEST){
+			channel.send(sender, getCompactState());
+		}else if (type == TYPE_DELTA || type == TYPE_FULL){
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 2, buffer.length - 2));
+			if (!applyCompactState(type == TYPE_FULL, in)){
+				requestState(sender);
+			}
+		}else{
+			logger.warn("Ignored message of unknown type {} from {}", type, sender);
+		}
+	}
+	
+	/**
+	 * Apply the state or the changes of the state in compact form.
+	 * Stale states and deltas are ignored.
+	 * @param full	true if it is the full state, false if it is a delta
+	 * @param in	input of the encoded message following the message type
+	 * @return	false if the delta cannot be applied because it is not based on current version, true otherwise
+	 * @throws Exception	if the message cannot be decoded
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized protected boolean applyCompactState(boolean full, DataInput in) throws Exception{
+		long baseVersion = readVarLong(in);
+		long newVersion = readVarLong(in);
+		if (full ? newVersion < version : newVersion <= version){
+			return true;
+		}
+		if (!full && baseVersion != version){
+			logger.debug("Missed changes between version {} and {}, full state will be requested", version, baseVersion);
+			return false;
+		}
+		
+		Object[] dictionary = new Object[(int)readVarLong(in)];
+		for (int i = 0; i < dictionary.length; i ++){
+			byte[] serialized = new byte[(int)readVarLong(in)];
+			in.readFully(serialized);
+			dictionary[i] = Util.objectFromByteBuffer(serialized);
+		}
+		Routing<P> r = routing;
+		int flags = in.readByte();
+		List<P> activeProcessors = (flags & FLAG_ACTIVE_PROCESSORS) != 0 ? (List<P>) (List<?>) readProcessors(in, dictionary) : r.activeProcessors;
+		List<P> backupProcessors = (flags & FLAG_BACKUP_PROCESSORS) != 0 ? (List<P>) (List<?>) readProcessors(in, dictionary) : r.backupProcessors;
+		int changedBuckets = (int)readVarLong(in);
+		Object[] processorMap = r.processorMap;
+		if (full){
+			processorMap = new Object[changedBuckets];
+			for (int i = 0; i < changedBuckets; i ++){
+				processorMap[i] = dictionary[(int)readVarLong(in)];
+			}
+		}else if (changedBuckets > 0){
+			processorMap = processorMap.clone();
+			int i = -1;
+			for (int j = 0; j < changedBuckets; j ++){
+				i += (int)readVarLong(in) + 1;
+				if (i >= processorMap.length){
+					logger.warn("Bucket {} in the delta is out of range, full state will be requested", i);
+					return false;
+				}
+				processorMap[i] = dictionary[(int)readVarLong(in)];
+			}
+		}
+		routing = new Routing<>(processorMap, activeProcessors, backupProcessors);
+		version = newVersion;
+		return true;
+	}
+	
+	static protected void addToDictionary(Map<Object, Integer> dictionary, List<?> processors){
+		for (Object p: processors){
+			dictionary.putIfAbsent(p, dictionary.size());
+		}
+	}
+	
+	static protected void writeProcessors(DataOutput out, Map<Object, Integer> dictionary, List<?> processors) throws IOException{
+		writeVarLong(out, processors.size());
+		for (Object p: processors){
+			writeVarLong(out, dictionary.get(p));
+		}
+	}
+	
+	static protected List<Object> readProcessors(DataInput in, Object[] dictionary) throws IOException{
+		int size = (int)readVarLong(in);
+		List<Object> processors = new ArrayList<>(size);
+		for (int i = 0; i < size; i ++){
+			processors.add(dictionary[(int)readVarLong(in)]);
+		}
+		return processors;
 	}
-
 	
 	protected class Receiver extends ReceiverAdapter{
 		@Override
 		public void receive(Message msg){
 			try {
+				byte[] buffer = msg.getBuffer();
+				if (buffer != null && buffer.length > 1 && buffer[0] == MAGIC){
+					if (!msg.getSrc().equals(channel.getAddress())){	// changes made locally have already been applied
+						receiveCompact(msg.getSrc(), buffer);
+					}
+					return;
+				}
 				Object payload = Util.objectFromByteBuffer(msg.getBuffer());
 				if (payload instanceof StateData){
 					@SuppressWarnings("unchecked")
@@ -216,9 +481,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param percentageDelta	the percentage of load in total that will be increased
 	 */
 	@Override
-	synchronized public void increaseLoad(P processor, float percentageDelta){
-		super.increaseLoad(processor, percentageDelta);
-		propagateState(true, false, false);
+	public void increaseLoad(P processor, float percentageDelta){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.increaseLoad(processor, percentageDelta);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -227,9 +496,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param percentageDelta	the percentage of load in total that will be decreased
 	 */
 	@Override
-	synchronized public void decreaseLoad(P processor, float percentageDelta){
-		super.decreaseLoad(processor, percentageDelta);
-		propagateState(true, false, false);
+	public void decreaseLoad(P processor, float percentageDelta){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.decreaseLoad(processor, percentageDelta);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -237,9 +510,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor	the processor
 	 */
 	@Override
-	synchronized public void add(P processor){
-		super.add(processor);
-		propagateState(true, true, false);
+	public void add(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.add(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -247,9 +524,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor	the processor
 	 */
 	@Override
-	synchronized public void remove(P processor){
-		super.remove(processor);
-		propagateState(true, true, false);
+	public void remove(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.remove(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 
 	/**
@@ -257,9 +538,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor	the backup processor
 	 */
 	@Override
-	synchronized public void addBackup(P processor){
-		super.addBackup(processor);
-		propagateState(false, false, true);
+	public void addBackup(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.addBackup(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -267,9 +552,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor	the backup processor
 	 */
 	@Override
-	synchronized public void removeBackup(P processor){
-		super.removeBackup(processor);
-		propagateState(false, false, true);
+	public void removeBackup(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.removeBackup(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 
 	/**
@@ -277,9 +566,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor		the backup processor
 	 */
 	@Override
-	synchronized public void promote(P processor){
-		super.promote(processor);
-		propagateState();
+	public void promote(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.promote(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -287,9 +580,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param processor	the active processor
 	 */
 	@Override
-	synchronized public void demote(P processor){
-		super.demote(processor);
-		propagateState();
+	public void demote(P processor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.demote(processor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -298,9 +595,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param newProcessor	the new processor
 	 */
 	@Override
-	synchronized public void replace(P processor, P newProcessor){
-		super.replace(processor, newProcessor);
-		propagateState(true, true, false);
+	public void replace(P processor, P newProcessor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.replace(processor, newProcessor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 	/**
@@ -309,9 +610,13 @@ public class ClusteredLoadBalancer<L, R, P extends Serializable> extends BasicLo
 	 * @param newProcessor	the new processor
 	 */
 	@Override
-	synchronized public void replaceBackup(P processor, P newProcessor){
-		super.replaceBackup(processor, newProcessor);
-		propagateState(false, false, true);
+	public void replaceBackup(P processor, P newProcessor){
+		synchronized(this){
+			Routing<P> before = routing;
+			super.replaceBackup(processor, newProcessor);
+			queueChanges(before);
+		}
+		sendChanges();
 	}
 	
 
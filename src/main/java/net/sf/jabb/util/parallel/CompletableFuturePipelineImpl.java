@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Pipeline implementation that chains the stages with {@link CompletableFuture#thenApplyAsync(Function, Executor)}.
+ * Unlike {@link RecursivePipelineImpl}, it is built in natural order - from the first stage to the last stage,
+ * no thread is blocked waiting for the result of a downstream stage, and there is no future of future per stage.
+ *
+ * <p>The future returned by {@link #feed(Object)} is a {@link CompletableFuture} which is also a {@link java.util.concurrent.CompletionStage},
+ * so completion callbacks can be attached to it without blocking. Cancelling it cancels the stages that have not started,
+ * so the remaining stages will be skipped. A stage that is already running will not be interrupted.</p>
+ *
+ * @author James Hu
+ *
+ * @param <I>	type of input
+ * @param <O>	type of output
+ */
+public class CompletableFuturePipelineImpl<I, O> implements Pipeline<I, O>{
+	BiFunction<CompletableFuture<I>, List<CompletableFuture<?>>, CompletableFuture<O>> chain;
+	int numberOfStages;
+
+	private CompletableFuturePipelineImpl(BiFunction<CompletableFuture<I>, List<CompletableFuture<?>>, CompletableFuture<O>> chain, int numberOfStages){
+		this.chain = chain;
+		this.numberOfStages = numberOfStages;
+	}
+
+	/**
+	 * Start building a pipeline. Usage example: <code>CompletableFuturePipelineImpl.&lt;String&gt;start()</code>
+	 * @param <I> type of the input
+	 * @return	a pipeline without any stage, that you can append stages
+	 */
+	public static <I> CompletableFuturePipelineImpl<I, I> start(){
+		return new CompletableFuturePipelineImpl<I, I>((head, stages) -> head, 0);
+	}
+
+	/**
+	 * Append a stage to the pipeline
+	 * @param executor		the executor for the processing in the appended stage
+	 * @param function		the function to be applied in the appended stage
+	 * @param <O2> type of the new output
+	 * @return		the new pipeline with the stage appended
+	 */
+	public <O2> CompletableFuturePipelineImpl<I, O2> append(Executor executor, Function<O, O2> function){
+		BiFunction<CompletableFuture<I>, List<CompletableFuture<?>>, CompletableFuture<O>> upstream = this.chain;
+		return new CompletableFuturePipelineImpl<I, O2>((head, stages) -> {
+			CompletableFuture<O2> stage = upstream.apply(head, stages).thenApplyAsync(function, executor);
+			stages.add(stage);
+			return stage;
+		}, numberOfStages + 1);
+	}
+
+	/**
+	 * Append a stage to the pipeline. A new thread pool will be created and that thread pool will only be eligible for
+	 * garbage collection when the pipleline itself is eligible for garbage collection.
+	 * @param fixedThreadPoolSize		the thread pool size of a fixed size thread pool which will be used for the processing in the appended stage
+	 * @param function		the function to be applied in the appended stage
+	 * @param <O2> type of the new output
+	 * @return		the new pipeline with the stage appended
+	 */
+	public <O2> CompletableFuturePipelineImpl<I, O2> append(int fixedThreadPoolSize, Function<O, O2> function){
+		return append(Executors.newFixedThreadPool(fixedThreadPoolSize), function);
+	}
+
+	/**
+	 * Specify a collection that all the final output will be put into.
+	 * The output is added by the thread of the last stage.
+	 * @param outputCollection	the collection that will be used to hold all the output.
+	 * @return	the new pipeline that puts the output into the collection
+	 */
+	public CompletableFuturePipelineImpl<I, O> outputTo(Collection<O> outputCollection){
+		BiFunction<CompletableFuture<I>, List<CompletableFuture<?>>, CompletableFuture<O>> upstream = this.chain;
+		return new CompletableFuturePipelineImpl<I, O>((head, stages) -> upstream.apply(head, stages).thenApply(output -> {
+			outputCollection.add(output);
+			return output;
+		}), numberOfStages);
+	}
+
+	/**
+	 * Specify another pipeline that all the final output from this pipleline will be fed to.
+	 * @param downstreamPipeline	another pipeline
+	 * @param <O2> type of the output of the downstream pipeline
+	 * @return	the new pipeline that feeds the output into the downstream pipeline
+	 */
+	public <O2> CompletableFuturePipelineImpl<I, Pipeline.IntermediateOutput<O, O2>> outputTo(Pipeline<O, O2> downstreamPipeline){
+		BiFunction<CompletableFuture<I>, List<CompletableFuture<?>>, CompletableFuture<O>> upstream = this.chain;
+		return new CompletableFuturePipelineImpl<I, Pipeline.IntermediateOutput<O, O2>>((head, stages) -> upstream.apply(head, stages).thenApply(
+				output -> new Pipeline.IntermediateOutput<O, O2>(output, downstreamPipeline.feed(output))), numberOfStages);
+	}
+
+	/**
+	 * Feed an input, and get a future of the final result in return.
+	 * @param input	the input
+	 * @return	future of the final result, which can also be used as a {@link java.util.concurrent.CompletionStage}
+	 */
+	@Override
+	public CompletableFuture<O> feed(I input){
+		List<CompletableFuture<?>> stages = new ArrayList<>(numberOfStages);
+		CompletableFuture<O> tail = chain.apply(CompletableFuture.completedFuture(input), stages);
+		if (stages.isEmpty()){
+			return tail;
+		}
+		PipelineFuture<O> result = new PipelineFuture<>(stages);
+		tail.whenComplete((output, e) -> {
+			if (e == null){
+				result.complete(output);
+			}else{
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Future of the final result which cancels all the stages when it is cancelled
+	 * @param <O> type of the output
+	 */
+	static class PipelineFuture<O> extends CompletableFuture<O>{
+		List<CompletableFuture<?>> stages;
+
+		PipelineFuture(List<CompletableFuture<?>> stages){
+			this.stages = stages;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled){
+				for (CompletableFuture<?> stage: stages){
+					stage.cancel(mayInterruptIfRunning);
+				}
+			}
+			return cancelled;
+		}
+	}
+
+}
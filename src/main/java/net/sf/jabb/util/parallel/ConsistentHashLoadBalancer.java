@@ -0,0 +1,353 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Dispatcher to be used in non-clustered load balancing, backed by a consistent hashing ring with virtual nodes.
+ * Each active processor owns a number of points on the ring which is proportional to its weight,
+ * and a work load goes to the owner of the first point at or after the hash of the work load.
+ *
+ * <p>Compared to {@link BasicLoadBalancer}, adding or removing a processor only moves about 1/N of the work loads,
+ * and the moved work loads only move from/to the added/removed processor, which keeps downstream cache locality.
+ * Changing the weight of a processor, by {@link #increaseLoad(Object, float)}, {@link #decreaseLoad(Object, float)}
+ * or {@link #setWeight(Object, float)}, only moves work loads from/to that processor as well.</p>
+ *
+ * <p>Points of a processor are derived from its hashCode(), so processors should have stable hash codes.
+ * Changes are synchronized and publish a new immutable ring, dispatching does not lock. This class is thread safe.</p>
+ * @author James Hu
+ *
+ * @param <L>	type of the load
+ * @param <R>	type of the result
+ * @param <P>	type of the processor
+ */
+public class ConsistentHashLoadBalancer<L, R, P> extends AbstractLoadBalancer<L, R, P> {
+	static public final int DEFAULT_VIRTUAL_NODES = 160;
+	static public final float DEFAULT_WEIGHT = 1.0f;
+	static protected final float MAX_SHARE = 0.99f;
+
+	protected int virtualNodes;
+	protected Map<P, Float> activeProcessors;
+	protected List<P> backupProcessors;
+
+	protected volatile Ring<P> ring;
+
+	/**
+	 * Immutable consistent hashing ring
+	 */
+	static protected class Ring<P>{
+		final int[] points;		// sorted
+		final Object[] owners;
+
+		Ring(int[] points, Object[] owners){
+			this.points = points;
+			this.owners = owners;
+		}
+
+		@SuppressWarnings("unchecked")
+		P get(int hash){
+			int i = Arrays.binarySearch(points, hash);
+			if (i < 0){
+				i = -i - 1;
+				if (i == points.length){
+					i = 0;
+				}
+			}
+			return (P) owners[i];
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param activeProcessors  processors, there must not be duplicated elements
+	 * @param hashFunction	the function to create hash code for the work load dispatching
+	 * @param dispatcher	actual dispatcher
+	 */
+	public ConsistentHashLoadBalancer(Collection<P> activeProcessors, ToIntFunction<L> hashFunction, BiFunction<P, L, R> dispatcher){
+		this(DEFAULT_VIRTUAL_NODES, activeProcessors, null, null, hashFunction, dispatcher, null, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param virtualNodes	number of points on the ring for each processor with weight 1.0. Larger numbers give more even distribution. 100 to 200 is normally enough.
+	 * @param activeProcessors  processors, there must not be duplicated elements. They all have weight 1.0 initially.
+	 * @param backupProcessors	backup processors which will not be used at the beginning, there must not be duplicated elements. It can be null.
+	 * @param fallback	the fall back processor that handles all the failed-to-dispatch work loads. It can be null.
+	 * @param hashFunction	the function to create hash code for the work load dispatching
+	 * @param dispatcher	actual dispatcher
+	 * @param statistics	statistics collector. It can be null.
+	 * @param monitor		monitor that receives copies of all of the work load. It can be null.
+	 */
+	public ConsistentHashLoadBalancer(int virtualNodes, Collection<P> activeProcessors, Collection<P> backupProcessors, Consumer<L> fallback,
+			ToIntFunction<L> hashFunction, BiFunction<P, L, R> dispatcher, Consumer<DispatchingStatistics<L, P>> statistics, Consumer<L> monitor){
+		if (activeProcessors == null || activeProcessors.size() < 1){
+			throw new IllegalArgumentException("At least one processor is required");
+		}
+		if (virtualNodes < 1){
+			throw new IllegalArgumentException("Number of virtual nodes must be positive: " + virtualNodes);
+		}
+		this.virtualNodes = virtualNodes;
+		this.activeProcessors = new LinkedHashMap<>();
+		for (P p: activeProcessors){
+			this.activeProcessors.put(p, DEFAULT_WEIGHT);
+		}
+		this.backupProcessors = new LinkedList<>(backupProcessors == null? Collections.emptyList() : backupProcessors);
+		this.fallback = fallback;
+		this.hashFunction = hashFunction;
+		this.dispatcher = dispatcher;
+		this.statistics = statistics;
+		this.monitor = monitor;
+		rebuild();
+	}
+
+	/**
+	 * Rebuild the ring from the active processors and their weights, and then publish it.
+	 */
+	protected void rebuild(){
+		int total = 0;
+		for (float w: activeProcessors.values()){
+			total += numberOfPoints(w);
+		}
+		long[] entries = new long[total];	// point in the high 32 bits, index of the processor in the low 32 bits
+		Object[] processors = activeProcessors.keySet().toArray();
+		int n = 0;
+		for (int i = 0; i < processors.length; i ++){
+			int h = processors[i].hashCode();
+			for (int j = numberOfPoints(activeProcessors.get(processors[i])) - 1; j >= 0; j --){
+				entries[n++] = ((long)point(h, j) << 32) | i;
+			}
+		}
+		Arrays.sort(entries);
+
+		int[] points = new int[total];
+		Object[] owners = new Object[total];
+		for (int i = 0; i < total; i ++){
+			points[i] = (int)(entries[i] >> 32);
+			owners[i] = processors[(int)entries[i]];
+		}
+		if (total == 0){		// all weights are zero, fall back to even distribution
+			points = new int[]{0};
+			owners = new Object[]{processors[0]};
+		}
+		ring = new Ring<>(points, owners);
+	}
+
+	protected int numberOfPoints(float weight){
+		return Math.round(weight * virtualNodes);
+	}
+
+	/**
+	 * Calculate the position of a virtual node on the ring
+	 * @param processorHash	hash code of the processor
+	 * @param replica		index of the virtual node of the processor
+	 * @return	the position
+	 */
+	static protected int point(int processorHash, int replica){
+		long z = ((long)processorHash << 32) | replica;
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = z ^ (z >>> 33);
+		return (int)(z >>> 32);
+	}
+
+	@Override
+	protected P chooseProcessor(L load){
+		return ring.get(spread(hashFunction.applyAsInt(load)));
+	}
+
+	/**
+	 * Get the weight of an active processor
+	 * @param processor	the processor
+	 * @return	the weight, or null if it is not an active processor
+	 */
+	synchronized public Float getWeight(P processor){
+		return activeProcessors.get(processor);
+	}
+
+	/**
+	 * Change the weight of an active processor. Share of the work load of a processor is proportional to its weight.
+	 * @param processor	the processor
+	 * @param weight	the new weight, must not be negative
+	 */
+	synchronized public void setWeight(P processor, float weight){
+		if (weight < 0){
+			throw new IllegalArgumentException("Weight must not be negative: " + weight);
+		}
+		if (!activeProcessors.containsKey(processor)){
+			throw new IllegalArgumentException("The processor cannot be found: " + processor);
+		}
+		activeProcessors.put(processor, weight);
+		rebuild();
+	}
+
+	/**
+	 * Get the share of the work load of an active processor, based on the weights
+	 * @param processor	the processor
+	 * @return	the share between 0 and 1, 0 if the processor is not active
+	 */
+	synchronized public float getShare(P processor){
+		Float w = activeProcessors.get(processor);
+		if (w == null){
+			return 0;
+		}
+		float total = totalWeight();
+		return total == 0 ? 0 : w / total;
+	}
+
+	/**
+	 * Get the active processors
+	 * @return	a copy of the list of active processors
+	 */
+	synchronized public List<P> getActiveProcessors(){
+		return new ArrayList<>(activeProcessors.keySet());
+	}
+
+	/**
+	 * Get the backup processors
+	 * @return	a copy of the list of backup processors
+	 */
+	synchronized public List<P> getBackupProcessors(){
+		return new ArrayList<>(backupProcessors);
+	}
+
+	protected float totalWeight(){
+		float total = 0;
+		for (float w: activeProcessors.values()){
+			total += w;
+		}
+		return total;
+	}
+
+	/**
+	 * Adjust the weight of a processor so that its share becomes the target, while the weights of others stay unchanged.
+	 */
+	protected void adjustShare(P processor, float targetShare){
+		Float w = activeProcessors.get(processor);
+		if (w == null || activeProcessors.size() < 2){
+			return;
+		}
+		float othersWeight = totalWeight() - w;
+		targetShare = Math.max(0, Math.min(targetShare, MAX_SHARE));
+		activeProcessors.put(processor, targetShare * othersWeight / (1 - targetShare));
+		rebuild();
+	}
+
+	/**
+	 * Increase the load of a processor by increasing its weight.
+	 * Loads of other processors will be decreased proportionally to their weights.
+	 * @param processor	the processor
+	 * @param percentageDelta	the percentage of load in total that will be increased
+	 */
+	@Override
+	synchronized public void increaseLoad(P processor, float percentageDelta) {
+		adjustShare(processor, getShare(processor) + percentageDelta);
+	}
+
+	/**
+	 * Decrease the load of a processor by decreasing its weight.
+	 * Loads of other processors will be increased proportionally to their weights.
+	 * @param processor	the processor
+	 * @param percentageDelta	the percentage of load in total that will be decreased
+	 */
+	@Override
+	synchronized public void decreaseLoad(P processor, float percentageDelta) {
+		adjustShare(processor, getShare(processor) - percentageDelta);
+	}
+
+	/**
+	 * Add a processor with the default weight. Work load will be dispatched to the newly added processor immediately.
+	 * If the processor is already active, nothing will be changed and it keeps its current weight.
+	 * @param processor	the processor
+	 */
+	@Override
+	synchronized public void add(P processor) {
+		if (!activeProcessors.containsKey(processor)){
+			add(processor, DEFAULT_WEIGHT);
+		}
+	}
+
+	/**
+	 * Add a processor with specified weight. Work load will be dispatched to the newly added processor immediately.
+	 * If the processor is already active, its weight will be changed, and nothing will be changed if the weight is the same.
+	 * @param processor	the processor
+	 * @param weight	the weight, must not be negative
+	 */
+	synchronized public void add(P processor, float weight) {
+		if (weight < 0){
+			throw new IllegalArgumentException("Weight must not be negative: " + weight);
+		}
+		Float previous = activeProcessors.put(processor, weight);
+		if (previous == null || previous.floatValue() != weight){
+			rebuild();
+		}
+	}
+
+	@Override
+	synchronized public void remove(P processor) {
+		if (activeProcessors.containsKey(processor) && activeProcessors.size() < 2){
+			throw new IllegalStateException("The last active processor cannot be removed: " + processor);
+		}
+		if (activeProcessors.remove(processor) != null){
+			rebuild();
+		}
+	}
+
+	@Override
+	synchronized public void addBackup(P processor) {
+		backupProcessors.add(processor);
+	}
+
+	@Override
+	synchronized public void removeBackup(P processor) {
+		backupProcessors.remove(processor);
+	}
+
+	@Override
+	synchronized public void promote(P processor) {
+		removeBackup(processor);
+		add(processor);
+	}
+
+	@Override
+	synchronized public void demote(P processor) {
+		remove(processor);
+		addBackup(processor);
+	}
+
+	/**
+	 * Replace an active processor with another new processor.
+	 * The new processor takes the weight of the replaced one.
+	 * @param processor		the processor to be replaced
+	 * @param newProcessor	the new processor
+	 */
+	@Override
+	synchronized public void replace(P processor, P newProcessor) {
+		Float w = activeProcessors.remove(processor);
+		if (w == null){
+			throw new IllegalArgumentException("The processor to be replaced cannot be found: " + processor);
+		}
+		activeProcessors.put(newProcessor, w);
+		rebuild();
+	}
+
+	@Override
+	synchronized public void replaceBackup(P processor, P newProcessor) {
+		if (!backupProcessors.remove(processor)){
+			throw new IllegalArgumentException("The processor to be replaced cannot be found: " + processor);
+		}
+		backupProcessors.add(newProcessor);
+	}
+
+}
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Pipeline implementation that runs all the stages on a shared {@link ForkJoinPool}.
+ * When a stage finishes processing an input, the task for the next stage is forked onto the local deque of the same worker thread,
+ * so normally the output of a stage is consumed by the same thread while it is still in the CPU cache of that core,
+ * and idle workers steal tasks from busy ones to balance the load.
+ * It suits CPU-bound stages, and it avoids the oversubscription of having a thread pool for each stage.
+ * Stages that block, for example doing I/O, should not be run in this kind of pipeline unless the pool is sized for that.
+ *
+ * <p>It is built in natural order - from the first stage to the last stage.
+ * The future returned by {@link #feed(Object)} is a {@link CompletableFuture}, cancelling it makes the remaining stages to be skipped.</p>
+ *
+ * @author James Hu
+ *
+ * @param <I>	type of input
+ * @param <O>	type of output
+ */
+public class ForkJoinPipelineImpl<I, O> implements Pipeline<I, O>{
+	ForkJoinPool pool;
+	Function<Object, Object>[] stages;
+
+	private ForkJoinPipelineImpl(ForkJoinPool pool, Function<Object, Object>[] stages){
+		this.pool = pool;
+		this.stages = stages;
+	}
+
+	/**
+	 * Start building a pipeline that runs on the common pool. Usage example: <code>ForkJoinPipelineImpl.&lt;String&gt;start()</code>
+	 * @param <I> type of the input
+	 * @return	a pipeline without any stage, that you can append stages
+	 */
+	public static <I> ForkJoinPipelineImpl<I, I> start(){
+		return start(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Start building a pipeline that runs on the specified pool.
+	 * @param pool	the pool shared by all the stages
+	 * @param <I> type of the input
+	 * @return	a pipeline without any stage, that you can append stages
+	 */
+	@SuppressWarnings("unchecked")
+	public static <I> ForkJoinPipelineImpl<I, I> start(ForkJoinPool pool){
+		return new ForkJoinPipelineImpl<I, I>(pool, new Function[0]);
+	}
+
+	/**
+	 * Append a stage to the pipeline
+	 * @param function		the function to be applied in the appended stage
+	 * @param <O2> type of the new output
+	 * @return		the new pipeline with the stage appended
+	 */
+	@SuppressWarnings("unchecked")
+	public <O2> ForkJoinPipelineImpl<I, O2> append(Function<O, O2> function){
+		Function<Object, Object>[] newStages = Arrays.copyOf(stages, stages.length + 1);
+		newStages[stages.length] = (Function<Object, Object>) function;
+		return new ForkJoinPipelineImpl<I, O2>(pool, newStages);
+	}
+
+	/**
+	 * Specify a collection that all the final output will be put into.
+	 * @param outputCollection	the collection that will be used to hold all the output, it must be thread safe.
+	 * @return	the new pipeline that puts the output into the collection
+	 */
+	public ForkJoinPipelineImpl<I, O> outputTo(Collection<O> outputCollection){
+		return append(output -> {
+			outputCollection.add(output);
+			return output;
+		});
+	}
+
+	/**
+	 * Get the pool that all the stages run on
+	 * @return	the pool
+	 */
+	public ForkJoinPool getPool(){
+		return pool;
+	}
+
+	/**
+	 * Feed an input, and get a future of the final result in return.
+	 * If it is called from a worker thread of the pool, for example from a stage of another pipeline sharing the same pool,
+	 * the first stage is forked onto the local deque of that thread.
+	 * @param input	the input
+	 * @return	future of the final result, which can also be used as a {@link java.util.concurrent.CompletionStage}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public CompletableFuture<O> feed(I input){
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		if (stages.length == 0){
+			result.complete(input);
+		}else{
+			StageTask task = new StageTask(0, input, result);
+			Thread thread = Thread.currentThread();
+			if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool() == pool){
+				task.fork();
+			}else{
+				pool.execute(task);
+			}
+		}
+		return (CompletableFuture<O>) result;
+	}
+
+	/**
+	 * Task that applies one stage to the input, and then forks the task for the next stage
+	 */
+	@SuppressWarnings("serial")
+	class StageTask extends RecursiveAction{
+		final int stage;
+		final Object input;
+		final CompletableFuture<Object> result;
+
+		StageTask(int stage, Object input, CompletableFuture<Object> result){
+			this.stage = stage;
+			this.input = input;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			if (result.isDone()){		// cancelled
+				return;
+			}
+			Object output;
+			try{
+				output = stages[stage].apply(input);
+			}catch(Throwable t){
+				result.completeExceptionally(t);
+				return;
+			}
+			if (stage + 1 < stages.length){
+				ForkJoinTask<Void> next = new StageTask(stage + 1, output, result);
+				next.fork();		// pushed to the local deque, normally popped by this thread right after this task
+			}else{
+				result.complete(output);
+			}
+		}
+	}
+
+}
@@ -3,26 +3,69 @@
  */
 package net.sf.jabb.util.parallel;
 
+import java.time.Duration;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
- * Wrapper for an object that can be held/locked by a thread
+ * Wrapper for an object that can be held/locked by a thread.
+ * It can be used in try-with-resources statement so that it will always be released to the pool:
+ * <code>
+ * 	try(Holdable&lt;Encoder&gt; holdable = pool.getHold()){
+ * 		holdable.get().encode(...);
+ * 	}
+ * </code>
+ * close() only releases the object when it is called by the thread that got the hold, and only once for each hold,
+ * so that a repeated close() can never release a hold that has been got by someone else since then.
+ * To release from another thread, use {@link HoldablePool#release(Holdable)},
+ * or {@link HoldablePool#release(Holdable, long)} with the holdId to release only that hold.
  * @author James Hu
  *
  */
-public class Holdable<T> {
+public class Holdable<T> implements AutoCloseable{
 	public static final long FREE = -1;
-	protected AtomicLong holdId;
+	@SuppressWarnings("rawtypes")
+	static private final AtomicReferenceFieldUpdater<Holdable, Thread> HOLDER = AtomicReferenceFieldUpdater.newUpdater(Holdable.class, Thread.class, "holder");
+	protected AtomicLong holdId;		// null if the sub-class keeps the hold state elsewhere
 	protected T object;
+	protected HoldablePool<T> pool;
+	protected volatile long heldSince;		// System.nanoTime() when it was held, or 0 if not tracked
+	protected volatile boolean leakReported;
+	protected volatile Thread holder;		// the thread that got current hold, or null if it is free or has been closed
 	
 	/**
 	 * Constructor. The instance created will initially be held by the holdId specified.
 	 * @param object	the object
 	 * @param holdId	the initial holdId which cannot be negative.
+	 * @param pool		the pool that the object will be released to when close() is called, it can be null
 	 */
-	Holdable(T object, long holdId){
+	Holdable(T object, long holdId, HoldablePool<T> pool){
 		this.object = object;
 		this.holdId = new AtomicLong(holdId);
+		this.pool = pool;
+		if (holdId != FREE){
+			this.holder = Thread.currentThread();
+		}
+	}
+	
+	/**
+	 * Constructor for sub-classes that keep the hold state by themselves and override
+	 * {@link #getHoldId()} and {@link #compareAndSetHoldId(long, long)}.
+	 * @param object	the object
+	 * @param pool		the pool that the object will be released to when close() is called, it can be null
+	 */
+	protected Holdable(T object, HoldablePool<T> pool){
+		this.object = object;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Constructor. The instance created will initially be held by the holdId specified.
+	 * @param object	the object
+	 * @param holdId	the initial holdId which cannot be negative.
+	 */
+	Holdable(T object, long holdId){
+		this(object, holdId, null);
 	}
 	
 	/**
@@ -47,13 +90,93 @@ public class Holdable<T> {
 	 * @return	true if successfully held the object, false if the object is being held by someone else.
 	 */
 	boolean hold(long holdId){
-		return this.holdId.compareAndSet(FREE, holdId);
+		if (compareAndSetHoldId(FREE, holdId)){
+			holder = Thread.currentThread();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Free the object if it is held by the holdId specified.
+	 * @param holdId	the ID of the holder
+	 * @return	true if it was held by the holdId and now it is free, false if it was not held by the holdId
+	 */
+	boolean free(long holdId){
+		if (holdId == FREE || getHoldId() != holdId){
+			return false;
+		}
+		holder = null;
+		return compareAndSetHoldId(holdId, FREE);
+	}
+	
+	/**
+	 * Stop tracking current thread as the holder, this is the first step of close().
+	 * @return	the holdId if current thread got current hold and has not closed it, otherwise FREE
+	 */
+	long detachHolderThread(){
+		return HOLDER.compareAndSet(this, Thread.currentThread(), null) ? getHoldId() : FREE;
+	}
+	
+	/**
+	 * Atomically set the ID of the holder if the current one is the same as expected
+	 * @param expect	the expected current holdId
+	 * @param update	the new holdId
+	 * @return	true if successful
+	 */
+	protected boolean compareAndSetHoldId(long expect, long update){
+		return holdId.compareAndSet(expect, update);
+	}
+
+	
+	/**
+	 * Release the object to the pool it belongs to, or just free it if it does not belong to any pool.
+	 * It does nothing if current thread is not the one that got current hold, or the hold has already been released.
+	 */
+	@Override
+	public void close(){
+		long id = detachHolderThread();
+		if (id == FREE){
+			return;
+		}
+		if (pool == null){
+			free(id);
+		}else{
+			pool.release(this, id);
+		}
 	}
 	
 	/**
-	 * Free the object.
+	 * Get the ID of the holder
+	 * @return	the ID of the holder, or FREE if it is not held
 	 */
-	void free(){
-		this.holdId.set(FREE);
+	public long getHoldId(){
+		return holdId.get();
+	}
+	
+	/**
+	 * Check whether the object is currently held
+	 * @return	true if it is held, false if it is free
+	 */
+	public boolean isHeld(){
+		return getHoldId() != FREE;
+	}
+	
+	/**
+	 * Get for how long the object has been held. 
+	 * The time is only tracked when leak detection is enabled in the pool.
+	 * @return	the duration, or null if it is not held or the time is not tracked
+	 */
+	public Duration getHeldDuration(){
+		long since = heldSince;
+		if (since == 0 || !isHeld()){
+			return null;
+		}
+		return Duration.ofNanos(System.nanoTime() - since);
+	}
+	
+	@Override
+	public String toString(){
+		return "Holdable(" + object + ", holdId=" + getHoldId() + ")";
 	}
 }
@@ -3,11 +3,14 @@
  */
 package net.sf.jabb.util.parallel;
 
+import java.time.Duration;
 import java.util.Collection;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
- * A pool of holdable objects
+ * A pool of holdable objects.
+ * The {@link Holdable} returned by getHold(...) is AutoCloseable, closing it releases the object to the pool.
  * @author James Hu
  *
  */
@@ -52,11 +55,24 @@ public interface HoldablePool<T> {
 	}
 	
 	/**
-	 * Release the held object to the pool.
+	 * Release the held object to the pool, whoever is holding it. It can be called from any thread,
+	 * for example when the hold has been handed over to another thread.
+	 * Unlike {@link Holdable#close()}, a repeated call may release a hold that has been got by someone else since then,
+	 * use {@link #release(Holdable, long)} to release only a specific hold.
 	 * @param holdable	the object that will be set free
 	 */
 	default public void release(Holdable<T> holdable){
-		holdable.free();
+		release(holdable, holdable.getHoldId());
+	}
+	
+	/**
+	 * Release the held object to the pool if it is still held by the holdId specified. It can be called from any thread.
+	 * @param holdable	the object that will be set free
+	 * @param holdId	the ID of the holder
+	 * @return	true if it has been released, false if it was not held by the holdId
+	 */
+	default public boolean release(Holdable<T> holdable, long holdId){
+		return holdable.free(holdId);
 	}
 	
 	/**
@@ -66,5 +82,51 @@ public interface HoldablePool<T> {
 	default public Holdable<T> getHold(){
 		return getHold(Thread.currentThread().getId());
 	}
+	
+	/**
+	 * Try to get and hold an object from the pool without waiting.
+	 * @param holdId the unique non-negative value to identify the caller
+	 * @return the object that is held by the caller, or null if all the objects are currently held and no more can be added
+	 */
+	public Holdable<T> tryGetHold(long holdId);
+	
+	/**
+	 * Try to get and hold an object from the pool, wait if all the objects are currently held and no more can be added.
+	 * The calling thread will be parked while waiting.
+	 * @param holdId the unique non-negative value to identify the caller
+	 * @param timeout	the maximum time to wait
+	 * @return the object that is held by the caller, or null if timed out
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	default public Holdable<T> tryGetHold(long holdId, Duration timeout) throws InterruptedException{
+		long deadline = System.nanoTime() + timeout.toNanos();
+		long parkNanos = 1000;
+		while(true){
+			Holdable<T> holdable = tryGetHold(holdId);
+			if (holdable != null){
+				return holdable;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0){
+				return null;
+			}
+			LockSupport.parkNanos(this, Math.min(remaining, parkNanos));
+			if (Thread.interrupted()){
+				throw new InterruptedException();
+			}
+			parkNanos = Math.min(parkNanos * 2, 1000000);
+		}
+	}
+	
+	/**
+	 * Try to get and hold an object from the pool, wait if all the objects are currently held and no more can be added.
+	 * The ID of current thread is used to identify the caller.
+	 * @param timeout	the maximum time to wait
+	 * @return the object that is held by the caller, or null if timed out
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	default public Holdable<T> tryGetHold(Duration timeout) throws InterruptedException{
+		return tryGetHold(Thread.currentThread().getId(), timeout);
+	}
 
 }
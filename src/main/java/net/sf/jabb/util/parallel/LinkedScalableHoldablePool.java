@@ -18,7 +18,7 @@ import java.util.stream.Collectors;
  * @author James Hu
  *
  */
-public class LinkedScalableHoldablePool<T> implements HoldablePool<T> {
+public class LinkedScalableHoldablePool<T> extends AbstractHoldablePool<T> {
 	protected Supplier<T> factory;
 	protected Queue<Holdable<T>> pool;
 	
@@ -29,18 +29,23 @@ public class LinkedScalableHoldablePool<T> implements HoldablePool<T> {
 
 
 	@Override
-	public Holdable<T> getHold(long holdId) {
+	protected Holdable<T> tryHold(long holdId) {
 		for (Holdable<T> holdable: pool){
 			if (holdable.hold(holdId)){
 				return holdable;
 			}
 		}
 
-		Holdable<T> holdable = new Holdable<>(factory.get(), holdId);
+		Holdable<T> holdable = new Holdable<>(factory.get(), holdId, this);
 		pool.add(holdable);
 		return holdable;
 	}
 
+	@Override
+	protected Iterable<Holdable<T>> holdables() {
+		return pool;
+	}
+
 	@Override
 	public Collection<T> getAll() {
 		return pool.stream().filter(h-> h != null).map(h -> h.get()).collect(Collectors.toList());
@@ -51,7 +56,7 @@ public class LinkedScalableHoldablePool<T> implements HoldablePool<T> {
 	public void reset(T object) {
 		pool.clear();
 		if (object != null){
-			pool.add(new Holdable<>(object));
+			pool.add(new Holdable<>(object, Holdable.FREE, this));
 		}
 		
 	}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A pipeline stage that processes inputs concurrently but releases the outputs to the downstream in the order that the inputs were fed.
+ * Each input gets a sequence number when it is fed, and its output is kept in a reorder buffer until the outputs of all earlier inputs have been released.
+ * The reorder buffer is a ring with a fixed number of slots which bounds the number of inputs that have been fed but not yet released,
+ * when it is full the feeding thread waits.
+ * An input that failed to be processed still takes its turn, and the failure is reported through its future.
+ * @author James Hu
+ *
+ * @param <I>	type of the input
+ * @param <OI>	type of the output of this stage which is also the input of the downstream
+ * @param <O>	type of the final output
+ */
+class OrderedStage<I, OI, O> {
+	protected Executor executor;
+	protected Function<I, OI> function;
+	protected Pipeline<OI, O> downstream;
+	protected PipelineStageMetrics metrics;
+
+	protected int window;
+	protected AtomicReferenceArray<Entry<I, OI, O>> slots;
+	protected Semaphore freeSlots;
+	protected long nextToFeed;			// guarded by feedLock
+	protected volatile long nextToRelease;		// only changed by the thread holding releaseLock
+	protected final Object feedLock = new Object();
+	protected final ReentrantLock releaseLock = new ReentrantLock();
+
+	static class Entry<I, OI, O>{
+		final I input;
+		final long fedTime;
+		final CompletableFuture<Future<O>> future = new CompletableFuture<>();
+		OI output;
+		Throwable error;
+		volatile boolean processed;
+
+		Entry(I input, long fedTime){
+			this.input = input;
+			this.fedTime = fedTime;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param executor		the executor for the processing in the stage
+	 * @param window		maximum number of inputs that have been fed but not yet released to the downstream
+	 * @param function		the function to be applied in the stage
+	 * @param downstream	the downstream pipeline
+	 */
+	OrderedStage(Executor executor, int window, Function<I, OI> function, Pipeline<OI, O> downstream){
+		if (window < 1){
+			throw new IllegalArgumentException("Size of the window must be positive: " + window);
+		}
+		this.executor = executor;
+		this.window = window;
+		this.function = function;
+		this.downstream = downstream;
+		this.slots = new AtomicReferenceArray<>(window);
+		this.freeSlots = new Semaphore(window);
+		this.metrics = new PipelineStageMetrics(() -> this.window - freeSlots.availablePermits());
+	}
+
+	/**
+	 * Feed an input. The calling thread waits if the reorder buffer is full.
+	 * @param input	the input
+	 * @return	future of the final result
+	 */
+	Future<O> feed(I input){
+		freeSlots.acquireUninterruptibly();
+		Entry<I, OI, O> entry = new Entry<>(input, System.nanoTime());
+		synchronized(feedLock){		// sequence numbers must follow the order of submitting
+			int slot = (int)(nextToFeed % window);
+			slots.set(slot, entry);
+			try{
+				executor.execute(() -> process(entry));
+			}catch(RejectedExecutionException e){
+				slots.set(slot, null);
+				freeSlots.release();
+				metrics.recordRejected();
+				throw e;
+			}
+			nextToFeed ++;
+		}
+		metrics.recordSubmitted();
+		return RecursivePipelineImpl.flatten(entry.future);
+	}
+
+	protected void process(Entry<I, OI, O> entry){
+		long start = System.nanoTime();
+		try{
+			if (!entry.future.isCancelled()){
+				entry.output = function.apply(entry.input);
+			}
+		}catch(Throwable t){
+			entry.error = t;
+		}
+		metrics.recordProcessing(System.nanoTime() - start);
+		entry.processed = true;
+		release();
+	}
+
+	/**
+	 * Release processed outputs to the downstream in order.
+	 * Only one thread does the releasing at a time, others just leave their outputs in the buffer.
+	 * After releasing, the buffer is checked again in case another thread has left an output while the lock was held.
+	 */
+	protected void release(){
+		while(releaseLock.tryLock()){
+			try{
+				while(true){
+					int slot = (int)(nextToRelease % window);
+					Entry<I, OI, O> entry = slots.get(slot);
+					if (entry == null || !entry.processed){
+						break;
+					}
+					releaseEntry(entry);
+					slots.set(slot, null);
+					nextToRelease ++;
+					freeSlots.release();
+				}
+			}finally{
+				releaseLock.unlock();
+			}
+			Entry<I, OI, O> next = slots.get((int)(nextToRelease % window));
+			if (next == null || !next.processed){
+				break;
+			}
+		}
+	}
+
+	protected void releaseEntry(Entry<I, OI, O> entry){
+		long latency = System.nanoTime() - entry.fedTime;
+		if (entry.error != null){
+			metrics.recordFailed(latency);
+			entry.future.completeExceptionally(entry.error);
+			return;
+		}
+		if (entry.future.isCancelled()){
+			return;
+		}
+		Future<O> future;
+		try{
+			future = downstream.feed(entry.output);
+		}catch(Throwable t){
+			metrics.recordFailed(latency);
+			entry.future.completeExceptionally(t);
+			return;
+		}
+		metrics.recordCompleted(latency);
+		entry.future.complete(future);
+	}
+
+}
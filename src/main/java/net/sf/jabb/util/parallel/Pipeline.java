@@ -3,6 +3,8 @@
  */
 package net.sf.jabb.util.parallel;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Future;
 
 /**
@@ -21,6 +23,30 @@ public interface Pipeline<I, O> {
 	 */
 	Future<O> feed(I input);
 	
+	/**
+	 * Get the metrics of the stages in this pipeline
+	 * @return	metrics of the stages, from the first stage to the last stage. Stages without metrics are not included.
+	 */
+	default List<PipelineStageMetrics> getStageMetrics(){
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * What a stage with bounded queue does when the queue is full
+	 * @author James Hu
+	 *
+	 */
+	public static enum Backpressure{
+		/**
+		 * The feeding thread waits until there is space in the queue, so that a slow stage slows down its upstream.
+		 */
+		BLOCK,
+		/**
+		 * The input is dropped and a RejectedExecutionException is thrown to the feeding thread.
+		 */
+		DROP
+	}
+	
 	/**
 	 * The intermediate output between two connected pipelines.
 	 * @author James
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import net.sf.jabb.util.stat.ConcurrentLongStatistics;
+
+/**
+ * Metrics of a stage in a pipeline. It is thread safe.
+ * Latency is measured from the time an input is fed to the stage to the time the processing of it finishes,
+ * so it includes the time waiting in the queue; processing time only covers the time spent by the stage function.
+ * For batching stages, processing time is measured per batch.
+ * @author James Hu
+ *
+ */
+public class PipelineStageMetrics {
+	protected IntSupplier queueDepth;
+	protected volatile long startTime;
+
+	protected LongAdder submitted = new LongAdder();
+	protected LongAdder rejected = new LongAdder();
+	protected LongAdder completed = new LongAdder();
+	protected LongAdder failed = new LongAdder();
+	protected ConcurrentLongStatistics latencyNanos = new ConcurrentLongStatistics();
+	protected ConcurrentLongStatistics processingNanos = new ConcurrentLongStatistics();
+
+	/**
+	 * Constructor
+	 * @param queueDepth	the function to get current number of inputs waiting in the queue of the stage, it can be null if unknown.
+	 */
+	public PipelineStageMetrics(IntSupplier queueDepth){
+		this.queueDepth = queueDepth;
+		this.startTime = System.nanoTime();
+	}
+
+	void recordSubmitted(){
+		submitted.increment();
+	}
+
+	void recordRejected(){
+		rejected.increment();
+	}
+
+	void recordCompleted(long latency){
+		completed.increment();
+		latencyNanos.evaluate(latency);
+	}
+
+	void recordFailed(long latency){
+		failed.increment();
+		latencyNanos.evaluate(latency);
+	}
+
+	void recordProcessing(long processingTime){
+		processingNanos.evaluate(processingTime);
+	}
+
+	/**
+	 * Get the number of inputs waiting in the queue of the stage
+	 * @return	the queue depth, or -1 if it is unknown
+	 */
+	public int getQueueDepth(){
+		return queueDepth == null ? -1 : queueDepth.getAsInt();
+	}
+
+	/**
+	 * Get the number of inputs accepted by the stage
+	 * @return	number of inputs accepted
+	 */
+	public long getSubmitted(){
+		return submitted.sum();
+	}
+
+	/**
+	 * Get the number of inputs rejected or dropped by the stage because its queue was full
+	 * @return	number of inputs rejected
+	 */
+	public long getRejected(){
+		return rejected.sum();
+	}
+
+	/**
+	 * Get the number of inputs processed by the stage successfully
+	 * @return	number of inputs processed successfully
+	 */
+	public long getCompleted(){
+		return completed.sum();
+	}
+
+	/**
+	 * Get the number of inputs that the stage failed to process
+	 * @return	number of inputs failed
+	 */
+	public long getFailed(){
+		return failed.sum();
+	}
+
+	/**
+	 * Get the throughput since the creation of the stage or the last reset
+	 * @return	number of inputs processed, successfully or not, per second
+	 */
+	public double getThroughput(){
+		long elapsed = System.nanoTime() - startTime;
+		return elapsed <= 0 ? 0 : (completed.sum() + failed.sum()) * 1e9 / elapsed;
+	}
+
+	/**
+	 * Get the statistics of latency in nanoseconds
+	 * @return	the statistics of latency, including waiting time in the queue
+	 */
+	public ConcurrentLongStatistics getLatencyNanos(){
+		return latencyNanos;
+	}
+
+	/**
+	 * Get the statistics of processing time in nanoseconds
+	 * @return	the statistics of processing time, per input or per batch
+	 */
+	public ConcurrentLongStatistics getProcessingNanos(){
+		return processingNanos;
+	}
+
+	/**
+	 * Reset all the counters and statistics
+	 */
+	public void reset(){
+		submitted.reset();
+		rejected.reset();
+		completed.reset();
+		failed.reset();
+		latencyNanos.reset();
+		processingNanos.reset();
+		startTime = System.nanoTime();
+	}
+
+	@Override
+	public String toString(){
+		return "PipelineStageMetrics[queueDepth=" + getQueueDepth() + ", submitted=" + getSubmitted() + ", rejected=" + getRejected()
+				+ ", completed=" + getCompleted() + ", failed=" + getFailed() + ", throughput=" + getThroughput()
+				+ ", latencyNanos=" + latencyNanos + ", processingNanos=" + processingNanos + "]";
+	}
+
+}
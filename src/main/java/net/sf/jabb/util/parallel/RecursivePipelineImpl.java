@@ -3,12 +3,18 @@
  */
 package net.sf.jabb.util.parallel;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
@@ -19,14 +25,30 @@ import com.google.common.util.concurrent.MoreExecutors;
  * The simple and efficient recursive implementation of pipeline.
  * It requires you to build it in reversed order - from the last stage to the first stage.
  * 
+ * <p>Stages can have bounded queues with backpressure, so that a slow downstream stage does not
+ * let upstream stages buffer without limit, stages can process inputs in micro batches,
+ * and stages can process inputs concurrently while keeping their order.
+ * Metrics of the stages can be got through {@link #getStageMetrics()}.</p>
+ * 
  * @author James Hu
  *
  * @param <I>	type of input
  * @param <O>	type of output
  */
 public class RecursivePipelineImpl<I, O> implements Pipeline<I, O>{
+	/**
+	 * How long a feeding thread waits each time before checking again whether the stage has been shut down,
+	 * when it is blocked by a full queue
+	 */
+	static final long BLOCKING_CHECK_INTERVAL_MILLIS = 100;
+	
 	ExecutorService executor;
 	Function<I, Future<O>> feedFunction;
+	StageFunction<I, O> stageFunction;
+	BatchingStage<I, ?, O> batchingStage;
+	OrderedStage<I, ?, O> orderedStage;
+	PipelineStageMetrics metrics;
+	RecursivePipelineImpl<?, O> downstream;
 	
 	/**
 	 * Start building a pipeline, and specify a collection that all the final output will be put into.
@@ -108,13 +130,62 @@ public class RecursivePipelineImpl<I, O> implements Pipeline<I, O>{
 	
 	private <OI> RecursivePipelineImpl(ExecutorService executor, Function<I, OI> function, RecursivePipelineImpl<OI, O> downstream){
 		this.executor = executor;
-		this.feedFunction = input -> {
-			OI intermediate = function.apply(input);
-			Future<O> outputFuture = downstream.feed(intermediate);
+		this.downstream = downstream;
+		PipelineStageMetrics metrics = new PipelineStageMetrics(executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue()::size : null);
+		this.metrics = metrics;
+		this.stageFunction = (input, fedTime) -> {
+			long start = System.nanoTime();
+			OI intermediate;
+			try{
+				intermediate = function.apply(input);
+			}catch(RuntimeException | Error e){
+				long now = System.nanoTime();
+				metrics.recordProcessing(now - start);
+				metrics.recordFailed(now - fedTime);
+				throw e;
+			}
+			long now = System.nanoTime();		// time blocked by the backpressure of the downstream is not counted
+			metrics.recordProcessing(now - start);
+			Future<O> outputFuture;
+			try{
+				outputFuture = downstream.feed(intermediate);
+			}catch(RuntimeException | Error e){
+				metrics.recordFailed(now - fedTime);
+				throw e;
+			}
+			metrics.recordCompleted(now - fedTime);
 			return outputFuture;
 		};
 	}
 	
+	/**
+	 * The function of a stage that has metrics
+	 * @param <I>	type of the input
+	 * @param <O>	type of the final output
+	 */
+	@FunctionalInterface
+	static interface StageFunction<I, O>{
+		/**
+		 * Process the input in the stage and feed the result to the downstream
+		 * @param input		the input
+		 * @param fedTime	when the input was fed to the stage, as returned by {@link System#nanoTime()}
+		 * @return	future of the final output
+		 */
+		Future<O> apply(I input, long fedTime);
+	}
+	
+	private <OI> RecursivePipelineImpl(BatchingStage<I, OI, O> batchingStage, RecursivePipelineImpl<OI, O> downstream){
+		this.batchingStage = batchingStage;
+		this.downstream = downstream;
+		this.metrics = batchingStage.metrics;
+	}
+	
+	private <OI> RecursivePipelineImpl(OrderedStage<I, OI, O> orderedStage, RecursivePipelineImpl<OI, O> downstream){
+		this.orderedStage = orderedStage;
+		this.downstream = downstream;
+		this.metrics = orderedStage.metrics;
+	}
+	
 	/**
 	 * Prepend a stage to the pipeline
 	 * @param executor		the executor service for the processing in the prepended stage
@@ -129,6 +200,8 @@ public class RecursivePipelineImpl<I, O> implements Pipeline<I, O>{
 	/**
 	 * Prepend a stage to the pipeline. A new thread pool will be created and that thread pool will only be eligible for 
 	 * garbage collection when the pipleline itself is eligible for garbage collection. 
+	 * The queue of the thread pool is unbounded, use {@link #prepend(int, int, Pipeline.Backpressure, Function)}
+	 * if the stage may be slower than its upstream.
 	 * @param fixedThreadPoolSize		the thread pool size of a fixed size thread pool which will be used for the processing in the prepended stage
 	 * @param function		the function to be applied in the prepended stage
 	 * @param <I0> type of the new input
@@ -139,9 +212,158 @@ public class RecursivePipelineImpl<I, O> implements Pipeline<I, O>{
 		return new RecursivePipelineImpl<I0, O>(executor, function, this);
 	}
 	
+	/**
+	 * Handler for rejected tasks that makes the feeding thread wait until the queue has space,
+	 * or throws RejectedExecutionException if the executor has been shut down.
+	 */
+	static class BlockingPolicy implements RejectedExecutionHandler{
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+			boolean interrupted = false;
+			try{
+				while(true){
+					if (e.isShutdown()){
+						throw new RejectedExecutionException("Executor of the stage has been shut down");
+					}
+					try{
+						if (e.getQueue().offer(r, BLOCKING_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)){
+							if (e.isShutdown() && e.getQueue().remove(r)){		// shut down during the offer, there may be no worker to run it
+								throw new RejectedExecutionException("Executor of the stage has been shut down");
+							}
+							return;
+						}
+					}catch(InterruptedException ie){
+						interrupted = true;
+					}
+				}
+			}finally{
+				if (interrupted){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Prepend a stage with a bounded queue to the pipeline. A new thread pool will be created and that thread pool will only be eligible for
+	 * garbage collection when the pipleline itself is eligible for garbage collection.
+	 * When the queue is full, depending on the backpressure option, either the feeding thread - which is a thread of the upstream stage
+	 * if this is not the first stage - waits, or the input is dropped.
+	 * A waiting feeding thread gives up with RejectedExecutionException once the thread pool has been shut down.
+	 * Dropped inputs cause RejectedExecutionException to be thrown by {@link #feed(Object)} if this is the first stage,
+	 * or futures of the final results to fail with ExecutionException caused by RejectedExecutionException.
+	 * @param fixedThreadPoolSize		the thread pool size of a fixed size thread pool which will be used for the processing in the prepended stage
+	 * @param queueCapacity	capacity of the queue of the thread pool
+	 * @param backpressure	what to do when the queue is full
+	 * @param function		the function to be applied in the prepended stage
+	 * @param <I0> type of the new input
+	 * @return		the new pipeline with the stage prepended
+	 */
+	public <I0> RecursivePipelineImpl<I0, O> prepend(int fixedThreadPoolSize, int queueCapacity, Pipeline.Backpressure backpressure, Function<I0, I> function){
+		RejectedExecutionHandler rejectedExecutionHandler = backpressure == Pipeline.Backpressure.BLOCK ?
+				new BlockingPolicy() : new ThreadPoolExecutor.AbortPolicy();
+		ExecutorService executor = new ThreadPoolExecutor(fixedThreadPoolSize, fixedThreadPoolSize, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), Executors.defaultThreadFactory(), rejectedExecutionHandler);
+		return new RecursivePipelineImpl<I0, O>(executor, function, this);
+	}
+	
+	/**
+	 * Prepend a stage that processes inputs in micro batches to the pipeline.
+	 * A batch is processed when it has reached the maximum size or when the maximum delay has passed since it got the first input.
+	 * The function of the stage receives a list of inputs and must return a list of outputs of the same size and in the same order.
+	 * @param threads		number of threads processing batches concurrently
+	 * @param workers		the executor service to run the threads, it is owned by the caller and the threads keep running until
+	 * 						they are interrupted, for example by {@link ExecutorService#shutdownNow()}.
+	 * 						After all the threads have stopped, inputs still in the queue and inputs fed later
+	 * 						will be rejected with RejectedExecutionException.
+	 * @param queueCapacity	capacity of the queue of inputs
+	 * @param backpressure	what to do when the queue is full
+	 * @param maxBatchSize	maximum number of inputs in a batch
+	 * @param maxBatchDelayMillis	maximum time in milliseconds to wait for more inputs to fill up a batch
+	 * @param function		the function to be applied to batches in the prepended stage
+	 * @param <I0> type of the new input
+	 * @return		the new pipeline with the stage prepended
+	 */
+	public <I0> RecursivePipelineImpl<I0, O> prependBatching(int threads, ExecutorService workers, int queueCapacity, Pipeline.Backpressure backpressure,
+			int maxBatchSize, long maxBatchDelayMillis, Function<List<I0>, List<I>> function){
+		BatchingStage<I0, I, O> stage = new BatchingStage<>(threads, workers, queueCapacity, backpressure, maxBatchSize, maxBatchDelayMillis, function, this);
+		return new RecursivePipelineImpl<I0, O>(stage, this);
+	}
+	
+	/**
+	 * Prepend a stage that processes inputs concurrently but feeds the outputs to the downstream in the same order as the inputs were fed to it.
+	 * Outputs that are ready earlier than those of the inputs fed before them are held in a reorder buffer.
+	 * When the number of inputs that have been fed but not yet passed to the downstream reaches the window size,
+	 * the feeding thread waits until the earliest one has been passed to the downstream.
+	 * @param executor		the executor service for the processing in the prepended stage
+	 * @param window		size of the reorder buffer
+	 * @param function		the function to be applied in the prepended stage
+	 * @param <I0> type of the new input
+	 * @return		the new pipeline with the stage prepended
+	 */
+	public <I0> RecursivePipelineImpl<I0, O> prependOrdered(ExecutorService executor, int window, Function<I0, I> function){
+		OrderedStage<I0, I, O> stage = new OrderedStage<>(executor, window, function, this);
+		return new RecursivePipelineImpl<I0, O>(stage, this);
+	}
+	
+	/**
+	 * Prepend a stage that processes inputs concurrently but feeds the outputs to the downstream in the same order as the inputs were fed to it.
+	 * A new thread pool will be created and that thread pool will only be eligible for
+	 * garbage collection when the pipleline itself is eligible for garbage collection.
+	 * @param fixedThreadPoolSize		the thread pool size of a fixed size thread pool which will be used for the processing in the prepended stage
+	 * @param window		size of the reorder buffer, normally it should be a few times of the thread pool size
+	 * @param function		the function to be applied in the prepended stage
+	 * @param <I0> type of the new input
+	 * @return		the new pipeline with the stage prepended
+	 * @see #prependOrdered(ExecutorService, int, Function)
+	 */
+	public <I0> RecursivePipelineImpl<I0, O> prependOrdered(int fixedThreadPoolSize, int window, Function<I0, I> function){
+		return prependOrdered(Executors.newFixedThreadPool(fixedThreadPoolSize), window, function);
+	}
+	
+	@Override
+	public List<PipelineStageMetrics> getStageMetrics(){
+		List<PipelineStageMetrics> result = new ArrayList<>();
+		for (RecursivePipelineImpl<?, O> stage = this; stage != null; stage = stage.downstream){
+			if (stage.metrics != null){
+				result.add(stage.metrics);
+			}
+		}
+		return result;
+	}
+	
 	@Override
 	public Future<O> feed(I input){
-		 Future<Future<O>> futureOfFuture = executor.submit(()->feedFunction.apply(input));
+		if (batchingStage != null){
+			return batchingStage.feed(input);
+		}
+		if (orderedStage != null){
+			return orderedStage.feed(input);
+		}
+		PipelineStageMetrics metrics = this.metrics;
+		if (metrics == null){
+			return flatten(executor.submit(()->feedFunction.apply(input)));
+		}
+
+		long fedTime = System.nanoTime();
+		Future<Future<O>> futureOfFuture;
+		try{
+			futureOfFuture = executor.submit(()->stageFunction.apply(input, fedTime));
+		}catch(RejectedExecutionException e){
+			metrics.recordRejected();
+			throw e;
+		}
+		metrics.recordSubmitted();
+		return flatten(futureOfFuture);
+	}
+
+	/**
+	 * Convert a future of future to a future of the final result
+	 * @param futureOfFuture	the future of future
+	 * @param <O>	type of the final result
+	 * @return	the future of the final result
+	 */
+	static <O> Future<O> flatten(Future<Future<O>> futureOfFuture){
 		 return new Future<O>(){
 
 			@Override
@@ -0,0 +1,43 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Schedulers shared within the JVM. There is one single-threaded scheduler per name, created when it is asked for the first time.
+ * The threads are daemon threads, and cancelled tasks are removed from the work queue immediately.
+ * Different kinds of tasks should use different names, so that slow ones (for example, probing remote servers)
+ * will not delay others (for example, rotations that need to happen on time).
+ * @author James Hu
+ *
+ */
+public abstract class SharedSchedulers {
+	static private final ConcurrentHashMap<String, ScheduledThreadPoolExecutor> schedulers = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the shared scheduler of the name
+	 * @param name	name of the scheduler, it is also used as the prefix of the thread name
+	 * @return	the scheduler which should never be shut down by the caller
+	 */
+	static public ScheduledThreadPoolExecutor get(String name){
+		ScheduledThreadPoolExecutor scheduler = schedulers.get(name);
+		if (scheduler == null){
+			scheduler = schedulers.computeIfAbsent(name, n -> {
+				ScheduledThreadPoolExecutor newScheduler = new ScheduledThreadPoolExecutor(1,
+						new BasicThreadFactory.Builder()
+								.namingPattern(n + "-%d")
+								.daemon(true)
+								.build());
+				newScheduler.setRemoveOnCancelPolicy(true);
+				return newScheduler;
+			});
+		}
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Base class of the striped cells behind striped counters and statistics, similar to {@code java.util.concurrent.atomic.Striped64}
+ * that is behind {@link java.util.concurrent.atomic.LongAdder}.
+ * A thread picks its home cell by its thread probe, and keeps using the same cell until it runs into contention,
+ * then it advances its probe to move to another cell, and the cells will be doubled if they have not reached the maximum.
+ *
+ * <p>Sub-classes only need to implement {@link #newCell()} and {@link #newArray(int)}.
+ * Cells should extend {@link PaddedCell} which provides the padding before the fields,
+ * and declare padding after their own fields, because {@code @sun.misc.Contended} only works in JDK classes
+ * unless the JVM is started with <code>-XX:-RestrictContended</code>.</p>
+ *
+ * @author James Hu
+ *
+ */
+public abstract class StripedCells<C extends StripedCells.PaddedCell> implements Serializable {
+	private static final long serialVersionUID = -4006207962290113017L;
+
+	static private final ThreadLocal<int[]> threadProbe = ThreadLocal.withInitial(() -> {
+		long z = Thread.currentThread().getId();
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		int h = (int)(z ^ (z >>> 33));
+		return new int[]{h == 0 ? 1 : h};
+	});
+
+	protected int maxCells;
+	protected volatile C[] cells;
+
+	/**
+	 * Padding before the fields of a cell, to avoid false sharing with whatever is before the cell in memory.
+	 * Sub-classes should declare the same amount of padding after their own fields.
+	 */
+	@SuppressWarnings("serial")
+	static public abstract class PaddedCell implements Serializable{
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	/**
+	 * Constructor. There will be only one cell initially.
+	 * @param concurrencyFactor	the maximum number of cells will be this value rounded up to a power of 2
+	 */
+	protected StripedCells(int concurrencyFactor){
+		if (concurrencyFactor < 1){
+			throw new IllegalArgumentException("Concurrency factor must not be less than 1.");
+		}
+		maxCells = Integer.highestOneBit(concurrencyFactor * 2 - 1);
+		C[] cs = newArray(1);
+		cs[0] = newCell();
+		cells = cs;
+	}
+
+	/**
+	 * Create a new cell
+	 * @return	the new cell
+	 */
+	abstract protected C newCell();
+
+	/**
+	 * Create an array of cells
+	 * @param length	length of the array
+	 * @return	the new array
+	 */
+	abstract protected C[] newArray(int length);
+
+	/**
+	 * Get the home cell of current thread
+	 * @return	the cell
+	 */
+	public C home(){
+		C[] cs = cells;
+		return cs[probe() & (cs.length - 1)];
+	}
+
+	/**
+	 * Move current thread to another home cell after a contention happened on current home cell.
+	 * The cells will be expanded if they have not reached the maximum.
+	 * @return	the new home cell
+	 */
+	public C next(){
+		C[] cs = cells;
+		if (cs.length < maxCells){
+			cs = expand(cs);
+		}
+		return cs[advanceProbe() & (cs.length - 1)];
+	}
+
+	/**
+	 * Get all the cells. The returned array must not be modified.
+	 * @return	the cells
+	 */
+	public C[] getCells(){
+		return cells;
+	}
+
+	/**
+	 * Get the current number of cells
+	 * @return	number of cells
+	 */
+	public int getNumberOfCells(){
+		return cells.length;
+	}
+
+	protected C[] expand(C[] cs){
+		synchronized(this){
+			if (cells == cs){
+				C[] expanded = Arrays.copyOf(cs, cs.length << 1);
+				for (int i = cs.length; i < expanded.length; i ++){
+					expanded[i] = newCell();
+				}
+				cells = expanded;
+			}
+			return cells;
+		}
+	}
+
+	/**
+	 * Get the probe value of current thread.
+	 * A thread keeps using the same probe value, and so the same cell, until it runs into contention and advances its probe.
+	 * @return	the probe value which is never zero
+	 */
+	static public int probe(){
+		return threadProbe.get()[0];
+	}
+
+	/**
+	 * Change the probe value of current thread, normally after a contention happened
+	 * @return	the new probe value which is never zero
+	 */
+	static public int advanceProbe(){
+		int[] holder = threadProbe.get();
+		int h = holder[0];
+		h ^= h << 13;   // xorshift
+		h ^= h >>> 17;
+		h ^= h << 5;
+		holder[0] = h;
+		return h;
+	}
+}
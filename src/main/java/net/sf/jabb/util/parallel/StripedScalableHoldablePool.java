@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An array backed auto-scalable holdable pool in which each thread starts probing from its own home slot,
+ * using the same thread probe as {@link StripedCells}.
+ * When the home slot is held by another thread, the thread probes the other slots and then picks another
+ * home slot randomly for later acquisitions, so that threads tend to spread over different slots and normally
+ * an acquisition succeeds at the first attempt.
+ * The pool grows only when all the existing objects are held, which means there is contention.
+ * The hold states of the slots are padded on both sides to avoid false sharing.
+ *
+ * <p>The pool will be empty until the first time getHold(...) is called.
+ * When all of the objects in the pool are currently held, call to getHold(...) will result either a new object being created if the size limit has not been reached,
+ * or the calling thread being parked until an object is released and can be held.
+ * getHold(...) method of this class will never return null.</p>
+ * @author James Hu
+ *
+ */
+public class StripedScalableHoldablePool<T> extends AbstractHoldablePool<T> {
+	static private final Logger logger = LoggerFactory.getLogger(StripedScalableHoldablePool.class);
+
+	protected Supplier<T> factory;
+	protected AtomicReferenceArray<Holdable<T>> pool;
+	protected AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * Constructor
+	 * @param factory	the factory function to create the objects
+	 * @param size		the maximum number of objects allowed to be craeted
+	 */
+	public StripedScalableHoldablePool(Supplier<T> factory, int size){
+		this.factory = factory;
+		this.pool = new AtomicReferenceArray<>(size);
+	}
+
+	/**
+	 * Constructor. The size of the pool will be set to the same as the number of CPU cores.
+	 * @param factory	the factory function to create the objects
+	 */
+	public StripedScalableHoldablePool(Supplier<T> factory){
+		this(factory, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override
+	protected Holdable<T> tryHold(long holdId) {
+		int n = size.get();
+		if (n > 0){
+			int home = (StripedCells.probe() & Integer.MAX_VALUE) % n;
+			int i = home;
+			do{
+				Holdable<T> holdable = pool.get(i);
+				if (holdable != null && holdable.hold(holdId)){
+					if (i != home){
+						StripedCells.advanceProbe();		// pick another home slot to avoid future collisions
+					}
+					return holdable;
+				}
+				if (++i == n){
+					i = 0;
+				}
+			}while(i != home);
+		}
+
+		Holdable<T> created = tryGrow(n, holdId);
+		if (created == null){
+			StripedCells.advanceProbe();
+		}
+		return created;
+	}
+
+	@Override
+	protected Iterable<Holdable<T>> holdables() {
+		List<Holdable<T>> result = new ArrayList<>();
+		for (int i = 0; i < pool.length(); i ++){
+			Holdable<T> holdable = pool.get(i);
+			if (holdable != null){
+				result.add(holdable);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Try to add a new object to the pool
+	 * @param n		the size of the pool observed
+	 * @param holdId	the hold id
+	 * @return	the newly added object which has already been held, or null if the pool can't grow.
+	 * 			If other threads have filled up the pool concurrently, the object created is discarded by {@link #discard(Object)}.
+	 */
+	protected Holdable<T> tryGrow(int n, long holdId){
+		if (n >= pool.length()){
+			return null;
+		}
+		Holdable<T> newHoldable = new PaddedHoldable<>(factory.get(), holdId, this);
+		while (n < pool.length()){
+			if (pool.compareAndSet(n, null, newHoldable)){
+				size.compareAndSet(n, n + 1);
+				return newHoldable;
+			}
+			size.compareAndSet(n, n + 1);	// help the other thread that has just filled the slot
+			n = size.get();
+		}
+		discard(newHoldable.get());
+		return null;
+	}
+
+	/**
+	 * Discard an object that has been created but could not be put into the pool.
+	 * The object will be closed if it is {@link AutoCloseable}.
+	 * @param object	the object
+	 */
+	protected void discard(T object){
+		if (object instanceof AutoCloseable){
+			try{
+				((AutoCloseable) object).close();
+			}catch(Exception e){
+				logger.warn("Failed to close the object that could not be put into the pool: {}", object, e);
+			}
+		}
+	}
+
+	@Override
+	public Collection<T> getAll() {
+		List<T> result = new ArrayList<>();
+		for (int i = 0; i < pool.length(); i ++){
+			Holdable<T> holdable = pool.get(i);
+			if (holdable != null){
+				result.add(holdable.get());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void reset(T object) {
+		size.set(0);
+		for (int i = 0; i < pool.length(); i ++){
+			pool.set(i, null);
+		}
+
+		if (object != null){
+			pool.set(0, new PaddedHoldable<>(object, Holdable.FREE, this));
+			size.set(1);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return size.get();
+	}
+
+	@Override
+	public int getCapacity() {
+		return pool.length();
+	}
+
+	@SuppressWarnings("serial")
+	static class HoldStateFields extends StripedCells.PaddedCell{
+		volatile long holdId;
+	}
+
+	/**
+	 * Hold state padded on both sides to occupy a cache line by itself
+	 */
+	static final class HoldState extends HoldStateFields{
+		private static final long serialVersionUID = 4370255398497263466L;
+		static private final AtomicLongFieldUpdater<HoldStateFields> HOLD_ID = AtomicLongFieldUpdater.newUpdater(HoldStateFields.class, "holdId");
+		long p11, p12, p13, p14, p15, p16, p17;
+
+		HoldState(long holdId){
+			this.holdId = holdId;
+		}
+	}
+
+	/**
+	 * Holdable with its hold state padded
+	 */
+	static class PaddedHoldable<T> extends Holdable<T>{
+		protected final HoldState state;
+
+		PaddedHoldable(T object, long holdId, HoldablePool<T> pool){
+			super(object, pool);
+			this.state = new HoldState(holdId);
+			if (holdId != FREE){
+				this.holder = Thread.currentThread();
+			}
+		}
+
+		@Override
+		protected boolean compareAndSetHoldId(long expect, long update){
+			return HoldState.HOLD_ID.compareAndSet(state, expect, update);
+		}
+
+		@Override
+		public long getHoldId(){
+			return state.holdId;
+		}
+	}
+
+}
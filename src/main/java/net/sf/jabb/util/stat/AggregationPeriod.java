@@ -6,17 +6,22 @@ package net.sf.jabb.util.stat;
 import java.io.Serializable;
 import java.time.Duration;
 import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.jabb.util.time.TimeZoneUtility;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.builder.CompareToBuilder;
-import org.apache.commons.lang3.builder.EqualsBuilder;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * A period of time qualified by a quantity and a unit, with time zone.
+ * It should be treated as an immutable value, the setters are only for deserialization.
+ * Duration, normalized time zone, hash code and code name are calculated once and cached,
+ * and instances returned by {@link #of(int, AggregationPeriodUnit, ZoneId)}, {@link #parse(String)} and {@link #withAmount(int)}
+ * are interned so that they are shared, and their setters throw IllegalStateException.
+ * At most {@link #MAX_INTERNED_INSTANCES} instances are interned, after that new combinations are returned as new instances
+ * which are not shared, so always use {@link #equals(Object)} rather than identity for comparison.
  * @author James Hu
  *
  */
@@ -27,6 +32,17 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	protected AggregationPeriodUnit unit;
 	protected ZoneId zone;
 	protected transient String codeName;			// as a cache
+	protected transient long durationMillis;		// as a cache, 0 if not calculated
+	protected transient long unitDurationMillis;	// as a cache, 0 if not calculated
+	protected transient ZoneId normalizedZone;		// as a cache
+	protected transient int hash;					// as a cache, 0 if not calculated
+	protected transient volatile boolean interned;
+	
+	/**
+	 * Maximum number of interned instances, in case callers keep creating new combinations of amount, unit and time zone
+	 */
+	static public final int MAX_INTERNED_INSTANCES = 10000;
+	static protected final ConcurrentHashMap<AggregationPeriod, AggregationPeriod> internedInstances = new ConcurrentHashMap<>();
 	
 	public AggregationPeriod(){
 		
@@ -53,17 +69,63 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 		this.zone = zone;
 	}
 	
+	/**
+	 * Get the interned instance with specified amount, unit and time zone.
+	 * @param amount	the amount
+	 * @param unit		the unit
+	 * @param zone		the time zone
+	 * @return	the shared instance which can not be modified, or a new instance if there are already too many interned instances
+	 */
+	static public AggregationPeriod of(int amount, AggregationPeriodUnit unit, ZoneId zone){
+		return new AggregationPeriod(amount, unit, zone).intern();
+	}
+	
+	/**
+	 * Get the interned instance with specified amount and unit, in UTC time zone.
+	 * @param amount	the amount
+	 * @param unit		the unit
+	 * @return	the shared instance which can not be modified, or a new instance if there are already too many interned instances
+	 */
+	static public AggregationPeriod of(int amount, AggregationPeriodUnit unit){
+		return of(amount, unit, TimeZoneUtility.UTC);
+	}
+	
+	/**
+	 * Get the interned instance equal to this one. If there is no such instance, this one becomes the interned instance
+	 * and can not be modified any more, unless there are already too many interned instances.
+	 * @return	the shared instance which can not be modified, or this instance if there are already too many interned instances
+	 */
+	public AggregationPeriod intern(){
+		if (interned){
+			return this;
+		}
+		AggregationPeriod existing = internedInstances.get(this);
+		if (existing != null){
+			return existing;
+		}
+		if (internedInstances.size() >= MAX_INTERNED_INSTANCES){
+			return this;
+		}
+		interned = true;
+		existing = internedInstances.putIfAbsent(this, this);
+		if (existing != null){
+			interned = false;		// not shared
+			return existing;
+		}
+		return this;
+	}
+	
 	/**
 	 * Return a copy of this with a new amount
 	 * @param newAmount	the new amount
-	 * @return	a new instance with the new amount and the same unit as this
+	 * @return	the shared instance with the new amount and the same unit and time zone as this, see {@link #of(int, AggregationPeriodUnit, ZoneId)}
 	 */
 	public AggregationPeriod withAmount(int newAmount){
-		return new AggregationPeriod(newAmount, unit, zone);
+		return of(newAmount, unit, zone);
 	}
 	
 	/**
-	 * Return a copy of this
+	 * Return a copy of this which is not interned and can be modified
 	 * @return	the new instance with the same amount and unit
 	 */
 	public AggregationPeriod copy(){
@@ -75,7 +137,7 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	 * Short formats like '1H', '2 D', '3y' are also supported.
 	 * @param amountAndUnit	the string to be parsed
 	 * @param zone  the time zone
-	 * @return	the AggregationPeriod instance with specified amount and unit
+	 * @return	the shared AggregationPeriod instance with specified amount and unit, see {@link #of(int, AggregationPeriodUnit, ZoneId)}
 	 */
 	public static AggregationPeriod parse(String amountAndUnit, ZoneId zone){
 		String trimed = amountAndUnit.trim();
@@ -83,12 +145,12 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 		if (StringUtils.isNumericSpace(allExceptLast)){ // short format
 			int amount = Integer.parseInt(allExceptLast.trim());
 			AggregationPeriodUnit unit = AggregationPeriodUnit.parse(trimed.charAt(trimed.length() - 1));
-			return new AggregationPeriod(amount, unit, zone);
+			return of(amount, unit, zone);
 		}else{
 			int firstNonNumeric = indexOfFirstNonNumeric(trimed);
 			int amount = Integer.valueOf(trimed.substring(0, firstNonNumeric));
 			AggregationPeriodUnit unit = AggregationPeriodUnit.parse(trimed.substring(firstNonNumeric).trim());
-			return new AggregationPeriod(amount, unit, zone);
+			return of(amount, unit, zone);
 		}
 	}
 	
@@ -97,7 +159,8 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	 * Short formats like '1H', '2 D', '3y' are also supported.
 	 * Short formats with time zone prefix like 'l70P5A1H', '12tdkg2D', 'g893BA3y' are also supported.
 	 * @param zoneAndAmountAndUnit	the full string
-	 * @return	the AggregationPeriod instance with time zone, amount and unit specified in the input string
+	 * @return	the shared AggregationPeriod instance with time zone, amount and unit specified in the input string,
+	 * 			see {@link #of(int, AggregationPeriodUnit, ZoneId)}
 	 */
 	public static AggregationPeriod parse(String zoneAndAmountAndUnit){
 		String trimed = zoneAndAmountAndUnit.trim();
@@ -105,13 +168,13 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 		if (StringUtils.isNumericSpace(allExceptLast)){ // short format without time zone
 			int amount = Integer.parseInt(allExceptLast.trim());
 			AggregationPeriodUnit unit = AggregationPeriodUnit.parse(trimed.charAt(trimed.length() - 1));
-			return new AggregationPeriod(amount, unit, TimeZoneUtility.UTC);
+			return of(amount, unit, TimeZoneUtility.UTC);
 		}else{
 			String[] splited = StringUtils.split(trimed);
 			if (splited.length == 2 && StringUtils.isNumeric(splited[0])){	// long format without time zone
 				int amount = Integer.valueOf(splited[0]);
 				AggregationPeriodUnit unit = AggregationPeriodUnit.parse(splited[1]);
-				return new AggregationPeriod(amount, unit, TimeZoneUtility.UTC);
+				return of(amount, unit, TimeZoneUtility.UTC);
 			}else if (splited.length == 3){
 				ZoneId zone = TimeZoneUtility.toZoneId(splited[0]);
 				return parse(splited[1] + " " + splited[2], zone);
@@ -167,11 +230,9 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 		
 		if (o != null && o instanceof AggregationPeriod){
 			AggregationPeriod that = (AggregationPeriod)o;
-			return new EqualsBuilder()
-				.append(this.amount, that.amount)
-				.append(this.unit, that.unit)
-				.append(this.zone, that.zone)
-				.isEquals();
+			return this.amount == that.amount && this.unit == that.unit 
+					&& (this.zone == that.zone || this.zone != null && this.zone.equals(that.zone))
+					&& this.hashCode() == that.hashCode();
 		}else{
 			return false;
 		}
@@ -179,7 +240,12 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	
 	@Override
 	public int hashCode(){
-		return amount * 7099991 + amount + unit.hashCode() * 738713 + zone.hashCode()*11;
+		int h = hash;
+		if (h == 0){
+			h = amount * 7099991 + amount + unit.hashCode() * 738713 + (zone == null ? 0 : zone.hashCode())*11;
+			hash = h;
+		}
+		return h;
 	}
 
 	/**
@@ -188,9 +254,9 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	 * @return	true if aggregation is supported, false if not.
 	 */
 	public boolean canBeAggregatedTo(AggregationPeriod upperLevel){
-		return (upperLevel.getDuration().toMillis() <= 1000L * 60 * 15
-				|| this.getDuration().toMillis() <= 1000L * 60 * 15
-				|| this.zone.normalized().equals(upperLevel.zone.normalized()))
+		return (upperLevel.getDurationMillis() <= 1000L * 60 * 15
+				|| this.getDurationMillis() <= 1000L * 60 * 15
+				|| this.getNormalizedZone().equals(upperLevel.getNormalizedZone()))
 				&& unit.canSupportAggregation(amount, upperLevel.unit, upperLevel.amount);
 	}
 	
@@ -217,45 +283,129 @@ public class AggregationPeriod implements Serializable, Comparable<AggregationPe
 	
 	@JsonIgnore
 	public Duration getDuration(){
-		return unit.getTemporalUnit().getDuration().multipliedBy(amount);
+		return Duration.ofMillis(getDurationMillis());
+	}
+	
+	/**
+	 * Get the duration in milliseconds, which is estimated for units like month and year
+	 * @return	the duration in milliseconds
+	 */
+	@JsonIgnore
+	public long getDurationMillis(){
+		long d = durationMillis;
+		if (d == 0){
+			d = getUnitDurationMillis() * amount;
+			durationMillis = d;
+		}
+		return d;
+	}
+	
+	protected long getUnitDurationMillis(){
+		long d = unitDurationMillis;
+		if (d == 0){
+			d = unit.getTemporalUnit().getDuration().toMillis();
+			unitDurationMillis = d;
+		}
+		return d;
+	}
+	
+	/**
+	 * Get the normalized time zone, for example, 'GMT' and 'UTC' are normalized to 'Z'.
+	 * @return	the normalized time zone
+	 */
+	@JsonIgnore
+	public ZoneId getNormalizedZone(){
+		ZoneId z = normalizedZone;
+		if (z == null){
+			z = zone.normalized();
+			normalizedZone = z;
+		}
+		return z;
 	}
 	
 	@Override
 	public int compareTo(AggregationPeriod that) {
 		if (that == null){
 			return 1;
+		}else if (that == this){
+			return 0;
 		}else{
-			return new CompareToBuilder()
-				.append(this.getDuration(), that.getDuration())
-				.append(this.unit.getTemporalUnit().getDuration(), that.unit.getTemporalUnit().getDuration())
-				.append(this.zone.getId(), that.zone.getId())
-				.toComparison();
+			int result = Long.compare(this.getDurationMillis(), that.getDurationMillis());
+			if (result == 0){
+				result = Long.compare(this.getUnitDurationMillis(), that.getUnitDurationMillis());
+				if (result == 0){
+					result = this.zone.getId().compareTo(that.zone.getId());
+				}
+			}
+			return result;
 		}
 	}
+	
+	/**
+	 * Check that this is not an interned instance before changes
+	 * @throws IllegalStateException if this is an interned instance
+	 */
+	protected void checkNotInterned(){
+		if (interned){
+			throw new IllegalStateException("Interned instance can not be modified: " + this);
+		}
+	}
+	
+	/**
+	 * Clear the cached values after changes
+	 */
+	protected void clearCache(){
+		codeName = null;
+		durationMillis = 0;
+		unitDurationMillis = 0;
+		normalizedZone = null;
+		hash = 0;
+	}
 
 
 	public int getAmount() {
 		return amount;
 	}
 
+	/**
+	 * Set the amount. It is only for deserialization.
+	 * @param amount	the amount
+	 * @throws IllegalStateException if this is an interned instance
+	 */
 	public void setAmount(int amount) {
+		checkNotInterned();
 		this.amount = amount;
+		clearCache();
 	}
 
 	public AggregationPeriodUnit getUnit() {
 		return unit;
 	}
 
+	/**
+	 * Set the unit. It is only for deserialization.
+	 * @param unit	the unit
+	 * @throws IllegalStateException if this is an interned instance
+	 */
 	public void setUnit(AggregationPeriodUnit unit) {
+		checkNotInterned();
 		this.unit = unit;
+		clearCache();
 	}
 
 	public ZoneId getZone() {
 		return zone;
 	}
 
+	/**
+	 * Set the time zone. It is only for deserialization.
+	 * @param zone	the time zone
+	 * @throws IllegalStateException if this is an interned instance
+	 */
 	public void setZone(ZoneId zone) {
+		checkNotInterned();
 		this.zone = zone;
+		clearCache();
 	}
 
 }
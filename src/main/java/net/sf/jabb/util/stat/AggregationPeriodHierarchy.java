@@ -17,6 +17,8 @@ import java.util.stream.Collectors;
 /**
  * The forest structure of AggregationPeriod nodes.
  * Each node can have an attachment object.
+ * Aggregation periods added by code name or by amount and unit are the shared instances
+ * returned by {@link AggregationPeriod#parse(String)} and {@link AggregationPeriod#of(int, AggregationPeriodUnit)}.
  * @author James Hu
  *
  * @param <T> type of attachments
@@ -115,7 +117,7 @@ public class AggregationPeriodHierarchy<T> implements Serializable{
 	 * @return	true if successfully added, false if such a root already exists
 	 */
 	public boolean add(int amount, AggregationPeriodUnit unit, T attachment){
-		return add(new AggregationPeriod(amount, unit), attachment);
+		return add(AggregationPeriod.of(amount, unit), attachment);
 	}
 
 	/**
@@ -210,7 +212,7 @@ public class AggregationPeriodHierarchy<T> implements Serializable{
 	 * @throws IllegalArgumentException  if the base aggregation period cannot be aggregated to the upper level aggregation period
 	 */
 	public boolean add(String baseCodeName, int amount, AggregationPeriodUnit unit, T attachment){
-		return add(baseCodeName, new AggregationPeriod(amount, unit), attachment);
+		return add(baseCodeName, AggregationPeriod.of(amount, unit), attachment);
 	}
 	
 	/**
@@ -262,7 +264,7 @@ public class AggregationPeriodHierarchy<T> implements Serializable{
 	 * @throws IllegalArgumentException  if the base aggregation period cannot be aggregated to the upper level aggregation period
 	 */
 	public boolean add(int baseAmount, AggregationPeriodUnit baseUnit, int amount, AggregationPeriodUnit unit, T attachment){
-		return add(AggregationPeriod.getCodeName(baseAmount, baseUnit), new AggregationPeriod(amount, unit), attachment);
+		return add(AggregationPeriod.getCodeName(baseAmount, baseUnit), AggregationPeriod.of(amount, unit), attachment);
 	}
 	
 	/**
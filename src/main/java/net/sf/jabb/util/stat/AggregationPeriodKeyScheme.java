@@ -109,6 +109,31 @@ public interface AggregationPeriodKeyScheme {
 		return generateKey(ZonedDateTime.ofInstant(Instant.ofEpochSecond(60L*epochMinutes), zone));
 	}
 	
+	/**
+	 * Generate the number representations of the keys of the time periods that the specified points of time fall into
+	 * @param epochMillis	milliseconds since UNIX epoch
+	 * @param zone			the time zone
+	 * @param keyNumbers	the array to be filled with number representations of the keys, must not be shorter than epochMillis
+	 */
+	default void generateKeyNumbers(long[] epochMillis, ZoneId zone, long[] keyNumbers){
+		generateKeyNumbers(epochMillis, 0, epochMillis.length, zone, keyNumbers, 0);
+	}
+	
+	/**
+	 * Generate the number representations of the keys of the time periods that the specified points of time fall into
+	 * @param epochMillis	milliseconds since UNIX epoch
+	 * @param offset		index of the first element in epochMillis to be converted
+	 * @param length		number of elements to be converted
+	 * @param zone			the time zone
+	 * @param keyNumbers	the array to be filled with number representations of the keys
+	 * @param keyNumbersOffset	index in keyNumbers to which the number representation of the key of the first element will be stored
+	 */
+	default void generateKeyNumbers(long[] epochMillis, int offset, int length, ZoneId zone, long[] keyNumbers, int keyNumbersOffset){
+		for (int i = 0; i < length; i ++){
+			keyNumbers[keyNumbersOffset + i] = generateKeyNumber(LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis[offset + i]), zone));
+		}
+	}
+	
 	/**
 	 * Separate the part representing AggregationPeriod from the key
 	 * @param key	the time period key
@@ -148,4 +173,14 @@ public interface AggregationPeriodKeyScheme {
 	 */
 	String generateKey(long keyNumber);
 
+	/**
+	 * Append the string form of the key to a StringBuilder, so that the StringBuilder can be reused for generating many keys
+	 * @param sb			the StringBuilder
+	 * @param keyNumber		number part of the key
+	 * @return	the same StringBuilder
+	 */
+	default StringBuilder appendKey(StringBuilder sb, long keyNumber){
+		return sb.append(generateKey(keyNumber));
+	}
+
 }
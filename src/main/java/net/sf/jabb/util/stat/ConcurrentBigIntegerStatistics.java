@@ -13,29 +13,30 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 /**
  * Thread-safe statistics holder for high precision use cases.
+ * The sum is kept by a {@link StripedBigIntegerAdder} which stays in long arithmetic until it overflows.
  * @author James Hu
  *
  */
 public class ConcurrentBigIntegerStatistics implements NumberStatistics<BigInteger>, Serializable{
-	private static final long serialVersionUID = 5258045107455137348L;
+	private static final long serialVersionUID = -1290833507213284695L;
 	protected static final BigInteger LONG_MAX_VALUE = BigInteger.valueOf(Long.MAX_VALUE);
 	protected static final BigInteger LONG_MIN_VALUE = BigInteger.valueOf(Long.MIN_VALUE);
 	
 	protected LongAdder count;
-	protected BigIntegerAdder sum;
+	protected StripedBigIntegerAdder sum;
 	protected ConcurrentBigIntegerMinMaxHolder bigIntegerMinMax;
 	protected ConcurrentLongMinMaxHolder longMinMax;
 	
 	public ConcurrentBigIntegerStatistics(){
 		count = new LongAdder();
-		sum = new BigIntegerAdder();
+		sum = new StripedBigIntegerAdder();
 		bigIntegerMinMax = new ConcurrentBigIntegerMinMaxHolder();
 		longMinMax = new ConcurrentLongMinMaxHolder();
 	}
 	
 	public ConcurrentBigIntegerStatistics(int sumConcurrencyFactor){
 		count = new LongAdder();
-		sum = new BigIntegerAdder(sumConcurrencyFactor);
+		sum = new StripedBigIntegerAdder(sumConcurrencyFactor);
 		bigIntegerMinMax = new ConcurrentBigIntegerMinMaxHolder();
 		longMinMax = new ConcurrentLongMinMaxHolder();
 	}
@@ -0,0 +1,421 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import static net.sf.jabb.util.codec.VarIntUtility.readVarLong;
+import static net.sf.jabb.util.codec.VarIntUtility.unzigzag;
+import static net.sf.jabb.util.codec.VarIntUtility.writeVarLong;
+import static net.sf.jabb.util.codec.VarIntUtility.zigzag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe and mergeable histogram of non-negative long values, for percentiles such as p95 and p99 of latencies.
+ * Buckets are log-linear like those of HdrHistogram: values below 2<sup>precisionBits</sup> have their own buckets,
+ * and each power of 2 above that is divided into 2<sup>precisionBits - 1</sup> buckets of equal width,
+ * so the relative error of percentiles is not more than 1/2<sup>precisionBits - 1</sup>.
+ * Number of buckets, and so the memory, is bounded by the precision and the highest trackable value.
+ *
+ * <p>Recording a value is lock-free. Count, sum, min and max are exact and are kept by a {@link StripedLongStatistics},
+ * values higher than the highest trackable value are counted in the last bucket, and negative values are counted in the first bucket.
+ * Histograms can be merged across threads, nodes and aggregation periods, for example when rolling up to upper level aggregation periods
+ * in an {@link AggregationPeriodHierarchy}.
+ * They can be serialized to a compact byte array by {@link #toBytes()}, or a Base64 string by {@link #toBase64()} that can go into
+ * the <code>o</code> column of CJTSD.</p>
+ *
+ * @author James Hu
+ *
+ */
+public class ConcurrentLongHistogram implements NumberStatistics<Long>, Serializable {
+	private static final long serialVersionUID = 3405935788286493372L;
+	static protected final byte FORMAT_VERSION = 1;
+	static public final int MIN_PRECISION_BITS = 2;
+	static public final int MAX_PRECISION_BITS = 16;
+
+	protected int precisionBits;
+	protected long highestTrackableValue;
+	protected AtomicLongArray counts;
+	protected StripedLongStatistics statistics;
+
+	/**
+	 * Constructor
+	 * @param precisionBits	number of bits of precision, between 2 and 16. 7 gives relative error within 1.6%, 10 gives relative error within 0.2%.
+	 * @param highestTrackableValue	the highest value that can be recorded accurately, for example 3600_000_000_000L for latencies up to 1 hour in nanoseconds
+	 */
+	public ConcurrentLongHistogram(int precisionBits, long highestTrackableValue){
+		if (precisionBits < MIN_PRECISION_BITS || precisionBits > MAX_PRECISION_BITS){
+			throw new IllegalArgumentException("Precision bits must be between " + MIN_PRECISION_BITS + " and " + MAX_PRECISION_BITS + ": " + precisionBits);
+		}
+		if (highestTrackableValue < 1){
+			throw new IllegalArgumentException("Highest trackable value must be positive: " + highestTrackableValue);
+		}
+		this.precisionBits = precisionBits;
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new AtomicLongArray(indexOf(highestTrackableValue, precisionBits) + 1);
+		this.statistics = new StripedLongStatistics();
+	}
+
+	/**
+	 * Constructor. The highest trackable value will be Long.MAX_VALUE.
+	 * @param precisionBits	number of bits of precision, between 2 and 16
+	 */
+	public ConcurrentLongHistogram(int precisionBits){
+		this(precisionBits, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Get the index of the bucket that a value belongs to
+	 * @param value		the value, must not be negative
+	 * @param precisionBits	number of bits of precision
+	 * @return	the index of the bucket
+	 */
+	static protected int indexOf(long value, int precisionBits){
+		if (value < (1L << precisionBits)){
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+		int half = 1 << (precisionBits - 1);
+		return (1 << precisionBits) + (shift - 1) * half + ((int)(value >>> shift) - half);
+	}
+
+	/**
+	 * Get the lowest value of a bucket
+	 * @param index		index of the bucket
+	 * @param precisionBits	number of bits of precision
+	 * @return	the lowest value that belongs to the bucket
+	 */
+	static protected long lowestValueOf(int index, int precisionBits){
+		if (index < (1 << precisionBits)){
+			return index;
+		}
+		int half = 1 << (precisionBits - 1);
+		int j = index - (1 << precisionBits);
+		int shift = j / half + 1;
+		return (long)(j % half + half) << shift;
+	}
+
+	/**
+	 * Get the highest value of a bucket
+	 * @param index		index of the bucket
+	 * @param precisionBits	number of bits of precision
+	 * @return	the highest value that belongs to the bucket
+	 */
+	static protected long highestValueOf(int index, int precisionBits){
+		if (index < (1 << precisionBits)){
+			return index;
+		}
+		int shift = (index - (1 << precisionBits)) / (1 << (precisionBits - 1)) + 1;
+		long highest = lowestValueOf(index, precisionBits) + (1L << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+	protected int bucketOf(long value){
+		if (value <= 0){
+			return 0;
+		}
+		if (value >= highestTrackableValue){
+			return counts.length() - 1;
+		}
+		return indexOf(value, precisionBits);
+	}
+
+	/**
+	 * Record a value with a count, as if the value had been evaluated that many times
+	 * @param value	the value
+	 * @param count	number of times, must not be negative
+	 * @throws ArithmeticException	if value * count overflows long, in which case nothing is recorded
+	 */
+	public void evaluate(long value, long count){
+		if (count > 0){
+			long sum = Math.multiplyExact(value, count);
+			counts.addAndGet(bucketOf(value), count);
+			statistics.merge(count, sum, value, value);
+		}
+	}
+
+	@Override
+	public void evaluate(long value){
+		counts.incrementAndGet(bucketOf(value));
+		statistics.evaluate(value);
+	}
+
+	@Override
+	public void evaluate(int value) {
+		evaluate((long)value);
+	}
+
+	@Override
+	public void evaluate(BigInteger value) {
+		evaluate(value.longValue());
+	}
+
+	/**
+	 * Get the value at a percentile. The returned value is the highest value of the bucket that the percentile falls in,
+	 * but never higher than the max value or lower than the min value.
+	 * @param percentile	the percentile, between 0 and 100, for example 99.9
+	 * @return	the value at the percentile, or 0 if there is no value recorded
+	 */
+	public long getValueAtPercentile(double percentile){
+		long total = 0;
+		int length = counts.length();
+		long[] snapshot = new long[length];
+		for (int i = 0; i < length; i ++){
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0){
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+		long cumulative = 0;
+		int i;
+		for (i = 0; i < length - 1; i ++){
+			cumulative += snapshot[i];
+			if (cumulative >= target){
+				break;
+			}
+		}
+		long value = i == length - 1 ? Long.MAX_VALUE : highestValueOf(i, precisionBits);
+		return Math.max(statistics.getMinAsLong(), Math.min(value, statistics.getMaxAsLong()));
+	}
+
+	/**
+	 * Get the number of recorded values in a bucket
+	 * @param index	index of the bucket
+	 * @return	the count
+	 */
+	public long getCountAtIndex(int index){
+		return counts.get(index);
+	}
+
+	/**
+	 * Get the number of buckets, each of them takes 8 bytes of memory
+	 * @return	number of buckets
+	 */
+	public int getNumberOfBuckets(){
+		return counts.length();
+	}
+
+	public int getPrecisionBits() {
+		return precisionBits;
+	}
+
+	public long getHighestTrackableValue() {
+		return highestTrackableValue;
+	}
+
+	/**
+	 * Check if there has been any value evaluated
+	 * @return	true if count is zero
+	 */
+	public boolean isEmpty(){
+		return statistics.isEmpty();
+	}
+
+	@Override
+	public long getCount() {
+		return statistics.getCount();
+	}
+
+	@Override
+	public Double getAvg() {
+		return statistics.getAvg();
+	}
+
+	@Override
+	public BigDecimal getAvg(int scale) {
+		return statistics.getAvg(scale);
+	}
+
+	@Override
+	public Long getMin() {
+		return statistics.getMin();
+	}
+
+	@Override
+	public Long getMax() {
+		return statistics.getMax();
+	}
+
+	@Override
+	public Long getSum() {
+		return statistics.getSum();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < counts.length(); i ++){
+			counts.set(i, 0);
+		}
+		statistics.reset();
+	}
+
+	/**
+	 * Reset the count, sum, min and max. Because there is no information about the distribution, all the buckets will be emptied,
+	 * and percentiles will not be available until more values are recorded.
+	 */
+	@Override
+	public void reset(long newCount, Long newSum, Long newMin, Long newMax) {
+		reset();
+		statistics.reset(newCount, newSum, newMin, newMax);
+	}
+
+	/**
+	 * Merge count, sum, min and max. Because there is no information about the distribution, buckets will not be changed.
+	 */
+	@Override
+	public void merge(long count, Long sum, Long min, Long max) {
+		statistics.merge(count, sum, min, max);
+	}
+
+	/**
+	 * Merge with another statistics. If the other one is also a histogram, its buckets are merged, otherwise only count, sum, min and max are merged.
+	 */
+	@Override
+	public void merge(NumberStatistics<? extends Number> other) {
+		if (other instanceof ConcurrentLongHistogram){
+			merge((ConcurrentLongHistogram) other);
+		}else{
+			statistics.merge(other);
+		}
+	}
+
+	/**
+	 * Merge with another histogram. If the two have different precisions, each bucket of the other histogram
+	 * is merged into the bucket of this histogram that its middle value belongs to.
+	 * @param other	the other histogram, it can be null
+	 */
+	public void merge(ConcurrentLongHistogram other){
+		if (other == null){
+			return;
+		}
+		int length = other.counts.length();
+		boolean samePrecision = other.precisionBits == this.precisionBits;
+		for (int i = 0; i < length; i ++){
+			long c = other.counts.get(i);
+			if (c != 0){
+				int target = samePrecision ? Math.min(i, counts.length() - 1) :
+					bucketOf(lowestValueOf(i, other.precisionBits) / 2 + highestValueOf(i, other.precisionBits) / 2);
+				counts.addAndGet(target, c);
+			}
+		}
+		statistics.merge(other.statistics);
+	}
+
+	/**
+	 * Serialize to a compact byte array. Only non-empty buckets are included, with gaps and counts as variable length integers.
+	 * @return	the bytes
+	 */
+	public byte[] toBytes(){
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_VERSION);
+			out.writeByte(precisionBits);
+			writeVarLong(out, highestTrackableValue);
+			long count = statistics.getCount();
+			writeVarLong(out, count);
+			if (count > 0){
+				writeVarLong(out, zigzag(statistics.getSumAsLong()));
+				writeVarLong(out, zigzag(statistics.getMinAsLong()));
+				writeVarLong(out, zigzag(statistics.getMaxAsLong()));
+			}
+			int length = counts.length();
+			int nonEmpty = 0;
+			for (int i = 0; i < length; i ++){
+				if (counts.get(i) != 0){
+					nonEmpty ++;
+				}
+			}
+			writeVarLong(out, nonEmpty);
+			int previous = -1;
+			for (int i = 0; i < length && nonEmpty > 0; i ++){
+				long c = counts.get(i);
+				if (c != 0){
+					writeVarLong(out, i - previous - 1);
+					writeVarLong(out, c);
+					previous = i;
+					nonEmpty --;
+				}
+			}
+			while(nonEmpty-- > 0){	// buckets emptied concurrently
+				writeVarLong(out, 0);
+				writeVarLong(out, 0);
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Deserialize from the bytes generated by {@link #toBytes()}
+	 * @param bytes	the bytes
+	 * @return	the histogram
+	 */
+	static public ConcurrentLongHistogram fromBytes(byte[] bytes){
+		try{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			byte version = in.readByte();
+			if (version != FORMAT_VERSION){
+				throw new IllegalArgumentException("Unknown format version: " + version);
+			}
+			int precisionBits = in.readByte();
+			long highestTrackableValue = readVarLong(in);
+			ConcurrentLongHistogram histogram = new ConcurrentLongHistogram(precisionBits, highestTrackableValue);
+			long count = readVarLong(in);
+			if (count > 0){
+				long sum = unzigzag(readVarLong(in));
+				long min = unzigzag(readVarLong(in));
+				long max = unzigzag(readVarLong(in));
+				histogram.statistics.merge(count, sum, min, max);
+			}
+			int nonEmpty = (int)readVarLong(in);
+			int i = -1;
+			for (int j = 0; j < nonEmpty; j ++){
+				i += (int)readVarLong(in) + 1;
+				histogram.counts.set(Math.min(i, histogram.counts.length() - 1), readVarLong(in));
+			}
+			return histogram;
+		}catch(IOException e){
+			throw new IllegalArgumentException("Invalid bytes", e);
+		}
+	}
+
+	/**
+	 * Serialize to a Base64 string of the compact bytes generated by {@link #toBytes()}
+	 * @return	the Base64 string
+	 */
+	public String toBase64(){
+		return Base64.getEncoder().encodeToString(toBytes());
+	}
+
+	/**
+	 * Deserialize from the Base64 string generated by {@link #toBase64()}
+	 * @param base64	the Base64 string
+	 * @return	the histogram
+	 */
+	static public ConcurrentLongHistogram fromBase64(String base64){
+		return fromBytes(Base64.getDecoder().decode(base64));
+	}
+
+	@Override
+	public String toString(){
+		return statistics.isEmpty() ? statistics.toString() :
+			"(" + statistics.getCount() + ", " + statistics.getSumAsLong() + ", " + statistics.getMinAsLong() + "/" + statistics.getMaxAsLong()
+			+ ", p50=" + getValueAtPercentile(50) + ", p95=" + getValueAtPercentile(95) + ", p99=" + getValueAtPercentile(99) + ")";
+	}
+
+}
@@ -4,6 +4,7 @@
 package net.sf.jabb.util.stat;
 
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -13,10 +14,16 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.IsoFields;
 import java.time.temporal.TemporalUnit;
 import java.time.temporal.WeekFields;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import net.sf.jabb.util.time.ZoneOffsetTable;
+
 /**
  * The scheme of year, month, day, hour, minute
  * @author James Hu
@@ -24,9 +31,12 @@ import java.util.stream.Collectors;
  */
 public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregationPeriodKeyScheme, Serializable{
 	private static final long serialVersionUID = -3654502940787144075L;
+	static private final int[] MONTH_OFFSETS_FOR_DAY_OF_WEEK = {0, 3, 2, 5, 0, 3, 5, 1, 4, 6, 2, 4};
 
 	protected AggregationPeriodHierarchy<?> aph;
 	protected boolean enableCompression;
+	protected AggregationPeriod[] periods;
+	protected Map<AggregationPeriod, Integer> periodIndexes;
 
 	protected DefaultAggregationPeriodKeyScheme(AggregationPeriodHierarchy<?> aggregationPeriodHierarchy, boolean enableCompression){
 		aggregationPeriodHierarchy.codeMapping.values().stream()
@@ -35,6 +45,12 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 			});
 		this.aph = aggregationPeriodHierarchy;
 		this.enableCompression = enableCompression;
+		this.periods = aggregationPeriodHierarchy.getAll().stream()
+				.sorted(Comparator.comparing(AggregationPeriod::getCodeName)).toArray(AggregationPeriod[]::new);
+		this.periodIndexes = new HashMap<>();
+		for (int i = 0; i < periods.length; i ++){
+			periodIndexes.put(periods[i], i);
+		}
 	}
 	
 	/**
@@ -107,6 +123,16 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 		return staticGenerateKey(aph.get(apCode), keyNumber, enableCompression);
 	}
 	
+	@Override
+	public StringBuilder appendKey(StringBuilder sb, AggregationPeriod ap, long keyNumber){
+		return appendKey(sb, ap.getCodeName(), keyNumber, staticGetKeyNumberLength(ap, enableCompression));
+	}
+	
+	@Override
+	public void generateKeyNumbers(AggregationPeriod ap, long[] epochMillis, int offset, int length, long[] keyNumbers, int keyNumbersOffset){
+		staticGenerateKeyNumbers(ap, epochMillis, offset, length, ap.zone, keyNumbers, keyNumbersOffset, enableCompression);
+	}
+	
 
 	
 	@Override
@@ -184,6 +210,50 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 		}
 	}
 	
+	/**
+	 * Generate the number parts of the keys in bulk. Offsets of the time zone are looked up from the cached {@link ZoneOffsetTable},
+	 * and dates are calculated from epoch days, so that no date time object is created except for the calendar-year based week units.
+	 * @param ap			the aggregation period
+	 * @param epochMillis	milliseconds since UNIX epoch
+	 * @param offset		index of the first element in epochMillis to be converted
+	 * @param length		number of elements to be converted
+	 * @param zone			the time zone
+	 * @param keyNumbers	the array to be filled with number parts of the keys
+	 * @param keyNumbersOffset	index in keyNumbers to which the number part of the key of the first element will be stored
+	 * @param enableCompression	whether to apply compression or not
+	 */
+	static protected void staticGenerateKeyNumbers(AggregationPeriod ap, long[] epochMillis, int offset, int length, ZoneId zone, 
+			long[] keyNumbers, int keyNumbersOffset, boolean enableCompression){
+		ZoneOffsetTable.of(zone).toLocalEpochSeconds(epochMillis, offset, length, keyNumbers, keyNumbersOffset);
+		for (int i = 0; i < length; i ++){
+			long localSecond = keyNumbers[keyNumbersOffset + i];
+			long epochDay = Math.floorDiv(localSecond, 86400);
+			int secondOfDay = (int)(localSecond - epochDay * 86400);
+			keyNumbers[keyNumbersOffset + i] = staticGenerateKeyNumberOfEpochDay(ap, epochDay, secondOfDay / 3600, secondOfDay / 60 % 60, enableCompression) >>> 5;
+		}
+	}
+	
+	static protected long staticGenerateKeyNumberOfEpochDay(AggregationPeriod ap, long epochDay, int hour, int minute, boolean enableCompression){
+		int year;
+		switch(ap.unit){
+			case WEEK_BASED_YEAR:
+			case WEEK_BASED_YEAR_WEEK:
+				long thursday = epochDay - Math.floorMod(epochDay + 3, 7) + 3;		// the week based year is the year of the Thursday in the same week
+				year = (int)(toYearMonthDay(thursday) / 10000);
+				if (ap.unit == AggregationPeriodUnit.WEEK_BASED_YEAR){
+					return compress(enableCompression, ap, year - year % ap.amount, 4);
+				}else{
+					return compress(enableCompression, ap, year*100 + (thursday - epochDayOfJanuaryFirst(year)) / 7 + 1, 6);		// amount must be 1
+				}
+			case YEAR_WEEK_ISO:
+			case YEAR_WEEK_SUNDAY_START:
+				return staticGenerateKeyNumber(ap, LocalDate.ofEpochDay(epochDay).atTime(hour, minute), enableCompression);
+			default:
+				long yyyyMMdd = toYearMonthDay(epochDay);
+				return staticGenerateKeyNumber(ap, (int)(yyyyMMdd / 10000), (int)(yyyyMMdd / 100) % 100, (int)(yyyyMMdd % 100), hour, minute, enableCompression);
+		}
+	}
+	
 	static protected String staticGenerateKey(AggregationPeriod ap, int year, int month, int dayOfMonth, int hour, int minute, boolean enableCompression) {
 		return toString(ap.getCodeName(), staticGenerateKeyNumber(ap, year, month, dayOfMonth, hour, minute, enableCompression));
 	}
@@ -205,7 +275,13 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 	@Override
 	public AggregationPeriod retrieveAggregationPeriod(String key){
 		int i = endOfAggregationPeriod(key);
-		return i > 0 ? AggregationPeriod.parse(key.substring(0, i)) : null;
+		if (i > 0){
+			String code = key.substring(0, i);
+			AggregationPeriod ap = aph.get(code);
+			return ap == null ? AggregationPeriod.parse(code) : ap;
+		}else{
+			return null;
+		}
 	}
 	
 	/**
@@ -234,6 +310,33 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 		}
 	}
 	
+	/**
+	 * Parse the number part of the key without creating a substring
+	 * @param key	the key
+	 * @param start	position of the first digit
+	 * @return	the number part of the key
+	 */
+	static protected long parseKeyNumber(String key, int start){
+		int length = key.length();
+		if (start < 0 || start >= length){
+			throw new NumberFormatException("No digit found in key: " + key);
+		}
+		long number = 0;
+		for (int i = start; i < length; i ++){
+			int digit = key.charAt(i) - '0';
+			if (digit < 0 || digit > 9){
+				throw new NumberFormatException("Invalid digit found in key: " + key);
+			}
+			number = number * 10 + digit;
+		}
+		return number;
+	}
+
+	@Override
+	public long retrieveKeyNumber(String key){
+		return parseKeyNumber(key, endOfAggregationPeriod(key));
+	}
+
 	/**
 	 * Find the end position of the aggregation period code
 	 * @param key	the key starts with aggregation period code name
@@ -263,7 +366,10 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 	}		
 		
 	static protected LocalDateTime getStartTime(AggregationPeriod ap, String key, boolean uncompress){
-		long k = Long.parseLong(key.substring(ap.getCodeName().length()));
+		return getStartTime(ap, parseKeyNumber(key, ap.getCodeName().length()), uncompress);
+	}
+
+	static protected LocalDateTime getStartTime(AggregationPeriod ap, long k, boolean uncompress){
 		if (uncompress){
 			k = uncompress(ap, k);
 		}
@@ -284,7 +390,7 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 				sb = new StringBuilder();
 				sb.append(i); // year
 				sb.append("-W01-1");
-				return LocalDateTime.parse(sb.toString(), DateTimeFormatter.ISO_WEEK_DATE);
+				return LocalDate.parse(sb.toString(), DateTimeFormatter.ISO_WEEK_DATE).atTime(0, 0);
 			case WEEK_BASED_YEAR_WEEK:
 				sb = new StringBuilder();
 				sb.append(i/100); // year
@@ -312,6 +418,18 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 		return nextStart;
 	}
 
+	/**
+	 * Get the end time of the aggregation period that the specified time falls into.
+	 * This is useful for aligning actions, such as rotations, to the boundaries of aggregation periods.
+	 * @param ap	the aggregation period
+	 * @param time	the time
+	 * @return	the end time (exclusive) of the time period, which is also the start time of next time period, in the time zone of the aggregation period.
+	 */
+	static public ZonedDateTime staticGetEndTime(AggregationPeriod ap, ZonedDateTime time){
+		String key = staticGenerateKey(ap, time.withZoneSameInstant(ap.zone).toLocalDateTime(), false);
+		return getEndTime(ap, key, false);
+	}
+
 	/**
 	 * Iterate along time to find next key
 	 * @param ap	the aggregation period
@@ -417,6 +535,282 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 		}
 	}
 
+	/**
+	 * Get the index of an aggregation period in this key scheme.
+	 * An index together with a key number can identify a key without the string form of the key, 
+	 * for example in primitive arrays or as a pair of primitive fields.
+	 * @param ap	the aggregation period
+	 * @return	index of the aggregation period
+	 */
+	public int getPeriodIndex(AggregationPeriod ap){
+		Integer index = periodIndexes.get(ap);
+		if (index == null){
+			throw new IllegalArgumentException("Aggregation period not found in the hierarchy: " + ap);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the index of an aggregation period in this key scheme.
+	 * @param apCode	code name of the aggregation period
+	 * @return	index of the aggregation period
+	 */
+	public int getPeriodIndex(String apCode){
+		return getPeriodIndex(aph.get(apCode));
+	}
+	
+	/**
+	 * Get the index of the aggregation period of a key
+	 * @param key	the key
+	 * @return	index of the aggregation period
+	 */
+	public int retrievePeriodIndex(String key){
+		return getPeriodIndex(retrieveAggregationPeriod(key));
+	}
+	
+	/**
+	 * Get the aggregation period by its index
+	 * @param periodIndex	index of the aggregation period
+	 * @return	the aggregation period
+	 */
+	public AggregationPeriod getAggregationPeriod(int periodIndex){
+		return periods[periodIndex];
+	}
+	
+	public String generateKey(int periodIndex, long keyNumber){
+		return generateKey(periods[periodIndex], keyNumber);
+	}
+	
+	public LocalDateTime getStartTime(int periodIndex, long keyNumber){
+		return getStartTime(periods[periodIndex], keyNumber, enableCompression);
+	}
+	
+	public long nextKeyNumber(int periodIndex, long keyNumber){
+		return nextKeyNumber(periods[periodIndex], keyNumber);
+	}
+	
+	public long previousKeyNumber(int periodIndex, long keyNumber){
+		return previousKeyNumber(periods[periodIndex], keyNumber);
+	}
+	
+	public PrimitiveIterator.OfLong keyNumbers(int periodIndex, Instant from, Instant to){
+		return keyNumbers(periods[periodIndex], from, to);
+	}
+	
+	@Override
+	public long nextKeyNumber(AggregationPeriod ap, long keyNumber){
+		return stepKeyNumber(ap, keyNumber, 1, enableCompression);
+	}
+	
+	@Override
+	public long previousKeyNumber(AggregationPeriod ap, long keyNumber){
+		return stepKeyNumber(ap, keyNumber, -1, enableCompression);
+	}
+	
+	/**
+	 * Find the number part of the key of next or previous time period in primitive arithmetic,
+	 * without creating any string or date time object except for the calendar-year based week units,
+	 * and the hour and minute units in time zones having daylight saving time which need to be checked against time gaps.
+	 * @param ap	the aggregation period
+	 * @param keyNumber	number part of the key
+	 * @param direction	1 for next, -1 for previous
+	 * @param enableCompression	whether to apply compression or not
+	 * @return	number part of the key for next or previous time period
+	 */
+	static protected long stepKeyNumber(AggregationPeriod ap, long keyNumber, int direction, boolean enableCompression){
+		long x = enableCompression ? uncompress(ap, keyNumber) : keyNumber;
+		int amount = ap.amount * direction;
+		int year;
+		int week;
+		int minute;
+		int hour;
+		long date;
+		switch(ap.unit){
+			case YEAR:
+			case WEEK_BASED_YEAR:
+				x += amount;
+				break;
+			case YEAR_MONTH:
+				int months = (int)(x / 100) * 12 + (int)(x % 100) - 1 + amount;
+				x = (months / 12) * 100 + months % 12 + 1;
+				break;
+			case YEAR_MONTH_DAY:
+				x = addDays(x, direction);
+				break;
+			case YEAR_MONTH_DAY_HOUR:
+				date = x / 100;
+				hour = (int)(x % 100) + amount;
+				if (hour >= 24){
+					date = addDays(date, 1);
+					hour -= 24;
+				}else if (hour < 0){
+					date = addDays(date, -1);
+					hour += 24;
+				}
+				x = date * 100 + hour;
+				if (isInTimeGap(ap, x * 100)){
+					return stepKeyNumberSlowly(ap, keyNumber, direction, enableCompression);
+				}
+				break;
+			case YEAR_MONTH_DAY_HOUR_MINUTE:
+				date = x / 10000;
+				hour = (int)(x % 10000) / 100;
+				minute = (int)(x % 100) + amount;
+				if (minute >= 60){
+					minute -= 60;
+					hour ++;
+				}else if (minute < 0){
+					minute += 60;
+					hour --;
+				}
+				if (hour >= 24){
+					date = addDays(date, 1);
+					hour -= 24;
+				}else if (hour < 0){
+					date = addDays(date, -1);
+					hour += 24;
+				}
+				x = date * 10000 + hour * 100 + minute;
+				if (isInTimeGap(ap, x)){
+					return stepKeyNumberSlowly(ap, keyNumber, direction, enableCompression);
+				}
+				break;
+			case WEEK_BASED_YEAR_WEEK:
+				year = (int)(x / 100);
+				week = (int)(x % 100) + direction;
+				if (week > weeksInWeekBasedYear(year)){
+					year ++;
+					week = 1;
+				}else if (week < 1){
+					year --;
+					week = weeksInWeekBasedYear(year);
+				}
+				x = year * 100 + week;
+				break;
+			default:
+				return stepKeyNumberSlowly(ap, keyNumber, direction, enableCompression);
+		}
+		return enableCompression ? compress(ap, x) >> 5 : x;
+	}
+	
+	static protected long stepKeyNumberSlowly(AggregationPeriod ap, long keyNumber, int direction, boolean enableCompression){
+		String key = staticGenerateKey(ap, keyNumber, enableCompression);
+		key = direction > 0 ? nextKey(ap, key, enableCompression) : previousKey(ap, key, enableCompression);
+		return parseKeyNumber(key, ap.getCodeName().length());
+	}
+	
+	/**
+	 * Check if the start of a time period does not exist in the time zone, normally because of daylight saving
+	 * @param ap	the aggregation period
+	 * @param yyyyMMddHHmm	the start of the time period as a number
+	 * @return	true if the time does not exist in the time zone
+	 */
+	static protected boolean isInTimeGap(AggregationPeriod ap, long yyyyMMddHHmm){
+		if (ap.zone.getRules().isFixedOffset()){
+			return false;
+		}
+		LocalDateTime time = LocalDateTime.of((int)(yyyyMMddHHmm / 100000000L), (int)(yyyyMMddHHmm / 1000000) % 100, (int)(yyyyMMddHHmm / 10000) % 100,
+				(int)(yyyyMMddHHmm / 100) % 100, (int)(yyyyMMddHHmm % 100));
+		return ap.zone.getRules().getValidOffsets(time).isEmpty();
+	}
+	
+	/**
+	 * Add or subtract one day
+	 * @param yyyyMMdd	the date as a number
+	 * @param days		1 or -1
+	 * @return	the new date as a number
+	 */
+	static protected long addDays(long yyyyMMdd, int days){
+		int year = (int)(yyyyMMdd / 10000);
+		int month = (int)(yyyyMMdd / 100) % 100;
+		int day = (int)(yyyyMMdd % 100) + days;
+		if (day > daysInMonth(year, month)){
+			day = 1;
+			if (++month > 12){
+				month = 1;
+				year ++;
+			}
+		}else if (day < 1){
+			if (--month < 1){
+				month = 12;
+				year --;
+			}
+			day = daysInMonth(year, month);
+		}
+		return year * 10000L + month * 100 + day;
+	}
+	
+	/**
+	 * Convert the number of days since 1970-01-01 to date
+	 * @param epochDay	days since 1970-01-01
+	 * @return	the date as a number in the format of yyyyMMdd
+	 */
+	static protected long toYearMonthDay(long epochDay){
+		long z = epochDay + 719468;		// shifted to days since 0000-03-01, so that the leap day is the last day of a year
+		long era = Math.floorDiv(z, 146097);
+		int dayOfEra = (int)(z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;		// month starting from March
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 10000 + month * 100 + day;
+	}
+	
+	/**
+	 * Get the number of days since 1970-01-01 of the first day of a year
+	 * @param year	the year
+	 * @return	days since 1970-01-01
+	 */
+	static protected long epochDayOfJanuaryFirst(int year){
+		long y = year - 1L;		// January is counted as in previous year starting from March
+		long era = Math.floorDiv(y, 400);
+		int yearOfEra = (int)(y - era * 400);
+		return era * 146097 + yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + 306 - 719468;
+	}
+	
+	static protected int daysInMonth(int year, int month){
+		switch(month){
+			case 2:
+				return isLeapYear(year) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+	
+	static protected boolean isLeapYear(int year){
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+	
+	/**
+	 * Get the number of weeks in a ISO week based year, which is 53 if the year starts on Thursday, 
+	 * or it is a leap year starting on Wednesday, otherwise 52.
+	 * @param year	the week based year
+	 * @return	52 or 53
+	 */
+	static protected int weeksInWeekBasedYear(int year){
+		int jan1 = dayOfWeek(year, 1, 1);
+		return jan1 == 4 || (jan1 == 3 && isLeapYear(year)) ? 53 : 52;
+	}
+	
+	/**
+	 * Get the day of week
+	 * @param year	the year
+	 * @param month	the month
+	 * @param day	the day of month
+	 * @return	1 for Monday, 7 for Sunday
+	 */
+	static protected int dayOfWeek(int year, int month, int day){
+		int y = month < 3 ? year - 1 : year;
+		int d = (y + y/4 - y/100 + y/400 + MONTH_OFFSETS_FOR_DAY_OF_WEEK[month - 1] + day) % 7;		// 0 for Sunday
+		return d == 0 ? 7 : d;
+	}
 
 	@Override
 	public String upperLevelKey(String key) {
@@ -517,16 +911,27 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 	 * 				Length of the string may be greater than numberLength+prefix.length() if the number is too large to be fitted within numberLength.
 	 */
 	protected static String toString(String prefix, long nonNegativeNumber, int numberLength){
-		String str = Long.toString(nonNegativeNumber);
-	    int len = str.length();
+		return appendKey(new StringBuilder(prefix.length() + numberLength), prefix, nonNegativeNumber, numberLength).toString();
+	}
 
-	    StringBuilder sb = new StringBuilder();
-	    sb.append(prefix);
-	    for(int i = numberLength; i > len; i--){
-	        sb.append('0');
-	    }
-	    sb.append(str);
-	    return sb.toString();       
+	/**
+	 * Append a non-negative number in fixed-length string format to a StringBuilder, without creating intermediate string. For internal usage.
+	 * @param sb					the StringBuilder
+	 * @param prefix				the prefix to be appended
+	 * @param nonNegativeNumber		the number to be converted, must not be negative
+	 * @param numberLength			required length of the number, if the number is shorter than this length, it will be left padded with '0's
+	 * @return	the same StringBuilder
+	 */
+	protected static StringBuilder appendKey(StringBuilder sb, String prefix, long nonNegativeNumber, int numberLength){
+		sb.append(prefix);
+		int len = 1;
+		for (long x = nonNegativeNumber; x >= 10 && len < numberLength; x /= 10){
+			len ++;
+		}
+		for(int i = numberLength; i > len; i--){
+			sb.append('0');
+		}
+		return sb.append(nonNegativeNumber);
 	}
 
 	protected static long compress(boolean enableCompression, AggregationPeriod ap, long x, int length){
@@ -721,6 +1126,16 @@ public class DefaultAggregationPeriodKeyScheme implements HierarchicalAggregatio
 				return DefaultAggregationPeriodKeyScheme.staticGenerateKey(ap, keyNumber, enableCompression);
 			}
 
+			@Override
+			public StringBuilder appendKey(StringBuilder sb, long keyNumber){
+				return DefaultAggregationPeriodKeyScheme.appendKey(sb, ap.getCodeName(), keyNumber, getKeyNumberLength());
+			}
+
+			@Override
+			public void generateKeyNumbers(long[] epochMillis, int offset, int length, ZoneId zone, long[] keyNumbers, int keyNumbersOffset){
+				DefaultAggregationPeriodKeyScheme.staticGenerateKeyNumbers(ap, epochMillis, offset, length, zone, keyNumbers, keyNumbersOffset, enableCompression);
+			}
+
 
 		};
 	}
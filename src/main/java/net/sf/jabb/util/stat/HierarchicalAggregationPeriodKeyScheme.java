@@ -6,7 +6,10 @@ package net.sf.jabb.util.stat;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 
 /**
  * Time period key scheme that is in a hierarchical structure.
@@ -116,6 +119,31 @@ public interface HierarchicalAggregationPeriodKeyScheme{
 		return generateKey(aggregationPeriod.getCodeName(), LocalDateTime.ofInstant(instant, aggregationPeriod.getZone()));
 	}
 
+	/**
+	 * Generate the number presentations of the keys of the time periods that the specified points of time fall into
+	 * @param ap			the aggregation period
+	 * @param epochMillis	milliseconds since UNIX epoch
+	 * @param keyNumbers	the array to be filled with number presentations of the keys, must not be shorter than epochMillis
+	 */
+	default void generateKeyNumbers(AggregationPeriod ap, long[] epochMillis, long[] keyNumbers){
+		generateKeyNumbers(ap, epochMillis, 0, epochMillis.length, keyNumbers, 0);
+	}
+
+	/**
+	 * Generate the number presentations of the keys of the time periods that the specified points of time fall into
+	 * @param ap			the aggregation period
+	 * @param epochMillis	milliseconds since UNIX epoch
+	 * @param offset		index of the first element in epochMillis to be converted
+	 * @param length		number of elements to be converted
+	 * @param keyNumbers	the array to be filled with number presentations of the keys
+	 * @param keyNumbersOffset	index in keyNumbers to which the number presentation of the key of the first element will be stored
+	 */
+	default void generateKeyNumbers(AggregationPeriod ap, long[] epochMillis, int offset, int length, long[] keyNumbers, int keyNumbersOffset){
+		for (int i = 0; i < length; i ++){
+			keyNumbers[keyNumbersOffset + i] = generateKeyNumber(ap, LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis[offset + i]), ap.getZone()));
+		}
+	}
+
 	/**
 	 * Generate the upper level time period key representing the time period corresponding to the specified key
 	 * @param key	the time period key
@@ -223,5 +251,97 @@ public interface HierarchicalAggregationPeriodKeyScheme{
 	 */
 	String generateKey(String apCode, long keyNumber);
 
+	/**
+	 * Append the string form of the key to a StringBuilder, so that the StringBuilder can be reused for generating many keys
+	 * @param sb		the StringBuilder
+	 * @param ap		aggregation period
+	 * @param keyNumber	number part of the key
+	 * @return	the same StringBuilder
+	 */
+	default StringBuilder appendKey(StringBuilder sb, AggregationPeriod ap, long keyNumber){
+		return sb.append(generateKey(ap, keyNumber));
+	}
+
+	/**
+	 * Get the number part of the key
+	 * @param key	the key
+	 * @return	the number part of the key, as generated by generateKeyNumber(...)
+	 */
+	default long retrieveKeyNumber(String key){
+		return Long.parseLong(separateAggregationPeriod(key)[1]);
+	}
+
+	/**
+	 * Generate the number part of the key representing the next time period
+	 * @param ap		aggregation period
+	 * @param keyNumber	number part of the key
+	 * @return	number part of the key for next time period
+	 */
+	default long nextKeyNumber(AggregationPeriod ap, long keyNumber){
+		return retrieveKeyNumber(nextKey(generateKey(ap, keyNumber)));
+	}
+
+	/**
+	 * Generate the number part of the key representing the previous time period
+	 * @param ap		aggregation period
+	 * @param keyNumber	number part of the key
+	 * @return	number part of the key for previous time period
+	 */
+	default long previousKeyNumber(AggregationPeriod ap, long keyNumber){
+		return retrieveKeyNumber(previousKey(generateKey(ap, keyNumber)));
+	}
+
+	/**
+	 * Iterate through the number parts of the keys of all the time periods that overlap with a time range
+	 * @param ap		aggregation period
+	 * @param from		start of the time range (inclusive)
+	 * @param to		end of the time range (exclusive)
+	 * @return	iterator of the number parts of the keys, in time order
+	 */
+	default PrimitiveIterator.OfLong keyNumbers(AggregationPeriod ap, Instant from, Instant to){
+		long first = generateKeyNumber(ap, LocalDateTime.ofInstant(from, ap.getZone()));
+		long last = to.isAfter(from) ? generateKeyNumber(ap, LocalDateTime.ofInstant(to.minusNanos(1), ap.getZone())) : first - 1;
+		return new PrimitiveIterator.OfLong(){
+			long next = first;
+
+			@Override
+			public boolean hasNext() {
+				return next <= last;
+			}
+
+			@Override
+			public long nextLong() {
+				if (next > last){
+					throw new NoSuchElementException();
+				}
+				long current = next;
+				next = current == last ? last + 1 : nextKeyNumber(ap, current);
+				return current;
+			}
+		};
+	}
+
+	/**
+	 * Iterate through the keys of all the time periods that overlap with a time range
+	 * @param ap		aggregation period
+	 * @param from		start of the time range (inclusive)
+	 * @param to		end of the time range (exclusive)
+	 * @return	iterator of the keys, in time order
+	 */
+	default Iterator<String> keys(AggregationPeriod ap, Instant from, Instant to){
+		PrimitiveIterator.OfLong numbers = keyNumbers(ap, from, to);
+		return new Iterator<String>(){
+			@Override
+			public boolean hasNext() {
+				return numbers.hasNext();
+			}
+
+			@Override
+			public String next() {
+				return generateKey(ap, numbers.nextLong());
+			}
+		};
+	}
+
 
 }
@@ -0,0 +1,370 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Aggregates timestamped values into statistics of time periods defined by an {@link AggregationPeriodHierarchy}.
+ * Values are recorded into buckets of the lowest level aggregation periods (the roots of the hierarchy), each bucket is
+ * identified by the key generated by a {@link HierarchicalAggregationPeriodKeyScheme}.
+ * When the watermark passes the end time of a bucket, the bucket is closed: its statistics are merged into the buckets of
+ * all its upper level aggregation periods and then emitted through the callback.
+ * Because upper level buckets only receive closed lower level buckets, rolling up never rescans any recorded value,
+ * and an upper level bucket is always emitted after all the lower level buckets it covers.
+ *
+ * <p>Recording is lock-free as long as the statistics are, except when a new bucket has to be created:
+ * the bucket that the latest value fell into is cached for each root aggregation period,
+ * so normally recording is just a range check followed by {@link NumberStatistics#evaluate(long)},
+ * and keys are only generated when a value falls out of the cached bucket.
+ * The watermark can be advanced explicitly by {@link #advanceWatermark(Instant)},
+ * or automatically as values are recorded if allowed lateness is specified, in which case it is only advanced
+ * when the time of a recorded value minus the allowed lateness has passed the end time of any open bucket.
+ * Values older than the watermark are not recorded and are only counted, see {@link #getLateCount()}.
+ * A value that is recorded concurrently with the closing of its bucket is either included in the emitted statistics,
+ * or treated as a late value, and a bucket is never emitted more than once.</p>
+ *
+ * @author James Hu
+ *
+ * @param <S>	type of the statistics, for example {@link ConcurrentLongStatistics} or {@link ConcurrentLongHistogram}
+ */
+public class StreamingAggregator<S extends NumberStatistics<Long>> {
+	protected HierarchicalAggregationPeriodKeyScheme keyScheme;
+	protected Supplier<S> statisticsFactory;
+	protected BiConsumer<String, S> closedBucketListener;
+	protected long allowedLatenessMillis;
+
+	protected Level[] roots;
+	protected Collection<Level> levels;		// lower levels always come before their upper levels
+	protected volatile long watermark = Long.MIN_VALUE;
+	protected AtomicLong nextClosingTime = new AtomicLong(Long.MAX_VALUE);
+	protected LongAdder lateCount = new LongAdder();
+
+	/**
+	 * Buckets of an aggregation period
+	 */
+	protected class Level{
+		final AggregationPeriod aggregationPeriod;
+		final List<Level> upperLevels = new ArrayList<>();
+		final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+		volatile Bucket current;
+
+		Level(AggregationPeriod aggregationPeriod){
+			this.aggregationPeriod = aggregationPeriod;
+		}
+
+		/**
+		 * Get the bucket for recording a value, the bucket will be created if it does not exist.
+		 * @param epochMilli	time of the value
+		 * @return	the bucket which may have been closed, or null if the bucket does not exist and would have been closed already
+		 */
+		Bucket getBucket(long epochMilli){
+			Bucket b = current;
+			if (b != null && epochMilli >= b.startTime && epochMilli < b.endTime){
+				return b;
+			}
+			String key = keyScheme.generateKey(aggregationPeriod, Instant.ofEpochMilli(epochMilli));
+			b = buckets.get(key);
+			if (b == null){
+				synchronized(StreamingAggregator.this){		// so that the closing either sees the new bucket or has advanced the watermark past it
+					b = buckets.get(key);
+					if (b == null){
+						b = new Bucket(this, key);
+						if (b.endTime <= watermark){
+							return null;
+						}
+						addBucket(b);
+					}
+				}
+			}
+			Bucket c = current;
+			if (c == null || b.startTime > c.startTime){
+				current = b;
+			}
+			return b;
+		}
+
+		/**
+		 * Get the bucket for merging a closed lower level bucket, the bucket will be created if it does not exist.
+		 * It must be called while holding the lock.
+		 * @param key	key of the bucket
+		 * @return	the bucket
+		 */
+		Bucket getBucket(String key){
+			Bucket b = buckets.get(key);
+			if (b == null){
+				b = new Bucket(this, key);
+				addBucket(b);
+			}
+			return b;
+		}
+
+		private void addBucket(Bucket b){
+			buckets.put(b.key, b);
+			nextClosingTime.accumulateAndGet(b.endTime, Math::min);
+		}
+	}
+
+	/**
+	 * Statistics of a time period identified by a key
+	 */
+	protected class Bucket{
+		final String key;
+		final LocalDateTime start;
+		final long startTime;
+		final long endTime;
+		final S statistics;
+		final AtomicInteger writers = new AtomicInteger();		// number of threads recording, or CLOSED plus that number after closed
+
+		Bucket(Level level, String key){
+			this.key = key;
+			this.start = keyScheme.getStartTime(key);
+			this.startTime = start.atZone(level.aggregationPeriod.getZone()).toInstant().toEpochMilli();
+			this.endTime = keyScheme.getEndTime(key).toInstant().toEpochMilli();
+			this.statistics = statisticsFactory.get();
+		}
+
+		/**
+		 * Start recording into this bucket
+		 * @return	false if the bucket has been closed
+		 */
+		boolean enter(){
+			int w;
+			do{
+				w = writers.get();
+				if (w < 0){
+					return false;
+				}
+			}while(!writers.compareAndSet(w, w + 1));
+			return true;
+		}
+
+		/**
+		 * Finish recording into this bucket
+		 */
+		void exit(){
+			writers.decrementAndGet();
+		}
+
+		/**
+		 * Mark this bucket as closed, and wait for the threads that are still recording into it to finish
+		 */
+		void close(){
+			writers.getAndAdd(CLOSED);
+			while(writers.get() != CLOSED){
+				Thread.yield();
+			}
+		}
+	}
+
+	static private final int CLOSED = Integer.MIN_VALUE;
+
+	/**
+	 * Constructor
+	 * @param aggregationPeriodHierarchy	the hierarchy of aggregation periods
+	 * @param keyScheme				the key scheme for the aggregation periods in the hierarchy
+	 * @param statisticsFactory		the factory for creating statistics of the buckets, for example <code>ConcurrentLongStatistics::new</code>
+	 * @param closedBucketListener	the callback that receives the key and the statistics of closed buckets
+	 * @param allowedLateness		if not null, the watermark will be advanced automatically to the time of the latest recorded value minus this
+	 */
+	@SuppressWarnings("unchecked")
+	public StreamingAggregator(AggregationPeriodHierarchy<?> aggregationPeriodHierarchy, HierarchicalAggregationPeriodKeyScheme keyScheme,
+			Supplier<S> statisticsFactory, BiConsumer<String, S> closedBucketListener, Duration allowedLateness){
+		this.keyScheme = keyScheme;
+		this.statisticsFactory = statisticsFactory;
+		this.closedBucketListener = closedBucketListener;
+		this.allowedLatenessMillis = allowedLateness == null ? -1 : allowedLateness.toMillis();
+
+		List<Level> all = new ArrayList<>();
+		for (AggregationPeriod ap: aggregationPeriodHierarchy.getRoots()){
+			all.add(new Level(ap));
+		}
+		this.roots = all.toArray(new StreamingAggregator.Level[all.size()]);
+		for (int i = 0; i < all.size(); i ++){		// breadth first
+			Level level = all.get(i);
+			for (AggregationPeriod uap: aggregationPeriodHierarchy.getUpperLevelAggregationPeriods(level.aggregationPeriod)){
+				Level upper = new Level(uap);
+				level.upperLevels.add(upper);
+				all.add(upper);
+			}
+		}
+		this.levels = all;
+	}
+
+	/**
+	 * Constructor. Key scheme will be the default one for the hierarchy, and the watermark needs to be advanced explicitly.
+	 * @param aggregationPeriodHierarchy	the hierarchy of aggregation periods
+	 * @param statisticsFactory		the factory for creating statistics of the buckets, for example <code>ConcurrentLongStatistics::new</code>
+	 * @param closedBucketListener	the callback that receives the key and the statistics of closed buckets
+	 */
+	public StreamingAggregator(AggregationPeriodHierarchy<?> aggregationPeriodHierarchy,
+			Supplier<S> statisticsFactory, BiConsumer<String, S> closedBucketListener){
+		this(aggregationPeriodHierarchy, DefaultAggregationPeriodKeyScheme.newInstance(aggregationPeriodHierarchy), statisticsFactory, closedBucketListener, null);
+	}
+
+	/**
+	 * Record a value
+	 * @param time	time of the value
+	 * @param value	the value
+	 * @return	true if it has been recorded, false if it is older than the watermark
+	 */
+	public boolean record(Instant time, long value){
+		return record(time.toEpochMilli(), value);
+	}
+
+	/**
+	 * Record a value
+	 * @param epochMilli	time of the value as milliseconds since epoch
+	 * @param value	the value
+	 * @return	true if it has been recorded, false if it is older than the watermark
+	 */
+	public boolean record(long epochMilli, long value){
+		if (epochMilli < watermark || !recordIntoRoots(epochMilli, value)){
+			lateCount.increment();
+			return false;
+		}
+		if (allowedLatenessMillis >= 0 && epochMilli - allowedLatenessMillis >= nextClosingTime.get()){
+			advanceWatermark(epochMilli - allowedLatenessMillis);
+		}
+		return true;
+	}
+
+	/**
+	 * Record a value into the buckets of all the root aggregation periods, or none of them if any of the buckets has been closed.
+	 * All the buckets are got before entering any of them, so that no bucket is entered while waiting for the lock.
+	 * @param epochMilli	time of the value as milliseconds since epoch
+	 * @param value	the value
+	 * @return	true if it has been recorded, false if any of the buckets has been closed
+	 */
+	protected boolean recordIntoRoots(long epochMilli, long value){
+		if (roots.length == 1){
+			Bucket b = roots[0].getBucket(epochMilli);
+			if (b == null || !b.enter()){
+				return false;
+			}
+			try{
+				b.statistics.evaluate(value);
+			}finally{
+				b.exit();
+			}
+			return true;
+		}
+		
+		@SuppressWarnings("unchecked")
+		Bucket[] buckets = new StreamingAggregator.Bucket[roots.length];
+		for (int i = 0; i < roots.length; i ++){
+			if ((buckets[i] = roots[i].getBucket(epochMilli)) == null){
+				return false;
+			}
+		}
+		int entered = 0;
+		try{
+			for (; entered < buckets.length; entered ++){
+				if (!buckets[entered].enter()){
+					return false;
+				}
+			}
+			for (Bucket b: buckets){
+				b.statistics.evaluate(value);
+			}
+			return true;
+		}finally{
+			for (int i = 0; i < entered; i ++){
+				buckets[i].exit();
+			}
+		}
+	}
+
+	/**
+	 * Advance the watermark, all the buckets ending at or before the watermark will be closed and emitted.
+	 * @param newWatermark	the new watermark, it is ignored if not after the current watermark
+	 */
+	public void advanceWatermark(Instant newWatermark){
+		advanceWatermark(newWatermark.toEpochMilli());
+	}
+
+	/**
+	 * Advance the watermark, all the buckets ending at or before the watermark will be closed and emitted.
+	 * @param newWatermark	the new watermark as milliseconds since epoch, it is ignored if not after the current watermark
+	 */
+	public synchronized void advanceWatermark(long newWatermark){
+		if (newWatermark <= watermark){
+			return;
+		}
+		watermark = newWatermark;
+		nextClosingTime.set(Long.MAX_VALUE);
+		for (Level level: levels){
+			for (Iterator<Bucket> it = level.buckets.values().iterator(); it.hasNext();){
+				Bucket bucket = it.next();
+				if (bucket.endTime <= newWatermark){
+					bucket.close();
+					it.remove();
+					for (Level upper: level.upperLevels){
+						upper.getBucket(keyScheme.generateKey(upper.aggregationPeriod, bucket.start)).statistics.merge(bucket.statistics);
+					}
+					closedBucketListener.accept(bucket.key, bucket.statistics);
+				}else{
+					nextClosingTime.accumulateAndGet(bucket.endTime, Math::min);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close and emit all the buckets, normally when shutting down.
+	 * The watermark will be advanced to the end of time and no value can be recorded after this.
+	 */
+	public void closeAll(){
+		advanceWatermark(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Get the statistics of a bucket that has not been closed
+	 * @param key	key of the bucket
+	 * @return	the statistics, or null if the bucket does not exist or has been closed
+	 */
+	public S getStatistics(String key){
+		AggregationPeriod ap = keyScheme.retrieveAggregationPeriod(key);
+		for (Level level: levels){
+			if (level.aggregationPeriod.equals(ap)){
+				Bucket bucket = level.buckets.get(key);
+				return bucket == null ? null : bucket.statistics;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the watermark
+	 * @return	the watermark as milliseconds since epoch
+	 */
+	public long getWatermark(){
+		return watermark;
+	}
+
+	/**
+	 * Get the number of values that were not recorded because they were older than the watermark
+	 * @return	number of late values
+	 */
+	public long getLateCount(){
+		return lateCount.sum();
+	}
+
+	public HierarchicalAggregationPeriodKeyScheme getKeyScheme(){
+		return keyScheme;
+	}
+
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import net.sf.jabb.util.parallel.StripedCells;
+
+/**
+ * Multi-thread safe adder that can handle numbers larger than Long.MAX_VALUE, for use cases that almost all the numbers fit in long.
+ * Like {@link java.util.concurrent.atomic.LongAdder}, it accumulates in striped long cells, and a thread picks its cell by its thread probe.
+ * Only when adding to the long value of a cell overflows, that value is moved into a BigInteger kept by the same cell,
+ * so that no BigInteger is created when adding int or long values unless there is an overflow.
+ * More cells are added when threads contend, up to the concurrency factor rounded up to a power of 2.
+ *
+ * <p>This class extends {@link Number}, but does <em>not</em> define
+ * methods such as {@code equals}, {@code hashCode} and {@code
+ * compareTo} because instances are expected to be mutated, and so are
+ * not useful as collection keys.
+ *
+ * @author James Hu
+ *
+ */
+public class StripedBigIntegerAdder extends Number{
+	private static final long serialVersionUID = -3521896402735416260L;
+
+	protected Cells cells;
+
+	@SuppressWarnings("serial")
+	static class CellFields extends StripedCells.PaddedCell{
+		volatile long value;
+		volatile BigInteger overflow = BigInteger.ZERO;
+	}
+
+	/**
+	 * A long value and a BigInteger holding whatever does not fit in the long value, padded on both sides to avoid false sharing with other cells
+	 */
+	static final class Cell extends CellFields{
+		private static final long serialVersionUID = -7213302386651426613L;
+		static private final AtomicLongFieldUpdater<CellFields> VALUE = AtomicLongFieldUpdater.newUpdater(CellFields.class, "value");
+		static private final AtomicReferenceFieldUpdater<CellFields, BigInteger> OVERFLOW = AtomicReferenceFieldUpdater.newUpdater(CellFields.class, BigInteger.class, "overflow");
+		long p11, p12, p13, p14, p15, p16, p17;
+
+		/**
+		 * Try to add once
+		 * @param x	the value to add
+		 * @return	false if failed because of contention
+		 */
+		boolean tryAdd(long x){
+			long v = value;
+			long result = v + x;
+			if (((v ^ result) & (x ^ result)) < 0){		// same check as Math.addExact, but without the cost of throwing an exception
+				if (VALUE.compareAndSet(this, v, 0)){
+					addOverflow(BigInteger.valueOf(v).add(BigInteger.valueOf(x)));
+					return true;
+				}
+				return false;
+			}
+			return VALUE.compareAndSet(this, v, result);
+		}
+
+		void addOverflow(BigInteger x){
+			OVERFLOW.accumulateAndGet(this, x, BigInteger::add);
+		}
+
+		void set(long newValue, BigInteger newOverflow){
+			value = newValue;
+			overflow = newOverflow;
+		}
+	}
+
+	static class Cells extends StripedCells<Cell>{
+		private static final long serialVersionUID = -5530437612930375045L;
+
+		Cells(int concurrencyFactor){
+			super(concurrencyFactor);
+		}
+
+		@Override
+		protected Cell newCell() {
+			return new Cell();
+		}
+
+		@Override
+		protected Cell[] newArray(int length) {
+			return new Cell[length];
+		}
+	}
+
+	/**
+	 * Constructor. The concurrencyFactor will be set to the same as number of available CPU cores.
+	 */
+	public StripedBigIntegerAdder(){
+		this(Runtime.getRuntime().availableProcessors(), BigInteger.ZERO);
+	}
+
+	public StripedBigIntegerAdder(int concurrencyFactor){
+		this(concurrencyFactor, BigInteger.ZERO);
+	}
+
+	/**
+	 * Constructor. The concurrencyFactor will be set to the same as number of available CPU cores.
+	 * @param initialValue	the initial value
+	 */
+	public StripedBigIntegerAdder(BigInteger initialValue){
+		this(Runtime.getRuntime().availableProcessors(), initialValue);
+	}
+
+	/**
+	 * Constructor
+	 * @param concurrencyFactor	the maximum number of cells will be this value rounded up to a power of 2
+	 * @param initialValue	the initial value
+	 */
+	public StripedBigIntegerAdder(int concurrencyFactor, BigInteger initialValue){
+		cells = new Cells(concurrencyFactor);
+		set(initialValue);
+	}
+
+    /**
+     * Adds the given value.
+     *
+     * @param x the value to add
+     */
+    public void add(int x) {
+    	add((long)x);
+    }
+
+    /**
+     * Adds the given value.
+     *
+     * @param x the value to add
+     */
+    public void add(long x) {
+    	if (x == 0){
+    		return;
+    	}
+    	if (!cells.home().tryAdd(x)){
+    		while(!cells.next().tryAdd(x)){
+    			// retry on another cell
+    		}
+    	}
+    }
+
+    /**
+     * Adds the given value. It is added as a long if it fits in long.
+     *
+     * @param x the value to add
+     */
+	public void add(BigInteger x) {
+		if (x.bitLength() < 64){
+			add(x.longValue());
+		}else{
+	    	cells.home().addOverflow(x);
+		}
+	}
+
+    /**
+     * Equivalent to {@code add(1)}.
+     */
+    public void increment() {
+    	add(1L);
+    }
+
+    /**
+     * Equivalent to {@code add(-1)}.
+     */
+    public void decrement() {
+    	add(-1L);
+    }
+
+    /**
+     * Get the current number of cells
+     * @return	number of cells
+     */
+    public int getNumberOfCells(){
+    	return cells.getNumberOfCells();
+    }
+
+    /**
+     * Returns the current sum.  The returned value is <em>NOT</em> an
+     * atomic snapshot; invocation in the absence of concurrent
+     * updates returns an accurate result, but concurrent updates that
+     * occur while the sum is being calculated might not be
+     * incorporated.
+     *
+     * @return the sum
+     */
+    public BigInteger sum() {
+    	long longSum = 0;
+    	BigInteger value = BigInteger.ZERO;
+    	for (Cell c: cells.getCells()){
+    		BigInteger o = c.overflow;
+    		if (o.signum() != 0){
+    			value = value.add(o);
+    		}
+    		long v = c.value;
+    		long s = longSum + v;
+    		if (((longSum ^ s) & (v ^ s)) < 0){		// overflow
+    			value = value.add(BigInteger.valueOf(longSum));
+    			longSum = v;
+    		}else{
+    			longSum = s;
+    		}
+    	}
+    	return value.signum() == 0 ? BigInteger.valueOf(longSum) : value.add(BigInteger.valueOf(longSum));
+    }
+
+    /**
+     * Resets the sum to zero. This method may
+     * be a useful alternative to creating a new adder, but is only
+     * effective if there are no concurrent updates.  Because this
+     * method is intrinsically racy, it should only be used when it is
+     * known that no threads are concurrently updating.
+     */
+    public void reset() {
+    	set(BigInteger.ZERO);
+    }
+
+    /**
+     * Set the sum to specified value. This method may
+     * be a useful alternative to creating a new adder, but is only
+     * effective if there are no concurrent updates.  Because this
+     * method is intrinsically racy, it should only be used when it is
+     * known that no threads are concurrently updating.
+     * @param newValue the new value
+     */
+    public void set(BigInteger newValue) {
+    	Cell[] cs = cells.getCells();
+    	if (newValue.bitLength() < 64){
+    		cs[0].set(newValue.longValue(), BigInteger.ZERO);
+    	}else{
+    		cs[0].set(0, newValue);
+    	}
+		for (int i = 1; i < cs.length; i ++){
+			cs[i].set(0, BigInteger.ZERO);
+		}
+     }
+
+    /**
+     * Equivalent in effect to {@link #sum} followed by {@link
+     * #reset}. This method may apply for example during quiescent
+     * points between multithreaded computations.  If there are
+     * updates concurrent with this method, the returned value is
+     * <em>not</em> guaranteed to be the final value occurring before
+     * the reset.
+     *
+     * @return the sum
+     */
+    public BigInteger sumThenReset() {
+    	BigInteger sum = sum();
+    	reset();
+    	return sum;
+    }
+
+    /**
+     * Equivalent in effect to {@link #sum} followed by {@link
+     * #set}. This method may apply for example during quiescent
+     * points between multithreaded computations.  If there are
+     * updates concurrent with this method, the returned value is
+     * <em>not</em> guaranteed to be the final value occurring before
+     * the set.
+     *
+     * @param newValue the new value
+     * @return the sum
+     */
+    public BigInteger sumThenSet(BigInteger newValue) {
+    	BigInteger sum = sum();
+    	set(newValue);
+    	return sum;
+    }
+
+    /**
+     * Returns the String representation of the {@link #sum}.
+     * @return the String representation of the {@link #sum}
+     */
+    public String toString() {
+        return sum().toString();
+    }
+
+
+	@Override
+	public int intValue() {
+		return sum().intValue();
+	}
+
+	@Override
+	public long longValue() {
+		return sum().longValue();
+	}
+
+	@Override
+	public float floatValue() {
+		return sum().floatValue();
+	}
+
+	@Override
+	public double doubleValue() {
+		return sum().doubleValue();
+	}
+}
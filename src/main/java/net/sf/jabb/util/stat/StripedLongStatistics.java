@@ -0,0 +1,298 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import net.sf.jabb.util.parallel.StripedCells;
+
+/**
+ * Thread-safe statistics of long values, including count, sum, min and max, for very frequent evaluations.
+ * Unlike {@link ConcurrentLongStatistics} which keeps count, sum and min/max in separate holders,
+ * this class keeps all of them together in cells padded to occupy a cache line each,
+ * so that an evaluation only touches one cache line.
+ * Each thread has a home cell chosen by its thread probe, and more cells are added when threads contend,
+ * up to the number of CPU cores rounded up to a power of 2.
+ * Both evaluations and getters are lock-free.
+ *
+ * <p>Primitive getters such as {@link #getMinAsLong()} and {@link #merge(StripedLongStatistics)} never box or allocate,
+ * use {@link #isEmpty()} to find out whether min and max are meaningful.
+ * Like {@link java.util.concurrent.atomic.LongAdder}, results of getters are not atomic snapshots when there are concurrent evaluations.
+ * Sum overflows silently, same as {@link ConcurrentLongStatistics}.</p>
+ *
+ * @author James Hu
+ *
+ */
+public class StripedLongStatistics implements NumberStatistics<Long>, Serializable {
+	private static final long serialVersionUID = -2512263962051311217L;
+
+	protected Cells cells;
+
+	@SuppressWarnings("serial")
+	static class CellFields extends StripedCells.PaddedCell{
+		volatile long count;
+		volatile long sum;
+		volatile long min = Long.MAX_VALUE;
+		volatile long max = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Count, sum, min and max updated by CAS, padded on both sides to avoid false sharing with other cells
+	 */
+	static final class Cell extends CellFields{
+		private static final long serialVersionUID = 6086434282213567409L;
+		static private final AtomicLongFieldUpdater<CellFields> COUNT = AtomicLongFieldUpdater.newUpdater(CellFields.class, "count");
+		static private final AtomicLongFieldUpdater<CellFields> SUM = AtomicLongFieldUpdater.newUpdater(CellFields.class, "sum");
+		static private final AtomicLongFieldUpdater<CellFields> MIN = AtomicLongFieldUpdater.newUpdater(CellFields.class, "min");
+		static private final AtomicLongFieldUpdater<CellFields> MAX = AtomicLongFieldUpdater.newUpdater(CellFields.class, "max");
+		long p11, p12, p13, p14, p15, p16, p17;
+
+		/**
+		 * Merge into this cell. Min and max are updated before count, so that they are meaningful once count is seen as non-zero.
+		 * @return	false if there was contention on the count, in which case the merge has still been done
+		 */
+		boolean merge(long count, long sum, long min, long max){
+			long v;
+			while (min < (v = this.min) && !MIN.compareAndSet(this, v, min)){
+				// retry
+			}
+			while (max > (v = this.max) && !MAX.compareAndSet(this, v, max)){
+				// retry
+			}
+			SUM.getAndAdd(this, sum);
+			v = this.count;
+			if (COUNT.compareAndSet(this, v, v + count)){
+				return true;
+			}
+			COUNT.getAndAdd(this, count);
+			return false;
+		}
+
+		void reset(){
+			count = 0;
+			sum = 0;
+			min = Long.MAX_VALUE;
+			max = Long.MIN_VALUE;
+		}
+	}
+
+	static class Cells extends StripedCells<Cell>{
+		private static final long serialVersionUID = 1908367384950574123L;
+
+		Cells(){
+			super(Runtime.getRuntime().availableProcessors());
+		}
+
+		@Override
+		protected Cell newCell() {
+			return new Cell();
+		}
+
+		@Override
+		protected Cell[] newArray(int length) {
+			return new Cell[length];
+		}
+	}
+
+	public StripedLongStatistics(){
+		cells = new Cells();
+	}
+
+	@Override
+	public void evaluate(int value) {
+		evaluate((long)value);
+	}
+
+	@Override
+	public void evaluate(long value){
+		if (!cells.home().merge(1, value, value, value)){
+			cells.next();		// move to another cell for the next time
+		}
+	}
+
+	@Override
+	public void evaluate(BigInteger value) {
+		evaluate(value.longValue());
+	}
+
+	/**
+	 * Check if there has been any value evaluated
+	 * @return	true if count is zero
+	 */
+	public boolean isEmpty(){
+		return getCount() == 0;
+	}
+
+	@Override
+	public long getCount() {
+		long count = 0;
+		for (Cell c: cells.getCells()){
+			count += c.count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the sum without boxing
+	 * @return	the sum, 0 if there has been no value evaluated
+	 */
+	public long getSumAsLong(){
+		long sum = 0;
+		for (Cell c: cells.getCells()){
+			sum += c.sum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Get the minimum value without boxing
+	 * @return	the minimum value, or Long.MAX_VALUE if there has been no value evaluated
+	 */
+	public long getMinAsLong(){
+		long min = Long.MAX_VALUE;
+		for (Cell c: cells.getCells()){
+			long v = c.min;
+			if (v < min){
+				min = v;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Get the maximum value without boxing
+	 * @return	the maximum value, or Long.MIN_VALUE if there has been no value evaluated
+	 */
+	public long getMaxAsLong(){
+		long max = Long.MIN_VALUE;
+		for (Cell c: cells.getCells()){
+			long v = c.max;
+			if (v > max){
+				max = v;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Get the average without boxing
+	 * @return	the average, or Double.NaN if there has been no value evaluated
+	 */
+	public double getAvgAsDouble(){
+		long count = 0;
+		long sum = 0;
+		for (Cell c: cells.getCells()){
+			count += c.count;
+			sum += c.sum;
+		}
+		return count == 0 ? Double.NaN : (double)sum / count;
+	}
+
+	@Override
+	public Double getAvg(){
+		double avg = getAvgAsDouble();
+		return Double.isNaN(avg) ? null : avg;
+	}
+
+	@Override
+	public BigDecimal getAvg(int scale) {
+		Double avg = getAvg();
+		return avg == null ? null : new BigDecimal(avg).setScale(scale, BigDecimal.ROUND_HALF_UP);
+	}
+
+	@Override
+	public Long getMin() {
+		return isEmpty() ? null : getMinAsLong();
+	}
+
+	@Override
+	public Long getMax() {
+		return isEmpty() ? null : getMaxAsLong();
+	}
+
+	@Override
+	public Long getSum() {
+		return getSumAsLong();
+	}
+
+	/**
+	 * Reset to empty. Like {@link java.util.concurrent.atomic.LongAdder#reset()}, it is only effective if there are no concurrent evaluations.
+	 */
+	@Override
+	public void reset(){
+		for (Cell c: cells.getCells()){
+			c.reset();
+		}
+	}
+
+	@Override
+	public void reset(long newCount, Long newSum, Long newMin, Long newMax) {
+		reset();
+		merge(newCount, newSum, newMin, newMax);
+	}
+
+	/**
+	 * Merge count, sum, min and max without boxing
+	 * @param count	the count, if it is zero then nothing will be merged
+	 * @param sum	the sum
+	 * @param min	the minimum value
+	 * @param max	the maximum value
+	 */
+	public void merge(long count, long sum, long min, long max) {
+		if (count == 0){
+			return;
+		}
+		if (!cells.home().merge(count, sum, min, max)){
+			cells.next();
+		}
+	}
+
+	@Override
+	public void merge(long count, Long sum, Long min, Long max) {
+		merge(count, sum == null ? 0 : sum, min == null ? Long.MAX_VALUE : min, max == null ? Long.MIN_VALUE : max);
+	}
+
+	/**
+	 * Merge with another instance without boxing
+	 * @param other	the other instance, it can be null
+	 */
+	public void merge(StripedLongStatistics other){
+		if (other == null){
+			return;
+		}
+		long count = 0;
+		long sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (Cell c: other.cells.getCells()){
+			count += c.count;
+			sum += c.sum;
+			if (c.min < min){
+				min = c.min;
+			}
+			if (c.max > max){
+				max = c.max;
+			}
+		}
+		merge(count, sum, min, max);
+	}
+
+	@Override
+	public void merge(NumberStatistics<? extends Number> other){
+		if (other instanceof StripedLongStatistics){
+			merge((StripedLongStatistics) other);
+		}else if (other != null && other.getCount() > 0){
+			merge(other.getCount(), other.getSum().longValue(), other.getMin().longValue(), other.getMax().longValue());
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "(" + getCount() + ", " + getSumAsLong() + ", " + getMin() + "/" + getMax() + ")";
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package net.sf.jabb.util.time;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-calculated offset transitions of a time zone, for converting epoch time to local time with pure arithmetic.
+ * Transitions between years {@link #FIRST_YEAR} and {@link #LAST_YEAR} are kept in arrays and looked up by binary search,
+ * times outside of this range fall back to {@link ZoneRules}.
+ * Instances are immutable and cached per time zone, see {@link #of(ZoneId)}.
+ * @author James Hu
+ *
+ */
+public class ZoneOffsetTable {
+	static public final int FIRST_YEAR = 1900;
+	static public final int LAST_YEAR = 2100;
+
+	static protected final long RANGE_START = ZonedDateTime.of(FIRST_YEAR, 1, 1, 0, 0, 0, 0, TimeZoneUtility.UTC).toEpochSecond();
+	static protected final long RANGE_END = ZonedDateTime.of(LAST_YEAR + 1, 1, 1, 0, 0, 0, 0, TimeZoneUtility.UTC).toEpochSecond();
+	static protected final ConcurrentHashMap<ZoneId, ZoneOffsetTable> tables = new ConcurrentHashMap<>();
+
+	protected final ZoneId zone;
+	protected final ZoneRules rules;
+	protected final boolean fixedOffset;
+	/**
+	 * Epoch seconds of the transitions within the range
+	 */
+	protected final long[] transitions;
+	/**
+	 * offsets[i] is the offset in seconds before transitions[i], and the last one is the offset after the last transition
+	 */
+	protected final int[] offsets;
+
+	protected ZoneOffsetTable(ZoneId zone){
+		this.zone = zone;
+		this.rules = zone.getRules();
+		this.fixedOffset = rules.isFixedOffset();
+		if (fixedOffset){
+			transitions = new long[0];
+			offsets = new int[]{rules.getOffset(Instant.EPOCH).getTotalSeconds()};
+		}else{
+			long[] t = new long[64];
+			int[] o = new int[65];
+			int count = 0;
+			Instant instant = Instant.ofEpochSecond(RANGE_START);
+			o[0] = rules.getOffset(instant).getTotalSeconds();
+			ZoneOffsetTransition transition;
+			while((transition = rules.nextTransition(instant)) != null && transition.toEpochSecond() < RANGE_END){
+				if (count == t.length){
+					t = Arrays.copyOf(t, count * 2);
+					o = Arrays.copyOf(o, count * 2 + 1);
+				}
+				t[count] = transition.toEpochSecond();
+				o[++count] = transition.getOffsetAfter().getTotalSeconds();
+				instant = transition.getInstant();
+			}
+			transitions = Arrays.copyOf(t, count);
+			offsets = Arrays.copyOf(o, count + 1);
+		}
+	}
+
+	/**
+	 * Get the table of a time zone
+	 * @param zone	the time zone
+	 * @return	the cached table
+	 */
+	static public ZoneOffsetTable of(ZoneId zone){
+		ZoneOffsetTable table = tables.get(zone);
+		if (table == null){
+			table = tables.computeIfAbsent(zone, ZoneOffsetTable::new);
+		}
+		return table;
+	}
+
+	/**
+	 * Get the offset from UTC at a point of time
+	 * @param epochSecond	seconds since UNIX epoch
+	 * @return	the offset in seconds
+	 */
+	public int getOffsetSeconds(long epochSecond){
+		if (fixedOffset){
+			return offsets[0];
+		}
+		if (epochSecond < RANGE_START || epochSecond >= RANGE_END){
+			return rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+		}
+		int i = Arrays.binarySearch(transitions, epochSecond);
+		return offsets[i >= 0 ? i + 1 : -i - 1];
+	}
+
+	/**
+	 * Convert epoch time to local time
+	 * @param epochSecond	seconds since UNIX epoch
+	 * @return	seconds since 1970-01-01T00:00 in local time of the zone
+	 */
+	public long toLocalEpochSecond(long epochSecond){
+		return epochSecond + getOffsetSeconds(epochSecond);
+	}
+
+	/**
+	 * Convert epoch time to local time
+	 * @param epochMilli	milliseconds since UNIX epoch
+	 * @return	milliseconds since 1970-01-01T00:00 in local time of the zone
+	 */
+	public long toLocalEpochMilli(long epochMilli){
+		return epochMilli + getOffsetSeconds(Math.floorDiv(epochMilli, 1000)) * 1000L;
+	}
+
+	/**
+	 * Convert epoch time to local time in bulk. The offset found for an element is reused for the following elements 
+	 * as long as they are in the same interval between transitions, so that sorted or nearly sorted input needs little searching.
+	 * @param epochMillis		milliseconds since UNIX epoch
+	 * @param offset			index of the first element in epochMillis to be converted
+	 * @param length			number of elements to be converted
+	 * @param localEpochSeconds	the array to be filled with seconds since 1970-01-01T00:00 in local time of the zone
+	 * @param localEpochSecondsOffset	index in localEpochSeconds to which the result of the first element will be stored
+	 */
+	public void toLocalEpochSeconds(long[] epochMillis, int offset, int length, long[] localEpochSeconds, int localEpochSecondsOffset){
+		long intervalStart = 0;
+		long intervalEnd = 0;		// empty interval
+		int offsetSeconds = 0;
+		for (int i = 0; i < length; i ++){
+			long epochSecond = Math.floorDiv(epochMillis[offset + i], 1000);
+			if (epochSecond < intervalStart || epochSecond >= intervalEnd){
+				if (fixedOffset){
+					intervalStart = Long.MIN_VALUE;
+					intervalEnd = Long.MAX_VALUE;
+					offsetSeconds = offsets[0];
+				}else if (epochSecond < RANGE_START || epochSecond >= RANGE_END){
+					intervalStart = 0;
+					intervalEnd = 0;
+					offsetSeconds = rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+				}else{
+					int j = Arrays.binarySearch(transitions, epochSecond);
+					j = j >= 0 ? j + 1 : -j - 1;
+					intervalStart = j == 0 ? RANGE_START : transitions[j - 1];
+					intervalEnd = j == transitions.length ? RANGE_END : transitions[j];
+					offsetSeconds = offsets[j];
+				}
+			}
+			localEpochSeconds[localEpochSecondsOffset + i] = epochSecond + offsetSeconds;
+		}
+	}
+
+	/**
+	 * Get the number of transitions kept in the table
+	 * @return	number of transitions, 0 if the zone has fixed offset
+	 */
+	public int getNumberOfTransitions(){
+		return transitions.length;
+	}
+
+	public ZoneId getZone() {
+		return zone;
+	}
+
+}
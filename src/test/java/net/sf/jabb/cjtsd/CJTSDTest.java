@@ -4,12 +4,32 @@
 package net.sf.jabb.cjtsd;
 
 import static org.junit.Assert.*;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.longs.LongList;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 
@@ -165,4 +185,505 @@ public class CJTSDTest {
 		assertEquals(Duration.ofMinutes(99), list.get(2).getDuration());
 		assertEquals(Duration.ofMinutes(100), list.get(3).getDuration());
 	}
+
+	/**
+	 * Generate the same JSON as ObjectMapper does for CJTSD, column by column
+	 * @param cjtsd	the CJTSD object
+	 * @return	the JSON string
+	 * @throws JsonProcessingException	if failed to write JSON
+	 */
+	static String toJson(PlainCJTSD cjtsd) throws JsonProcessingException{
+		StringBuilder sb = new StringBuilder("{");
+		Object[] columns = new Object[]{"u", cjtsd.getU(), "t", cjtsd.getT(), "d", cjtsd.getD(), "c", cjtsd.getC(), "s", cjtsd.getS(), 
+				"a", cjtsd.getA(), "m", cjtsd.getM(), "x", cjtsd.getX(), "n", cjtsd.getN(), "o", cjtsd.getO()};
+		for (int i = 0; i < columns.length; i += 2){
+			if (columns[i + 1] != null){
+				if (sb.length() > 1){
+					sb.append(',');
+				}
+				sb.append('"').append(columns[i]).append("\":").append(mapper.writeValueAsString(columns[i + 1]));
+			}
+		}
+		return sb.append('}').toString();
+	}
+	
+	static void assertSameInJson(PlainCJTSD expected, PlainCJTSD actual){
+		assertEquals(expected.getU(), actual.getU());
+		assertEquals(String.valueOf(expected.getT()), String.valueOf(actual.getT()));
+		assertEquals(String.valueOf(expected.getD()), String.valueOf(actual.getD()));
+		assertEquals(String.valueOf(expected.getC()), String.valueOf(actual.getC()));
+		assertEquals(String.valueOf(expected.getS()), String.valueOf(actual.getS()));
+		assertEquals(String.valueOf(expected.getA()), String.valueOf(actual.getA()));
+		assertEquals(String.valueOf(expected.getM()), String.valueOf(actual.getM()));
+		assertEquals(String.valueOf(expected.getX()), String.valueOf(actual.getX()));
+		assertEquals(String.valueOf(expected.getN()), String.valueOf(actual.getN()));
+		assertEquals(String.valueOf(expected.getO()), String.valueOf(actual.getO()));
+	}
+	
+	@Test
+	public void testBinaryRoundTrip() throws IOException{
+		CJTSD empty = CJTSD.builder().build();
+		assertSameInJson(empty, CJTSDBinaryCodec.decode(CJTSDBinaryCodec.encode(empty)));
+		CJTSD nothing = new CJTSD();
+		assertSameInJson(nothing, CJTSDBinaryCodec.decode(CJTSDBinaryCodec.encode(nothing)));
+
+		LocalDateTime start = LocalDateTime.of(2016, 2, 28, 23, 0);
+		CJTSD.Builder builder = CJTSD.builder().setUnit(ChronoUnit.SECONDS);
+		for (int i = 0; i < 1000; i ++){
+			builder.add(start.plusSeconds(i * 60 + (i % 7 == 0 ? 3 : 0)), Duration.ofSeconds(i < 500 ? 60 : 300))
+				.addCount((long) i * i)
+				.addSum(i % 3 == 0 ? null : Double.valueOf(i / 3.0))
+				.addAvg(i % 5 == 0 ? Float.valueOf(i / 7.0f) : i % 5 == 1 ? BigDecimal.valueOf(i, 2) : Integer.valueOf(-i))
+				.addMin(i % 2 == 0 ? Long.valueOf(Long.MIN_VALUE + i) : BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(i)))
+				.addMax(Double.valueOf(i * 1.5))
+				.addNumber(Integer.valueOf(i - 500))
+				.addObj(i % 2 == 0 ? "text" + i : Arrays.asList(i, null, "x"));
+		}
+		CJTSD cjtsd = builder.build();
+		CJTSD fromJson = mapper.readValue(toJson(cjtsd), CJTSD.class);
+		assertEquals("0.71428573", fromJson.getA().get(5).toString());	// float in JSON
+		assertEquals("0.06", fromJson.getA().get(6).toString());		// BigDecimal in JSON
+
+		byte[] bytes = CJTSDBinaryCodec.encode(cjtsd);
+		assertSameInJson(fromJson, CJTSDBinaryCodec.decode(bytes));
+		assertArrayEquals(bytes, CJTSDBinaryCodec.encode(fromJson));	// the same whether or not the lists are primitive based
+		assertSameInJson(fromJson, CJTSDBinaryCodec.decode(CJTSDBinaryCodec.encode(fromJson)));
+
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+		buffer.put((byte) 99);
+		CJTSDBinaryCodec.encode(cjtsd, buffer);
+		assertEquals(bytes.length + 1, buffer.position());
+		buffer.flip();
+		buffer.get();
+		assertSameInJson(fromJson, CJTSDBinaryCodec.decode(buffer));
+		assertFalse(buffer.hasRemaining());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CJTSDBinaryCodec.encode(cjtsd, out);
+		CJTSDBinaryCodec.encode(empty, out);
+		out.write(99);
+		byte[] streamed = out.toByteArray();
+		int prefix = bytes.length < 1 << 7 ? 1 : (bytes.length < 1 << 14 ? 2 : 3);
+		assertArrayEquals(bytes, Arrays.copyOfRange(streamed, prefix, prefix + bytes.length));	// prefixed by the length as a varint
+		ByteArrayInputStream in = new ByteArrayInputStream(streamed);
+		assertSameInJson(fromJson, CJTSDBinaryCodec.decode(in));
+		assertSameInJson(empty, CJTSDBinaryCodec.decode(in));
+		assertEquals(99, in.read());		// nothing beyond the CJTSD objects has been read
+		try{
+			CJTSDBinaryCodec.decode(new ByteArrayInputStream(Arrays.copyOf(streamed, prefix + bytes.length - 1)));
+			fail("Incomplete data should be detected");
+		}catch(IOException e){
+			// expected
+		}
+		try{
+			CJTSDBinaryCodec.decode(new ByteArrayInputStream(streamed), bytes.length - 1);
+			fail("Too long data should be rejected");
+		}catch(IllegalArgumentException e){
+			// expected
+		}
+		
+		byte[] bogus = Arrays.copyOf(CJTSDBinaryCodec.encode(CJTSD.builder().setUnit(ChronoUnit.SECONDS).build()), 10);
+		bogus[2] = (byte) 0xFF;		// a huge length of the 'u' column
+		bogus[3] = (byte) 0xFF;
+		bogus[4] = (byte) 0xFF;
+		bogus[5] = (byte) 0x7F;
+		try{
+			CJTSDBinaryCodec.decode(bogus);
+			fail("Invalid length should be rejected");
+		}catch(IllegalArgumentException e){
+			// expected
+		}
+
+		List<CJTSD.Entry> list = CJTSDBinaryCodec.decode(bytes).toList();
+		assertEquals(1000, list.size());
+		assertEquals(start.plusSeconds(999 * 60), list.get(999).getTimestamp());
+		assertEquals(Duration.ofSeconds(300), list.get(999).getDuration());
+		assertEquals(Long.valueOf(999 * 999), list.get(999).getCount());
+		assertNull(list.get(999).getSum());
+		assertEquals(Long.MIN_VALUE + 998, list.get(998).getMin());
+		assertEquals(BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(999)), list.get(999).getMin());
+		assertEquals(Arrays.asList(999, null, "x"), list.get(999).getObj());
+	}
+
+	@Test
+	public void testBinarySizeAndSpeed() throws IOException{
+		Random random = new Random(2016);
+		LocalDateTime start = LocalDateTime.of(2016, 1, 1, 0, 0);
+		CJTSD.Builder builder = CJTSD.builder(20000);
+		for (int i = 0; i < 20000; i ++){
+			long count = random.nextInt(1000);
+			double sum = count * (random.nextDouble() * 100);
+			builder.add(start.plusMinutes(i), Duration.ofMinutes(1))
+				.addCount(count)
+				.addSum(sum)
+				.addAvg(count == 0 ? 0 : sum / count)
+				.addMin(random.nextInt(50))
+				.addMax(50 + random.nextInt(50));
+		}
+		CJTSD cjtsd = builder.build();
+		String json = toJson(cjtsd);
+		byte[] binary = CJTSDBinaryCodec.encode(cjtsd);
+		assertSameInJson(mapper.readValue(json, CJTSD.class), CJTSDBinaryCodec.decode(binary));
+		assertTrue(binary.length * 2 < json.length());
+		System.out.println(String.format("Size of 20000 data points: JSON %,d bytes, binary %,d bytes", json.length(), binary.length));
+
+		for (int round = 0; round < 5; round ++){
+			long t0 = System.nanoTime();
+			int size = 0;
+			for (int i = 0; i < 10; i ++){
+				size += toJson(cjtsd).length();
+			}
+			long t1 = System.nanoTime();
+			for (int i = 0; i < 10; i ++){
+				size += mapper.readValue(json, CJTSD.class).getT().size();
+			}
+			long t2 = System.nanoTime();
+			for (int i = 0; i < 10; i ++){
+				size += CJTSDBinaryCodec.encode(cjtsd).length;
+			}
+			long t3 = System.nanoTime();
+			for (int i = 0; i < 10; i ++){
+				size += CJTSDBinaryCodec.decode(binary).getT().size();
+			}
+			long t4 = System.nanoTime();
+			assertTrue(size > 0);
+			System.out.println(String.format("Encoding/decoding 20000 data points: JSON %.2f/%.2f ms, binary %.2f/%.2f ms",
+					(t1 - t0) / 1e7, (t2 - t1) / 1e7, (t3 - t2) / 1e7, (t4 - t3) / 1e7));
+		}
+	}
+
+	@Test
+	public void testPrimitiveColumns() throws IOException{
+		CJTSD cjtsd = CJTSD.builder().setUnit(ChronoUnit.SECONDS)
+				.add(1000, 60).addCount(1).addSum(5).addAvg(2.5).addMin(1).addMax(Long.valueOf(3)).addNumber(1)
+				.add(1060, 60).addCount(Long.valueOf(2)).addSum(Integer.valueOf(6)).addAvg(3.0).addMin(2.0).addMax(4).addNumber((Number) null)
+				.add(1120, 60).addCount(3).addSum(7L).addAvg(Double.valueOf(3.5)).addMin(BigInteger.TEN).addMax(5).addNumber(Float.valueOf(1.5f))
+				.build();
+		assertTrue((Object) cjtsd.getC() instanceof LongList);
+		assertTrue((Object) cjtsd.getS() instanceof LongList);
+		assertTrue((Object) cjtsd.getA() instanceof DoubleList);
+		assertTrue((Object) cjtsd.getX() instanceof LongList);
+		assertFalse((Object) cjtsd.getM() instanceof LongList);
+		assertFalse((Object) cjtsd.getN() instanceof LongList);
+		assertEquals("{\"u\":\"s\",\"t\":[1000,1060,1120],\"d\":[60],\"c\":[1,2,3],\"s\":[5,6,7],\"a\":[2.5,3.0,3.5],"
+				+ "\"m\":[1,2.0,10],\"x\":[3,4,5],\"n\":[1,null,1.5]}", toJson(cjtsd));
+		
+		CJTSD fromJson = mapper.readValue(toJson(cjtsd), CJTSD.class);
+		assertSameInJson(fromJson, cjtsd);
+		assertArrayEquals(CJTSDBinaryCodec.encode(fromJson), CJTSDBinaryCodec.encode(cjtsd));
+	}
+	
+	@Test
+	public void testDurations() throws IOException{
+		CJTSD cjtsd = CJTSD.builder().add(1).add(2).add(3, 5).add(4, 5).add(5, 300).add(6, 300).add(7, 5).add(8, -1).add(9, 5).build();
+		assertEquals("[1, 2, 3, 4, 5, 6, 7, 8, 9]", cjtsd.getT().toString());
+		assertEquals("[0, 0, 5, 5, 300, -1, 5]", cjtsd.getD().toString());
+		
+		cjtsd = CJTSD.builder().add(1, 300).add(2, 300).add(3, 300).build();
+		assertEquals("[300]", cjtsd.getD().toString());
+	}
+	
+	@Test
+	public void testCursor() throws IOException{
+		assertFalse(CJTSD.builder().build().cursor().next());
+		assertFalse(new CJTSD().cursor().next());
+		
+		LocalDateTime start = LocalDateTime.of(2016, 2, 28, 23, 0);
+		for (ChronoUnit unit: new ChronoUnit[]{ChronoUnit.MINUTES, ChronoUnit.SECONDS, ChronoUnit.MILLIS}){
+			CJTSD.Builder builder = CJTSD.builder().setUnit(unit);
+			for (int i = 0; i < 1000; i ++){
+				builder.add(start.plusMinutes(i * 2), Duration.ofMinutes(i < 500 ? 2 : 1));
+				builder.addCount(i);
+				if (i % 3 == 0){
+					builder.addSum((Number) null);
+				}else{
+					builder.addSum(i * 1.5);
+				}
+				builder.addAvg(i % 2 == 0 ? Float.valueOf(i / 4.0f) : BigDecimal.valueOf(i, 1));
+				builder.addMin(-i);
+				builder.addMax(i);
+				builder.addObj(i % 2 == 0 ? "text" + i : null);
+			}
+			CJTSD built = builder.build();
+			for (CJTSD cjtsd: new CJTSD[]{built, mapper.readValue(toJson(built), CJTSD.class)}){
+				List<CJTSD.Entry> list = cjtsd.toList();
+				CJTSDCursor cursor = cjtsd.cursor();
+				assertEquals(list.size(), cursor.size());
+				for (CJTSD.Entry entry: list){
+					assertTrue(cursor.next());
+					assertEquals(entry.getTimestamp(), LocalDateTime.ofEpochSecond(Math.floorDiv(cursor.getEpochMillis(), 1000), 0, ZoneOffset.UTC));
+					assertEquals(entry.getDuration(), Duration.ofMillis(cursor.getDurationMillis()));
+					assertEquals(entry.getCount().longValue(), cursor.getCount());
+					assertEquals(entry.getSum() != null, cursor.hasSum());
+					if (entry.getSum() != null){
+						assertEquals(entry.getSum().doubleValue(), cursor.getSum(), 0);
+					}else{
+						assertTrue(Double.isNaN(cursor.getSum()));
+						assertEquals(0, cursor.getSumAsLong());
+					}
+					assertEquals(entry.getAvg().doubleValue(), cursor.getAvg(), 0);
+					assertEquals(entry.getAvg().toString(), cursor.getAvgObject().toString());
+					assertEquals(entry.getMin().longValue(), cursor.getMinAsLong());
+					assertEquals(entry.getMax().doubleValue(), cursor.getMax(), 0);
+					assertFalse(cursor.hasNumber());
+					assertEquals(entry.getObj(), cursor.getObj());
+				}
+				assertFalse(cursor.next());
+				assertFalse(cursor.next());
+				
+				long[] total = new long[2];
+				cjtsd.forEach(c -> {
+					assertEquals(total[0], c.getIndex());
+					total[0] ++;
+					total[1] += c.getCount();
+				});
+				assertEquals(1000, total[0]);
+				assertEquals(999 * 1000 / 2, total[1]);
+			}
+		}
+	}
+	
+	@Test
+	public void testCursorSpeed() throws IOException{
+		int size = 100000;
+		Random random = new Random(2016);
+		long epochMinute = LocalDateTime.of(2016, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC) / 60;
+		
+		for (int round = 0; round < 5; round ++){
+			long t0 = System.nanoTime();
+			CJTSD.Builder builder = CJTSD.builder(size);
+			for (int i = 0; i < size; i ++){
+				long count = random.nextInt(1000);
+				builder.add(epochMinute + i, 1)
+					.addCount(count)
+					.addSum(count * 1.5)
+					.addMin(random.nextInt(50))
+					.addMax(50 + random.nextInt(50));
+			}
+			CJTSD cjtsd = builder.build();
+			long t1 = System.nanoTime();
+			double sum1 = 0;
+			for (CJTSD.Entry entry: cjtsd.toList()){
+				sum1 += entry.getSum().doubleValue() + entry.getTimestamp().getMinute() + entry.getDuration().toMinutes();
+			}
+			long t2 = System.nanoTime();
+			double sum2 = 0;
+			for (CJTSDCursor cursor = cjtsd.cursor(); cursor.next();){
+				sum2 += cursor.getSum() + (cursor.getEpochMillis() / 60000 % 60) + cursor.getDurationMillis() / 60000;
+			}
+			long t3 = System.nanoTime();
+			assertEquals(sum1, sum2, 0.001);
+			System.out.println(String.format("%,d data points: building %.2f ms, iterating with toList() %.2f ms, with cursor %.2f ms",
+					size, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6));
+		}
+	}
+
+	static CJTSD buildForStreaming(ChronoUnit unit){
+		LocalDateTime start = LocalDateTime.of(2016, 2, 28, 23, 0);
+		CJTSD.Builder builder = CJTSD.builder().setUnit(unit);
+		for (int i = 0; i < 1000; i ++){
+			builder.add(start.plusMinutes(i * 5), Duration.ofMinutes(i < 300 ? 5 : (i < 600 ? 120 : (i < 990 ? 5 : 200))))
+				.addCount(i % 10 == 0 ? null : Long.valueOf(i))
+				.addSum(i % 3 == 0 ? null : Double.valueOf(i / 3.0))
+				.addAvg(i % 5 == 0 ? Float.valueOf(i / 7.0f) : i % 5 == 1 ? BigDecimal.valueOf(i, 2) : Integer.valueOf(-i))
+				.addMin(i % 2 == 0 ? Long.valueOf(Long.MIN_VALUE + i) : BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(i)))
+				.addMax(i * 1.5)
+				.addNumber(i - 500)
+				.addObj(i % 2 == 0 ? "text" + i : Arrays.asList(i, null, "x"));
+		}
+		return builder.build();
+	}
+	
+	@Test
+	public void testStreamingWriter() throws IOException{
+		for (ChronoUnit unit: new ChronoUnit[]{ChronoUnit.MINUTES, ChronoUnit.SECONDS, ChronoUnit.MILLIS}){
+			CJTSD cjtsd = buildForStreaming(unit);
+			String json = toJson(cjtsd);
+			
+			StringWriter sw = new StringWriter();
+			try(CJTSDWriter writer = new CJTSDWriter(sw)){
+				writer.write(cjtsd);
+			}
+			assertEquals(json, sw.toString());
+			
+			sw = new StringWriter();
+			try(CJTSDWriter writer = new CJTSDWriter(sw)){
+				writer.write(mapper.readValue(json, CJTSD.class));
+			}
+			assertEquals(json, sw.toString());
+			
+			List<CJTSD.Entry> list = cjtsd.toList();
+			sw = new StringWriter();
+			try(CJTSDWriter writer = new CJTSDWriter(sw)){
+				writer.write(unit, list::iterator);
+			}
+			assertEquals(json, sw.toString());
+		}
+		
+		StringWriter sw = new StringWriter();
+		try(CJTSDWriter writer = new CJTSDWriter(sw)){
+			writer.getGenerator().writeStartArray();
+			writer.write(ChronoUnit.MINUTES, () -> Collections.<CJTSD.Entry>emptyList().iterator());
+			writer.write(CJTSD.builder().build());
+			writer.write(ChronoUnit.SECONDS, () -> Arrays.asList(
+					new CJTSD.Entry(LocalDateTime.of(2016, 1, 1, 0, 0), null, null, null, null, null, null, 1, null),
+					new CJTSD.Entry(LocalDateTime.of(2016, 1, 1, 0, 1), Duration.ofSeconds(30), null, null, null, null, null, null, null),
+					new CJTSD.Entry(LocalDateTime.of(2016, 1, 1, 0, 2), null, null, null, null, null, null, 2.5, null)).iterator());
+			writer.getGenerator().writeEndArray();
+		}
+		assertEquals("[{\"t\":[],\"d\":[]},{\"t\":[],\"d\":[]},{\"u\":\"s\",\"t\":[1451606400,1451606460,1451606520],\"d\":[0,30],\"n\":[1,null,2.5]}]", sw.toString());
+	}
+	
+	@Test
+	public void testStreamingWriterWithChangingSource() throws IOException{
+		List<CJTSD.Entry> entries = new ArrayList<>();
+		for (int i = 0; i < 3; i ++){
+			entries.add(new CJTSD.Entry(LocalDateTime.of(2016, 1, 1, 0, i), Duration.ofSeconds(60), null, null, null, null, null, i, null));
+		}
+		for (int change: new int[]{1, -1}){
+			AtomicInteger passes = new AtomicInteger();
+			try(CJTSDWriter writer = new CJTSDWriter(new StringWriter())){
+				writer.write(ChronoUnit.SECONDS, () -> {
+					if (passes.incrementAndGet() == 3){		// the pass for 'n'
+						return entries.subList(0, entries.size() - 1 + change).iterator();
+					}
+					return entries.subList(0, entries.size() - 1).iterator();
+				});
+				fail("Different number of data points in different passes should be detected");
+			}catch(IllegalStateException e){
+				assertEquals(3, passes.get());
+			}
+		}
+	}
+	
+	@Test
+	public void testStreamingReader() throws IOException{
+		for (ChronoUnit unit: new ChronoUnit[]{ChronoUnit.MINUTES, ChronoUnit.SECONDS, ChronoUnit.MILLIS}){
+			CJTSD cjtsd = buildForStreaming(unit);
+			String json = toJson(cjtsd);
+			List<CJTSD.Entry> list = mapper.readValue(json, CJTSD.class).toList();
+			try(CJTSDReader reader = new CJTSDReader(json)){
+				CJTSDCursor cursor = cjtsd.cursor();
+				for (CJTSD.Entry entry: list){
+					assertTrue(reader.next());
+					assertTrue(cursor.next());
+					assertEquals(cursor.getIndex(), reader.getIndex());
+					assertEquals(cursor.getTimestamp(), reader.getTimestamp());
+					assertEquals(cursor.getEpochMillis(), reader.getEpochMillis());
+					assertEquals(cursor.getDurationMillis(), reader.getDurationMillis());
+					assertEquals(cursor.hasCount(), reader.hasCount());
+					assertEquals(cursor.getCount(), reader.getCount());
+					assertEquals(cursor.getSum(), reader.getSum(), 0);
+					assertEquals(cursor.getAvg(), reader.getAvg(), 0.00001);	// floats are written as they are and read as doubles
+					assertEquals(cursor.getMinAsLong(), reader.getMinAsLong());
+					assertEquals(cursor.getMax(), reader.getMax(), 0);
+					assertEquals(cursor.getNumberAsLong(), reader.getNumberAsLong());
+					
+					CJTSD.Entry readEntry = reader.getEntry();
+					assertEquals(entry.getTimestamp(), readEntry.getTimestamp());
+					assertEquals(entry.getDuration(), readEntry.getDuration());
+					assertEquals(entry.getCount(), readEntry.getCount());
+					assertEquals(entry.getSum(), readEntry.getSum());
+					assertEquals(entry.getAvg(), readEntry.getAvg());
+					assertEquals(entry.getMin(), readEntry.getMin());
+					assertEquals(entry.getMax(), readEntry.getMax());
+					assertEquals(entry.getNumber(), readEntry.getNumber());
+					assertEquals(entry.getObj(), readEntry.getObj());
+				}
+				assertFalse(reader.next());
+				assertFalse(reader.next());
+			}
+		}
+		
+		try(CJTSDReader reader = new CJTSDReader("{\"o\":[{\"a\":[1]}],\"d\":[5],\"c\":[1,2,null],\"u\":\"s\",\"t\":[10,20]}")){
+			assertTrue(reader.next());
+			assertEquals(10000, reader.getEpochMillis());
+			assertEquals(5000, reader.getDurationMillis());
+			assertEquals(1, reader.getCount());
+			assertFalse(reader.hasSum());
+			assertTrue(Double.isNaN(reader.getSum()));
+			assertEquals(Collections.singletonMap("a", Arrays.asList(1)), reader.getObj());
+			assertTrue(reader.next());
+			assertEquals(5000, reader.getDurationMillis());
+			assertEquals(2, reader.getCount());
+			assertNull(reader.getObj());
+			assertFalse(reader.next());
+		}
+		try(CJTSDReader reader = new CJTSDReader("{}")){
+			assertFalse(reader.next());
+		}
+		try{
+			new CJTSDReader("[1, 2]");
+			fail("Invalid JSON should be detected");
+		}catch(IOException e){
+			// expected
+		}
+	}
+	
+	@Test
+	public void testStreamingFile() throws IOException{
+		int size = 200000;
+		long epochMinute = LocalDateTime.of(2016, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC) / 60;
+		File file = File.createTempFile("cjtsd", ".json");
+		File copy = File.createTempFile("cjtsd", ".json");
+		try{
+			// entries are generated on the fly, nothing is kept in memory
+			long t0 = System.nanoTime();
+			try(CJTSDWriter writer = new CJTSDWriter(new FileOutputStream(file))){
+				writer.write(ChronoUnit.MINUTES, () -> new Iterator<CJTSD.Entry>(){
+					int i = 0;
+					@Override
+					public boolean hasNext() {
+						return i < size;
+					}
+					@Override
+					public CJTSD.Entry next() {
+						long count = (i * 7919L) % 1000;
+						CJTSD.Entry entry = new CJTSD.Entry(LocalDateTime.ofEpochSecond((epochMinute + i) * 60, 0, ZoneOffset.UTC), Duration.ofMinutes(1),
+								count, count * 1.5, null, null, null, null, null);
+						i ++;
+						return entry;
+					}
+				});
+			}
+			long t1 = System.nanoTime();
+			
+			long[] total = new long[2];
+			try(CJTSDReader reader = new CJTSDReader(file)){
+				reader.forEach(r -> {
+					assertEquals(total[0], r.getIndex());
+					assertEquals((epochMinute + total[0]) * 60000, r.getEpochMillis());
+					assertEquals(60000, r.getDurationMillis());
+					assertFalse(r.hasAvg());
+					total[0] ++;
+					try{
+						total[1] += r.getCount();
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			long t2 = System.nanoTime();
+			assertEquals(size, total[0]);
+			assertEquals(IntStream.range(0, size).mapToLong(i -> (i * 7919L) % 1000).sum(), total[1]);
+			
+			try(CJTSDWriter writer = new CJTSDWriter(new FileOutputStream(copy))){
+				writer.write(ChronoUnit.MINUTES, () -> {
+					try{
+						return new CJTSDReader(file).entries();
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			long t3 = System.nanoTime();
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(copy.toPath()));
+			
+			System.out.println(String.format("Streaming %,d data points (%,d bytes): writing %.2f ms, reading %.2f ms, copying %.2f ms",
+					size, file.length(), (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6));
+		}finally{
+			file.delete();
+			copy.delete();
+		}
+	}
 }
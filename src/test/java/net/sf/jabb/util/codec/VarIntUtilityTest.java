@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package net.sf.jabb.util.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class VarIntUtilityTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		long[] values = new long[]{0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (long v: values){
+			VarIntUtility.writeVarLong(out, v);
+			VarIntUtility.writeVarLong(out, VarIntUtility.zigzag(v));
+		}
+		out.flush();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (long v: values){
+			assertEquals(v, VarIntUtility.readVarLong(in));
+			assertEquals(v, VarIntUtility.unzigzag(VarIntUtility.readVarLong(in)));
+		}
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void testLength() throws IOException {
+		assertEquals(1, lengthOf(0));
+		assertEquals(1, lengthOf(127));
+		assertEquals(2, lengthOf(128));
+		assertEquals(1, lengthOf(VarIntUtility.zigzag(-64)));
+		assertEquals(2, lengthOf(VarIntUtility.zigzag(64)));
+		assertEquals(VarIntUtility.MAX_VAR_LONG_BYTES, lengthOf(-1));
+		assertEquals(VarIntUtility.MAX_VAR_LONG_BYTES, lengthOf(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void testMalformed() throws IOException {
+		byte[] bytes = new byte[VarIntUtility.MAX_VAR_LONG_BYTES + 1];
+		Arrays.fill(bytes, (byte) 0x80);
+		try{
+			VarIntUtility.readVarLong(new DataInputStream(new ByteArrayInputStream(bytes)));
+			fail("Too many bytes should be rejected");
+		}catch(IllegalArgumentException e){
+			// expected
+		}
+	}
+
+	protected int lengthOf(long value) throws IOException{
+		int[] length = new int[1];
+		VarIntUtility.writeVarLong(b -> length[0] ++, value);
+		return length[0];
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * @author James Hu
+ *
+ */
+public class BoundedComputeIfAbsentMapTest {
+
+	static class ManualTicker extends Ticker{
+		AtomicLong nanos = new AtomicLong();
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		void advance(Duration duration){
+			nanos.addAndGet(duration.toNanos());
+		}
+	}
+
+	@Test
+	public void testMaximumSize() {
+		List<Integer> evicted = new ArrayList<>();
+		BoundedComputeIfAbsentMap<Integer, LongAdder> map = BoundedComputeIfAbsentMap.<Integer, LongAdder>builder()
+				.maximumSize(10)
+				.concurrencyLevel(1)
+				.removalListener(n -> {
+					if (n.wasEvicted()){
+						evicted.add(n.getKey());
+					}
+				})
+				.build(k -> new LongAdder());
+
+		for (int i = 0; i < 10; i ++){
+			assertNotNull(map.get(i));
+		}
+		map.get(0).increment();		// 0 becomes the most recently used
+		map.get(10);
+		assertEquals(10, map.size());
+		assertEquals(1, evicted.size());
+		assertEquals(Integer.valueOf(1), evicted.get(0));
+		assertEquals(1, map.get(0).sum());
+
+		assertEquals(11, map.getMissCount());
+		assertEquals(2, map.getHitCount());
+		assertEquals(1, map.getEvictionCount());
+	}
+
+	@Test
+	public void testExpireAfterAccess() {
+		ManualTicker ticker = new ManualTicker();
+		List<String> expired = new ArrayList<>();
+		BoundedComputeIfAbsentMap<String, LongAdder> map = BoundedComputeIfAbsentMap.<String, LongAdder>builder()
+				.expireAfterAccess(Duration.ofMinutes(5))
+				.ticker(ticker)
+				.removalListener(n -> expired.add(n.getKey()))
+				.build(k -> new LongAdder());
+
+		map.get("a").increment();
+		map.get("b").increment();
+		ticker.advance(Duration.ofMinutes(3));
+		map.get("a").increment();
+		ticker.advance(Duration.ofMinutes(3));
+		map.cleanUp();
+
+		assertEquals(1, expired.size());
+		assertEquals("b", expired.get(0));
+		assertEquals(2, map.get("a").sum());
+		assertEquals(0, map.get("b").sum());		// never null, newly computed
+		assertEquals(1, map.getEvictionCount());
+	}
+
+	@Test
+	public void testExpireAfterWrite() {
+		ManualTicker ticker = new ManualTicker();
+		BoundedComputeIfAbsentMap<String, LongAdder> map = BoundedComputeIfAbsentMap.<String, LongAdder>builder()
+				.expireAfterWrite(Duration.ofSeconds(10))
+				.ticker(ticker)
+				.build(k -> new LongAdder());
+
+		map.get("a").increment();
+		ticker.advance(Duration.ofSeconds(6));
+		map.get("a").increment();
+		ticker.advance(Duration.ofSeconds(6));
+		assertEquals(0, map.get("a").sum());
+		assertEquals(1, map.size());
+		assertTrue(map.getStats().evictionCount() >= 1);
+		assertEquals(TimeUnit.SECONDS.toNanos(12), ticker.read());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testExceptionPropagated() {
+		BoundedComputeIfAbsentMap<String, String> map = BoundedComputeIfAbsentMap.<String, String>builder()
+				.maximumSize(10)
+				.build(k -> {
+					throw new IllegalStateException(k);
+				});
+		map.get("x");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSerialization() throws Exception {
+		BoundedComputeIfAbsentMap<String, String> map = BoundedComputeIfAbsentMap.<String, String>builder()
+				.maximumSize(3)
+				.expireAfterAccess(Duration.ofMinutes(5))
+				.build((Function<String, String> & Serializable) k -> "v" + k);
+		map.get("a");
+		map.get("b");
+		map.put("c", "x");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+			out.writeObject(map);
+		}
+		BoundedComputeIfAbsentMap<String, String> copy;
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))){
+			copy = (BoundedComputeIfAbsentMap<String, String>) in.readObject();
+		}
+
+		assertEquals(3, copy.size());
+		assertEquals("va", copy.get("a"));
+		assertEquals("x", copy.get("c"));
+		assertEquals("vd", copy.get("d"));
+		copy.cleanUp();
+		assertEquals(3, copy.size());		// the size limit is kept
+		assertEquals(1, copy.getMissCount());
+		assertEquals(2, copy.getHitCount());
+		assertEquals(1, copy.getEvictionCount());
+	}
+
+}
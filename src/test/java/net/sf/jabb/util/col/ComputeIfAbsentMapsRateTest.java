@@ -64,6 +64,9 @@ public class ComputeIfAbsentMapsRateTest {
 		
 		maps.put("AtomicComputeIfAbsentMap<HashMap>", new AtomicComputeIfAbsentMap<Map<Integer, LongAdder>, Integer, LongAdder>(new HashMap<Integer, LongAdder>(), computeFunction));	
 		maps.put("AtomicComputeIfAbsentMap<ConcurrentHashMap>", new AtomicComputeIfAbsentMap<Map<Integer, LongAdder>, Integer, LongAdder>(new ConcurrentHashMap<Integer, LongAdder>(), computeFunction));	
+		
+		maps.put("ComputeIfAbsentMap<ConcurrentHashMap>", new ComputeIfAbsentMap<Map<Integer, LongAdder>, Integer, LongAdder>(new ConcurrentHashMap<Integer, LongAdder>(), computeFunction));	
+		maps.put("OptimisticComputeIfAbsentConcurrentHashMap", new OptimisticComputeIfAbsentConcurrentHashMap<Integer, LongAdder>(computeFunction));	
 
 		
 		Map<String, Map<Integer, ConcurrentLongStatistics>> result = new TreeMap<>();
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class Long2ObjectComputeIfAbsentMapTest {
+
+	@Test
+	public void testHashMapBasics(){
+		doTestBasics(new Long2ObjectComputeIfAbsentConcurrentHashMap<>(k -> "v" + k));
+	}
+
+	@Test
+	public void testSortedMapBasics(){
+		doTestBasics(new Long2ObjectComputeIfAbsentConcurrentSortedMap<>(k -> "v" + k));
+	}
+
+	protected void doTestBasics(Long2ObjectComputeIfAbsentMap<String> map){
+		assertTrue(map.isEmpty());
+		assertNull(map.getIfPresent(1));
+		assertEquals("v1", map.get(1));
+		assertEquals("v1", map.getIfPresent(1));
+		assertEquals(1, map.size());
+
+		assertEquals("v1", map.put(1, "x"));
+		assertEquals("x", map.get(1));
+		assertEquals("x", map.remove(1));
+		assertNull(map.remove(1));
+		assertFalse(map.containsKey(1));
+		assertEquals(0, map.size());
+		assertEquals("v1", map.get(1));
+
+		// force several rebuilds, with removals in between
+		for (long k = -5000; k < 5000; k ++){
+			assertEquals("v" + k, map.get(k));
+			if (k % 3 == 0){
+				map.remove(k);
+			}
+		}
+		for (long k = -5000; k < 5000; k ++){
+			assertEquals(k % 3 != 0, map.containsKey(k));
+		}
+		AtomicInteger count = new AtomicInteger();
+		map.forEach((k, v) -> {
+			assertEquals("v" + k, v);
+			count.incrementAndGet();
+		});
+		assertEquals(map.size(), count.get());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.getIfPresent(2));
+	}
+
+	@Test
+	public void testConcurrentComputeOncePerKey() throws Exception{
+		AtomicInteger computed = new AtomicInteger();
+		Long2ObjectComputeIfAbsentConcurrentHashMap<LongAdder> map = new Long2ObjectComputeIfAbsentConcurrentHashMap<>(k -> {
+			computed.incrementAndGet();
+			return new LongAdder();
+		});
+		int numThreads = 20;
+		int numKeys = 10000;
+		ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+		for (int t = 0; t < numThreads; t ++){
+			threadPool.submit(() -> {
+				for (long i = 0; i < numKeys; i ++){
+					map.get(i * 60000L).increment();
+				}
+			});
+		}
+		threadPool.shutdown();
+		assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+
+		assertEquals(numKeys, computed.get());
+		assertEquals(numKeys, map.size());
+		for (long i = 0; i < numKeys; i ++){
+			assertEquals(numThreads, map.get(i * 60000L).sum());
+		}
+	}
+
+	@Test
+	public void testRanges(){
+		Long2ObjectComputeIfAbsentConcurrentSortedMap<String> map = new Long2ObjectComputeIfAbsentConcurrentSortedMap<>(k -> "v" + k);
+		for (long k = 100; k > 0; k --){
+			map.get(k);
+		}
+		assertEquals(1, map.firstKey());
+		assertEquals(100, map.lastKey());
+		assertEquals(10, map.subMap(11, 21).size());
+		assertEquals(Long.valueOf(11), map.subMap(11, 21).firstKey());
+		assertEquals(10, map.headMap(11).size());
+		assertEquals(10, map.tailMap(91).size());
+
+		List<Long> flushed = new ArrayList<>();
+		assertEquals(10, map.removeRange(1, 11, (k, v) -> flushed.add(k)));
+		assertEquals(10, flushed.size());
+		assertEquals(Long.valueOf(1), flushed.get(0));
+		assertEquals(Long.valueOf(10), flushed.get(9));
+		assertEquals(90, map.size());
+		assertNull(map.getIfPresent(5));
+		assertEquals(11, map.firstKey());
+
+		List<Long> keys = new ArrayList<>();
+		map.forEach(11, 14, (k, v) -> keys.add(k));
+		assertEquals(3, keys.size());
+	}
+
+	@Test
+	public void testSortedMapClearWhileInserting() throws Exception{
+		ExecutorService inserter = Executors.newSingleThreadExecutor();
+		AtomicInteger clearedSegments = new AtomicInteger();
+		List<Long> inserted = new ArrayList<>();
+		Long2ObjectComputeIfAbsentConcurrentSortedMap<String> map = new Long2ObjectComputeIfAbsentConcurrentSortedMap<String>(4, 16, k -> "v" + k){
+			@Override
+			protected void afterClear(Table cleared){
+				super.afterClear(cleared);
+				if (clearedSegments.incrementAndGet() == segments.length){
+					// insert from another thread into segments that have already been cleared, while the last one is still locked
+					Segment locked = segments[segments.length - 1];
+					try{
+						inserter.submit(() -> {
+							for (long k = 0; k < 100; k ++){
+								if (segmentFor(hash(k)) != locked){
+									get(k);
+									inserted.add(k);
+								}
+							}
+						}).get();
+					}catch(Exception e){
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		};
+		for (long k = 0; k < 100; k ++){
+			map.get(k + 1000);
+		}
+		map.clear();
+		inserter.shutdown();
+
+		assertTrue(inserted.size() > 0);
+		assertEquals(inserted.size(), map.size());
+		assertEquals(inserted, new ArrayList<>(map.headMap(Long.MAX_VALUE).keySet()));
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class OptimisticComputeIfAbsentConcurrentHashMapTest {
+
+	@Test
+	public void testComputeOncePerKey() throws Exception {
+		AtomicInteger computed = new AtomicInteger();
+		OptimisticComputeIfAbsentConcurrentHashMap<Integer, LongAdder> map = new OptimisticComputeIfAbsentConcurrentHashMap<>(k -> {
+			computed.incrementAndGet();
+			return new LongAdder();
+		});
+
+		int numThreads = 20;
+		int numKeys = 1000;
+		ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+		for (int t = 0; t < numThreads; t ++){
+			threadPool.submit(() -> {
+				for (int i = 0; i < numKeys; i ++){
+					map.get(i).increment();
+				}
+			});
+		}
+		threadPool.shutdown();
+		assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+
+		assertEquals(numKeys, computed.get());
+		assertEquals(numKeys, map.size());
+		for (int i = 0; i < numKeys; i ++){
+			assertEquals(numThreads, map.get(i).sum());
+		}
+		assertEquals(numKeys, computed.get());
+	}
+
+	@Test
+	public void testSlowComputeBlocksOnlyThatKey() throws Exception {
+		CountDownLatch slowStarted = new CountDownLatch(1);
+		CountDownLatch releaseSlow = new CountDownLatch(1);
+		OptimisticComputeIfAbsentConcurrentHashMap<Integer, String> map = new OptimisticComputeIfAbsentConcurrentHashMap<>(k -> {
+			if (k == 0){
+				slowStarted.countDown();
+				try {
+					releaseSlow.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return "v" + k;
+		});
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(2);
+		Future<String> slow = threadPool.submit(() -> map.get(0));
+		assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+
+		Future<String> fast = threadPool.submit(() -> map.get(1));
+		assertEquals("v1", fast.get(10, TimeUnit.SECONDS));
+		assertFalse(slow.isDone());
+
+		releaseSlow.countDown();
+		assertEquals("v0", slow.get(10, TimeUnit.SECONDS));
+		threadPool.shutdown();
+	}
+
+	@Test
+	public void testExceptionPropagated(){
+		OptimisticComputeIfAbsentConcurrentHashMap<Integer, String> map = new OptimisticComputeIfAbsentConcurrentHashMap<>(k -> {
+			throw new IllegalStateException("failed: " + k);
+		});
+		try{
+			map.get(1);
+			fail("exception expected");
+		}catch(IllegalStateException e){
+			assertEquals("failed: 1", e.getMessage());
+		}
+		assertTrue(map.isEmpty());
+		assertTrue(map.inFlight.isEmpty());
+	}
+	
+	@Test
+	public void testConstructorsCompatibleWithComputeIfAbsentConcurrentHashMap(){
+		OptimisticComputeIfAbsentConcurrentHashMap<Integer, String> map = new OptimisticComputeIfAbsentConcurrentHashMap<>(16, 0.75f, k -> "v" + k);
+		assertEquals("v1", map.get(1));
+		assertEquals(1, map.size());
+	}
+
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class RingBufferRotatableTest {
+
+	@Test
+	public void testAutoPurge() {
+		AtomicInteger counter = new AtomicInteger();
+		List<Integer> purged = new ArrayList<>();
+		RingBufferRotatable<Integer> r = new RingBufferRotatable<>(counter::getAndIncrement, 3, purged::add);
+		assertEquals(Integer.valueOf(0), r.getCurrent());
+		assertEquals(0, r.getRotatedSize());
+
+		r.rotate();
+		r.rotate();
+		assertEquals(2, r.getRotatedSize());
+		assertEquals(0, purged.size());
+		assertEquals(3, r.getAll().size());
+
+		r.rotate();
+		r.rotate();
+		assertEquals(2, r.getRotatedSize());
+		assertEquals(Integer.valueOf(4), r.getCurrent());
+		assertEquals(2, purged.size());
+		assertEquals(Integer.valueOf(0), purged.get(0));
+		assertEquals(Integer.valueOf(1), purged.get(1));
+
+		List<Integer> all = r.getAll();
+		assertEquals(3, all.size());
+		assertEquals(Integer.valueOf(2), all.get(0));
+		assertEquals(Integer.valueOf(4), all.get(2));
+	}
+
+	@Test
+	public void testLookupByTime() throws InterruptedException {
+		AtomicInteger counter = new AtomicInteger();
+		RingBufferRotatable<Integer> r = new RingBufferRotatable<>(counter::getAndIncrement, 10);
+		long[] times = new long[5];
+		for (int i = 0; i < 5; i ++){
+			Thread.sleep(5);
+			times[i] = System.currentTimeMillis();
+			Thread.sleep(5);
+			r.rotate();		// object i is rotated after times[i]
+		}
+		assertEquals(5, r.getRotatedSize());
+
+		for (int i = 0; i < 5; i ++){
+			assertEquals(Integer.valueOf(i), r.getCurrentAt(times[i]));
+		}
+		assertEquals(Integer.valueOf(5), r.getCurrentAt(System.currentTimeMillis()));
+
+		List<Integer> rotated = r.getRotated(times[1], times[3]);
+		assertEquals(2, rotated.size());
+		assertEquals(Integer.valueOf(1), rotated.get(0));
+		assertEquals(Integer.valueOf(2), rotated.get(1));
+		assertEquals(5, r.getRotated(0, Long.MAX_VALUE).size());
+
+		r.swap(x -> x + 100, times[1], times[3]);
+		assertEquals(Integer.valueOf(101), rotated.get(0));		// it is a view
+
+		List<Integer> purged = new ArrayList<>();
+		r.purge(purged::add, times[2]);
+		assertEquals(2, purged.size());
+		assertEquals(Integer.valueOf(0), purged.get(0));
+		assertEquals(Integer.valueOf(101), purged.get(1));
+		assertNull(rotated.get(0));		// purged after the view was created
+		assertEquals(3, r.getRotatedSize());
+		assertNull(r.getCurrentAt(times[0]));
+	}
+
+	@Test
+	public void testConcurrentRotate() throws Exception {
+		AtomicInteger counter = new AtomicInteger();
+		AtomicInteger purgedCount = new AtomicInteger();
+		RingBufferRotatable<Integer> r = new RingBufferRotatable<>(counter::getAndIncrement, 8, x -> purgedCount.incrementAndGet());
+		int numThreads = 10;
+		int rotations = 1000;
+		ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+		for (int t = 0; t < numThreads; t ++){
+			threadPool.submit(() -> {
+				for (int i = 0; i < rotations; i ++){
+					r.rotate();
+					r.getCurrent();
+				}
+			});
+		}
+		threadPool.shutdown();
+		assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+
+		int total = numThreads * rotations + 1;
+		assertEquals(total, counter.get());
+		assertEquals(total - 8, purgedCount.get());
+		assertEquals(7, r.getRotatedSize());
+		List<Integer> all = r.getAll();
+		for (int i = 0; i < all.size(); i ++){
+			assertNotNull(all.get(i));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRotateWhileAnotherRotationIsIncomplete() {
+		AtomicInteger counter = new AtomicInteger();
+		List<Integer> purged = new ArrayList<>();
+		RingBufferRotatable<Integer> r = new RingBufferRotatable<>(counter::getAndIncrement, 2, purged::add);
+		
+		// another thread has won the rotation but has not completed it yet
+		RingBufferRotatable.Generation<Integer> g = r.current;
+		RingBufferRotatable.Generation<Integer> stalled = new RingBufferRotatable.Generation<>(1, 100, System.currentTimeMillis(), g);
+		assertTrue(RingBufferRotatable.CURRENT.compareAndSet(r, g, stalled));
+		
+		r.rotate();		// must not wait for the stalled one
+		assertEquals(Integer.valueOf(1), r.getCurrent());
+		assertEquals(1, r.getRotatedSize());
+		assertEquals(Arrays.asList(100, 1), r.getAll());
+		assertEquals(Arrays.asList(0), purged);
+		assertTrue(g.rotated > 0);
+		assertTrue(stalled.rotated > 0);
+		
+		r.complete(stalled);		// the stalled thread wakes up, nothing should happen
+		assertEquals(Arrays.asList(100, 1), r.getAll());
+		assertEquals(Arrays.asList(0), purged);
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package net.sf.jabb.util.col;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongUnaryOperator;
+
+import net.sf.jabb.util.stat.AggregationPeriod;
+import net.sf.jabb.util.stat.AggregationPeriodUnit;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ScheduledRotatableTest {
+
+	@Test
+	public void testAlignment() {
+		LongUnaryOperator f = ScheduledRotatable.alignedTo(Duration.ofSeconds(10));
+		assertEquals(20000L, f.applyAsLong(10000L));
+		assertEquals(20000L, f.applyAsLong(19999L));
+
+		ZoneId zone = ZoneId.of("Australia/Melbourne");
+		ZonedDateTime time = ZonedDateTime.of(2016, 3, 15, 10, 23, 45, 0, zone);
+		f = ScheduledRotatable.alignedTo(new AggregationPeriod(15, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone));
+		assertEquals(ZonedDateTime.of(2016, 3, 15, 10, 30, 0, 0, zone).toInstant().toEpochMilli(), f.applyAsLong(time.toInstant().toEpochMilli()));
+
+		f = ScheduledRotatable.alignedTo(new AggregationPeriod(1, AggregationPeriodUnit.YEAR_MONTH, zone));
+		assertEquals(ZonedDateTime.of(2016, 4, 1, 0, 0, 0, 0, zone).toInstant().toEpochMilli(), f.applyAsLong(time.toInstant().toEpochMilli()));
+	}
+
+	/**
+	 * A scheduler that only records the tasks, they are run by the test explicitly.
+	 */
+	static class ManualScheduler extends ScheduledThreadPoolExecutor {
+		List<Runnable> tasks = new CopyOnWriteArrayList<>();
+		List<ScheduledFuture<?>> futures = new CopyOnWriteArrayList<>();
+		List<Long> delays = new CopyOnWriteArrayList<>();
+
+		ManualScheduler(){
+			super(1);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			ScheduledFuture<?> f = super.schedule(() -> {}, 1, TimeUnit.DAYS);
+			tasks.add(command);
+			futures.add(f);
+			delays.add(unit.toMillis(delay));
+			return f;
+		}
+
+		int pending(){
+			int count = 0;
+			for (ScheduledFuture<?> f: futures){
+				if (!f.isCancelled() && !f.isDone()){
+					count ++;
+				}
+			}
+			return count;
+		}
+
+		void runPending(){
+			int size = futures.size();		// those scheduled while running will be run next time
+			for (int i = 0; i < size; i ++){
+				ScheduledFuture<?> f = futures.get(i);
+				if (f.cancel(false)){
+					tasks.get(i).run();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAutoRotateAndPurge() {
+		ManualScheduler scheduler = new ManualScheduler();
+		try{
+			AtomicLong clock = new AtomicLong(1000);
+			AtomicInteger counter = new AtomicInteger();
+			List<Integer> purged = new CopyOnWriteArrayList<>();
+			ScheduledRotatable<Integer> r = new ScheduledRotatable<>(counter::getAndIncrement, ScheduledRotatable.alignedTo(Duration.ofMillis(50)),
+					Duration.ofMillis(120), purged::add, Runnable::run, scheduler, clock::get);
+			assertEquals(1050L, r.getNextRotationTime());
+			assertEquals(1, scheduler.pending());
+			assertEquals(Long.valueOf(50), scheduler.delays.get(0));
+
+			// fired too early according to the clock, it should be rescheduled rather than rotated
+			clock.set(1040);
+			scheduler.runPending();
+			assertEquals(1, counter.get());
+			assertEquals(1, scheduler.pending());
+			assertEquals(Long.valueOf(10), scheduler.delays.get(1));
+
+			for (long t = 1050; t <= 1400; t += 50){
+				clock.set(t);
+				scheduler.runPending();
+				assertEquals(1, scheduler.pending());
+				assertEquals(t + 50, r.getNextRotationTime());
+			}
+			assertEquals(9, counter.get());
+			assertEquals(Integer.valueOf(8), r.getCurrent());
+			// rotated at 1050..1400, those rotated before 1400-120 have been purged
+			assertEquals(Arrays.asList(0, 1, 2, 3, 4), purged);
+			assertEquals(3, r.getRotatedSize());
+
+			r.close();
+			assertTrue(r.isClosed());
+			assertEquals(0, scheduler.pending());
+			clock.set(2000);
+			scheduler.runPending();
+			assertEquals(9, counter.get());
+		}finally{
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testCloseDuringRotation() {
+		ManualScheduler scheduler = new ManualScheduler();
+		try{
+			AtomicLong clock = new AtomicLong(1000);
+			AtomicInteger counter = new AtomicInteger();
+			AtomicReference<ScheduledRotatable<Integer>> ref = new AtomicReference<>();
+			ScheduledRotatable<Integer> r = new ScheduledRotatable<>(() -> {
+						int i = counter.getAndIncrement();
+						if (i == 2){
+							ref.get().close();		// closed while the rotation is in progress
+						}
+						return i;
+					}, ScheduledRotatable.alignedTo(Duration.ofMillis(50)), Duration.ofMillis(120), null, Runnable::run, scheduler, clock::get);
+			ref.set(r);
+
+			clock.set(1050);
+			scheduler.runPending();
+			assertEquals(1, scheduler.pending());
+
+			clock.set(1100);
+			scheduler.runPending();
+			assertTrue(r.isClosed());
+			assertEquals(0, scheduler.pending());
+			int scheduled = scheduler.tasks.size();
+
+			clock.set(2000);
+			scheduler.runPending();
+			assertEquals(3, counter.get());
+			assertEquals(scheduled, scheduler.tasks.size());
+		}finally{
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testManyInstancesShareOneScheduler() throws InterruptedException {
+		int numInstances = 500;
+		AtomicInteger counter = new AtomicInteger();
+		@SuppressWarnings("unchecked")
+		ScheduledRotatable<Integer>[] all = new ScheduledRotatable[numInstances];
+		int threadsBefore = Thread.activeCount();
+		for (int i = 0; i < numInstances; i ++){
+			all[i] = new ScheduledRotatable<>(counter::getAndIncrement, Duration.ofMillis(20), Duration.ofMillis(40), null);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (counter.get() < numInstances * 3 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertTrue(counter.get() >= numInstances * 3);
+		assertTrue(Thread.activeCount() - threadsBefore < 5);
+		for (ScheduledRotatable<Integer> r: all){
+			r.close();
+		}
+	}
+
+}
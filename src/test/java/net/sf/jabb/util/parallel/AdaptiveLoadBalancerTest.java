@@ -0,0 +1,234 @@
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class AdaptiveLoadBalancerTest {
+	protected Map<Integer, AtomicLong> processed = new ConcurrentHashMap<>();
+	
+	protected void count(Integer processor){
+		processed.computeIfAbsent(processor, p -> new AtomicLong()).incrementAndGet();
+	}
+
+	@Test
+	public void testShiftAwayFromSlowProcessor() {
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2, 3, 4), 
+				k -> k, (processor, load) -> {
+					count(processor);
+					if (processor == 4){
+						Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+					}
+					return processor;
+				});
+		int samples = 4000;
+		for (int i = 0; i < samples; i ++){
+			lb.dispatch(i);
+		}
+		assertTrue(lb.getHealth(4).getLatencyEwma() > lb.getHealth(1).getLatencyEwma() * 10);
+		assertTrue("Processor 4 should receive much less than its 25% share: " + processed, processed.get(4).get() < samples / 10);
+		assertEquals(samples, processed.values().stream().mapToLong(AtomicLong::get).sum());
+	}
+
+	@Test
+	public void testShiftAwayFromFailingProcessor() {
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2, 3, 4), 
+				k -> k, (processor, load) -> {
+					count(processor);
+					if (processor == 4){
+						throw new DispatchingException(DispatchingException.SERVER_ERROR);
+					}
+					return processor;
+				});
+		int samples = 4000;
+		int failures = 0;
+		for (int i = 0; i < samples; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				failures ++;
+			}
+		}
+		assertTrue(lb.getHealth(4).getErrorRateEwma() > 0.5);
+		assertTrue("Failures should be much less than 25%: " + failures, failures < samples / 10);
+		assertTrue(lb.getActiveProcessors().contains(4));		// SERVER_ERROR does not cause demotion
+	}
+
+	@Test
+	public void testAutoDemoteAndPromote() {
+		AtomicBoolean reachable = new AtomicBoolean(false);
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2, 3), null, 
+				null, k -> k, (processor, load) -> {
+					if (processor == 2 && !reachable.get()){
+						throw new DispatchingException(DispatchingException.SERVER_UNREACHABLE);
+					}
+					return processor;
+				}, null, null, processor -> reachable.get(), null);
+		lb.setFailuresToDemote(5);
+		
+		int failures = 0;
+		for (int i = 0; i < 3000; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				failures ++;
+			}
+		}
+		assertEquals(5, failures);
+		assertEquals(Arrays.asList(1, 3), lb.getActiveProcessors());
+		assertEquals(Arrays.asList(2), lb.getBackupProcessors());
+		assertTrue(lb.getAutoDemotedProcessors().contains(2));
+		
+		lb.probe();
+		lb.probe();
+		assertTrue(lb.getBackupProcessors().contains(2));
+		
+		reachable.set(true);
+		lb.probe();
+		assertTrue(lb.getBackupProcessors().contains(2));
+		lb.probe();
+		assertTrue(lb.getActiveProcessors().contains(2));
+		assertTrue(lb.getBackupProcessors().isEmpty());
+		assertTrue(lb.getAutoDemotedProcessors().isEmpty());
+		
+		processed.clear();
+		for (int i = 0; i < 3000; i ++){
+			count(lb.dispatch(i));
+		}
+		assertTrue(processed.get(2).get() > 500);
+		lb.close();
+	}
+	
+	@Test
+	public void testAutoDemoteAfterManualPromotion() {
+		AtomicBoolean reachable = new AtomicBoolean(false);
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2, 3), null, 
+				null, k -> k, (processor, load) -> {
+					if (processor == 2 && !reachable.get()){
+						throw new DispatchingException(DispatchingException.SERVER_UNREACHABLE);
+					}
+					return processor;
+				}, null, null, processor -> reachable.get(), null);
+		lb.setFailuresToDemote(5);
+		for (int i = 0; i < 3000; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				// ignore
+			}
+		}
+		assertEquals(Arrays.asList(2), lb.getBackupProcessors());
+		
+		lb.promote(2);		// by an operator rather than by probing
+		assertTrue(lb.getActiveProcessors().contains(2));
+		assertTrue(lb.getAutoDemotedProcessors().isEmpty());
+		
+		int failures = 0;
+		for (int i = 0; i < 3000; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				failures ++;
+			}
+		}
+		assertEquals(5, failures);
+		assertEquals(Arrays.asList(2), lb.getBackupProcessors());
+		assertTrue(lb.getAutoDemotedProcessors().contains(2));
+		
+		reachable.set(true);
+		lb.probe();
+		lb.probe();
+		assertTrue(lb.getActiveProcessors().contains(2));
+		lb.close();
+	}
+	
+	@Test
+	public void testScheduledProbing() {
+		AtomicBoolean reachable = new AtomicBoolean(false);
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2), null, 
+				null, k -> k, (processor, load) -> {
+					if (processor == 2 && !reachable.get()){
+						throw new DispatchingException(DispatchingException.SERVER_TIMEOUT);
+					}
+					return processor;
+				}, null, null, processor -> reachable.get(), java.time.Duration.ofMillis(20));
+		for (int i = 0; i < 100; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				// ignore
+			}
+		}
+		assertEquals(Arrays.asList(2), lb.getBackupProcessors());
+		reachable.set(true);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (lb.getActiveProcessors().size() < 2 && System.currentTimeMillis() < deadline){
+			Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(2, lb.getActiveProcessors().size());
+		lb.close();
+	}
+	
+	@Test
+	public void testRemoveAndReplaceForgetHealth() {
+		AtomicBoolean reachable = new AtomicBoolean(false);
+		AtomicLong probes = new AtomicLong();
+		AdaptiveLoadBalancer<Integer, Integer, Integer> lb = new AdaptiveLoadBalancer<Integer, Integer, Integer>(1000, Arrays.asList(1, 2, 3), null, 
+				null, k -> k, (processor, load) -> {
+					if ((processor == 2 || processor == 3) && !reachable.get()){
+						throw new DispatchingException(DispatchingException.SERVER_UNREACHABLE);
+					}
+					return processor;
+				}, null, null, processor -> {
+					probes.incrementAndGet();
+					return reachable.get();
+				}, null);
+		lb.setFailuresToDemote(5);
+		for (int i = 0; i < 3000; i ++){
+			try{
+				lb.dispatch(i);
+			}catch(DispatchingException e){
+				// ignore
+			}
+		}
+		assertEquals(Arrays.asList(1), lb.getActiveProcessors());
+		assertTrue(lb.getAutoDemotedProcessors().contains(2));
+		assertTrue(lb.getAutoDemotedProcessors().contains(3));
+		
+		// a removed dead processor is no longer probed
+		lb.removeBackup(2);
+		assertFalse(lb.getAutoDemotedProcessors().contains(2));
+		lb.probe();
+		assertEquals(1, probes.get());
+		
+		// a re-added processor does not carry the old failures
+		reachable.set(true);
+		lb.add(2);
+		assertEquals(0, lb.getHealth(2).getConsecutiveFailures());
+		assertEquals(0, lb.getHealth(2).getErrorRateEwma(), 0);
+		
+		// replacing forgets both the replaced and the new one
+		lb.replaceBackup(3, 4);
+		assertTrue(lb.getAutoDemotedProcessors().isEmpty());
+		assertEquals(0, lb.getHealth(3).getErrorRateEwma(), 0);
+		lb.dispatch(1);
+		assertTrue(lb.getHealth(1).getLatencyEwma() > 0);
+		lb.replace(1, 5);
+		assertEquals(0, lb.getHealth(1).getLatencyEwma(), 0);
+		assertEquals(0, lb.getHealth(5).getLatencyEwma(), 0);
+		assertEquals(Arrays.asList(2, 5), lb.getActiveProcessors());
+		
+		lb.remove(2);
+		assertEquals(0, lb.getHealth(2).getErrorRateEwma(), 0);
+		lb.close();
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Throughput of dispatching while the membership and the loads of the processors are being changed concurrently
+ * @author James Hu
+ *
+ */
+public class BasicLoadBalancerRateTest {
+	protected int warmUpSeconds = 1;
+	protected int testSeconds = 5;
+	protected int[] testThreadsList = new int[]{1, 4, 16};
+	protected int batchSize = 10000;
+
+	protected List<Integer> processors = Arrays.asList(new Integer[]{1, 2, 3, 4});
+	protected List<Integer> backupProcessors = Arrays.asList(new Integer[]{5, 6});
+
+	@Test
+	public void test() throws Exception {
+		String[] loads = new String[batchSize];
+		for (int i = 0; i < loads.length; i ++){
+			loads[i] = RandomStringUtils.random(10);
+		}
+
+		for (int testThreads: testThreadsList){
+			Map<String, LoadBalancer<String, String, Integer>> loadBalancers = new LinkedHashMap<>();
+			loadBalancers.put("BasicLoadBalancer", new BasicLoadBalancer<String, String, Integer>(100000, processors, backupProcessors,
+					null, s -> s.hashCode(), (processor, load) -> load, null, null));
+			loadBalancers.put("ConsistentHashLoadBalancer", new ConsistentHashLoadBalancer<String, String, Integer>(ConsistentHashLoadBalancer.DEFAULT_VIRTUAL_NODES, processors, backupProcessors,
+					null, s -> s.hashCode(), (processor, load) -> load, null, null));
+
+			for (Map.Entry<String, LoadBalancer<String, String, Integer>> entry: loadBalancers.entrySet()){
+				LoadBalancer<String, String, Integer> lb = entry.getValue();
+				AtomicBoolean stopped = new AtomicBoolean(false);
+				AtomicLong changes = new AtomicLong();
+				Thread churn = new Thread(() -> {
+					while(!stopped.get()){
+						lb.demote(4);
+						lb.promote(4);
+						lb.increaseLoad(1, 0.05f);
+						lb.decreaseLoad(1, 0.05f);
+						changes.addAndGet(4);
+						Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+					}
+				});
+				churn.start();
+				double rate;
+				try{
+					rate = RateTestUtility.doRateTest("Dispatching of " + entry.getKey() + " during membership churn with " + testThreads + " threads", testThreads,
+							warmUpSeconds, TimeUnit.SECONDS, null,
+							testSeconds, TimeUnit.SECONDS, endTime -> {
+								int i;
+								for (i = 0; i < loads.length; i ++){
+									assertNotNull(lb.dispatch(loads[i]));
+								}
+								return i;
+							});
+				}finally{
+					stopped.set(true);
+					churn.join();
+				}
+				System.out.println("    membership/load changes: " + changes.get());
+				assertTrue(rate > 0);
+			}
+		}
+	}
+
+}
@@ -1,11 +1,12 @@
 package net.sf.jabb.util.parallel;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.jabb.util.col.AtomicComputeIfAbsentMap;
@@ -37,6 +38,13 @@ public class BasicLoadBalancerTest {
 				}, null);
 	}
 	
+	protected LoadBalancer<String, String, Integer> createLoadBalancerWithoutStatistics() {
+		return new BasicLoadBalancer<String, String, Integer>(buckets, processors, backupProcessors,
+				null, s -> s.hashCode(), (processor, load) -> {
+					return load;
+				}, null, null);
+	}
+	
 	@Test
 	public void testAddAndRemove(){
 		createLoadBalancer();
@@ -111,4 +119,51 @@ public class BasicLoadBalancerTest {
 	
 	}
 	
+	@Test
+	public void testDispatchDuringChurn() throws Exception{
+		LoadBalancer<String, String, Integer> lb = createLoadBalancerWithoutStatistics();
+		String[] loads = new String[1000];
+		for (int i = 0; i < loads.length; i ++){
+			loads[i] = RandomStringUtils.random(10);
+		}
+		
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		AtomicLong changes = new AtomicLong();
+		Thread churn = new Thread(() -> {
+			while(!stopped.get()){
+				lb.demote(4);
+				lb.promote(4);
+				lb.increaseLoad(1, 0.05f);
+				lb.decreaseLoad(1, 0.05f);
+				changes.addAndGet(4);
+				Thread.yield();
+			}
+		});
+		churn.start();
+		try{
+			for (int round = 0; round < 100 && (round < 10 || changes.get() < 100); round ++){
+				for (String load: loads){
+					assertNotNull(lb.dispatch(load));
+				}
+			}
+		}finally{
+			stopped.set(true);
+			churn.join();
+		}
+		assertTrue(changes.get() > 0);
+	}
+	
+	@Test
+	public void testReplace(){
+		createLoadBalancer();
+		lb.replace(4, 5);
+		dispatchSamples();
+		assertFalse(processedStatistics.containsKey(4));
+		assertAroundTarget((long)(samples*0.25f), processedStatistics.get(5).get());
+		
+		lb.demote(5);		// the new processor is active, so it can be demoted
+		doTestEvenDistribution(1, 3);
+		assertFalse(processedStatistics.containsKey(5));
+	}
+	
 }
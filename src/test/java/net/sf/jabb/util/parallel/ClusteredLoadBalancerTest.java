@@ -0,0 +1,124 @@
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.util.parallel.BasicLoadBalancer.Routing;
+
+import org.jgroups.JChannel;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class ClusteredLoadBalancerTest {
+	protected int buckets = 10000;
+	protected List<Integer> processors = Arrays.asList(new Integer[]{1, 2, 3, 4});
+	protected List<Integer> backupProcessors = Arrays.asList(new Integer[]{5, 6});
+	protected String clusterName = "ClusteredLoadBalancerTest-" + UUID.randomUUID();
+	protected List<ClusteredLoadBalancer<String, String, Integer>> members = new ArrayList<>();
+
+	protected ClusteredLoadBalancer<String, String, Integer> createMember() throws Exception{
+		JChannel channel = new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(), new NAKACK2(), new UNICAST3(), new STABLE(),
+				new GMS().joinTimeout(1000), new FRAG2());
+		ClusteredLoadBalancer<String, String, Integer> lb = new ClusteredLoadBalancer<String, String, Integer>(channel, clusterName, buckets, processors, backupProcessors,
+				null, s -> s.hashCode(), (processor, load) -> load, null, null);
+		members.add(lb);
+		return lb;
+	}
+
+	@After
+	public void closeMembers(){
+		for (ClusteredLoadBalancer<String, String, Integer> lb: members){
+			lb.channel.close();
+		}
+	}
+
+	@Test
+	public void testDeltaReplication() throws Exception{
+		ClusteredLoadBalancer<String, String, Integer> a = createMember();
+		ClusteredLoadBalancer<String, String, Integer> b = createMember();
+		assertEquals(2, a.getClusterView().size());
+
+		a.increaseLoad(1, 0.1f);
+		assertConverged(a, b);
+		a.demote(2);
+		assertConverged(a, b);
+		b.promote(5);
+		assertConverged(b, a);
+		b.addBackup(7);
+		assertConverged(b, a);
+		a.replace(3, 8);
+		assertConverged(a, b);
+		assertEquals(5, a.getVersion());
+		List<Integer> active = new ArrayList<>(b.getRouting().getActiveProcessors());
+		active.sort(null);
+		assertEquals(Arrays.asList(1, 4, 5, 8), active);
+	}
+
+	@Test
+	public void testDeltaIsCompact() throws Exception{
+		ClusteredLoadBalancer<String, String, Integer> a = createMember();
+		Routing<Integer> before = a.getRouting();
+		a.increaseLoad(1, 0.01f);
+		Routing<Integer> after = a.getRouting();
+
+		byte[] delta = a.encodeState(ClusteredLoadBalancer.TYPE_DELTA, 0, 1, before, after);
+		byte[] legacy = Util.objectToByteBuffer(a.getState(true, false, false));
+		byte[] full = a.getCompactState();
+		assertTrue("delta: " + delta.length + ", legacy: " + legacy.length, delta.length * 10 < legacy.length);
+		assertTrue("full: " + full.length + ", legacy: " + legacy.length, full.length * 2 < legacy.length);
+	}
+
+	@Test
+	public void testRecoveryByFullState() throws Exception{
+		ClusteredLoadBalancer<String, String, Integer> a = createMember();
+		ClusteredLoadBalancer<String, String, Integer> b = createMember();
+		a.increaseLoad(1, 0.1f);
+		a.decreaseLoad(2, 0.05f);
+		assertConverged(a, b);
+
+		synchronized(b){		// pretend that b has missed some changes
+			Routing<Integer> r = b.routing;
+			Object[] processorMap = new Object[buckets];
+			Arrays.fill(processorMap, 6);
+			b.routing = new Routing<>(processorMap, r.getActiveProcessors(), r.getBackupProcessors());
+			b.version = 1;
+		}
+		a.increaseLoad(3, 0.1f);
+		assertConverged(a, b);
+
+		a.remove(4);
+		ClusteredLoadBalancer<String, String, Integer> c = createMember();	// newly joined member gets the state from the coordinator
+		assertConverged(a, c);
+	}
+
+	protected void assertConverged(ClusteredLoadBalancer<String, String, Integer> source, ClusteredLoadBalancer<String, String, Integer> target){
+		long deadline = System.currentTimeMillis() + 10000;
+		while(target.getVersion() != source.getVersion() && System.currentTimeMillis() < deadline){
+			Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(source.getVersion(), target.getVersion());
+		Routing<Integer> s = source.getRouting();
+		Routing<Integer> t = target.getRouting();
+		assertArrayEquals(s.getProcessorMap(), t.getProcessorMap());
+		assertEquals(s.getActiveProcessors(), t.getActiveProcessors());
+		assertEquals(s.getBackupProcessors(), t.getBackupProcessors());
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class CompletableFuturePipelineTest {
+	ExecutorService threadPool1 = Executors.newFixedThreadPool(5);
+	ExecutorService threadPool2 = Executors.newFixedThreadPool(2);
+	ExecutorService threadPool3 = Executors.newFixedThreadPool(4);
+	ExecutorService threadPool4 = Executors.newFixedThreadPool(5);
+
+	AtomicInteger stage3Invocations = new AtomicInteger();
+
+	Function<String, Integer> stringToInteger = s -> Integer.valueOf(s);
+	Function<Integer, Long> integerToLong = i -> {
+		try{
+			Thread.sleep(1000);
+		}catch(InterruptedException e){
+			Thread.interrupted();
+		}
+		return Long.valueOf(i);
+	};
+	Function<Long, BigInteger> longToBigInteger = l -> {
+		stage3Invocations.incrementAndGet();
+		return BigInteger.valueOf(l);
+	};
+	Function<BigInteger, Integer> bigIntegerToInteger = big -> {
+		if (big.compareTo(BigInteger.valueOf(-1)) == 0){
+			throw new IllegalArgumentException("value -1 is not allowed");
+		}
+		return big.intValue();
+	};
+
+	CompletableFuturePipelineImpl<String, Integer> createPipeline(){
+		return CompletableFuturePipelineImpl.<String>start()
+				.append(threadPool1, stringToInteger)
+				.append(threadPool2, integerToLong)
+				.append(threadPool3, longToBigInteger)
+				.append(threadPool4, bigIntegerToInteger);
+	}
+
+	@Test
+	public void testResult() throws InterruptedException, ExecutionException{
+		String input = "18763";
+		Integer output = createPipeline().feed(input).get();
+		assertEquals(input, output.toString());
+	}
+
+	@Test(expected=ExecutionException.class)
+	public void testExecutionExceptionInStage1() throws InterruptedException, ExecutionException{
+		createPipeline().feed("18sdf763").get();
+	}
+
+	@Test
+	public void testExecutionExceptionInStage4() throws InterruptedException{
+		try{
+			createPipeline().feed("-1").get();
+			fail("there should be an exception");
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException, ExecutionException{
+		CompletableFuture<Integer> result = createPipeline().feed("18763");
+		assertTrue(result.cancel(true));
+		try{
+			result.get();
+			fail("there should be an exception");
+		}catch(CancellationException e){
+			// expected
+		}
+		Thread.sleep(1500);		// the sleeping stage would have finished if it was not skipped
+		assertEquals(0, stage3Invocations.get());
+	}
+
+	@Test
+	public void testCallback() throws InterruptedException{
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicReference<Integer> callbackResult = new AtomicReference<>();
+		createPipeline().feed("123").thenAccept(output -> {
+			callbackResult.set(output);
+			latch.countDown();
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(123), callbackResult.get());
+	}
+
+	@Test
+	public void testOutputTo() throws InterruptedException, ExecutionException{
+		List<Integer> output = Collections.synchronizedList(new ArrayList<>());
+		CompletableFuturePipelineImpl<String, Integer> pipeline = CompletableFuturePipelineImpl.<String>start()
+				.append(threadPool1, stringToInteger)
+				.outputTo(output);
+		assertEquals(Integer.valueOf(5), pipeline.feed("5").get());
+		assertEquals(Collections.singletonList(5), output);
+	}
+
+	@Test
+	public void testFeedMore() throws InterruptedException, ExecutionException{
+		CompletableFuturePipelineImpl<String, Integer> pipeline = createPipeline();
+
+		int SIZE = 50;
+		String[] inputs = new String[SIZE];
+		List<CompletableFuture<Integer>> outputs = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; i ++){
+			String input = String.valueOf(i);
+			inputs[i] = input;
+			outputs.add(pipeline.feed(input));
+		}
+
+		for (int i = 0; i < SIZE; i ++){
+			assertEquals(inputs[i], outputs.get(i).get().toString());
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConsistentHashLoadBalancerTest extends BasicLoadBalancerTest {
+	protected int keys = 100000;
+	
+	@Override
+	protected void createLoadBalancer() {
+		this.lb = new ConsistentHashLoadBalancer<String, String, Integer>(ConsistentHashLoadBalancer.DEFAULT_VIRTUAL_NODES, processors, backupProcessors,
+				null, s -> s.hashCode(), (processor, load) -> {
+					return load;
+				}, stat->{
+					processedStatistics.get(stat.getProcessor()).incrementAndGet();
+				}, null);
+	}
+	
+	@Override
+	protected LoadBalancer<String, String, Integer> createLoadBalancerWithoutStatistics() {
+		return new ConsistentHashLoadBalancer<String, String, Integer>(ConsistentHashLoadBalancer.DEFAULT_VIRTUAL_NODES, processors, backupProcessors,
+				null, s -> s.hashCode(), (processor, load) -> {
+					return load;
+				}, null, null);
+	}
+	
+	protected ConsistentHashLoadBalancer<Integer, Integer, Integer> createIdentityLoadBalancer(int numProcessors){
+		List<Integer> processors = new ArrayList<>();
+		for (int i = 0; i < numProcessors; i ++){
+			processors.add(i);
+		}
+		return new ConsistentHashLoadBalancer<Integer, Integer, Integer>(processors, k -> k, (processor, load) -> processor);
+	}
+	
+	protected int[] route(LoadDispatcher<Integer, Integer> lb){
+		int[] result = new int[keys];
+		for (int k = 0; k < keys; k ++){
+			result[k] = lb.dispatch(k);
+		}
+		return result;
+	}
+	
+	@Test
+	public void testMinimalRemapping(){
+		int n = 64;
+		ConsistentHashLoadBalancer<Integer, Integer, Integer> lb = createIdentityLoadBalancer(n);
+		int[] before = route(lb);
+		
+		lb.add(n);
+		int[] after = route(lb);
+		int moved = 0;
+		for (int k = 0; k < keys; k ++){
+			if (before[k] != after[k]){
+				assertEquals(n, after[k]);		// only moved to the new one
+				moved ++;
+			}
+		}
+		assertAroundTarget(keys / (n + 1), moved);
+		
+		lb.remove(n);
+		assertArrayEquals(before, route(lb));
+		
+		lb.remove(5);
+		after = route(lb);
+		for (int k = 0; k < keys; k ++){
+			assertTrue(before[k] == after[k] || before[k] == 5);
+		}
+		
+		lb.addBackup(5);
+		lb.promote(5);
+		assertArrayEquals(before, route(lb));
+	}
+	
+	@Test
+	public void testWeights(){
+		ConsistentHashLoadBalancer<Integer, Integer, Integer> lb = createIdentityLoadBalancer(4);
+		int[] before = route(lb);
+		lb.increaseLoad(1, 0.15f);
+		assertEquals(0.4f, lb.getShare(1), 0.001f);
+		assertEquals(2.0f, lb.getWeight(1), 0.001f);
+		int[] after = route(lb);
+		int count = 0;
+		for (int k = 0; k < keys; k ++){
+			assertTrue(before[k] == after[k] || after[k] == 1);
+			if (after[k] == 1){
+				count ++;
+			}
+		}
+		assertAroundTarget((long)(keys * 0.4f), count);
+		
+		lb.setWeight(2, 0);
+		for (int p: route(lb)){
+			assertNotEquals(2, p);
+		}
+	}
+	
+	@Test
+	public void testAddingActiveProcessorAgain(){
+		ConsistentHashLoadBalancer<Integer, Integer, Integer> lb = createIdentityLoadBalancer(4);
+		lb.setWeight(1, 3.0f);
+		int[] before = route(lb);
+		
+		lb.add(1);
+		assertEquals(3.0f, lb.getWeight(1), 0.001f);
+		assertArrayEquals(before, route(lb));
+		
+		lb.promote(1);
+		assertEquals(3.0f, lb.getWeight(1), 0.001f);
+		assertEquals(4, lb.getActiveProcessors().size());
+		
+		lb.add(1, 3.0f);
+		assertArrayEquals(before, route(lb));
+		lb.add(1, 1.0f);
+		assertEquals(0.25f, lb.getShare(1), 0.001f);
+	}
+	
+	@Test
+	public void testHooks(){
+		AtomicInteger fallbackCount = new AtomicInteger();
+		AtomicInteger monitorCount = new AtomicInteger();
+		List<DispatchingStatistics<Integer, Integer>> stats = new ArrayList<>();
+		List<Integer> processors = new ArrayList<>();
+		processors.add(1);
+		ConsistentHashLoadBalancer<Integer, Integer, Integer> lb = new ConsistentHashLoadBalancer<Integer, Integer, Integer>(10, processors, null,
+				load -> fallbackCount.incrementAndGet(), k -> k, (processor, load) -> {
+					if (load < 0){
+						throw new DispatchingException(DispatchingException.SERVER_ERROR);
+					}
+					return processor;
+				}, stats::add, load -> monitorCount.incrementAndGet());
+		
+		assertEquals(Integer.valueOf(1), lb.dispatch(5));
+		try{
+			lb.dispatch(-5);
+			fail("should throw");
+		}catch(DispatchingException e){
+			assertEquals(DispatchingException.SERVER_ERROR, e.getType());
+		}
+		assertEquals(1, fallbackCount.get());
+		assertEquals(2, monitorCount.get());
+		assertEquals(2, stats.size());
+		assertTrue(stats.get(0).isSuccessful());
+		assertFalse(stats.get(1).isSuccessful());
+		assertEquals(Integer.valueOf(DispatchingException.SERVER_ERROR), stats.get(1).getExceptionType());
+	}
+	
+}
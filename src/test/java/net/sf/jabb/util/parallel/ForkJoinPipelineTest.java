@@ -0,0 +1,127 @@
+/**
+ * 
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ForkJoinPipelineTest {
+	ForkJoinPool pool = new ForkJoinPool(4);
+	AtomicInteger lastStageInvocations = new AtomicInteger();
+	
+	Function<String, Integer> stringToInteger = s -> Integer.valueOf(s);
+	Function<Integer, Long> integerToLong = i -> {
+		try{
+			Thread.sleep(i < 0 ? 0 : 200);
+		}catch(InterruptedException e){
+			Thread.interrupted();
+		}
+		return Long.valueOf(i);
+	};
+	Function<Long, BigInteger> longToBigInteger = l -> BigInteger.valueOf(l);
+	Function<BigInteger, Integer> bigIntegerToInteger = big -> {
+		lastStageInvocations.incrementAndGet();
+		if (big.compareTo(BigInteger.valueOf(-1)) == 0){
+			throw new IllegalArgumentException("value -1 is not allowed");
+		}
+		return big.intValue();
+	};
+
+	ForkJoinPipelineImpl<String, Integer> createPipeline(){
+		return ForkJoinPipelineImpl.<String>start(pool)
+				.append(stringToInteger)
+				.append(integerToLong)
+				.append(longToBigInteger)
+				.append(bigIntegerToInteger);
+	}
+	
+	@After
+	public void shutdownPool(){
+		pool.shutdownNow();
+	}
+	
+	@Test
+	public void testResult() throws InterruptedException, ExecutionException{
+		assertEquals(Integer.valueOf(18763), createPipeline().feed("18763").get());
+	}
+
+	@Test
+	public void testExecutionException() throws InterruptedException{
+		try{
+			createPipeline().feed("-1").get();
+			fail("there should be an exception");
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		try{
+			createPipeline().feed("abc").get();
+			fail("there should be an exception");
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof NumberFormatException);
+		}
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException{
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		ForkJoinPipelineImpl<String, Integer> pipeline = ForkJoinPipelineImpl.<String>start(pool)
+				.append(stringToInteger)
+				.append((Integer i) -> {
+					started.countDown();
+					try{
+						cancelled.await();
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+					return Long.valueOf(i);
+				})
+				.append(longToBigInteger)
+				.append(bigIntegerToInteger);
+		CompletableFuture<Integer> result = pipeline.feed("12");
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(result.cancel(true));
+		cancelled.countDown();
+		assertTrue(pool.awaitQuiescence(5, TimeUnit.SECONDS));
+		assertEquals(0, lastStageInvocations.get());
+	}
+	
+	@Test
+	public void testFeedMoreAndFeedFromWorker() throws Exception{
+		ConcurrentLinkedQueue<Integer> output = new ConcurrentLinkedQueue<>();
+		ForkJoinPipelineImpl<Integer, Integer> downstream = ForkJoinPipelineImpl.<Integer>start(pool)
+				.append((Integer i) -> i * 2)
+				.outputTo(output);
+		ForkJoinPipelineImpl<String, CompletableFuture<Integer>> pipeline = createPipeline()
+				.append(downstream::feed);
+		
+		int SIZE = 40;
+		List<CompletableFuture<CompletableFuture<Integer>>> outputs = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; i ++){
+			outputs.add(pipeline.feed(String.valueOf(i)));
+		}
+		for (int i = 0; i < SIZE; i ++){
+			assertEquals(Integer.valueOf(i * 2), outputs.get(i).get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(SIZE, output.size());
+	}
+}
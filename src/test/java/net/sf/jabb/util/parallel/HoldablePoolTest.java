@@ -0,0 +1,221 @@
+/**
+ * 
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class HoldablePoolTest {
+
+	@Test
+	public void testLease() {
+		doTestLease(new ArrayScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 2));
+		doTestLease(new LinkedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet));
+		doTestLease(new StripedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 2));
+	}
+	
+	protected void doTestLease(HoldablePool<Integer> pool){
+		Holdable<Integer> leased;
+		try(Holdable<Integer> holdable = pool.getHold(123)){
+			leased = holdable;
+			assertTrue(holdable.isHeld());
+			assertEquals(123, holdable.getHoldId());
+		}
+		assertFalse(leased.isHeld());
+		assertEquals(Holdable.FREE, leased.getHoldId());
+		assertSame(leased, pool.getHold(1));
+	}
+
+	@Test
+	public void testTryGetHoldTimeout() throws Exception {
+		doTestTryGetHoldTimeout(new ArrayScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 2));
+		doTestTryGetHoldTimeout(new StripedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 2));
+	}
+	
+	protected void doTestTryGetHoldTimeout(HoldablePool<Integer> pool) throws Exception {
+		Holdable<Integer> h1 = pool.getHold(1);
+		Holdable<Integer> h2 = pool.tryGetHold(2, Duration.ofMillis(100));
+		assertNotNull(h2);
+		assertNull(pool.tryGetHold(3));
+		
+		long start = System.currentTimeMillis();
+		assertNull(pool.tryGetHold(3, Duration.ofMillis(200)));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			h1.close();		// not the thread that got the hold, so it does nothing
+			pool.release(h1, 1);
+		});
+		releaser.start();
+		start = System.currentTimeMillis();
+		Holdable<Integer> h3 = pool.tryGetHold(3, Duration.ofSeconds(10));
+		assertSame(h1, h3);
+		assertEquals(3, h3.getHoldId());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		releaser.join();
+		
+		// getHold() waits as well
+		new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			pool.release(h2, 2);
+		}).start();
+		assertSame(h2, pool.getHold(4));
+		assertEquals(2, pool.getSize());
+	}
+
+	@Test
+	public void testDoubleCloseAndRelease() throws Exception {
+		doTestDoubleCloseAndRelease(new ArrayScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 1));
+		doTestDoubleCloseAndRelease(new LinkedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet));
+		doTestDoubleCloseAndRelease(new StripedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 1));
+	}
+	
+	protected void doTestDoubleCloseAndRelease(HoldablePool<Integer> pool) throws Exception {
+		Holdable<Integer> h1 = pool.getHold(1);
+		h1.close();
+		h1.close();
+		pool.release(h1);
+		assertFalse(h1.isHeld());
+		
+		// another thread gets the hold, then stale close() and release(h1, 1) in this thread must not release it
+		AtomicReference<Holdable<Integer>> h2 = new AtomicReference<>();
+		CountDownLatch held = new CountDownLatch(1);
+		CountDownLatch checked = new CountDownLatch(1);
+		Thread other = new Thread(() -> {
+			try(Holdable<Integer> h = pool.getHold(2)){
+				h2.set(h);
+				held.countDown();
+				checked.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		});
+		other.start();
+		assertTrue(held.await(10, TimeUnit.SECONDS));
+		assertSame(h1, h2.get());
+		h1.close();
+		assertFalse(pool.release(h1, 1));
+		assertEquals(2, h1.getHoldId());
+		checked.countDown();
+		other.join();
+		assertFalse(h1.isHeld());		// released by close() in the thread that got the hold
+		
+		// release() from another thread with the holdId, after which close() in the holding thread does nothing
+		Holdable<Integer> h3 = pool.getHold(3);
+		other = new Thread(() -> assertTrue(pool.release(h3, 3)));
+		other.start();
+		other.join();
+		assertFalse(h3.isHeld());
+		other = new Thread(() -> pool.getHold(4));
+		other.start();
+		other.join();
+		assertEquals(4, h1.getHoldId());
+		h3.close();
+		assertEquals(4, h1.getHoldId());
+		assertTrue(pool.release(h1, 4));
+	}
+
+	@Test
+	public void testReleaseFromAnotherThread() throws Exception {
+		doTestReleaseFromAnotherThread(new ArrayScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 1));
+		doTestReleaseFromAnotherThread(new LinkedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet));
+		doTestReleaseFromAnotherThread(new StripedScalableHoldablePool<>(new AtomicInteger()::incrementAndGet, 1));
+	}
+	
+	protected void doTestReleaseFromAnotherThread(HoldablePool<Integer> pool) throws Exception {
+		Holdable<Integer> h1 = pool.getHold(1);
+		Thread other = new Thread(() -> pool.release(h1));		// the hold is handed over to another thread which releases it
+		other.start();
+		other.join();
+		assertFalse(h1.isHeld());
+		
+		AtomicReference<Holdable<Integer>> h2 = new AtomicReference<>();
+		other = new Thread(() -> {
+			try {
+				h2.set(pool.tryGetHold(2, Duration.ofSeconds(10)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		other.start();
+		other.join();
+		assertSame(h1, h2.get());
+		assertEquals(2, h1.getHoldId());
+		h1.close();		// the hold has been released, and the new hold is not affected
+		assertEquals(2, h1.getHoldId());
+		pool.release(h1);
+		assertFalse(h1.isHeld());
+	}
+
+	@Test
+	public void testLeakDetectionOnAcquisition() throws Exception {
+		ArrayScalableHoldablePool<String> pool = new ArrayScalableHoldablePool<>(() -> "x", 3);
+		List<Holdable<String>> leaks = new CopyOnWriteArrayList<>();
+		pool.setLeakDetection(Duration.ofMillis(50), leaks::add);
+		
+		Holdable<String> leaked = pool.getHold(7);
+		Thread.sleep(100);
+		try(Holdable<String> h = pool.getHold(8)){		// detection runs without any thread waiting
+			assertNotNull(h);
+		}
+		assertEquals(1, leaks.size());
+		assertSame(leaked, leaks.get(0));
+		leaked.close();
+	}
+
+	@Test
+	public void testLeakDetection() throws Exception {
+		ArrayScalableHoldablePool<String> pool = new ArrayScalableHoldablePool<>(() -> "x", 2);
+		List<Holdable<String>> leaks = new CopyOnWriteArrayList<>();
+		pool.setLeakDetection(Duration.ofMillis(100), leaks::add);
+		
+		Holdable<String> leaked = pool.getHold(7);
+		try(Holdable<String> h = pool.getHold(8)){
+			assertNotNull(h);
+		}
+		assertEquals(0, pool.detectLeaks().size());
+		Thread.sleep(150);
+		assertTrue(leaked.getHeldDuration().toMillis() >= 100);
+		
+		Holdable<String> other = pool.getHold(9);
+		assertEquals(1, pool.detectLeaks().size());
+		assertEquals(1, leaks.size());
+		assertSame(leaked, leaks.get(0));
+		assertEquals(7, leaks.get(0).getHoldId());
+		
+		// waiting longer than the threshold triggers detection, but each leak is reported only once
+		Thread.sleep(150);
+		assertNull(pool.tryGetHold(10, Duration.ofMillis(200)));
+		assertEquals(2, leaks.size());
+		assertSame(other, leaks.get(1));
+		
+		leaked.close();
+		other.close();
+		assertEquals(0, pool.detectLeaks().size());
+		assertNull(leaked.getHeldDuration());
+	}
+
+}
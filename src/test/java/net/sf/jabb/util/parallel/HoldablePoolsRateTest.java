@@ -0,0 +1,59 @@
+/**
+ * 
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class HoldablePoolsRateTest {
+	protected int warmUpSeconds = 2;
+	protected int testSeconds = 10;
+	protected int[] testThreadsList = new int[]{4, 16, 64};
+	protected int batchSize = 1000;
+	
+	static class Counter{
+		long value;
+	}
+	
+	@Test
+	public void test() throws Exception {
+		int capacity = Runtime.getRuntime().availableProcessors();
+		for (int testThreads: testThreadsList){
+			Map<String, HoldablePool<Counter>> pools = new LinkedHashMap<>();
+			pools.put("ArrayScalableHoldablePool", new ArrayScalableHoldablePool<>(Counter::new, capacity));
+			pools.put("LinkedScalableHoldablePool", new LinkedScalableHoldablePool<>(Counter::new));
+			pools.put("StripedScalableHoldablePool", new StripedScalableHoldablePool<>(Counter::new, capacity));
+			
+			for (Map.Entry<String, HoldablePool<Counter>> entry: pools.entrySet()){
+				HoldablePool<Counter> pool = entry.getValue();
+				double rate = RateTestUtility.doRateTest(entry.getKey() + " with " + testThreads + " threads", testThreads, 
+						warmUpSeconds, TimeUnit.SECONDS, null, 
+						testSeconds, TimeUnit.SECONDS, endTime -> {
+							int i;
+							for (i = 0; i < batchSize; i ++){
+								Holdable<Counter> holdable = pool.getHold();
+								holdable.get().value ++;
+								pool.release(holdable);
+							}
+							return i;
+						});
+				long total = pool.getAll().stream().mapToLong(c -> c.value).sum();
+				assertTrue(total >= rate * testSeconds);
+				System.out.println("    size of the pool: " + pool.getSize());
+			}
+		}
+	}
+
+}
@@ -7,14 +7,23 @@ import static org.junit.Assert.*;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -116,4 +125,240 @@ public class PipelineTest {
 			assertEquals(inputs[i], outputs.get(i).get().toString());
 		}
 	}
+	
+	@Test
+	public void testBoundedQueueBlocking() throws InterruptedException, ExecutionException{
+		AtomicInteger maxQueueDepth = new AtomicInteger();
+		List<Integer> output = Collections.synchronizedList(new ArrayList<>());
+		RecursivePipelineImpl<String, Integer> pipeline = RecursivePipelineImpl.outputTo(output)
+				.prepend(1, 2, Pipeline.Backpressure.BLOCK, (Integer i) -> {
+					try{
+						Thread.sleep(5);
+					}catch(InterruptedException e){
+						Thread.interrupted();
+					}
+					return i;
+				})
+				.prepend(1, 100, Pipeline.Backpressure.BLOCK, stringToInteger);
+		PipelineStageMetrics slowStage = pipeline.getStageMetrics().get(1);
+		
+		int SIZE = 50;
+		List<Future<Integer>> outputs = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; i ++){
+			outputs.add(pipeline.feed(String.valueOf(i)));
+			maxQueueDepth.accumulateAndGet(slowStage.getQueueDepth(), Math::max);
+		}
+		for (int i = 0; i < SIZE; i ++){
+			assertEquals(Integer.valueOf(i), outputs.get(i).get());
+		}
+		assertTrue(maxQueueDepth.get() <= 2);
+		assertEquals(SIZE, output.size());
+		
+		List<PipelineStageMetrics> metrics = pipeline.getStageMetrics();
+		assertEquals(2, metrics.size());
+		for (PipelineStageMetrics m: metrics){
+			assertEquals(SIZE, m.getSubmitted());
+			assertEquals(SIZE, m.getCompleted());
+			assertEquals(0, m.getRejected());
+			assertEquals(SIZE, m.getLatencyNanos().getCount());
+			assertTrue(m.getThroughput() > 0);
+		}
+		assertTrue(metrics.get(1).getProcessingNanos().getMin() >= TimeUnit.MILLISECONDS.toNanos(5));
+	}
+	
+	@Test
+	public void testBoundedQueueDropping() throws InterruptedException{
+		RecursivePipelineImpl<Integer, Long> pipeline = RecursivePipelineImpl.<Long>noOutput()
+				.prepend(1, 1, Pipeline.Backpressure.DROP, integerToLong);
+		int dropped = 0;
+		List<Future<Long>> outputs = new ArrayList<>();
+		for (int i = 0; i < 5; i ++){
+			try{
+				outputs.add(pipeline.feed(i));
+			}catch(RejectedExecutionException e){
+				dropped ++;
+			}
+		}
+		assertTrue(dropped >= 3);	// one is being processed and one is in the queue
+		assertEquals(dropped, pipeline.getStageMetrics().get(0).getRejected());
+		assertEquals(5 - dropped, pipeline.getStageMetrics().get(0).getSubmitted());
+	}
+	
+	@Test
+	public void testBatching() throws Exception{
+		List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		ExecutorService workers = Executors.newSingleThreadExecutor();
+		try{
+			testBatching(workers, batchSizes, written);
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+	
+	void testBatching(ExecutorService workers, List<Integer> batchSizes, List<String> written) throws Exception{
+		RecursivePipelineImpl<String, String> pipeline = RecursivePipelineImpl.<String>noOutput()
+				.prependBatching(1, workers, 1000, Pipeline.Backpressure.BLOCK, 10, 50, (List<Integer> batch) -> {
+					batchSizes.add(batch.size());
+					List<String> result = batch.stream().map(i -> "#" + i).collect(Collectors.toList());
+					written.addAll(result);
+					return result;
+				})
+				.prepend(threadPool1, stringToInteger);
+		
+		int SIZE = 95;
+		List<Future<String>> outputs = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; i ++){
+			outputs.add(pipeline.feed(String.valueOf(i)));
+		}
+		for (int i = 0; i < SIZE; i ++){
+			assertEquals("#" + i, outputs.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(SIZE, written.size());
+		for (int size: batchSizes){
+			assertTrue(size <= 10);
+		}
+		assertTrue("batches: " + batchSizes, batchSizes.size() < SIZE);
+		
+		PipelineStageMetrics metrics = pipeline.getStageMetrics().get(1);
+		assertEquals(SIZE, metrics.getCompleted());
+		assertEquals(batchSizes.size(), metrics.getProcessingNanos().getCount());
+		assertEquals(0, metrics.getQueueDepth());
+	}
+	
+	@Test
+	public void testBatchingFailure() throws InterruptedException{
+		ExecutorService workers = Executors.newSingleThreadExecutor();
+		try{
+			RecursivePipelineImpl<Integer, Integer> pipeline = RecursivePipelineImpl.<Integer>noOutput()
+					.prependBatching(1, workers, 10, Pipeline.Backpressure.BLOCK, 10, 1, (List<Integer> batch) -> batch.subList(1, batch.size()));
+			try{
+				pipeline.feed(1).get(5, TimeUnit.SECONDS);
+				fail("there should be an exception");
+			}catch(ExecutionException e){
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}catch(Exception e){
+				fail("unexpected exception: " + e);
+			}
+			assertEquals(1, pipeline.getStageMetrics().get(0).getFailed());
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testBatchingBlockedFeedAfterWorkersStopped() throws Exception{
+		ExecutorService workers = Executors.newSingleThreadExecutor();
+		CountDownLatch processing = new CountDownLatch(1);
+		RecursivePipelineImpl<Integer, Integer> pipeline = RecursivePipelineImpl.<Integer>noOutput()
+				.prependBatching(1, workers, 1, Pipeline.Backpressure.BLOCK, 1, 0, (List<Integer> batch) -> {
+					processing.countDown();
+					try{
+						Thread.sleep(Long.MAX_VALUE);
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+					return batch;
+				});
+		Future<Integer> processed = pipeline.feed(1);
+		assertTrue(processing.await(5, TimeUnit.SECONDS));
+		Future<Integer> queued = pipeline.feed(2);		// the queue is full after this
+		
+		ExecutorService feeder = Executors.newSingleThreadExecutor();
+		try{
+			Future<Future<Integer>> blocked = feeder.submit(() -> pipeline.feed(3));
+			workers.shutdownNow();
+			try{
+				blocked.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);	// the feeding may have got into the queue just before the workers stopped
+				fail("the blocked feeding should have been rejected");
+			}catch(ExecutionException e){
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+		}finally{
+			feeder.shutdownNow();
+		}
+		assertEquals(Integer.valueOf(1), processed.get(5, TimeUnit.SECONDS));
+		try{
+			queued.get(5, TimeUnit.SECONDS);
+			fail("the queued input should have been rejected");
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		try{
+			pipeline.feed(4);
+			fail("the input should have been rejected");
+		}catch(RejectedExecutionException e){
+			// expected
+		}
+	}
+	
+	@Test
+	public void testOrdered() throws InterruptedException, ExecutionException{
+		List<Integer> output = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger maxInWindow = new AtomicInteger();
+		RecursivePipelineImpl<String, Integer> pipeline = RecursivePipelineImpl.outputTo(output)
+				.prependOrdered(4, 8, (String s) -> {
+					try{
+						Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+					}catch(InterruptedException e){
+						Thread.interrupted();
+					}
+					if (s.equals("13")){
+						throw new IllegalArgumentException("unlucky");
+					}
+					return Integer.valueOf(s);
+				});
+		PipelineStageMetrics metrics = pipeline.getStageMetrics().get(0);
+		
+		int SIZE = 200;
+		List<Future<Integer>> outputs = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; i ++){
+			outputs.add(pipeline.feed(String.valueOf(i)));
+			maxInWindow.accumulateAndGet(metrics.getQueueDepth(), Math::max);
+		}
+		for (int i = 0; i < SIZE; i ++){
+			if (i == 13){
+				try{
+					outputs.get(i).get();
+					fail("there should be an exception");
+				}catch(ExecutionException e){
+					assertTrue(e.getCause() instanceof IllegalArgumentException);
+				}
+			}else{
+				assertEquals(Integer.valueOf(i), outputs.get(i).get());
+			}
+		}
+		assertEquals(SIZE - 1, output.size());
+		for (int i = 1; i < output.size(); i ++){
+			assertTrue(output.get(i - 1) < output.get(i));
+		}
+		assertTrue(maxInWindow.get() <= 8);
+		assertEquals(SIZE - 1, metrics.getCompleted());
+		assertEquals(1, metrics.getFailed());
+	}
+	
+	@Test
+	public void testBlockingPolicyRejectsWhenShutDownDuringOffer() throws InterruptedException{
+		ThreadPoolExecutor[] executor = new ThreadPoolExecutor[1];
+		ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(1){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException{
+				executor[0].shutdown();		// shut down after the feeding thread has checked but before the input is in the queue
+				return super.offer(r, timeout, unit);
+			}
+		};
+		executor[0] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue, new RecursivePipelineImpl.BlockingPolicy());
+		AtomicInteger ran = new AtomicInteger();
+		try{
+			new RecursivePipelineImpl.BlockingPolicy().rejectedExecution(ran::incrementAndGet, executor[0]);
+			fail("The input should be rejected because no worker would run it");
+		}catch(RejectedExecutionException e){
+			// expected
+		}
+		assertTrue(queue.isEmpty());
+		assertTrue(executor[0].awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, ran.get());
+	}
 }
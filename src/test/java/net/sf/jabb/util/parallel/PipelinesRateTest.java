@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * Compares throughput of pipeline implementations with the stages in PipelineTest, without the sleeping.
+ * The per-stage thread pools have 16 threads in total, the same number of threads as the shared fork/join pool.
+ * @author James Hu
+ *
+ */
+public class PipelinesRateTest {
+	protected int warmUpSeconds = 2;
+	protected int testSeconds = 10;
+	protected int[] testThreadsList = new int[]{1, 4, 16};
+	protected int batchSize = 1000;
+
+	Function<String, Integer> stringToInteger = s -> Integer.valueOf(s);
+	Function<Integer, Long> integerToLong = i -> Long.valueOf(i);
+	Function<Long, BigInteger> longToBigInteger = l -> BigInteger.valueOf(l);
+	Function<BigInteger, Integer> bigIntegerToInteger = big -> big.intValue();
+
+	@Test
+	public void test() throws Exception {
+		ExecutorService threadPool1 = Executors.newFixedThreadPool(5);
+		ExecutorService threadPool2 = Executors.newFixedThreadPool(2);
+		ExecutorService threadPool3 = Executors.newFixedThreadPool(4);
+		ExecutorService threadPool4 = Executors.newFixedThreadPool(5);
+		ForkJoinPool forkJoinPool = new ForkJoinPool(16);
+		try{
+			test(threadPool1, threadPool2, threadPool3, threadPool4, forkJoinPool);
+		}finally{
+			threadPool1.shutdownNow();
+			threadPool2.shutdownNow();
+			threadPool3.shutdownNow();
+			threadPool4.shutdownNow();
+			forkJoinPool.shutdownNow();
+		}
+	}
+	
+	void test(ExecutorService threadPool1, ExecutorService threadPool2, ExecutorService threadPool3, ExecutorService threadPool4,
+			ForkJoinPool forkJoinPool) throws Exception {
+
+		Map<String, Pipeline<String, Integer>> pipelines = new LinkedHashMap<>();
+		pipelines.put("RecursivePipelineImpl", RecursivePipelineImpl.<Integer>noOutput()
+				.prepend(threadPool4, bigIntegerToInteger)
+				.prepend(threadPool3, longToBigInteger)
+				.prepend(threadPool2, integerToLong)
+				.prepend(threadPool1, stringToInteger));
+		pipelines.put("CompletableFuturePipelineImpl", CompletableFuturePipelineImpl.<String>start()
+				.append(threadPool1, stringToInteger)
+				.append(threadPool2, integerToLong)
+				.append(threadPool3, longToBigInteger)
+				.append(threadPool4, bigIntegerToInteger));
+		pipelines.put("ForkJoinPipelineImpl", ForkJoinPipelineImpl.<String>start(forkJoinPool)
+				.append(stringToInteger)
+				.append(integerToLong)
+				.append(longToBigInteger)
+				.append(bigIntegerToInteger));
+
+		for (int testThreads: testThreadsList){
+			for (Map.Entry<String, Pipeline<String, Integer>> entry: pipelines.entrySet()){
+				Pipeline<String, Integer> pipeline = entry.getValue();
+				RateTestUtility.doRateTest(entry.getKey() + " with " + testThreads + " feeding threads", testThreads,
+						warmUpSeconds, TimeUnit.SECONDS, null,
+						testSeconds, TimeUnit.SECONDS, endTime -> {
+							List<Future<Integer>> futures = new ArrayList<>(batchSize);
+							for (int i = 0; i < batchSize; i ++){
+								futures.add(pipeline.feed(String.valueOf(i)));
+							}
+							for (int i = 0; i < batchSize; i ++){
+								try {
+									assertEquals(i, futures.get(i).get().intValue());
+								} catch (Exception e) {
+									throw new RuntimeException(e);
+								}
+							}
+							return batchSize;
+						});
+			}
+		}
+	}
+
+}
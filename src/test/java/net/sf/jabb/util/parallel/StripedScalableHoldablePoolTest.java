@@ -0,0 +1,118 @@
+/**
+ * 
+ */
+package net.sf.jabb.util.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class StripedScalableHoldablePoolTest {
+	
+	static class Counter{
+		long value;
+	}
+
+	@Test
+	public void testGrowAndReset() {
+		AtomicInteger created = new AtomicInteger();
+		StripedScalableHoldablePool<Integer> pool = new StripedScalableHoldablePool<>(created::incrementAndGet, 3);
+		assertEquals(0, pool.getSize());
+		assertEquals(3, pool.getCapacity());
+		
+		Holdable<Integer> h1 = pool.getHold(1);
+		assertEquals(1, pool.getSize());
+		pool.release(h1);
+		assertSame(h1, pool.getHold(1));		// no contention, no growth
+		assertEquals(1, pool.getSize());
+		
+		Holdable<Integer> h2 = pool.getHold(2);
+		Holdable<Integer> h3 = pool.getHold(3);
+		assertNotSame(h1, h2);
+		assertNotSame(h2, h3);
+		assertEquals(3, pool.getSize());
+		assertEquals(3, created.get());
+		assertEquals(3, pool.getAll().size());
+		
+		pool.reset(100);
+		assertEquals(1, pool.getSize());
+		assertEquals(Integer.valueOf(100), pool.getHold(1).get());
+		pool.reset();
+		assertEquals(0, pool.getSize());
+		assertEquals(0, pool.getAll().size());
+	}
+
+	static class Resource implements AutoCloseable{
+		boolean closed;
+
+		@Override
+		public void close(){
+			closed = true;
+		}
+	}
+
+	@Test
+	public void testLoserOfGrowthRaceIsClosed() throws Exception {
+		List<Resource> created = new ArrayList<>();
+		AtomicReference<StripedScalableHoldablePool<Resource>> poolRef = new AtomicReference<>();
+		AtomicReference<Holdable<Resource>> winner = new AtomicReference<>();
+		StripedScalableHoldablePool<Resource> pool = new StripedScalableHoldablePool<>(() -> {
+			Resource r = new Resource();
+			created.add(r);
+			if (created.size() == 1){		// another thread fills up the pool before this one is added
+				Thread other = new Thread(() -> winner.set(poolRef.get().tryGetHold(2)));
+				other.start();
+				try {
+					other.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return r;
+		}, 1);
+		poolRef.set(pool);
+
+		assertNull(pool.tryGetHold(1));
+		assertEquals(2, created.size());
+		assertTrue(created.get(0).closed);
+		assertFalse(created.get(1).closed);
+		assertSame(created.get(1), winner.get().get());
+		assertEquals(1, pool.getSize());
+	}
+
+	@Test
+	public void testExclusiveHolds() throws Exception {
+		int capacity = 4;
+		int numThreads = 16;
+		int loops = 100000;
+		StripedScalableHoldablePool<Counter> pool = new StripedScalableHoldablePool<>(Counter::new, capacity);
+		ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+		for (int t = 0; t < numThreads; t ++){
+			threadPool.submit(() -> {
+				for (int i = 0; i < loops; i ++){
+					Holdable<Counter> holdable = pool.getHold();
+					holdable.get().value ++;		// not thread safe unless it is held exclusively
+					pool.release(holdable);
+				}
+			});
+		}
+		threadPool.shutdown();
+		assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+		
+		assertTrue(pool.getSize() <= capacity);
+		assertEquals((long)numThreads * loops, pool.getAll().stream().mapToLong(c -> c.value).sum());
+	}
+
+}
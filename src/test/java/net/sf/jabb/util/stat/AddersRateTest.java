@@ -28,6 +28,12 @@ public class AddersRateTest extends BaseTest{
 		doTestAdder(bigIntegerAdder.getClass().getSimpleName(), bigIntegerAdder);
 	}
 
+	@Test
+	public void testStripedBigIntegerAdder() throws Exception{
+		StripedBigIntegerAdder stripedBigIntegerAdder = new StripedBigIntegerAdder();
+		doTestAdder(stripedBigIntegerAdder.getClass().getSimpleName(), stripedBigIntegerAdder);
+	}
+
 	
 	protected void doTestAdder(String title, LongAdder adder) throws Exception{
 		adder.reset();
@@ -110,5 +116,62 @@ public class AddersRateTest extends BaseTest{
 				});
 	}
 	
+	protected void doTestAdder(String title, StripedBigIntegerAdder adder) throws Exception{
+		adder.reset();
+		RateTestUtility.doRateTest(title + " - int", testThreads, 
+				warmUpSeconds, TimeUnit.SECONDS, null, 
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomIntegers.length && System.currentTimeMillis() < endTime; i ++){
+						adder.add(randomIntegers[i]);
+					}
+					return i;
+				});
+
+		adder.reset();
+		RateTestUtility.doRateTest(title + " - long", testThreads, 
+				warmUpSeconds, TimeUnit.SECONDS, null, 
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomLongs.length && System.currentTimeMillis() < endTime; i ++){
+						adder.add(randomLongs[i]);
+					}
+					return i;
+				});
+
+		adder.reset();
+		RateTestUtility.doRateTest(title + " - int as BigInteger", testThreads, 
+				warmUpSeconds, TimeUnit.SECONDS, null, 
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomIntegersAsBigIntegers.length && System.currentTimeMillis() < endTime; i ++){
+						adder.add(randomIntegersAsBigIntegers[i]);
+					}
+					return i;
+				});
+
+		adder.reset();
+		RateTestUtility.doRateTest(title + " - long as BigInteger", testThreads, 
+				warmUpSeconds, TimeUnit.SECONDS, null, 
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomLongsAsBigIntegers.length && System.currentTimeMillis() < endTime; i ++){
+						adder.add(randomLongsAsBigIntegers[i]);
+					}
+					return i;
+				});
+
+		adder.reset();
+		RateTestUtility.doRateTest(title + " - BigInteger", testThreads, 
+				warmUpSeconds, TimeUnit.SECONDS, null, 
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomBigIntegers.length && System.currentTimeMillis() < endTime; i ++){
+						adder.add(randomBigIntegers[i]);
+					}
+					return i;
+				});
+	}
+	
 
 }
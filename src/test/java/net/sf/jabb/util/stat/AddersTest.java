@@ -33,6 +33,35 @@ public class AddersTest extends BaseTest{
 		BigIntegerAdder bigIntegerAdder = new BigIntegerAdder();
 		doTestAdder(bigIntegerAdder);
 	}
+	
+	@Test
+	public void testStripedBigIntegerAdder() throws InterruptedException{
+		StripedBigIntegerAdder stripedBigIntegerAdder = new StripedBigIntegerAdder();
+		doTestAdder(stripedBigIntegerAdder);
+	}
+	
+	@Test
+	public void testStripedBigIntegerAdderOverflow(){
+		StripedBigIntegerAdder adder = new StripedBigIntegerAdder(4);
+		BigInteger expected = BigInteger.ZERO;
+		for (int i = 0; i < 10; i ++){
+			adder.add(Long.MAX_VALUE);
+			expected = expected.add(BigInteger.valueOf(Long.MAX_VALUE));
+		}
+		assertEquals(expected, adder.sum());
+		for (int i = 0; i < 25; i ++){
+			adder.add(Long.MIN_VALUE);
+			expected = expected.add(BigInteger.valueOf(Long.MIN_VALUE));
+		}
+		assertEquals(expected, adder.sum());
+		adder.add(expected.negate().multiply(BigInteger.TEN));
+		assertEquals(expected.multiply(BigInteger.valueOf(-9)), adder.sumThenReset());
+		assertEquals(BigInteger.ZERO, adder.sum());
+		
+		adder.set(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE));
+		adder.decrement();
+		assertEquals(Long.MAX_VALUE, adder.longValue());
+	}
 
 	protected void doTestAdder(LongAdder adder) throws InterruptedException {
 		adder.reset();
@@ -60,6 +89,41 @@ public class AddersTest extends BaseTest{
 		assertEquals(expectedResult.longValue(), adder.sum());
 	}
 	
+	protected void doTestAdder(StripedBigIntegerAdder adder) throws InterruptedException{
+		adder.reset();
+		Thread t1 = new Thread(()->{
+			for (int b = 0; b < batchs; b ++){
+				for (int v: randomIntegers){
+					adder.add(v);
+				}
+			}
+		});
+		Thread t2 = new Thread(()->{
+			for (int b = 0; b < batchs; b ++){
+				for (long v: randomLongs){
+					adder.add(v);
+				}
+			}
+		});
+		Thread t3 = new Thread(()->{
+			for (int b = 0; b < batchs; b ++){
+				for (BigInteger v: randomBigIntegers){
+					adder.add(v);
+				}
+			}
+		});
+		
+		t1.start();
+		t2.start();
+		t3.start();
+		t1.join();
+		t2.join();
+		t3.join();
+		
+		BigInteger expectedResult = sumOfRandomIntegers.add(sumOfRandomLongs).add(sumOfRandomBigIntegers).multiply(BigInteger.valueOf(batchs));
+		assertEquals(expectedResult, adder.sum());
+	}
+	
 	protected void doTestAdder(BigIntegerAdder adder) throws InterruptedException{
 		adder.reset();
 		Thread t1 = new Thread(()->{
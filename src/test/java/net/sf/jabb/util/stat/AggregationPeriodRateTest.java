@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class AggregationPeriodRateTest {
+	protected int warmUpSeconds = 2;
+	protected int testSeconds = 10;
+	protected int testThreads = 1;
+
+	protected List<AggregationPeriod> periods = new ArrayList<>();
+	protected List<AggregationPeriod> lookups = new ArrayList<>();
+
+	public AggregationPeriodRateTest(){
+		int[] minutes = new int[]{1, 2, 3, 4, 5, 6, 10, 12, 15, 20, 30, 60};
+		int[] hours = new int[]{1, 2, 3, 4, 6, 8, 12, 24};
+		for (ZoneId zone: new ZoneId[]{ZoneId.of("UTC"), ZoneId.of("Australia/Melbourne"), ZoneId.of("America/New_York")}){
+			for (int amount: minutes){
+				periods.add(new AggregationPeriod(amount, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone));
+			}
+			for (int amount: hours){
+				periods.add(new AggregationPeriod(amount, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR, zone));
+			}
+			periods.add(new AggregationPeriod(1, AggregationPeriodUnit.YEAR_MONTH_DAY, zone));
+			periods.add(new AggregationPeriod(1, AggregationPeriodUnit.YEAR_MONTH, zone));
+			periods.add(new AggregationPeriod(1, AggregationPeriodUnit.YEAR, zone));
+		}
+		for (AggregationPeriod ap: periods){
+			lookups.add(AggregationPeriod.parse(ap.getCodeName()));
+		}
+	}
+
+	@Test
+	public void testSorting() throws Exception{
+		RateTestUtility.doRateTest("Sorting " + periods.size() + " AggregationPeriods", testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					List<AggregationPeriod> list = new ArrayList<>(periods);
+					Collections.shuffle(list);
+					Collections.sort(list);
+					return 1;
+				});
+	}
+
+	@Test
+	public void testTreeMapLookup() throws Exception{
+		Map<AggregationPeriod, Integer> map = new TreeMap<>();
+		for (AggregationPeriod ap: periods){
+			map.put(ap, 1);
+		}
+		doTestLookup("TreeMap", map);
+	}
+
+	@Test
+	public void testHashMapLookup() throws Exception{
+		Map<AggregationPeriod, Integer> map = new HashMap<>();
+		for (AggregationPeriod ap: periods){
+			map.put(ap, 1);
+		}
+		doTestLookup("HashMap", map);
+	}
+
+	protected void doTestLookup(String title, Map<AggregationPeriod, Integer> map) throws Exception{
+		RateTestUtility.doRateTest("Looking up AggregationPeriods in " + title, testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int found = 0;
+					for (AggregationPeriod ap: lookups){
+						found += map.get(ap);
+					}
+					return found;
+				});
+	}
+
+}
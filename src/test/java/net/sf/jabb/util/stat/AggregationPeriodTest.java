@@ -40,5 +40,49 @@ public class AggregationPeriodTest {
 		assertEquals(AggregationPeriod.parse("2E"), AggregationPeriod.parse("2 WeekBasedYearWeek"));
 		assertEquals(AggregationPeriod.parse("2E"), AggregationPeriod.parse("2 WEEK_BASED_YEAR_WEEK"));
 	}
+	
+	@Test
+	public void testInterning() {
+		ZoneId zone = ZoneId.of("Australia/Melbourne");
+		AggregationPeriod ap = AggregationPeriod.of(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone);
+		assertSame(ap, AggregationPeriod.of(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone));
+		assertSame(ap, AggregationPeriod.parse(ap.getCodeName()));
+		assertSame(ap, AggregationPeriod.of(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone).withAmount(5));
+		assertSame(AggregationPeriod.parse("2d"), AggregationPeriod.of(2, AggregationPeriodUnit.YEAR_MONTH_DAY));
+		
+		AggregationPeriod copy = ap.copy();
+		assertNotSame(ap, copy);
+		assertEquals(ap, copy);
+		assertEquals(ap.hashCode(), copy.hashCode());
+		assertEquals(0, ap.compareTo(copy));
+		assertSame(ap, copy.intern());
+		
+		copy.setAmount(10);
+		assertNotEquals(ap, copy);
+		assertEquals(ap.getDurationMillis() * 2, copy.getDurationMillis());
+		assertEquals(ap.getDuration().multipliedBy(2), copy.getDuration());
+		assertTrue(ap.compareTo(copy) < 0);
+		
+		try{
+			ap.setAmount(10);
+			fail("interned instance should not be modifiable");
+		}catch(IllegalStateException e){
+			assertEquals(5, ap.getAmount());
+		}
+		try{
+			AggregationPeriod.parse("2d").setZone(zone);
+			fail("interned instance should not be modifiable");
+		}catch(IllegalStateException e){
+			// expected
+		}
+		AggregationPeriod newOne = new AggregationPeriod(17, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR, zone);
+		assertSame(newOne, newOne.intern());
+		try{
+			newOne.setUnit(AggregationPeriodUnit.YEAR_MONTH_DAY);
+			fail("interned instance should not be modifiable");
+		}catch(IllegalStateException e){
+			// expected
+		}
+	}
 
 }
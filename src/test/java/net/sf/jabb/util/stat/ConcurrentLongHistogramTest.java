@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ConcurrentLongHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		for (int bits = ConcurrentLongHistogram.MIN_PRECISION_BITS; bits <= 12; bits ++){
+			int previous = -1;
+			for (long v = 0; v < 100000; v ++){
+				int i = ConcurrentLongHistogram.indexOf(v, bits);
+				assertTrue(i == previous || i == previous + 1);
+				assertTrue(ConcurrentLongHistogram.lowestValueOf(i, bits) <= v);
+				assertTrue(ConcurrentLongHistogram.highestValueOf(i, bits) >= v);
+				previous = i;
+			}
+		}
+		int last = ConcurrentLongHistogram.indexOf(Long.MAX_VALUE, 7);
+		assertEquals(Long.MAX_VALUE, ConcurrentLongHistogram.highestValueOf(last, 7));
+		assertEquals(last + 1, new ConcurrentLongHistogram(7).getNumberOfBuckets());
+		assertTrue(new ConcurrentLongHistogram(7, 3600_000_000_000L).getNumberOfBuckets() < new ConcurrentLongHistogram(10, 3600_000_000_000L).getNumberOfBuckets());
+	}
+
+	@Test
+	public void testPercentiles() {
+		ConcurrentLongHistogram h = new ConcurrentLongHistogram(7, 1000_000_000L);
+		assertTrue(h.isEmpty());
+		assertEquals(0, h.getValueAtPercentile(99));
+		for (long v = 1; v <= 100000; v ++){
+			h.evaluate(v);
+		}
+		assertEquals(100000, h.getCount());
+		assertEquals(Long.valueOf(1), h.getMin());
+		assertEquals(Long.valueOf(100000), h.getMax());
+		assertEquals(5000050000L, h.getSum().longValue());
+		double error = 1.0 / (1 << 6);
+		assertEquals(50000, h.getValueAtPercentile(50), 50000 * error);
+		assertEquals(95000, h.getValueAtPercentile(95), 95000 * error);
+		assertEquals(99000, h.getValueAtPercentile(99), 99000 * error);
+		assertEquals(100000, h.getValueAtPercentile(100));
+		assertEquals(1, h.getValueAtPercentile(0));
+
+		h.evaluate(-1);
+		h.evaluate(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+		assertEquals(0, h.getValueAtPercentile(0));		// negative values are in the first bucket together with 0
+
+		h.reset();
+		assertTrue(h.isEmpty());
+		assertEquals(0, h.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testEvaluateWithCount() {
+		ConcurrentLongHistogram h = new ConcurrentLongHistogram(7);
+		h.evaluate(1000, 3);
+		h.evaluate(5, 0);
+		assertEquals(3, h.getCount());
+		assertEquals(3000, h.getSum().longValue());
+		try{
+			h.evaluate(Long.MAX_VALUE / 2, 3);
+			fail("there should be an overflow");
+		}catch(ArithmeticException e){
+			// expected
+		}
+		assertEquals(3, h.getCount());
+		assertEquals(3000, h.getSum().longValue());
+		assertEquals(1000, h.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testMerge() {
+		ConcurrentLongHistogram h1 = new ConcurrentLongHistogram(7);
+		ConcurrentLongHistogram h2 = new ConcurrentLongHistogram(7);
+		ConcurrentLongHistogram h3 = new ConcurrentLongHistogram(10, 1000_000L);
+		for (long v = 1; v <= 1000; v ++){
+			h1.evaluate(v);
+			h2.evaluate(v + 1000);
+			h3.evaluate(v + 2000);
+		}
+		ConcurrentLongHistogram all = new ConcurrentLongHistogram(7);
+		all.merge(h1);
+		all.merge((NumberStatistics<Long>) h2);
+		all.merge(h3);
+		all.merge((ConcurrentLongHistogram) null);
+		assertEquals(3000, all.getCount());
+		assertEquals(Long.valueOf(1), all.getMin());
+		assertEquals(Long.valueOf(3000), all.getMax());
+		assertEquals(1500, all.getValueAtPercentile(50), 1500.0 / (1 << 6));
+		assertEquals(2700, all.getValueAtPercentile(90), 2700.0 / (1 << 6));
+
+		StripedLongStatistics other = new StripedLongStatistics();
+		other.evaluate(5000);
+		all.merge(other);
+		assertEquals(3001, all.getCount());
+		assertEquals(Long.valueOf(5000), all.getMax());
+	}
+
+	@Test
+	public void testBytes() {
+		ConcurrentLongHistogram empty = ConcurrentLongHistogram.fromBytes(new ConcurrentLongHistogram(5, 1000L).toBytes());
+		assertTrue(empty.isEmpty());
+		assertEquals(5, empty.getPrecisionBits());
+		assertEquals(1000L, empty.getHighestTrackableValue());
+
+		ConcurrentLongHistogram h = new ConcurrentLongHistogram(7, 3600_000_000_000L);
+		for (long v = 0; v < 100000; v ++){
+			h.evaluate(1000_000L + v * v);
+		}
+		h.evaluate(-20);
+		byte[] bytes = h.toBytes();
+		assertTrue(bytes.length < h.getNumberOfBuckets() * 8 / 4);
+		ConcurrentLongHistogram copy = ConcurrentLongHistogram.fromBase64(h.toBase64());
+		assertEquals(h.getCount(), copy.getCount());
+		assertEquals(h.getSum(), copy.getSum());
+		assertEquals(h.getMin(), copy.getMin());
+		assertEquals(h.getMax(), copy.getMax());
+		for (int i = 0; i < h.getNumberOfBuckets(); i ++){
+			assertEquals(h.getCountAtIndex(i), copy.getCountAtIndex(i));
+		}
+		for (double p = 0; p <= 100; p += 0.5){
+			assertEquals(h.getValueAtPercentile(p), copy.getValueAtPercentile(p));
+		}
+	}
+
+	@Test
+	public void testConcurrentEvaluation() throws InterruptedException {
+		ConcurrentLongHistogram h = new ConcurrentLongHistogram(8);
+		int threads = 8;
+		int perThread = 100000;
+		List<Thread> list = new ArrayList<>();
+		for (int t = 0; t < threads; t ++){
+			Thread thread = new Thread(() -> {
+				for (int i = 1; i <= perThread; i ++){
+					h.evaluate(i);
+				}
+			});
+			list.add(thread);
+			thread.start();
+		}
+		for (Thread thread: list){
+			thread.join();
+		}
+		assertEquals(threads * perThread, h.getCount());
+		long bucketTotal = 0;
+		for (int i = 0; i < h.getNumberOfBuckets(); i ++){
+			bucketTotal += h.getCountAtIndex(i);
+		}
+		assertEquals(threads * perThread, bucketTotal);
+		assertEquals(perThread / 2, h.getValueAtPercentile(50), perThread / 2.0 / (1 << 7));
+	}
+
+}
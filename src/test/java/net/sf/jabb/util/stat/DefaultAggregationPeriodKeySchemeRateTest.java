@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class DefaultAggregationPeriodKeySchemeRateTest {
+	protected int warmUpSeconds = 2;
+	protected int testSeconds = 10;
+	protected int testThreads = 1;
+
+	protected ZoneId zone = ZoneId.of("Australia/Melbourne");
+	protected AggregationPeriod ap = AggregationPeriod.of(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone);
+	protected AggregationPeriodKeyScheme ks = DefaultAggregationPeriodKeyScheme.newInstance(ap);
+	protected long[] epochMillis = new long[10000];
+
+	public DefaultAggregationPeriodKeySchemeRateTest(){
+		long start = LocalDateTime.of(2016, 4, 3, 1, 0).atZone(zone).toInstant().toEpochMilli();
+		for (int i = 0; i < epochMillis.length; i ++){
+			epochMillis[i] = start + i * 1237L;
+		}
+	}
+
+	@Test
+	public void testGenerateKeyPerCall() throws Exception{
+		RateTestUtility.doRateTest("Generating keys one by one", testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int length = 0;
+					for (long t: epochMillis){
+						length += ks.generateKey(t, zone).length();
+					}
+					return length > 0 ? epochMillis.length : 0;
+				});
+	}
+
+	@Test
+	public void testGenerateKeyNumberPerCall() throws Exception{
+		RateTestUtility.doRateTest("Generating key numbers one by one", testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					long sum = 0;
+					for (long t: epochMillis){
+						sum += ks.generateKeyNumber(LocalDateTime.ofInstant(Instant.ofEpochMilli(t), zone));
+					}
+					return sum > 0 ? epochMillis.length : 0;
+				});
+	}
+
+	@Test
+	public void testGenerateKeyNumbersInBulk() throws Exception{
+		long[] keyNumbers = new long[epochMillis.length];
+		RateTestUtility.doRateTest("Generating key numbers in bulk", testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					ks.generateKeyNumbers(epochMillis, zone, keyNumbers);
+					return keyNumbers[keyNumbers.length - 1] > 0 ? epochMillis.length : 0;
+				});
+	}
+
+	@Test
+	public void testGenerateKeysInBulk() throws Exception{
+		long[] keyNumbers = new long[epochMillis.length];
+		StringBuilder sb = new StringBuilder();
+		RateTestUtility.doRateTest("Generating key numbers in bulk and rendering into a reused StringBuilder", testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					ks.generateKeyNumbers(epochMillis, zone, keyNumbers);
+					int length = 0;
+					for (long keyNumber: keyNumbers){
+						sb.setLength(0);
+						length += ks.appendKey(sb, keyNumber).length();
+					}
+					return length > 0 ? epochMillis.length : 0;
+				});
+	}
+
+}
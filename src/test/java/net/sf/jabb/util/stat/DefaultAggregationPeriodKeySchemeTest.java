@@ -5,12 +5,18 @@ package net.sf.jabb.util.stat;
 
 import static org.junit.Assert.*;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
 import java.util.SortedSet;
 
 import org.junit.Before;
@@ -231,4 +237,180 @@ public class DefaultAggregationPeriodKeySchemeTest {
 
 	}
 
+	
+	@Test
+	public void testKeyNumbers(){
+		AggregationPeriodHierarchy<?> aph = this.aph;
+		for (boolean enableCompression: new boolean[]{false, true}){
+			DefaultAggregationPeriodKeyScheme ks = (DefaultAggregationPeriodKeyScheme) DefaultAggregationPeriodKeyScheme.newInstance(aph, enableCompression);
+			for (AggregationPeriod ap: aph.getAll()){
+				int periodIndex = ks.getPeriodIndex(ap);
+				assertEquals(ap, ks.getAggregationPeriod(periodIndex));
+				for (LocalDateTime start: new LocalDateTime[]{LocalDateTime.of(2015, 12, 30, 22, 0), LocalDateTime.of(2016, 2, 28, 22, 0)}){
+					String key = ks.generateKey(ap, start);
+					long number = ks.retrieveKeyNumber(key);
+					assertEquals(periodIndex, ks.retrievePeriodIndex(key));
+					assertEquals(ks.generateKeyNumber(ap, start), number);
+					for (int i = 0; i < 2000; i ++){
+						String nextKey = ks.nextKey(key);
+						long nextNumber = ks.nextKeyNumber(periodIndex, number);
+						assertEquals(nextKey, ks.generateKey(periodIndex, nextNumber));
+						assertEquals(ks.previousKey(nextKey), ks.generateKey(ap, ks.previousKeyNumber(ap, nextNumber)));
+						assertEquals(ks.getStartTime(nextKey), ks.getStartTime(periodIndex, nextNumber));
+						key = nextKey;
+						number = nextNumber;
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testKeyNumbersWithDaylightSaving(){
+		ZoneId melbourne = ZoneId.of("Australia/Melbourne");
+		AggregationPeriodHierarchy<?> aph = new AggregationPeriodHierarchy<>();
+		aph.add(APC_1MIN_MEL);
+			aph.add(APC_1MIN_MEL, AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR, melbourne));
+		DefaultAggregationPeriodKeyScheme ks = (DefaultAggregationPeriodKeyScheme) DefaultAggregationPeriodKeyScheme.newInstance(aph);
+		for (AggregationPeriod ap: aph.getAll()){
+			String key = ks.generateKey(ap, LocalDateTime.of(2016, 10, 1, 22, 0));	// 2016-10-02 02:00 -> 03:00
+			long number = ks.retrieveKeyNumber(key);
+			for (int i = 0; i < 600; i ++){
+				String nextKey = ks.nextKey(key);
+				long nextNumber = ks.nextKeyNumber(ap, number);
+				assertEquals(nextKey, ks.generateKey(ap, nextNumber));
+				key = nextKey;
+				number = nextNumber;
+			}
+		}
+		
+		AggregationPeriod minute = aph.get(APC_1MIN_MEL);
+		ZonedDateTime from = ZonedDateTime.of(2016, 4, 3, 1, 0, 0, 0, melbourne);		// 2016-04-03 03:00 -> 02:00
+		ZonedDateTime to = ZonedDateTime.of(2016, 4, 3, 4, 0, 0, 0, melbourne);
+		List<String> keys = new ArrayList<>();
+		ks.keys(minute, from.toInstant(), to.toInstant()).forEachRemaining(keys::add);
+		assertEquals(180, keys.size());		// each local time is a key, no matter how many times it appears
+		assertEquals(ks.generateKey(minute, LocalDateTime.of(2016, 4, 3, 1, 0)), keys.get(0));
+		assertEquals(ks.generateKey(minute, LocalDateTime.of(2016, 4, 3, 3, 59)), keys.get(179));
+	}
+	
+	@Test
+	public void testKeyNumbersRange(){
+		DefaultAggregationPeriodKeyScheme ks = (DefaultAggregationPeriodKeyScheme) hapks;
+		AggregationPeriod minute = aph.get(APC_1MIN);
+		Instant from = LocalDateTime.of(2016, 1, 1, 0, 0).atZone(UTC).toInstant();
+		Instant to = LocalDateTime.of(2016, 2, 1, 0, 0).atZone(UTC).toInstant();
+		
+		PrimitiveIterator.OfLong numbers = ks.keyNumbers(minute, from, to);
+		assertEquals(201601010000L, numbers.nextLong());
+		int count = 1;
+		long last = 0;
+		while(numbers.hasNext()){
+			last = numbers.nextLong();
+			count ++;
+		}
+		assertEquals(31 * 24 * 60, count);
+		assertEquals(201601312359L, last);
+		
+		assertFalse(ks.keyNumbers(minute, from, from).hasNext());
+		Iterator<String> keys = ks.keys(aph.get(APC_1HOUR), from, from.plusSeconds(1));
+		assertEquals(APC_1HOUR + "2016010100", keys.next());
+		assertFalse(keys.hasNext());
+		keys = ks.keys(aph.get(APC_1MONTH), from, to.plusSeconds(1));
+		assertEquals(APC_1MONTH + "201601", keys.next());
+		assertEquals(APC_1MONTH + "201602", keys.next());
+		assertFalse(keys.hasNext());
+	}
+	
+	@Test
+	public void testBulkKeyNumbers(){
+		AggregationPeriodHierarchy<?> aph = new AggregationPeriodHierarchy<>();
+		for (ZoneId zone: new ZoneId[]{UTC, ZoneId.of("America/Regina"), ZoneId.of("Australia/Melbourne"), ZoneId.of("America/New_York"), ZoneId.of("Pacific/Apia"), ZoneId.of("Asia/Kathmandu")}){
+			String minute5 = AggregationPeriod.getCodeName(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone);
+			String hour = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR, zone);
+			String day = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY, zone);
+			String month = AggregationPeriod.getCodeName(3, AggregationPeriodUnit.YEAR_MONTH, zone);
+			String week = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.WEEK_BASED_YEAR_WEEK, zone);
+			aph.add(minute5);
+				aph.add(minute5, hour);
+					aph.add(hour, AggregationPeriod.getCodeName(6, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR, zone));
+					aph.add(hour, day);
+						aph.add(day, AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_WEEK_ISO, zone));
+						aph.add(day, AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_WEEK_SUNDAY_START, zone));
+						aph.add(day, month);
+							aph.add(month, AggregationPeriod.getCodeName(2, AggregationPeriodUnit.YEAR, zone));
+			aph.add(AggregationPeriod.getCodeName(30, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE, zone));
+			aph.add(week);
+				aph.add(week, AggregationPeriod.getCodeName(1, AggregationPeriodUnit.WEEK_BASED_YEAR, zone));
+		}
+		
+		long[] epochMillis = new long[20000];
+		long from = LocalDateTime.of(1850, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+		long to = LocalDateTime.of(2150, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+		Random random = new Random(2016);
+		for (int i = 0; i < epochMillis.length; i ++){
+			epochMillis[i] = from + (long)(random.nextDouble() * (to - from));
+		}
+		long dst = LocalDateTime.of(2016, 4, 2, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+		for (int i = 0; i < 2000; i ++){		// around daylight saving changes in Melbourne
+			epochMillis[i] = dst + i * 60000L - 1;
+		}
+		long dateLine = LocalDateTime.of(2011, 12, 29, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+		for (int i = 2000; i < 4000; i ++){		// around the skipped day in Apia
+			epochMillis[i] = dateLine + (i - 2000) * 60000L + 999;
+		}
+		
+		long[] keyNumbers = new long[epochMillis.length + 1];
+		StringBuilder sb = new StringBuilder();
+		for (boolean enableCompression: new boolean[]{false, true}){
+			HierarchicalAggregationPeriodKeyScheme ks = DefaultAggregationPeriodKeyScheme.newInstance(aph, enableCompression);
+			for (AggregationPeriod ap: aph.getAll()){
+				ks.generateKeyNumbers(ap, epochMillis, 0, epochMillis.length, keyNumbers, 1);
+				AggregationPeriodKeyScheme apks = DefaultAggregationPeriodKeyScheme.newInstance(ap, enableCompression);
+				long[] apKeyNumbers = new long[epochMillis.length];
+				apks.generateKeyNumbers(epochMillis, ap.getZone(), apKeyNumbers);
+				for (int i = 0; i < epochMillis.length; i ++){
+					LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis[i]), ap.getZone());
+					long expected = ks.generateKeyNumber(ap, time);
+					assertEquals(ap + " " + time, expected, keyNumbers[i + 1]);
+					assertEquals(ap + " " + time, expected, apKeyNumbers[i]);
+					sb.setLength(0);
+					assertEquals(ks.generateKey(ap, expected), ks.appendKey(sb, ap, expected).toString());
+					sb.setLength(0);
+					assertEquals(apks.generateKey(expected), apks.appendKey(sb, expected).toString());
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testKeyNumbersRate(){
+		DefaultAggregationPeriodKeyScheme ks = (DefaultAggregationPeriodKeyScheme) hapks;
+		AggregationPeriod minute = aph.get(APC_1MIN);
+		int periodIndex = ks.getPeriodIndex(minute);
+		int minutes = 31 * 24 * 60;
+		String firstKey = ks.generateKey(minute, LocalDateTime.of(2016, 1, 1, 0, 0));
+		long firstNumber = ks.retrieveKeyNumber(firstKey);
+		
+		for (int round = 0; round < 3; round ++){
+			long start = System.nanoTime();
+			String key = firstKey;
+			for (int i = 1; i < minutes; i ++){
+				key = ks.nextKey(key);
+			}
+			long stringNanos = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			long number = firstNumber;
+			for (int i = 1; i < minutes; i ++){
+				number = ks.nextKeyNumber(periodIndex, number);
+			}
+			long numberNanos = System.nanoTime() - start;
+			
+			assertEquals(key, ks.generateKey(periodIndex, number));
+			System.out.println(String.format("Iterating a month of minute keys: nextKey %,.0f/s, nextKeyNumber %,.0f/s", 
+					minutes * 1e9 / stringNanos, minutes * 1e9 / numberNanos));
+		}
+	}
+
 }
@@ -28,6 +28,12 @@ public class NumberStatisticsRateTest extends BaseTest {
 		doStatisticsTest(stat);
 	}
 
+	@Test
+	public void testStripedLongStatistics() throws Exception {
+		NumberStatistics<Long> stat = new StripedLongStatistics();
+		doStatisticsTest(stat);
+	}
+
 	@Test
 	public void testConcurrentBigIntegerStatistics() throws Exception {
 		NumberStatistics<BigInteger> stat = new ConcurrentBigIntegerStatistics();
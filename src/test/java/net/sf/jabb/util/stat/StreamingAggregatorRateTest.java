@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jabb.util.test.RateTestUtility;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class StreamingAggregatorRateTest extends BaseTest{
+	static String APC_1MIN = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE);
+	static String APC_5MIN = AggregationPeriod.getCodeName(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE);
+	static String APC_1HOUR = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR);
+	static String APC_1DAY = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY);
+	static String APC_1MONTH = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH);
+
+	@Test
+	public void testConcurrentLongStatistics() throws Exception{
+		doTest("ConcurrentLongStatistics", new StreamingAggregator<>(buildHierarchy(), DefaultAggregationPeriodKeyScheme.newInstance(buildHierarchy()),
+				ConcurrentLongStatistics::new, (key, statistics) -> {}, Duration.ofSeconds(10)));
+	}
+
+	@Test
+	public void testStripedLongStatistics() throws Exception{
+		doTest("StripedLongStatistics", new StreamingAggregator<>(buildHierarchy(), DefaultAggregationPeriodKeyScheme.newInstance(buildHierarchy()),
+				StripedLongStatistics::new, (key, statistics) -> {}, Duration.ofSeconds(10)));
+	}
+
+	protected AggregationPeriodHierarchy<?> buildHierarchy(){
+		AggregationPeriodHierarchy<?> aph = new AggregationPeriodHierarchy<>();
+		aph.add(APC_1MIN);
+			aph.add(APC_1MIN, APC_5MIN);
+				aph.add(APC_5MIN, APC_1HOUR);
+					aph.add(APC_1HOUR, APC_1DAY);
+						aph.add(APC_1DAY, APC_1MONTH);
+		return aph;
+	}
+
+	protected void doTest(String title, StreamingAggregator<?> aggregator) throws Exception{
+		long start = System.currentTimeMillis();
+		RateTestUtility.doRateTest("StreamingAggregator with " + title, testThreads,
+				warmUpSeconds, TimeUnit.SECONDS, null,
+				testSeconds, TimeUnit.SECONDS, endTime -> {
+					int i;
+					for (i = 0; i < randomIntegers.length && System.currentTimeMillis() < endTime; i ++){
+						aggregator.record(start + i, randomIntegers[i]);		// every 1000 records cover a second
+					}
+					return i;
+				});
+		aggregator.closeAll();
+	}
+
+}
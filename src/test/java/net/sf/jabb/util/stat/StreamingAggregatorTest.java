@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package net.sf.jabb.util.stat;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class StreamingAggregatorTest {
+	static String APC_1MIN = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE);
+	static String APC_5MIN = AggregationPeriod.getCodeName(5, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR_MINUTE);
+	static String APC_1HOUR = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY_HOUR);
+	static String APC_1DAY = AggregationPeriod.getCodeName(1, AggregationPeriodUnit.YEAR_MONTH_DAY);
+
+	static Instant START = ZonedDateTime.of(2015, 10, 20, 22, 0, 0, 0, ZoneId.of("UTC")).toInstant();
+
+	AggregationPeriodHierarchy<?> aph;
+	Map<String, ConcurrentLongStatistics> closed;
+
+	@Before
+	public void setup(){
+		aph = new AggregationPeriodHierarchy<>();
+		aph.add(APC_5MIN);
+			aph.add(APC_5MIN, APC_1HOUR);
+				aph.add(APC_1HOUR, APC_1DAY);
+		aph.add(APC_1MIN);
+		closed = new LinkedHashMap<>();
+	}
+
+	@Test
+	public void testExplicitWatermark() {
+		StreamingAggregator<ConcurrentLongStatistics> aggregator = new StreamingAggregator<>(aph, ConcurrentLongStatistics::new, closed::put);
+		HierarchicalAggregationPeriodKeyScheme ks = aggregator.getKeyScheme();
+
+		for (int second = 0; second < 3 * 3600; second ++){	// 22:00 to 01:00 next day
+			assertTrue(aggregator.record(START.plusSeconds(second), 1));
+		}
+		assertTrue(closed.isEmpty());
+		assertEquals(60, aggregator.getStatistics(ks.generateKey(aph.get(APC_1MIN), START)).getCount());
+
+		aggregator.advanceWatermark(START.plusSeconds(3600));
+		String day = ks.generateKey(aph.get(APC_1DAY), START);
+		assertFalse(closed.containsKey(day));
+		assertEquals(3600, aggregator.getStatistics(day).getCount());
+		assertEquals(60 + 12 + 1, closed.size());
+		assertEquals(3600, closed.get(ks.generateKey(aph.get(APC_1HOUR), START)).getCount());
+		assertEquals(300, closed.get(ks.generateKey(aph.get(APC_5MIN), START)).getCount());
+		assertNull(aggregator.getStatistics(ks.generateKey(aph.get(APC_1MIN), START)));
+
+		List<String> keys = new ArrayList<>(closed.keySet());
+		assertTrue(keys.indexOf(ks.generateKey(aph.get(APC_5MIN), START.plusSeconds(3300))) < keys.indexOf(ks.generateKey(aph.get(APC_1HOUR), START)));
+
+		assertFalse(aggregator.record(START.plusSeconds(3599), 1));
+		assertEquals(1, aggregator.getLateCount());
+
+		aggregator.advanceWatermark(START.plusSeconds(2 * 3600));
+		assertNull(aggregator.getStatistics(day));
+		assertEquals(7200, closed.get(day).getCount());
+
+		aggregator.closeAll();
+		assertEquals(3 * 3600, closed.get(ks.generateKey(aph.get(APC_1DAY), START.plusSeconds(3 * 3600 - 1))).getCount() + closed.get(day).getCount());
+		assertEquals(3 * 60 + 3 * 12 + 3 + 2, closed.size());
+	}
+
+	@Test
+	public void testAllowedLateness() {
+		StreamingAggregator<ConcurrentLongStatistics> aggregator = new StreamingAggregator<>(aph, DefaultAggregationPeriodKeyScheme.newInstance(aph),
+				ConcurrentLongStatistics::new, closed::put, Duration.ofSeconds(30));
+		HierarchicalAggregationPeriodKeyScheme ks = aggregator.getKeyScheme();
+
+		aggregator.record(START, 5);
+		aggregator.record(START.plusSeconds(80), 7);
+		assertEquals(Long.MIN_VALUE, aggregator.getWatermark());		// no bucket can be closed yet
+		assertTrue(closed.isEmpty());
+		aggregator.record(START.plusSeconds(95), 7);
+		assertEquals(START.plusSeconds(65).toEpochMilli(), aggregator.getWatermark());
+		assertEquals(1, closed.size());
+		assertEquals(Long.valueOf(5), closed.get(ks.generateKey(aph.get(APC_1MIN), START)).getSum());
+
+		assertTrue(aggregator.record(START.plusSeconds(70), 3));	// late but within allowed lateness
+		assertFalse(aggregator.record(START.plusSeconds(59), 3));
+		assertEquals(1, aggregator.getLateCount());
+
+		aggregator.record(START.plusSeconds(330), 1);
+		assertEquals(Long.valueOf(22), closed.get(ks.generateKey(aph.get(APC_5MIN), START)).getSum());
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		StreamingAggregator<ConcurrentLongStatistics> aggregator = new StreamingAggregator<>(aph, DefaultAggregationPeriodKeyScheme.newInstance(aph),
+				ConcurrentLongStatistics::new, (key, statistics) -> {
+					synchronized(closed){
+						closed.put(key, statistics);
+					}
+				}, Duration.ofMinutes(10));
+		int threads = 4;
+		int perThread = 200000;
+		List<Thread> list = new ArrayList<>();
+		for (int t = 0; t < threads; t ++){
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perThread; i ++){
+					aggregator.record(START.toEpochMilli() + i * 10L, 1);		// 2000 seconds
+				}
+			});
+			list.add(thread);
+			thread.start();
+		}
+		for (Thread thread: list){
+			thread.join();
+		}
+		aggregator.closeAll();
+		long total = 0;
+		for (Map.Entry<String, ConcurrentLongStatistics> entry: closed.entrySet()){
+			if (entry.getKey().startsWith(APC_1DAY)){
+				total += entry.getValue().getCount();
+			}
+		}
+		assertEquals(threads * perThread - aggregator.getLateCount(), total);
+	}
+
+	@Test
+	public void testConcurrentRecordingAndAdvancing() throws InterruptedException {
+		List<String> emitted = new ArrayList<>();
+		Map<String, Long> counts = new LinkedHashMap<>();		// as seen when emitted
+		StreamingAggregator<ConcurrentLongStatistics> aggregator = new StreamingAggregator<>(aph, () -> new ConcurrentLongStatistics(){
+			private static final long serialVersionUID = 1L;
+			@Override
+			public void evaluate(long value){
+				Thread.yield();		// widen the window between getting the bucket and recording into it
+				super.evaluate(value);
+			}
+		}, (key, statistics) -> {
+			synchronized(counts){
+				emitted.add(key);
+				counts.put(key, statistics.getCount());
+			}
+		});
+		int threads = 4;
+		int perThread = 20000;
+		int steps = 200;
+		AtomicLong position = new AtomicLong(START.toEpochMilli());
+		AtomicLong recorded = new AtomicLong();
+		CountDownLatch started = new CountDownLatch(1);
+		List<Thread> list = new ArrayList<>();
+		for (int t = 0; t < threads; t ++){
+			Thread thread = new Thread(() -> {
+				Random random = new Random();
+				started.countDown();
+				for (int i = 0; i < perThread; i ++){		// around the watermark, so that many values race with the closing of their buckets
+					if (aggregator.record(position.get() - 2000 + random.nextInt(4000), 1)){
+						recorded.incrementAndGet();
+					}
+				}
+			});
+			list.add(thread);
+			thread.start();
+		}
+		started.await();
+		for (int i = 0; i < steps; i ++){
+			aggregator.advanceWatermark(position.addAndGet(15000));
+			Thread.yield();
+		}
+		for (Thread thread: list){
+			thread.join();
+		}
+		aggregator.closeAll();
+		
+		assertEquals(threads * perThread, recorded.get() + aggregator.getLateCount());
+		assertEquals("no bucket should be emitted more than once", emitted.size(), counts.size());
+		for (String apc: new String[]{APC_1MIN, APC_5MIN, APC_1HOUR, APC_1DAY}){
+			long total = 0;
+			for (Map.Entry<String, Long> entry: counts.entrySet()){
+				if (entry.getKey().startsWith(apc)){
+					total += entry.getValue();
+				}
+			}
+			assertEquals(apc, recorded.get(), total);
+		}
+	}
+
+}
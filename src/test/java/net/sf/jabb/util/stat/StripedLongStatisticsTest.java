@@ -0,0 +1,100 @@
+/**
+ * 
+ */
+package net.sf.jabb.util.stat;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class StripedLongStatisticsTest {
+
+	@Test
+	public void testEmpty() {
+		StripedLongStatistics s = new StripedLongStatistics();
+		assertTrue(s.isEmpty());
+		assertEquals(0, s.getCount());
+		assertEquals(0, s.getSumAsLong());
+		assertEquals(Long.MAX_VALUE, s.getMinAsLong());
+		assertEquals(Long.MIN_VALUE, s.getMaxAsLong());
+		assertTrue(Double.isNaN(s.getAvgAsDouble()));
+		assertNull(s.getAvg());
+		assertNull(s.getMin());
+		assertNull(s.getMax());
+		
+		s.evaluate(-5);
+		assertFalse(s.isEmpty());
+		assertEquals(Long.valueOf(-5), s.getMin());
+		assertEquals(Long.valueOf(-5), s.getMax());
+		s.reset();
+		assertTrue(s.isEmpty());
+		assertNull(s.getMin());
+	}
+
+	@Test
+	public void testAvg() {
+		StripedLongStatistics s = new StripedLongStatistics();
+		s.reset(100L, 100L, 1L, 1L);
+		assertEquals(1.0, s.getAvgAsDouble(), 0.000001);
+		
+		s.reset(3L, 100L, -100L, 100L);
+		assertEquals(33.33333333, s.getAvg().doubleValue(), 0.0001);
+		assertEquals(33, s.getAvg(20).toBigInteger().intValue());
+	}
+
+	@Test
+	public void testConcurrentEvaluationAndMerge() throws InterruptedException {
+		StripedLongStatistics s = new StripedLongStatistics();
+		int threads = 8;
+		int perThread = 100000;
+		List<Thread> list = new ArrayList<>();
+		for (int t = 0; t < threads; t ++){
+			int base = t * perThread;
+			Thread thread = new Thread(() -> {
+				for (int i = 1; i <= perThread; i ++){
+					s.evaluate((long)(base + i));
+				}
+			});
+			list.add(thread);
+			thread.start();
+		}
+		for (Thread thread: list){
+			thread.join();
+		}
+		long n = (long)threads * perThread;
+		assertEquals(n, s.getCount());
+		assertEquals(n * (n + 1) / 2, s.getSumAsLong());
+		assertEquals(1, s.getMinAsLong());
+		assertEquals(n, s.getMaxAsLong());
+		
+		StripedLongStatistics other = new StripedLongStatistics();
+		other.evaluate(-10);
+		other.evaluate(n + 10);
+		s.merge(other);
+		assertEquals(n + 2, s.getCount());
+		assertEquals(n * (n + 1) / 2 + n, s.getSumAsLong());
+		assertEquals(-10, s.getMinAsLong());
+		assertEquals(n + 10, s.getMaxAsLong());
+		
+		ConcurrentLongStatistics boxed = new ConcurrentLongStatistics();
+		boxed.evaluate(-20);
+		s.merge(boxed);
+		assertEquals(n + 3, s.getCount());
+		assertEquals(Long.valueOf(-20), s.getMin());
+		
+		ConcurrentLongStatistics target = new ConcurrentLongStatistics();
+		target.merge(s);
+		assertEquals(s.getCount(), target.getCount());
+		assertEquals(s.getSum(), target.getSum());
+		assertEquals(s.getMin(), target.getMin());
+		assertEquals(s.getMax(), target.getMax());
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package net.sf.jabb.util.time;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author James Hu
+ *
+ */
+public class ZoneOffsetTableTest {
+
+	@Test
+	public void testOffsets() {
+		long from = LocalDateTime.of(1800, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+		long to = LocalDateTime.of(2200, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+		Random random = new Random(1900);
+		for (String id: ZoneId.getAvailableZoneIds()){
+			ZoneId zone = ZoneId.of(id);
+			ZoneRules rules = zone.getRules();
+			ZoneOffsetTable table = ZoneOffsetTable.of(zone);
+			assertSame(table, ZoneOffsetTable.of(zone));
+			long[] epochMillis = new long[500];
+			for (int i = 0; i < epochMillis.length; i ++){
+				long epochSecond = from + (long)(random.nextDouble() * (to - from));
+				assertEquals(id, rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds(), table.getOffsetSeconds(epochSecond));
+				epochMillis[i] = epochSecond * 1000 + i;
+			}
+			Arrays.sort(epochMillis, 0, 250);
+			long[] localEpochSeconds = new long[epochMillis.length];
+			table.toLocalEpochSeconds(epochMillis, 0, epochMillis.length, localEpochSeconds, 0);
+			for (int i = 0; i < epochMillis.length; i ++){
+				assertEquals(id, Math.floorDiv(table.toLocalEpochMilli(epochMillis[i]), 1000), localEpochSeconds[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testTransitions() {
+		ZoneId zone = ZoneId.of("Australia/Melbourne");
+		ZoneOffsetTable table = ZoneOffsetTable.of(zone);
+		assertTrue(table.getNumberOfTransitions() > 100);
+		assertEquals(0, ZoneOffsetTable.of(ZoneId.of("UTC")).getNumberOfTransitions());
+		assertEquals(0, ZoneOffsetTable.of(ZoneOffset.ofHours(-6)).getNumberOfTransitions());
+
+		long transition = LocalDateTime.of(2016, 4, 3, 3, 0).toEpochSecond(ZoneOffset.ofHours(11));		// 03:00 -> 02:00
+		assertEquals(11 * 3600, table.getOffsetSeconds(transition - 1));
+		assertEquals(10 * 3600, table.getOffsetSeconds(transition));
+		assertEquals(LocalDateTime.of(2016, 4, 3, 2, 59, 59).toEpochSecond(ZoneOffset.UTC), table.toLocalEpochSecond(transition - 1));
+		assertEquals(LocalDateTime.of(2016, 4, 3, 2, 0).toEpochSecond(ZoneOffset.UTC), table.toLocalEpochSecond(transition));
+		assertEquals(LocalDateTime.of(2016, 4, 3, 2, 59, 59, 999000000).toInstant(ZoneOffset.UTC).toEpochMilli(), table.toLocalEpochMilli(transition * 1000 - 1));
+	}
+
+}